@@ -24,6 +24,7 @@ package org.physics.jipmunk;
 
 import org.physics.jipmunk.impl.Contact;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -43,6 +44,8 @@ import static org.physics.jipmunk.Util.*;
  */
 public class Arbiter {
 
+	/** Two-contact manifolds with a normal mass matrix of a larger condition number are solved sequentially. */
+	private static final float MAX_CONDITION_NUMBER = 1000.0f;
 	private final static CollisionHandler DO_NOTHING =
 			new CollisionHandler(CollisionType.WILDCARD, CollisionType.WILDCARD, CollisionHandler::alwaysCollide,
 								 CollisionHandler::alwaysCollide, CollisionHandler::doNothing,
@@ -68,20 +71,41 @@ public class Arbiter {
 	Body body_b;
 	ArbiterThread thread_a = new ArbiterThread();
 	ArbiterThread thread_b = new ArbiterThread();
-	List<Contact> contacts;
+	/** The contacts owned by this arbiter, only the first {@link #count} of them are valid. */
+	final Contact[] contacts = new Contact[CollisionInfo.MAX_CONTACTS];
+	int count = 0;
+	/** Set by {@link #preStep(float, float, float, boolean)} if the normal impulses are solved as a block. */
+	private boolean blockSolve = false;
+	/** The normal mass matrix <code>K</code> of a two-contact manifold and its inverse. */
+	private float k11, k12, k22, kInv11, kInv12, kInv22;
 	Vector2f normal = Util.cpvzero();
 	CollisionHandler handler;
 	CollisionHandler handlerA;
 	CollisionHandler handlerB;
 	boolean swapped = false;
 	int stamp = 0;
+	/** The pass of {@link Islands} the arbiter has last been linked in. */
+	int islandStamp;
+	/**
+	 * The collision id of a part of a chain, grid or compound shape and the other shape. Such pairs aren't pairs of the
+	 * broadphase, so the arbiter keeps the id between steps.
+	 */
+	final CollisionID proxyId = new CollisionID(0);
 	ArbiterState state = ArbiterState.FIRST_COLLISION;
+	/** Save count and position of this arbiter in the latest frame saved by a {@link SpaceHistory}. */
+	long historyId = -1;
 	/**
 	 * User definable data. Generally this points to your the game object class so you can access it when given a Body
 	 * reference in a callback.
 	 */
 	private Object data;
 
+	Arbiter() {
+		for (int i = 0; i < contacts.length; i++) {
+			contacts[i] = new Contact();
+		}
+	}
+
 	public Shape getShapeA() {
 		return a;
 	}
@@ -108,7 +132,7 @@ public class Arbiter {
 		this.u = 0;
 		this.surface_vr.set(0, 0);
 		///
-		this.contacts = null;
+		this.count = 0;
 		///
 		this.a = a;
 		this.b = b;
@@ -122,13 +146,14 @@ public class Arbiter {
 		///
 		this.stamp = 0;
 		this.state = ArbiterState.FIRST_COLLISION;
+		this.proxyId.setValue(0);
 	}
 
 	void reset() {
 		this.handler = this.handlerA = this.handlerB = null;
 		this.a = this.b = null;
 		this.body_a = this.body_b = null;
-		this.contacts = null;
+		this.count = 0;
 	}
 
 	ArbiterThread threadForBody(Body body) {
@@ -176,7 +201,7 @@ public class Arbiter {
 	}
 
 	public int getCount() {
-		return (state.ordinal() < ArbiterState.CACHED.ordinal() && contacts != null) ? contacts.size() : 0;
+		return (state.ordinal() < ArbiterState.CACHED.ordinal()) ? count : 0;
 	}
 
 	public Vector2f getNormal() {
@@ -185,23 +210,24 @@ public class Arbiter {
 
 	public Vector2f getPoint1(int i) {
 		cpAssertHard(0 <= i && i < getCount(), "Index error: The specified contact index is invalid for this arbiter");
-		return cpvadd(this.body_a.p, this.contacts.get(i).getR1());
+		return cpvadd(this.body_a.getPosition(), this.contacts[i].getR1());
 	}
 
 	public Vector2f getPoint2(int i) {
 		cpAssertHard(0 <= i && i < getCount(), "Index error: The specified contact index is invalid for this arbiter");
-		return cpvadd(this.body_b.p, this.contacts.get(i).getR2());
+		return cpvadd(this.body_b.getPosition(), this.contacts[i].getR2());
 	}
 
 	public float getDepth(int i) {
 		cpAssertHard(0 <= i && i < getCount(), "Index error: The specified contact index is invalid for this arbiter");
 
-		final Contact con = this.contacts.get(i);
-		return cpvdot(cpvadd(cpvsub(con.getR2(), con.getR1()), cpvsub(this.body_b.p, this.body_a.p)), this.normal);
+		final Contact con = this.contacts[i];
+		Vector2f delta = cpvsub(this.body_b.getPosition(), this.body_a.getPosition());
+		return cpvdot(cpvadd(cpvsub(con.getR2(), con.getR1()), delta), this.normal);
 	}
 
 	List<Contact> getContacts() {
-		return contacts;
+		return Arrays.asList(contacts).subList(0, count);
 	}
 
 	public ContactPointSet getContactPointSet() {
@@ -211,9 +237,9 @@ public class Arbiter {
 
 		for (int i = 0; i < points.length; i++) {
 			// Contact points are relative to body CoGs;
-			final Contact contact = this.contacts.get(i);
-			Vector2f p1 = cpvadd(this.body_a.p, contact.getR1());
-			Vector2f p2 = cpvadd(this.body_b.p, contact.getR2());
+			final Contact contact = this.contacts[i];
+			Vector2f p1 = cpvadd(this.body_a.getPosition(), contact.getR1());
+			Vector2f p2 = cpvadd(this.body_b.getPosition(), contact.getR2());
 
 			points[i].point1 = (swapped ? p2 : p1);
 			points[i].point2 = (swapped ? p1 : p2);
@@ -237,7 +263,7 @@ public class Arbiter {
 			// Convert back to CoG relative offsets.
 			Vector2f p1 = points[i].point1;
 			Vector2f p2 = points[i].point2;
-			Contact contact = this.contacts.get(i);
+			Contact contact = this.contacts[i];
 			contact.getR1().set(cpvsub(swapped ? p2 : p1, this.body_a.getPosition()));
 			contact.getR2().set(cpvsub(swapped ? p1 : p2, this.body_b.getPosition()));
 		}
@@ -255,10 +281,10 @@ public class Arbiter {
 
 			@Override
 			public ContactPoint next() {
-				final Contact contact1 = contacts.get(i);
+				final Contact contact1 = contacts[i];
 				// Contact points are relative to body CoGs;
-				Vector2f p1 = cpvadd(Arbiter.this.body_a.p, contact1.getR1());
-				Vector2f p2 = cpvadd(Arbiter.this.body_b.p, contact1.getR2());
+				Vector2f p1 = cpvadd(Arbiter.this.body_a.getPosition(), contact1.getR1());
+				Vector2f p2 = cpvadd(Arbiter.this.body_b.getPosition(), contact1.getR2());
 
 				contact.point1 = (swapped ? p2 : p1);
 				contact.point2 = (swapped ? p1 : p2);
@@ -278,7 +304,7 @@ public class Arbiter {
 		Vector2f n = this.normal;
 		Vector2f sum = cpvzero();
 		for (int i = 0, count = getCount(); i < count; i++) {
-			Contact con = contacts.get(i);
+			Contact con = contacts[i];
 			sum = cpvadd(sum, cpvrotate(n, cpv(con.getJnAcc(), con.getJtAcc())));
 		}
 		return (this.swapped ? sum : cpvneg(sum));
@@ -289,7 +315,7 @@ public class Arbiter {
 		float sum = 0.0f;
 
 		for (int i = 0, count = getCount(); i < count; i++) {
-			Contact con = contacts.get(i);
+			Contact con = contacts[i];
 			float jnAcc = con.getJnAcc();
 			float jtAcc = con.getJtAcc();
 
@@ -298,6 +324,16 @@ public class Arbiter {
 		return sum;
 	}
 
+	/** Hashes the shape pair and the bits of the accumulated impulses, see {@link Space#getStateChecksum()}. */
+	long stateHash() {
+		long h = ((long) a.getHashId() << 32) | (b.getHashId() & 0xffffffffL);
+		for (int i = 0; i < count; i++) {
+			h = Body.mixHash(h, contacts[i].getJnAcc());
+			h = Body.mixHash(h, contacts[i].getJtAcc());
+		}
+		return h;
+	}
+
 	public float getRestitution() {
 		return this.e;
 	}
@@ -345,34 +381,39 @@ public class Arbiter {
 		this.b = b;
 		this.body_b = b.body;
 
-		if (info.getContacts() != null) {
-			// Iterate over the possible pairs to look for hash value matches.
-			for (Contact con : info.getContacts()) {
-				// r1 and r2 store absolute offsets at init time.
-				// Need to convert them to relative offsets.
-				con.setR1(cpvsub(con.getR1(), a.body.p));
-				con.setR2(cpvsub(con.getR2(), b.body.p));
-
-				// Cached impulses are not zeroed at init time.
-				con.setJnAcc(0.0f);
-				con.setJtAcc(0.0f);
-
-				if (this.contacts != null) {
-					for (int j = 0; j < this.contacts.size(); j++) {
-						Contact old = this.contacts.get(j);
-
-						// This could trigger false positives, but is fairly unlikely nor serious if it does.
-						if (con.getHash() == old.getHash()) {
-							// Copy the persistant contact information.
-							con.setJnAcc(old.getJnAcc());
-							con.setJtAcc(old.getJtAcc());
-						}
-					}
+		int count = info.getCount();
+		// Iterate over the possible pairs to look for hash value matches. The matched impulses are parked in the
+		// contacts of the info first, as the contacts of this arbiter are overwritten in place below.
+		for (int i = 0; i < count; i++) {
+			Contact con = info.getContact(i);
+
+			// Cached impulses are not zeroed at init time.
+			con.setJnAcc(0.0f);
+			con.setJtAcc(0.0f);
+
+			for (int j = 0; j < this.count; j++) {
+				Contact old = this.contacts[j];
+
+				// This could trigger false positives, but is fairly unlikely nor serious if it does.
+				if (con.getHash() == old.getHash()) {
+					// Copy the persistant contact information.
+					con.setJnAcc(old.getJnAcc());
+					con.setJtAcc(old.getJtAcc());
 				}
 			}
 		}
-
-		this.contacts = info.getContacts();
+		for (int i = 0; i < count; i++) {
+			Contact src = info.getContact(i);
+			Contact con = this.contacts[i];
+			// r1 and r2 store absolute offsets at init time.
+			// Need to convert them to relative offsets.
+			con.getR1().set(src.getR1().x - a.body.store.px[a.body.slot], src.getR1().y - a.body.store.py[a.body.slot]);
+			con.getR2().set(src.getR2().x - b.body.store.px[b.body.slot], src.getR2().y - b.body.store.py[b.body.slot]);
+			con.setHash(src.getHash());
+			con.setJnAcc(src.getJnAcc());
+			con.setJtAcc(src.getJtAcc());
+		}
+		this.count = count;
 		this.normal.set(info.getN());
 
 		this.e = a.e * b.e;
@@ -381,7 +422,21 @@ public class Arbiter {
 		Vector2f surface_vr = cpvsub(b.surfaceV, a.surfaceV);
 		this.surface_vr = cpvsub(surface_vr, cpvmult(info.getN(), cpvdot(surface_vr, info.getN())));
 
-		CollisionType typeA = info.getA().getCollisionType(), typeB = info.getB().getCollisionType();
+		updateHandlers(space);
+
+		// mark it as new if it's been cached
+		if (this.state == ArbiterState.CACHED) {
+			this.state = ArbiterState.FIRST_COLLISION;
+		}
+	}
+
+	/**
+	 * Looks up the collision handlers for the collision types of the shapes and sets {@link #swapped} accordingly.
+	 *
+	 * @param space the space to look up the handlers in
+	 */
+	void updateHandlers(Space space) {
+		CollisionType typeA = this.a.getCollisionType(), typeB = this.b.getCollisionType();
 		CollisionHandler defaultHandler = space.getDefaultHandler();
 		CollisionHandler handler = this.handler = space.lookupHandler(typeA, typeB, defaultHandler);
 
@@ -393,21 +448,18 @@ public class Arbiter {
 			this.handlerA = space.lookupHandler((swapped ? typeB : typeA), CollisionType.WILDCARD, DO_NOTHING);
 			this.handlerB = space.lookupHandler((swapped ? typeA : typeB), CollisionType.WILDCARD, DO_NOTHING);
 		}
-
-		// mark it as new if it's been cached
-		if (this.state == ArbiterState.CACHED) {
-			this.state = ArbiterState.FIRST_COLLISION;
-		}
 	}
 
-	void preStep(float dt, float slop, float bias) {
-		if (this.contacts != null) {
+	void preStep(float dt, float slop, float bias, boolean blockSolver) {
+		this.blockSolve = false;
+		if (this.count > 0) {
 			Body a = this.body_a;
 			Body b = this.body_b;
 			Vector2f n = this.normal;
-			Vector2f body_delta = cpvsub(b.p, a.p);
+			Vector2f body_delta = cpvsub(b.getPosition(), a.getPosition());
 
-			for (Contact con : this.contacts) {
+			for (int i = 0; i < this.count; i++) {
+				Contact con = this.contacts[i];
 				// Calculate the mass normal and mass tangent.
 				con.setnMass(1.0f / k_scalar(a, b, con.getR1(), con.getR2(), n));
 				con.settMass(1.0f / k_scalar(a, b, con.getR1(), con.getR2(), cpvperp(n)));
@@ -420,6 +472,28 @@ public class Arbiter {
 				// Calculate the target bounce velocity.
 				con.setBounce(normal_relative_velocity(a, b, con.getR1(), con.getR2(), n) * this.e);
 			}
+
+			if (blockSolver && this.count == 2) {
+				Contact c1 = this.contacts[0], c2 = this.contacts[1];
+				float rn1a = cpvcross(c1.getR1(), n), rn1b = cpvcross(c1.getR2(), n);
+				float rn2a = cpvcross(c2.getR1(), n), rn2b = cpvcross(c2.getR2(), n);
+				float mSum = a.getInverseMass() + b.getInverseMass();
+				float k11 = mSum + a.getInverseMoment() * rn1a * rn1a + b.getInverseMoment() * rn1b * rn1b;
+				float k22 = mSum + a.getInverseMoment() * rn2a * rn2a + b.getInverseMoment() * rn2b * rn2b;
+				float k12 = mSum + a.getInverseMoment() * rn1a * rn2a + b.getInverseMoment() * rn1b * rn2b;
+				float det = k11 * k22 - k12 * k12;
+
+				// Nearly parallel constraints, e.g. both points at the same spot, are left to the sequential solver.
+				if (k11 * k11 < MAX_CONDITION_NUMBER * det) {
+					this.k11 = k11;
+					this.k12 = k12;
+					this.k22 = k22;
+					this.kInv11 = k22 / det;
+					this.kInv12 = -k12 / det;
+					this.kInv22 = k11 / det;
+					this.blockSolve = true;
+				}
+			}
 		}
 	}
 
@@ -427,12 +501,13 @@ public class Arbiter {
 		if (isFirstContact()) {
 			return;
 		}
-		if (this.contacts != null) {
+		if (this.count > 0) {
 			Body a = this.body_a;
 			Body b = this.body_b;
 			Vector2f n = this.normal;
 
-			for (Contact con : this.contacts) {
+			for (int i = 0; i < this.count; i++) {
+				Contact con = this.contacts[i];
 				Vector2f j = cpvrotate(n, cpv(con.getJnAcc(), con.getJtAcc()));
 				apply_impulses(a, b, con.getR1(), con.getR2(), cpvmult(j, dt_coef));
 			}
@@ -442,7 +517,11 @@ public class Arbiter {
 	// TODO is it worth splitting velocity/position correction?
 
 	void applyImpulse() {
-		if (this.contacts == null) {
+		if (this.count == 0) {
+			return;
+		}
+		if (this.blockSolve) {
+			applyBlockImpulse();
 			return;
 		}
 		Body a = this.body_a;
@@ -451,13 +530,14 @@ public class Arbiter {
 		Vector2f surface_vr = this.surface_vr;
 		float friction = this.u;
 
-		for (Contact con : this.contacts) {
+		for (int i = 0; i < this.count; i++) {
+			Contact con = this.contacts[i];
 			float nMass = con.getnMass();
 			Vector2f r1 = con.getR1();
 			Vector2f r2 = con.getR2();
 
-			Vector2f vb1 = cpvadd(a.v_bias, cpvmult(cpvperp(r1), a.w_bias));
-			Vector2f vb2 = cpvadd(b.v_bias, cpvmult(cpvperp(r2), b.w_bias));
+			Vector2f vb1 = biasVelocity(a, r1);
+			Vector2f vb2 = biasVelocity(b, r2);
 			Vector2f vr = cpvadd(relative_velocity(a, b, r1, r2), surface_vr);
 
 			float vbn = cpvdot(cpvsub(vb2, vb1), n);
@@ -483,6 +563,92 @@ public class Arbiter {
 
 	}
 
+	/**
+	 * Solves a two-contact manifold. The bias and friction impulses are applied per contact as in {@link
+	 * #applyImpulse()}, the normal impulses of both contacts are solved together as a 2x2 linear complementarity
+	 * problem, so a resting box does not rock from one corner to the other while the iterations converge.
+	 */
+	private void applyBlockImpulse() {
+		Body a = this.body_a;
+		Body b = this.body_b;
+		Vector2f n = this.normal;
+		Vector2f surface_vr = this.surface_vr;
+		float friction = this.u;
+		Contact c1 = this.contacts[0], c2 = this.contacts[1];
+
+		for (int i = 0; i < 2; i++) {
+			Contact con = this.contacts[i];
+			Vector2f r1 = con.getR1();
+			Vector2f r2 = con.getR2();
+
+			Vector2f vb1 = biasVelocity(a, r1);
+			Vector2f vb2 = biasVelocity(b, r2);
+			float vbn = cpvdot(cpvsub(vb2, vb1), n);
+
+			float jbn = (con.getBias() - vbn) * con.getnMass();
+			float jbnOld = con.getjBias();
+			con.setjBias(cpfmax(jbnOld + jbn, 0.0f));
+			apply_bias_impulses(a, b, r1, r2, cpvmult(n, con.getjBias() - jbnOld));
+		}
+
+		// The accumulated impulses x must satisfy vn = K * x + q >= 0, x >= 0 and vn[i] * x[i] = 0, where q is the
+		// velocity error without any impulse. Try the four combinations of active contacts in turn.
+		float jn1Old = c1.getJnAcc(), jn2Old = c2.getJnAcc();
+		float vn1 = cpvdot(cpvadd(relative_velocity(a, b, c1.getR1(), c1.getR2()), surface_vr), n) + c1.getBounce();
+		float vn2 = cpvdot(cpvadd(relative_velocity(a, b, c2.getR1(), c2.getR2()), surface_vr), n) + c2.getBounce();
+		float q1 = vn1 - (this.k11 * jn1Old + this.k12 * jn2Old);
+		float q2 = vn2 - (this.k12 * jn1Old + this.k22 * jn2Old);
+
+		// Both contacts active.
+		float x1 = -(this.kInv11 * q1 + this.kInv12 * q2);
+		float x2 = -(this.kInv12 * q1 + this.kInv22 * q2);
+		if (x1 < 0.0f || x2 < 0.0f) {
+			// Only the first contact active.
+			x1 = -q1 / this.k11;
+			x2 = 0.0f;
+			if (x1 < 0.0f || this.k12 * x1 + q2 < 0.0f) {
+				// Only the second contact active.
+				x1 = 0.0f;
+				x2 = -q2 / this.k22;
+				if (x2 < 0.0f || this.k12 * x2 + q1 < 0.0f) {
+					// Both contacts separating.
+					x2 = 0.0f;
+					if (q1 < 0.0f || q2 < 0.0f) {
+						// Only reachable through round-off, keep the impulses for this iteration.
+						x1 = jn1Old;
+						x2 = jn2Old;
+					}
+				}
+			}
+		}
+		c1.setJnAcc(x1);
+		c2.setJnAcc(x2);
+		apply_impulses(a, b, c1.getR1(), c1.getR2(), cpvmult(n, x1 - jn1Old));
+		apply_impulses(a, b, c2.getR1(), c2.getR2(), cpvmult(n, x2 - jn2Old));
+
+		for (int i = 0; i < 2; i++) {
+			Contact con = this.contacts[i];
+			Vector2f r1 = con.getR1();
+			Vector2f r2 = con.getR2();
+
+			Vector2f vr = cpvadd(relative_velocity(a, b, r1, r2), surface_vr);
+			float vrt = cpvdot(vr, cpvperp(n));
+
+			float jtMax = friction * con.getJnAcc();
+			float jt = -vrt * con.gettMass();
+			float jtOld = con.getJtAcc();
+			con.setJtAcc(cpfclamp(jtOld + jt, -jtMax, jtMax));
+			apply_impulses(a, b, r1, r2, cpvrotate(n, cpv(0.0f, con.getJtAcc() - jtOld)));
+		}
+	}
+
+	/** @return the bias velocity of <code>body</code> at the offset <code>r</code>, see Util#relative_velocity */
+	private static Vector2f biasVelocity(Body body, Vector2f r) {
+		BodyStore s = body.store;
+		int i = body.slot;
+		return cpv(s.vbx[i] + -r.y * s.wb[i], s.vby[i] + r.x * s.wb[i]);
+	}
+
 	static Arbiter arbiterNext(Arbiter node, Body body) {
 		return (node.body_a == body ? node.thread_a.next : node.thread_b.next);
 	}
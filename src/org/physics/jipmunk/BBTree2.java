@@ -133,11 +133,11 @@ public class BBTree2<T> extends SpatialIndex<T> {
 	}
 
 	static <T> BBTree2<T> GetTree(SpatialIndex<T> index) {
-		return ((index != null && index instanceof BBTree) ? (BBTree2<T>) index : null);
+		return ((index != null && index instanceof BBTree2) ? (BBTree2<T>) index : null);
 	}
 
 	static <T> Node<T> GetRootIfTree(SpatialIndex index) {
-		return ((index != null && index instanceof BBTree) ? ((BBTree2<T>) index).root : null);
+		return ((index != null && index instanceof BBTree2) ? ((BBTree2<T>) index).root : null);
 	}
 
 	static <T> BBTree2<T> GetMasterTree(BBTree2<T> tree) {
@@ -25,7 +25,6 @@ package org.physics.jipmunk;
 import java.util.Iterator;
 import java.util.List;
 
-import static org.physics.jipmunk.Array.cpArrayDeleteObj;
 import static org.physics.jipmunk.Assert.cpAssertSoft;
 import static org.physics.jipmunk.SpaceComponent.ComponentRoot;
 import static org.physics.jipmunk.Util.*;
@@ -79,6 +78,9 @@ public class Body {
 		Body root;
 		Body next;
 		float idleTime = 0.0f;
+		/** Sum of the state hashes of the bodies of the component while it sleeps, valid if {@link #hashed} is set. */
+		long hash;
+		boolean hashed;
 
 		ComponentNode() {
 
@@ -99,8 +101,8 @@ public class Body {
 		}
 	}
 
-	private final static BodyVelocityFunc defaultBodyVelocityFunc = Body::updateVelocity;
-	private final static BodyPositionFunc defaultBodyPositionFunc = Body::updatePosition;
+	final static BodyVelocityFunc defaultBodyVelocityFunc = Body::updateVelocity;
+	final static BodyPositionFunc defaultBodyPositionFunc = Body::updatePosition;
 	private static final boolean SANITY_CHECK = false;
 	/** Function that is called to integrate the body's velocity. (Defaults to cpBodyUpdateVelocity) */
 	BodyVelocityFunc velocityFunc = defaultBodyVelocityFunc;
@@ -108,41 +110,39 @@ public class Body {
 	BodyPositionFunc positionFunc = defaultBodyPositionFunc;
 	/** Mass of the body. Must agree with cpBody.m_inv! Use cpBodySetMass() when changing the mass for this reason. */
 	float m;
-	/** Mass inverse. */
-	float m_inv;
 	/**
 	 * Moment of inertia of the body. Must agree with cpBody.i_inv! Use cpBodySetMoment() when changing the moment for
 	 * this reason.
 	 */
-	private float i;
-	/** Moment of inertia inverse. */
-	float i_inv;
+	float i;
 	/** Center of gravity. */
 	Vector2f cog = Util.cpvzero();
-	/** Position of the rigid body's center of gravity. */
-	Vector2f p = Util.cpvzero();
-	/** Velocity of the rigid body's center of gravity. */
-	Vector2f v = Util.cpvzero();
-	/** Force acting on the rigid body's center of gravity. */
-	private Vector2f f = Util.cpvzero();
-	/**
-	 * Rotation of the body around it's center of gravity in radians. Must agree with cpBody.rot! Use cpBodySetAngle()
-	 * when changing the angle for this reason.
-	 */
-	private float a;
-	/** Angular velocity of the body around it's center of gravity in radians/second. */
-	float w = 0.0f;
-	/** Torque applied to the body around it's center of gravity. */
-	private float t = 0.0f;
 	Transform transform = Transform.identity();
+	/** Store of the body while it isn't held by the store of a space. */
+	final BodyStore ownStore = new BodyStore(1);
 	/**
-	 * "pseudo-velocities" used for eliminating overlap. Erin Catto has some papers that talk about what these are.
+	 * Store holding the position, angle, velocities, forces and inverse mass and moment of the body at {@link #slot}.
+	 * Either {@link #ownStore} or the store of the space.
 	 */
-	Vector2f v_bias = Util.cpvzero();
-	float w_bias = 0;
+	BodyStore store = ownStore;
+	int slot;
 	/** The space this body belongs to. */
 	Space space;
-	private Shape shapeList;
+	/** Position in {@link Space#dynamicBodies} or {@link Space#otherBodies}. */
+	int bodyIndex = -1;
+	/** Position in the list of bodies woken while the space is locked. */
+	int rousedIndex = -1;
+	/** Position in {@link Space#sleepingComponents} if this body is the root of a sleeping component. */
+	int sleepingIndex = -1;
+	/** Id used for the keys of {@link BodyPairSet}, assigned on first use. */
+	int pairId;
+	/** Id assigned in the order the bodies are added to the space, seeds the hash of {@link #stateHash()}. */
+	int hashId;
+	/** The island of the body while it is an awake dynamic body of a space. */
+	Islands.Island island;
+	Body islandPrev;
+	Body islandNext;
+	Shape shapeList;
 	Arbiter arbiterList;
 	Constraint constraintList;
 	/**
@@ -187,7 +187,7 @@ public class Body {
 	public void setMass(float mass) {
 		activate();
 		this.m = mass;
-		this.m_inv = 1.0f / mass;
+		this.store.mInv[slot] = 1.0f / mass;
 		sanityCheck();
 	}
 
@@ -213,13 +213,18 @@ public class Body {
 		}
 		activate();
 		this.i = moment;
-		this.i_inv = 1.0f / moment;
+		this.store.iInv[slot] = 1.0f / moment;
 		sanityCheck();
 	}
 
 	/** @return the inverse moment of inertia of the body */
 	public float getInverseMoment() {
-		return i_inv;
+		return store.iInv[slot];
+	}
+
+	/** @return the inverse mass of the body */
+	float getInverseMass() {
+		return store.mInv[slot];
 	}
 
 	/** @return returns <code>true</code> if body has never been added to a space */
@@ -237,9 +242,9 @@ public class Body {
 		return sleeping.idleTime > 0;
 	}
 
-	/** @return position of the center of gravity of the body */
+	/** @return a copy of the position of the center of gravity of the body */
 	public Vector2f getPosition() {
-		return p; // transform.transformPoint(cpvzero());
+		return Util.cpv(store.px[slot], store.py[slot]);
 	}
 
 	/**
@@ -251,10 +256,12 @@ public class Body {
 	 */
 	public void setPosition(final Vector2f position) {
 		activate();
-		this.p.set(cpvadd(Transform.transformVect(this.transform, this.cog), position));
+		Vector2f p = cpvadd(Transform.transformVect(this.transform, this.cog), position);
+		store.px[slot] = p.x;
+		store.py[slot] = p.y;
 		sanityCheck();
 
-		setTransform(this.p, this.a);
+		setTransform(p, store.a[slot]);
 	}
 
 	public Vector2f getCenterOfGravity() {
@@ -267,9 +274,9 @@ public class Body {
 		sanityCheck();
 	}
 
-	/** @return linear velocity of the center of gravity of the body */
+	/** @return a copy of the linear velocity of the center of gravity of the body */
 	public Vector2f getVelocity() {
-		return v;
+		return Util.cpv(store.vx[slot], store.vy[slot]);
 	}
 
 	/**
@@ -279,7 +286,8 @@ public class Body {
 	 */
 	public void setVelocity(Vector2f v) {
 		activate();
-		this.v.set(v);
+		store.vx[slot] = v.x;
+		store.vy[slot] = v.y;
 		sanityCheck();
 	}
 
@@ -297,7 +305,7 @@ public class Body {
 
 	// 'p' is the position of the CoG
 	public void setTransform(Vector2f p, float a) {
-		Vector2f rot = cpvforangle(a);
+		Vector2f rot = (space != null && space.deterministic) ? cpvforangleStrict(a) : cpvforangle(a);
 		Vector2f c = this.cog;
 
 		this.transform = Transform.transpose(rot.x, -rot.y, p.x - (c.x * rot.x - c.y * rot.y), rot.y, rot.x,
@@ -306,7 +314,7 @@ public class Body {
 
 	/** @return the rotation angle in radians */
 	public float getAngle() {
-		return a;
+		return store.a[slot];
 	}
 
 	/**
@@ -319,15 +327,15 @@ public class Body {
 	 */
 	public float setAngle(float angle) {
 		activate();
-		this.a = angle;
-		setTransform(this.p, angle);
+		store.a[slot] = angle;
+		setTransform(Util.cpv(store.px[slot], store.py[slot]), angle);
 		sanityCheck();
-		return a;
+		return angle;
 	}
 
-	/** @return the force applied to the center of gravity of the body. */
+	/** @return a copy of the force applied to the center of gravity of the body. */
 	public Vector2f getForce() {
-		return f;
+		return Util.cpv(store.fx[slot], store.fy[slot]);
 	}
 
 	/**
@@ -337,13 +345,14 @@ public class Body {
 	 */
 	public void setForce(Vector2f f) {
 		activate();
-		this.f.set(f);
+		store.fx[slot] = f.x;
+		store.fy[slot] = f.y;
 		sanityCheck();
 	}
 
 	/** @return The angular velocity of the body in radians per second. */
 	public float getAngularVelocity() {
-		return w;
+		return store.w[slot];
 	}
 
 	/**
@@ -353,17 +362,17 @@ public class Body {
 	 */
 	public void setAngularVelocity(float angularVelocity) {
 		activate();
-		this.w = angularVelocity;
+		store.w[slot] = angularVelocity;
 		sanityCheck();
 	}
 
 	public void addAngularVelocity(float w) {
-		this.w += w;
+		store.w[slot] += w;
 	}
 
 	/** @return The torque applied to the body. */
 	public float getTorque() {
-		return t;
+		return store.t[slot];
 	}
 
 	/**
@@ -373,15 +382,16 @@ public class Body {
 	 */
 	public void setTorque(float t) {
 		activate();
-		this.t = t;
+		store.t[slot] = t;
 		sanityCheck();
 	}
 
 	/** Zero both the forces and torques currently applied to the body. */
 	public void resetForces() {
 		activate();
-		this.f = cpvzero();
-		this.t = 0.0f;
+		store.fx[slot] = 0.0f;
+		store.fy[slot] = 0.0f;
+		store.t[slot] = 0.0f;
 	}
 
 	/**
@@ -392,10 +402,11 @@ public class Body {
 	 */
 	public void applyForceAtWorldPoint(final Vector2f force, final Vector2f point) {
 		activate();
-		this.f = cpvadd(this.f, force);
+		store.fx[slot] += force.x;
+		store.fy[slot] += force.y;
 
 		Vector2f r = cpvsub(point, transform.transformPoint(this.cog));
-		this.t += cpvcross(r, force);
+		store.t[slot] += cpvcross(r, force);
 	}
 
 	/**
@@ -409,13 +420,19 @@ public class Body {
 	}
 
 	void applyImpulse(Vector2f j, Vector2f r) {
-		this.v = cpvadd(this.v, cpvmult(j, this.m_inv));
-		this.w += this.i_inv * cpvcross(r, j);
+		BodyStore s = this.store;
+		int i = this.slot;
+		s.vx[i] += j.x * s.mInv[i];
+		s.vy[i] += j.y * s.mInv[i];
+		s.w[i] += s.iInv[i] * cpvcross(r, j);
 	}
 
 	void applyBiasImpulse(Vector2f j, Vector2f r) {
-		this.v_bias = cpvadd(this.v_bias, cpvmult(j, this.m_inv));
-		this.w_bias += this.i_inv * cpvcross(r, j);
+		BodyStore s = this.store;
+		int i = this.slot;
+		s.vbx[i] += j.x * s.mInv[i];
+		s.vby[i] += j.y * s.mInv[i];
+		s.wb[i] += s.iInv[i] * cpvcross(r, j);
 	}
 
 	/**
@@ -458,14 +475,39 @@ public class Body {
 		cpv_assert_infinite(v, message);
 	}
 
+	/**
+	 * Hashes the id and the bits of the position, angle and velocities of this body. Bodies in identical states have
+	 * identical hashes on every platform, the id keeps two bodies that swap their states from cancelling out in the sum
+	 * of {@link Space#getStateChecksum()}.
+	 */
+	long stateHash() {
+		BodyStore s = this.store;
+		int i = this.slot;
+		long h = (0x6a09e667f3bcc909L + hashId) * 0x9e3779b97f4a7c15L;
+		h = mixHash(h, s.px[i]);
+		h = mixHash(h, s.py[i]);
+		h = mixHash(h, s.a[i]);
+		h = mixHash(h, s.vx[i]);
+		h = mixHash(h, s.vy[i]);
+		h = mixHash(h, s.w[i]);
+		return h;
+	}
+
+	static long mixHash(long h, float value) {
+		h = (h ^ (Float.floatToRawIntBits(value) & 0xffffffffL)) * 0x9e3779b97f4a7c15L;
+		return h ^ (h >>> 31);
+	}
+
 	void sanityCheck() {
 		if (!SANITY_CHECK) {
 			return;
 		}
-		if (!(this.m == this.m && this.m_inv == this.m_inv)) {
+		BodyStore s = this.store;
+		int i = this.slot;
+		if (!(this.m == this.m && s.mInv[i] == s.mInv[i])) {
 			throw new IllegalStateException("Body's mass is NaN.");
 		}
-		if (!(this.i == this.i && this.i_inv == this.i_inv)) {
+		if (!(this.i == this.i && s.iInv[i] == s.iInv[i])) {
 			throw new IllegalStateException("Body's moment is NaN.");
 		}
 		if (!(this.m >= 0.0f)) {
@@ -475,17 +517,18 @@ public class Body {
 			throw new IllegalStateException("Body's moment is negative.");
 		}
 
-		cpv_assert_sane(this.p, "Body's position is invalid.");
-		cpv_assert_sane(this.v, "Body's velocity is invalid.");
-		cpv_assert_sane(this.f, "Body's force is invalid.");
+		cpv_assert_sane(getPosition(), "Body's position is invalid.");
+		cpv_assert_sane(getVelocity(), "Body's velocity is invalid.");
+		cpv_assert_sane(getForce(), "Body's force is invalid.");
 
-		if (!(this.a == this.a && cpfabs(this.a) != Float.POSITIVE_INFINITY)) {
+		float a = s.a[i], w = s.w[i], t = s.t[i];
+		if (!(a == a && cpfabs(a) != Float.POSITIVE_INFINITY)) {
 			throw new IllegalStateException("Body's angle is invalid.");
 		}
-		if (!(this.w == this.w && cpfabs(this.w) != Float.POSITIVE_INFINITY)) {
+		if (!(w == w && cpfabs(w) != Float.POSITIVE_INFINITY)) {
 			throw new IllegalStateException("Body's angular velocity is invalid.");
 		}
-		if (!(this.t == this.t && cpfabs(this.t) != Float.POSITIVE_INFINITY)) {
+		if (!(t == t && cpfabs(t) != Float.POSITIVE_INFINITY)) {
 			throw new IllegalStateException("Body's torque is invalid.");
 		}
 	}
@@ -507,7 +550,7 @@ public class Body {
 
 			body = next;
 		}
-		cpArrayDeleteObj(space.sleepingComponents, root);
+		space.removeSleepingComponent(root);
 	}
 
 	/** Reset the idle timer on a body. If it was sleeping, wake it and any other dynamicBodies it was touching. */
@@ -535,10 +578,10 @@ public class Body {
 					body = next;
 				}
 
-				cpArrayDeleteObj(space.sleepingComponents, root);
+				space.removeSleepingComponent(root);
 			}
 
-			for (Arbiter arb : arbiters()) {
+			for (Arbiter arb = arbiterList; arb != null; arb = Arbiter.arbiterNext(arb, this)) {
 				// Reset the idle timer of things the body is touching as well.
 				// That way things don't get left hanging in the air.
 				Body other = (arb.body_a == this ? arb.body_b : arb.body_a);
@@ -560,8 +603,8 @@ public class Body {
 			throw new IllegalStateException("cpBodyActivateStatic() called on a non-static body.");
 		}
 
-		for (Arbiter arb : arbiters()) {
-			if (filter == null || filter == arb.a || filter == arb.b) {
+		for (Arbiter arb = arbiterList; arb != null; arb = Arbiter.arbiterNext(arb, this)) {
+			if (filter == null || filter == arb.a || filter == arb.b || filter == arb.a.owner() || filter == arb.b.owner()) {
 				if (arb.body_a == this) {
 					arb.body_b.activate();
 				} else {
@@ -705,27 +748,50 @@ public class Body {
 		};
 	}
 
-	Iterable<Body> components() {
-		return () -> new Iterator<Body>() {
-			Body var = Body.this;
-
-			@Override
-			public boolean hasNext() {
-				return var != null;
-			}
+	/**
+	 * Calls <code>func</code> for every shape of this body without allocating an iterator. It is safe to remove the
+	 * visited shape from within the callback.
+	 *
+	 * @param func the {@link BodyShapeIteratorFunc} to call
+	 */
+	public void eachShape(BodyShapeIteratorFunc func) {
+		Shape shape = this.shapeList;
+		while (shape != null) {
+			Shape next = shape.next;
+			func.visit(this, shape);
+			shape = next;
+		}
+	}
 
-			@Override
-			public Body next() {
-				Body result = var;
-				var = var.sleeping.next;
-				return result;
-			}
+	/**
+	 * Calls <code>func</code> for every constraint attached to this body without allocating an iterator. It is safe to
+	 * remove the visited constraint from within the callback.
+	 *
+	 * @param func the {@link BodyConstraintIteratorFunc} to call
+	 */
+	public void eachConstraint(BodyConstraintIteratorFunc func) {
+		Constraint constraint = this.constraintList;
+		while (constraint != null) {
+			Constraint next = cpConstraintNext(constraint, this);
+			func.visit(this, constraint);
+			constraint = next;
+		}
+	}
 
-			@Override
-			public void remove() {
-				throw new UnsupportedOperationException("removal not allowed");
-			}
-		};
+	/**
+	 * Calls <code>func</code> for every collision pair this body is involved in without allocating an iterator. Like
+	 * with {@link #arbiters()} the body and shape of this body are returned first by the arbiter.
+	 *
+	 * @param func the {@link BodyArbiterIteratorFunc} to call
+	 */
+	public void eachArbiter(BodyArbiterIteratorFunc func) {
+		Arbiter arb = this.arbiterList;
+		while (arb != null) {
+			Arbiter next = Arbiter.arbiterNext(arb, this);
+			arb.swapped = (this == arb.body_b);
+			func.visit(this, arb);
+			arb = next;
+		}
 	}
 
 	/**
@@ -761,8 +827,9 @@ public class Body {
 	 */
 	public float getKineticEnergy() {
 		// Need to do some fudging to avoid NaNs
-		float vsq = cpvdot(this.v, this.v);
-		float wsq = this.w * this.w;
+		float vsq = cpvdot(getVelocity(), getVelocity());
+		float w = getAngularVelocity();
+		float wsq = w * w;
 		return (vsq != 0 ? vsq * this.m : 0.0f) + (wsq != 0 ? wsq * this.i : 0.0f);
 	}
 
@@ -779,12 +846,16 @@ public class Body {
 					String.format("Body's mass and moment must be positive to simulate. (Mass: %f Moment: %f)", this.m,
 							this.i));
 		}
-		this.v = cpvadd(cpvmult(this.v, damping), cpvmult(cpvadd(gravity, cpvmult(this.f, this.m_inv)), dt));
-		this.w = this.w * damping + this.t * this.i_inv * dt;
+		BodyStore s = this.store;
+		int i = this.slot;
+		s.vx[i] = s.vx[i] * damping + (gravity.x + s.fx[i] * s.mInv[i]) * dt;
+		s.vy[i] = s.vy[i] * damping + (gravity.y + s.fy[i] * s.mInv[i]) * dt;
+		s.w[i] = s.w[i] * damping + s.t[i] * s.iInv[i] * dt;
 
 		// Reset forces.
-		this.f.set(0, 0);
-		this.t = 0.0f;
+		s.fx[i] = 0.0f;
+		s.fy[i] = 0.0f;
+		s.t[i] = 0.0f;
 
 		sanityCheck();
 	}
@@ -795,12 +866,16 @@ public class Body {
 	 * @param dt the timestep to use
 	 */
 	public void updatePosition(float dt) {
-		this.p.set(cpvadd(this.p, cpvmult(cpvadd(this.v, this.v_bias), dt)));
-		this.a = this.a + (this.w + this.w_bias) * dt;
-		setTransform(p, a);
+		BodyStore s = this.store;
+		int i = this.slot;
+		s.px[i] = s.px[i] + (s.vx[i] + s.vbx[i]) * dt;
+		s.py[i] = s.py[i] + (s.vy[i] + s.vby[i]) * dt;
+		s.a[i] = s.a[i] + (s.w[i] + s.wb[i]) * dt;
+		setTransform(getPosition(), s.a[i]);
 
-		this.v_bias.set(0, 0);
-		this.w_bias = 0.0f;
+		s.vbx[i] = 0.0f;
+		s.vby[i] = 0.0f;
+		s.wb[i] = 0.0f;
 
 		sanityCheck();
 	}
@@ -933,20 +1008,21 @@ public class Body {
 
 		if (type == BodyType.DYNAMIC) {
 			this.m = this.i = 0.0f;
-			this.m_inv = this.i_inv = Float.POSITIVE_INFINITY;
+			store.mInv[slot] = store.iInv[slot] = Float.POSITIVE_INFINITY;
 
 			accumulateMassFromShapes();
 		} else {
 			this.m = this.i = Float.POSITIVE_INFINITY;
-			this.m_inv = this.i_inv = 0.0f;
+			store.mInv[slot] = store.iInv[slot] = 0.0f;
 
-			this.v.set(0, 0);
-			this.w = 0.0f;
+			store.vx[slot] = store.vy[slot] = 0.0f;
+			store.w[slot] = 0.0f;
 		}
 
 		// If the body is added to a space already, we'll need to update some space data structures.
 		if (space != null) {
 			Assert.cpAssertSpaceUnlocked(space);
+			space.structureVersion++;
 
 			switch (oldType) {
 				case STATIC:
@@ -989,7 +1065,7 @@ public class Body {
 		this.cog.set(0, 0);
 
 		// Cache the position to realign it at the end.
-		Vector2f pos = Util.cpv(this.getPosition());
+		Vector2f pos = this.getPosition();
 
 		// Accumulate mass from shapes.
 		for (Shape shape : shapes()) {
@@ -1006,8 +1082,8 @@ public class Body {
 		}
 
 		// Recalculate the inverses.
-		this.m_inv = 1.0f / this.m;
-		this.i_inv = 1.0f / this.i;
+		store.mInv[slot] = 1.0f / this.m;
+		store.iInv[slot] = 1.0f / this.i;
 
 		// Realign the body since the CoG has probably moved.
 		setPosition(pos);
@@ -1021,12 +1097,12 @@ public class Body {
 	@Override
 	public String toString() {
 		return "Body{" +
-				"p=" + p +
-				", v=" + v +
-				", f=" + f +
-				", a=" + a +
-				", w=" + w +
-				", t=" + t +
+				"p=" + getPosition() +
+				", v=" + getVelocity() +
+				", f=" + getForce() +
+				", a=" + getAngle() +
+				", w=" + getAngularVelocity() +
+				", t=" + getTorque() +
 				", transform=" + transform +
 				'}';
 	}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counted set of unordered body pairs stored as primitive <code>long</code> keys in an open addressing table with
+ * linear probing. The space keeps the pairs of bodies connected by a constraint that doesn't allow them to collide, so
+ * the broadphase can reject those pairs with a single probe instead of walking the constraints of a body.
+ *
+ * @author jobernolte
+ */
+final class BodyPairSet {
+	private static final AtomicInteger nextBodyId = new AtomicInteger();
+	private static final long EMPTY = 0L;
+
+	private long[] keys = new long[16];
+	private int[] counts = new int[16];
+	private int size;
+
+	/**
+	 * @param body the body
+	 * @return the id of the body used to build pair keys, assigned on first use.
+	 */
+	private static int bodyId(Body body) {
+		int id = body.pairId;
+		if (id == 0) {
+			id = body.pairId = nextBodyId.incrementAndGet();
+		}
+		return id;
+	}
+
+	private static long key(Body a, Body b) {
+		int ia = bodyId(a);
+		int ib = bodyId(b);
+		return (ia < ib ? ((long) ia << 32) | (ib & 0xffffffffL) : ((long) ib << 32) | (ia & 0xffffffffL));
+	}
+
+	private static int hash(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Adds a pair, pairs are counted so a pair has to be removed as often as it has been added.
+	 *
+	 * @param a the first body
+	 * @param b the second body
+	 */
+	void add(Body a, Body b) {
+		if ((size + 1) * 4 > keys.length * 3) {
+			rehash(keys.length * 2);
+		}
+		long key = key(a, b);
+		int mask = keys.length - 1;
+		int i = hash(key, mask);
+		while (keys[i] != EMPTY) {
+			if (keys[i] == key) {
+				counts[i]++;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		counts[i] = 1;
+		size++;
+	}
+
+	/**
+	 * Removes one occurrence of a pair.
+	 *
+	 * @param a the first body
+	 * @param b the second body
+	 */
+	void remove(Body a, Body b) {
+		if (size == 0) {
+			return;
+		}
+		long key = key(a, b);
+		int mask = keys.length - 1;
+		int i = hash(key, mask);
+		while (keys[i] != key) {
+			if (keys[i] == EMPTY) {
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		if (--counts[i] > 0) {
+			return;
+		}
+
+		// Shift the following entries of the cluster back so no probe sequence gets interrupted.
+		int hole = i;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			long k = keys[j];
+			if (k == EMPTY) {
+				break;
+			}
+			int home = hash(k, mask);
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				keys[hole] = k;
+				counts[hole] = counts[j];
+				hole = j;
+			}
+		}
+		keys[hole] = EMPTY;
+		counts[hole] = 0;
+		size--;
+	}
+
+	/**
+	 * @param a the first body
+	 * @param b the second body
+	 * @return <code>true</code> if the set contains the pair in any order.
+	 */
+	boolean contains(Body a, Body b) {
+		if (size == 0 || a.pairId == 0 || b.pairId == 0) {
+			return false;
+		}
+		long key = key(a, b);
+		int mask = keys.length - 1;
+		int i = hash(key, mask);
+		long k;
+		while ((k = keys[i]) != EMPTY) {
+			if (k == key) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		keys = new long[capacity];
+		counts = new int[capacity];
+		int mask = capacity - 1;
+		for (int n = 0; n < oldKeys.length; n++) {
+			long key = oldKeys[n];
+			if (key != EMPTY) {
+				int i = hash(key, mask);
+				while (keys[i] != EMPTY) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = key;
+				counts[i] = oldCounts[n];
+			}
+		}
+	}
+}
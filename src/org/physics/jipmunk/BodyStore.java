@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import java.util.Arrays;
+
+/**
+ * Structure-of-arrays storage of the integrated state of bodies. Position, angle, velocities, bias velocities,
+ * forces and the inverse mass and moment of a body live in primitive arrays at the body's slot, {@link Body} only
+ * keeps a reference to its store and slot and reads and writes the arrays directly.
+ * <p/>
+ * Every body starts out in a store of its own. If enabled with {@link Space#setUseBodyStore(boolean)} a space moves
+ * its awake dynamic bodies into a shared store, the slot of a body being its index in {@link Space#dynamicBodies}, so
+ * the default velocity and position functions can be run as loops over the arrays.
+ *
+ * @author jobernolte
+ */
+final class BodyStore {
+	Body[] bodies;
+	float[] px;
+	float[] py;
+	float[] vx;
+	float[] vy;
+	float[] vbx;
+	float[] vby;
+	float[] a;
+	float[] w;
+	float[] wb;
+	float[] fx;
+	float[] fy;
+	float[] t;
+	float[] mInv;
+	float[] iInv;
+
+	BodyStore(int capacity) {
+		bodies = new Body[capacity];
+		px = new float[capacity];
+		py = new float[capacity];
+		vx = new float[capacity];
+		vy = new float[capacity];
+		vbx = new float[capacity];
+		vby = new float[capacity];
+		a = new float[capacity];
+		w = new float[capacity];
+		wb = new float[capacity];
+		fx = new float[capacity];
+		fy = new float[capacity];
+		t = new float[capacity];
+		mInv = new float[capacity];
+		iInv = new float[capacity];
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (bodies.length >= capacity) {
+			return;
+		}
+		int newCapacity = Math.max(capacity, bodies.length * 2);
+		bodies = Arrays.copyOf(bodies, newCapacity);
+		px = Arrays.copyOf(px, newCapacity);
+		py = Arrays.copyOf(py, newCapacity);
+		vx = Arrays.copyOf(vx, newCapacity);
+		vy = Arrays.copyOf(vy, newCapacity);
+		vbx = Arrays.copyOf(vbx, newCapacity);
+		vby = Arrays.copyOf(vby, newCapacity);
+		a = Arrays.copyOf(a, newCapacity);
+		w = Arrays.copyOf(w, newCapacity);
+		wb = Arrays.copyOf(wb, newCapacity);
+		fx = Arrays.copyOf(fx, newCapacity);
+		fy = Arrays.copyOf(fy, newCapacity);
+		t = Arrays.copyOf(t, newCapacity);
+		mInv = Arrays.copyOf(mInv, newCapacity);
+		iInv = Arrays.copyOf(iInv, newCapacity);
+	}
+
+	/** Copies the state at slot <code>i</code> of <code>from</code> to slot <code>j</code> of <code>to</code>. */
+	static void copy(BodyStore from, int i, BodyStore to, int j) {
+		to.px[j] = from.px[i];
+		to.py[j] = from.py[i];
+		to.vx[j] = from.vx[i];
+		to.vy[j] = from.vy[i];
+		to.vbx[j] = from.vbx[i];
+		to.vby[j] = from.vby[i];
+		to.a[j] = from.a[i];
+		to.w[j] = from.w[i];
+		to.wb[j] = from.wb[i];
+		to.fx[j] = from.fx[i];
+		to.fy[j] = from.fy[i];
+		to.t[j] = from.t[i];
+		to.mInv[j] = from.mInv[i];
+		to.iInv[j] = from.iInv[i];
+	}
+
+	/** Moves the state of <code>body</code> to <code>slot</code> of this store and makes the body refer to it. */
+	void attach(Body body, int slot) {
+		if (body.store == this && body.slot == slot) {
+			return;
+		}
+		ensureCapacity(slot + 1);
+		copy(body.store, body.slot, this, slot);
+		bodies[slot] = body;
+		body.store = this;
+		body.slot = slot;
+	}
+
+	/** Moves the state of <code>body</code> back to its own store. */
+	static void detach(Body body) {
+		BodyStore own = body.ownStore;
+		BodyStore store = body.store;
+		if (store == own) {
+			return;
+		}
+		copy(store, body.slot, own, 0);
+		if (store.bodies[body.slot] == body) {
+			store.bodies[body.slot] = null;
+		}
+		body.store = own;
+		body.slot = 0;
+	}
+
+	/**
+	 * Integrates the velocities of the bodies in the slots <code>0</code> to <code>count - 1</code>. Bodies using the
+	 * default function are integrated on the arrays, the function of any other body is called in slot order.
+	 *
+	 * @param count   the number of bodies
+	 * @param gravity the gravity to apply
+	 * @param damping the damping to apply
+	 * @param dt      the timestep to use
+	 */
+	void updateVelocity(int count, Vector2f gravity, float damping, float dt) {
+		Body[] bodies = this.bodies;
+		float[] vx = this.vx, vy = this.vy, w = this.w, fx = this.fx, fy = this.fy, t = this.t;
+		float[] mInv = this.mInv, iInv = this.iInv;
+		float gx = gravity.x;
+		float gy = gravity.y;
+		for (int k = 0; k < count; k++) {
+			Body body = bodies[k];
+			if (body.velocityFunc != Body.defaultBodyVelocityFunc) {
+				body.velocityFunc.apply(body, gravity, damping, dt);
+				continue;
+			}
+			if (!(body.m > 0.0f && body.i > 0.0f)) {
+				throw new IllegalStateException(
+						String.format("Body's mass and moment must be positive to simulate. (Mass: %f Moment: %f)",
+								body.m, body.i));
+			}
+			vx[k] = vx[k] * damping + (gx + fx[k] * mInv[k]) * dt;
+			vy[k] = vy[k] * damping + (gy + fy[k] * mInv[k]) * dt;
+			w[k] = w[k] * damping + t[k] * iInv[k] * dt;
+
+			// Reset forces.
+			fx[k] = 0.0f;
+			fy[k] = 0.0f;
+			t[k] = 0.0f;
+		}
+	}
+
+	/**
+	 * Integrates the positions of the bodies in the slots <code>0</code> to <code>count - 1</code>. Bodies using the
+	 * default function are integrated on the arrays, the function of any other body is called in slot order.
+	 *
+	 * @param count  the number of bodies
+	 * @param dt     the timestep to use
+	 * @param strict <code>true</code> to compute the rotations with {@link StrictMath}
+	 */
+	void updatePosition(int count, float dt, boolean strict) {
+		Body[] bodies = this.bodies;
+		float[] px = this.px, py = this.py, vx = this.vx, vy = this.vy, vbx = this.vbx, vby = this.vby;
+		float[] a = this.a, w = this.w, wb = this.wb;
+		for (int k = 0; k < count; k++) {
+			Body body = bodies[k];
+			if (body.positionFunc != Body.defaultBodyPositionFunc) {
+				body.positionFunc.apply(body, dt);
+				continue;
+			}
+			float x = px[k] = px[k] + (vx[k] + vbx[k]) * dt;
+			float y = py[k] = py[k] + (vy[k] + vby[k]) * dt;
+			float angle = a[k] = a[k] + (w[k] + wb[k]) * dt;
+			float rx = (float) (strict ? StrictMath.cos(angle) : Math.cos(angle));
+			float ry = (float) (strict ? StrictMath.sin(angle) : Math.sin(angle));
+			Vector2f c = body.cog;
+			body.transform = Transform.transpose(rx, -ry, x - (c.x * rx - c.y * ry), ry, rx, y - (c.x * ry + c.y * rx));
+
+			vbx[k] = 0.0f;
+			vby[k] = 0.0f;
+			wb[k] = 0.0f;
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import static org.physics.jipmunk.Util.*;
+
+/**
+ * A chain of connected line segments, usually used for static terrain outlines. The vertices are kept in a flat array
+ * and the segments are indexed by a small bounding box tree of their own, so the spatial index of the space only
+ * holds a single entry for the whole chain and collisions only look at the segments close to the other shape.
+ * <p>
+ * Collisions against a chain are reported per segment: the arbiters reference a {@link ChainShape.Segment} which
+ * knows its chain and its index. Point and segment queries report the chain itself.
+ *
+ * @author jobernolte
+ */
+public class ChainShape extends Shape {
+
+	/** Local vertex coordinates, interleaved x and y. */
+	private final float[] vertices;
+	private final int vertexCount;
+	private final int segmentCount;
+	private final boolean loop;
+	private final float radius;
+	/** The bounding boxes of the segments, including the radius of the chain. */
+	private final LocalBVH tree;
+	/** The segments created so far, see {@link #segment(int)}. */
+	private Segment[] segments;
+	private Transform transform;
+	private Transform inverse;
+	/** Incremented whenever the transform changes so the segments know when to update. */
+	private int version;
+
+	/**
+	 * A single segment of a {@link ChainShape}. Segments are created by the chain when they first take part in a
+	 * collision and take their properties from the chain. They should be treated as read only.
+	 */
+	public static class Segment extends SegmentShape {
+		private final ChainShape chain;
+		private final int index;
+		private int version = -1;
+
+		Segment(ChainShape chain, int index) {
+			super(chain.body, chain.getVertex(index), chain.getVertex(chain.next(index)), chain.radius);
+			this.chain = chain;
+			this.index = index;
+			this.parent = chain;
+			if (chain.loop || index > 0) {
+				this.a_tangent = cpvsub(chain.getVertex(chain.prev(index)), this.a);
+			}
+			if (chain.loop || index + 1 < chain.segmentCount) {
+				this.b_tangent = cpvsub(chain.getVertex(chain.next(chain.next(index))), this.b);
+			}
+		}
+
+		/** @return the chain this segment belongs to */
+		public ChainShape getChain() {
+			return chain;
+		}
+
+		/** @return the index of this segment within its chain */
+		public int getIndex() {
+			return index;
+		}
+	}
+
+	/**
+	 * Creates a new chain.
+	 *
+	 * @param body     the body to attach the chain to
+	 * @param vertices the vertices of the chain
+	 * @param loop     <code>true</code> to connect the last vertex with the first one
+	 * @param radius   the radius of the segments
+	 */
+	public ChainShape(Body body, Vector2f[] vertices, boolean loop, float radius) {
+		this(body, flatten(vertices), loop, radius);
+	}
+
+	/**
+	 * Creates a new chain.
+	 *
+	 * @param body     the body to attach the chain to
+	 * @param vertices the vertex coordinates of the chain, interleaved x and y
+	 * @param loop     <code>true</code> to connect the last vertex with the first one
+	 * @param radius   the radius of the segments
+	 */
+	public ChainShape(Body body, float[] vertices, boolean loop, float radius) {
+		super(body, null);
+		if ((vertices.length & 1) != 0) {
+			throw new IllegalArgumentException("The vertex array must hold pairs of coordinates.");
+		}
+		this.vertexCount = vertices.length / 2;
+		if (vertexCount < (loop ? 3 : 2)) {
+			throw new IllegalArgumentException("A chain needs at least " + (loop ? 3 : 2) + " vertices.");
+		}
+		this.vertices = vertices.clone();
+		this.loop = loop;
+		this.radius = radius;
+		this.segmentCount = loop ? vertexCount : vertexCount - 1;
+
+		float[] leafBB = new float[segmentCount * 4];
+		for (int i = 0; i < segmentCount; i++) {
+			int j = next(i);
+			float ax = this.vertices[i * 2], ay = this.vertices[i * 2 + 1];
+			float bx = this.vertices[j * 2], by = this.vertices[j * 2 + 1];
+			leafBB[i * 4] = Math.min(ax, bx) - radius;
+			leafBB[i * 4 + 1] = Math.min(ay, by) - radius;
+			leafBB[i * 4 + 2] = Math.max(ax, bx) + radius;
+			leafBB[i * 4 + 3] = Math.max(ay, by) + radius;
+		}
+		this.tree = new LocalBVH(leafBB, segmentCount);
+		this.massInfo = createMassInfo();
+	}
+
+	private static float[] flatten(Vector2f[] vertices) {
+		float[] xy = new float[vertices.length * 2];
+		for (int i = 0; i < vertices.length; i++) {
+			xy[i * 2] = vertices[i].x;
+			xy[i * 2 + 1] = vertices[i].y;
+		}
+		return xy;
+	}
+
+	private MassInfo createMassInfo() {
+		float area = 0.0f, cx = 0.0f, cy = 0.0f;
+		for (int i = 0; i < segmentCount; i++) {
+			Vector2f a = getVertex(i), b = getVertex(next(i));
+			float segmentArea = areaForSegment(a, b, radius);
+			area += segmentArea;
+			cx += (a.x + b.x) * 0.5f * segmentArea;
+			cy += (a.y + b.y) * 0.5f * segmentArea;
+		}
+		Vector2f cog = (area > 0.0f ? cpv(cx / area, cy / area) : getVertex(0));
+
+		// Combine the moments of the segments about the common center of gravity.
+		float moment = 0.0f;
+		for (int i = 0; i < segmentCount; i++) {
+			Vector2f a = getVertex(i), b = getVertex(next(i));
+			float segmentArea = areaForSegment(a, b, radius);
+			float i1 = momentForBox(1.0f, cpvdist(a, b) + 2.0f * radius, 2.0f * radius);
+			moment += segmentArea * (i1 + cpvdistsq(cpvlerp(a, b, 0.5f), cog));
+		}
+		return new MassInfo(0.0f, (area > 0.0f ? moment / area : 0.0f), cog, area);
+	}
+
+	private int next(int index) {
+		return (index + 1 == vertexCount ? 0 : index + 1);
+	}
+
+	private int prev(int index) {
+		return (index == 0 ? vertexCount - 1 : index - 1);
+	}
+
+	/** @return the number of vertices of this chain */
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	/** @return the number of segments of this chain */
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	/**
+	 * @param index the index of the vertex
+	 * @return the vertex in body local coordinates
+	 */
+	public Vector2f getVertex(int index) {
+		return cpv(vertices[index * 2], vertices[index * 2 + 1]);
+	}
+
+	/** @return <code>true</code> if the last vertex is connected with the first one */
+	public boolean isLoop() {
+		return loop;
+	}
+
+	public float getRadius() {
+		return radius;
+	}
+
+	@Override
+	public ShapeType getType() {
+		return ShapeType.CHAIN_SHAPE;
+	}
+
+	@Override
+	protected BB cacheData(Transform transform) {
+		this.transform = transform;
+		this.inverse = Transform.inverse(transform);
+		this.version++;
+		return Transform.transformbBB(transform, tree.bounds());
+	}
+
+	/**
+	 * Returns the segment with the given index with its properties and transform synchronized with this chain.
+	 *
+	 * @param index the index of the segment
+	 * @return the segment
+	 */
+	Segment segment(int index) {
+		if (segments == null) {
+			segments = new Segment[segmentCount];
+		}
+		Segment segment = segments[index];
+		if (segment == null) {
+			segment = segments[index] = new Segment(this, index);
+		}
+		segment.copyProperties(this);
+		if (segment.version != version) {
+			segment.update(transform);
+			segment.version = version;
+		}
+		return segment;
+	}
+
+	@Override
+	boolean hasProxies() {
+		return true;
+	}
+
+	@Override
+	int queryProxies(BB bb, Shape[] out) {
+		// Bring the box into the local space of the chain.
+		BB local = Transform.transformbBB(inverse, bb);
+
+		int count = 0;
+		int node = 1;
+		do {
+			if (tree.overlaps(node, local.l, local.b, local.r, local.t)) {
+				if (!tree.isLeaf(node)) {
+					node <<= 1;
+					continue;
+				}
+				if (count < out.length) {
+					out[count] = segment(tree.leaf(node));
+				}
+				count++;
+			}
+			node = LocalBVH.next(node);
+		} while (node != 1);
+		return count;
+	}
+
+	@Override
+	void releaseProxies(Space space) {
+		if (segments != null) {
+			for (Segment segment : segments) {
+				if (segment != null && segment.getHashId() >= 0) {
+					space.revokeShapeId(segment);
+				}
+			}
+		}
+	}
+
+	/** Writes the world coordinates of the end points and the normal of a segment to <code>out</code>. */
+	void transformSegment(int index, float[] out, int offset) {
+		Transform t = transform;
+		int j = next(index);
+		float ax = vertices[index * 2], ay = vertices[index * 2 + 1];
+		float bx = vertices[j * 2], by = vertices[j * 2 + 1];
+		float dx = bx - ax, dy = by - ay;
+		float len = (float) Math.sqrt(dx * dx + dy * dy);
+		float nx = (len > 0.0f ? -dy / len : 0.0f), ny = (len > 0.0f ? dx / len : 0.0f);
+		out[offset] = t.a * ax + t.c * ay + t.tx;
+		out[offset + 1] = t.b * ax + t.d * ay + t.ty;
+		out[offset + 2] = t.a * bx + t.c * by + t.tx;
+		out[offset + 3] = t.b * bx + t.d * by + t.ty;
+		out[offset + 4] = t.a * nx + t.c * ny;
+		out[offset + 5] = t.b * nx + t.d * ny;
+	}
+
+	@Override
+	protected void segmentQueryImpl(Vector2f a, Vector2f b, float r2, SegmentQueryInfo info) {
+		ProxyQueryWorkspace ws = ProxyQueryWorkspace.get();
+		Vector2f la = ProxyQueryWorkspace.transformPoint(inverse, a.x, a.y, ws.localA);
+		Vector2f lb = ProxyQueryWorkspace.transformPoint(inverse, b.x, b.y, ws.localB);
+		float dx = lb.x - la.x, dy = lb.y - la.y;
+
+		SegmentQueryInfo hit = ws.hit;
+		int node = 1;
+		do {
+			if (tree.enterTime(node, la.x, la.y, dx, dy, r2) <= info.alpha) {
+				if (!tree.isLeaf(node)) {
+					node <<= 1;
+					continue;
+				}
+				transformSegment(tree.leaf(node), ws.segment, 0);
+				ws.loadSegment();
+				hit.reset();
+				SegmentShape.segmentSegmentQuery(this, ws.ta, ws.tb, ws.n, radius, a, b, r2, hit);
+				if (hit.shape != null && hit.alpha < info.alpha) {
+					info.set(hit);
+				}
+			}
+			node = LocalBVH.next(node);
+		} while (node != 1);
+	}
+
+	@Override
+	public PointQueryInfo pointQuery(Vector2f p, PointQueryInfo out) {
+		if (out == null) {
+			out = new PointQueryInfo();
+		}
+		ProxyQueryWorkspace ws = ProxyQueryWorkspace.get();
+		Vector2f lp = ProxyQueryWorkspace.transformPoint(inverse, p.x, p.y, ws.localA);
+		PointQueryInfo candidate = ws.candidate;
+		float best = Float.POSITIVE_INFINITY;
+
+		// Branch and bound, skipping every node that is further away than the closest segment found so far.
+		int node = 1;
+		do {
+			if (tree.distance(node, lp.x, lp.y) - radius < best) {
+				if (!tree.isLeaf(node)) {
+					node <<= 1;
+					continue;
+				}
+				transformSegment(tree.leaf(node), ws.segment, 0);
+				ws.loadSegment();
+				SegmentShape.segmentPointQuery(this, ws.ta, ws.tb, ws.n, radius, p, candidate);
+				if (candidate.distance < best) {
+					best = candidate.distance;
+					out.set(this, candidate.point, candidate.distance, candidate.gradient);
+				}
+			}
+			node = LocalBVH.next(node);
+		} while (node != 1);
+		return out;
+	}
+}
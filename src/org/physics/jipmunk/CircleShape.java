@@ -26,7 +26,7 @@ import static org.physics.jipmunk.Util.*;
 
 /** @author jobernolte */
 public class CircleShape extends Shape {
-	private Vector2f c = Util.cpvzero();
+	Vector2f c = Util.cpvzero();
 	Vector2f tc;
 	float radius;
 
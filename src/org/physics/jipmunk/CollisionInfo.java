@@ -24,24 +24,49 @@ package org.physics.jipmunk;
 
 import org.physics.jipmunk.impl.Contact;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
+ * The result of colliding two shapes. The contacts are kept in a fixed array that is overwritten by the next call to
+ * {@link #init(Shape, Shape, CollisionID)}, so a single instance can be reused for every pair of a step.
+ *
  * @author jobernolte
  */
 public class CollisionInfo {
+	/** The maximum number of contacts a collision between two shapes can produce. */
+	public static final int MAX_CONTACTS = 2;
 	private Shape a, b;
 	private CollisionID id;
 	private Vector2f n = new Vector2f();
-	private List<Contact> contacts = null;
+	private final Contact[] contacts = new Contact[MAX_CONTACTS];
+	private int count;
+
+	public CollisionInfo() {
+		for (int i = 0; i < MAX_CONTACTS; i++) {
+			contacts[i] = new Contact();
+		}
+	}
 
 	public CollisionInfo(Shape a, Shape b, CollisionID id, Vector2f n) {
+		this();
+		init(a, b, id);
+		this.n.set(n);
+	}
+
+	/**
+	 * Prepares this instance for the next collision, dropping the contacts of the previous one.
+	 *
+	 * @param a  the first shape
+	 * @param b  the second shape
+	 * @param id the collision id used by the colliders to cache data between steps
+	 */
+	public void init(Shape a, Shape b, CollisionID id) {
 		this.a = a;
 		this.b = b;
 		this.id = id;
-		this.n.set(n);
+		this.n.set(0, 0);
+		this.count = 0;
 	}
 
 	public Shape getA() {
@@ -77,19 +102,35 @@ public class CollisionInfo {
 	}
 
 	public Contact addContact(Vector2f p1, Vector2f p2, int hash) {
-		Contact con = new Contact(p1, p2, hash);
-		if (contacts == null) {
-			contacts = new LinkedList<>();
+		if (count == MAX_CONTACTS) {
+			throw new IllegalStateException("Internal error: Tried to add too many contacts.");
 		}
-		contacts.add(con);
+		Contact con = contacts[count++];
+		con.setR1(p1);
+		con.setR2(p2);
+		con.setHash(hash);
 		return con;
 	}
 
 	public boolean isEmpty() {
-		return contacts == null || contacts.isEmpty();
+		return count == 0;
+	}
+
+	/** @return the number of contacts */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @param i the index of the contact
+	 * @return the contact at index <code>i</code>, valid until this instance is reused
+	 */
+	public Contact getContact(int i) {
+		return contacts[i];
 	}
 
+	/** @return a view of the contacts, valid until this instance is reused */
 	public List<Contact> getContacts() {
-		return contacts;
+		return Arrays.asList(contacts).subList(0, count);
 	}
 }
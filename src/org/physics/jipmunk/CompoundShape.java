@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.physics.jipmunk.Util.*;
+
+/**
+ * A shape made of many child shapes attached to the same body. The children are kept in a bounding box tree in body
+ * local coordinates and the spatial index of the space only holds the compound, so moving a body made of many parts
+ * costs a single reindex. The tree is only descended in the narrow phase, and only the children close to the other
+ * shape are updated and collided.
+ * <p>
+ * The children keep their own mass, material, collision type and sensor flag. A pair is only collided if both the
+ * filter of the compound and the filter of the child accept it. Collisions are reported against the children, point
+ * and segment queries report the compound. The children can't be changed after the compound has been created.
+ *
+ * @author jobernolte
+ */
+public class CompoundShape extends Shape {
+
+	/** The children in the order they were given. */
+	private final List<Shape> children;
+	/** The children in leaf order of the tree. */
+	private final Shape[] leaves;
+	private final LocalBVH tree;
+	/** The transform version each child was last updated with. */
+	private final int[] versions;
+	private Transform transform;
+	private Transform inverse;
+	/** Incremented whenever the transform changes so the children know when to update. */
+	private int version;
+
+	/**
+	 * Creates a new compound shape. The children must be attached to <code>body</code> and must not have been added to
+	 * a space or another shape.
+	 *
+	 * @param body     the body to attach the compound to
+	 * @param children the child shapes
+	 */
+	public CompoundShape(Body body, Shape... children) {
+		super(body, null);
+		if (children.length == 0) {
+			throw new IllegalArgumentException("A compound shape needs at least one child.");
+		}
+		for (Shape child : children) {
+			if (child.body != body) {
+				throw new IllegalArgumentException("The child " + child + " is attached to a different body.");
+			}
+			if (child.space != null || child.parent != null) {
+				throw new IllegalArgumentException("The child " + child + " is already in use.");
+			}
+			if (child.hasProxies()) {
+				throw new IllegalArgumentException("Shapes of type " + child.getType() + " can't be children.");
+			}
+		}
+		for (Shape child : children) {
+			child.parent = this;
+		}
+		this.children = Collections.unmodifiableList(Arrays.asList(children.clone()));
+
+		// Take the local bounding boxes and order the children spatially so neighbouring leaves are close together.
+		int count = children.length;
+		float[] childBB = new float[count * 4];
+		Integer[] order = new Integer[count];
+		Transform identity = Transform.identity();
+		for (int i = 0; i < count; i++) {
+			BB bb = children[i].update(identity);
+			childBB[i * 4] = bb.l;
+			childBB[i * 4 + 1] = bb.b;
+			childBB[i * 4 + 2] = bb.r;
+			childBB[i * 4 + 3] = bb.t;
+			order[i] = i;
+		}
+		int span = 1;
+		while (span < count) {
+			span <<= 1;
+		}
+		sort(order, childBB, 0, span);
+
+		this.leaves = new Shape[count];
+		float[] leafBB = new float[count * 4];
+		for (int i = 0; i < count; i++) {
+			leaves[i] = children[order[i]];
+			System.arraycopy(childBB, order[i] * 4, leafBB, i * 4, 4);
+		}
+		this.tree = new LocalBVH(leafBB, count);
+		this.versions = new int[count];
+		Arrays.fill(versions, -1);
+		this.massInfo = createMassInfo(children);
+	}
+
+	/**
+	 * Sorts the children covered by the subtree of <code>span</code> leaves starting at <code>lo</code> along the
+	 * longer axis of their centers and splits them the way the implicit tree does.
+	 */
+	private static void sort(Integer[] order, float[] childBB, int lo, int span) {
+		int hi = Math.min(lo + span, order.length);
+		if (hi - lo <= 1) {
+			return;
+		}
+		float l = Float.POSITIVE_INFINITY, b = Float.POSITIVE_INFINITY;
+		float r = Float.NEGATIVE_INFINITY, t = Float.NEGATIVE_INFINITY;
+		for (int i = lo; i < hi; i++) {
+			int o = order[i] * 4;
+			float cx = childBB[o] + childBB[o + 2], cy = childBB[o + 1] + childBB[o + 3];
+			l = Math.min(l, cx);
+			r = Math.max(r, cx);
+			b = Math.min(b, cy);
+			t = Math.max(t, cy);
+		}
+		final int axis = ((r - l) >= (t - b) ? 0 : 1);
+		Arrays.sort(order, lo, hi, (x, y) -> Float.compare(childBB[x * 4 + axis] + childBB[x * 4 + axis + 2],
+														   childBB[y * 4 + axis] + childBB[y * 4 + axis + 2]));
+		sort(order, childBB, lo, span / 2);
+		sort(order, childBB, lo + span / 2, span / 2);
+	}
+
+	private static MassInfo createMassInfo(Shape[] children) {
+		// Weight by mass if the children have any, else by area so a density can still be applied to the compound.
+		float mass = 0.0f, area = 0.0f;
+		for (Shape child : children) {
+			mass += child.massInfo.m;
+			area += child.massInfo.area;
+		}
+		boolean byMass = (mass > 0.0f);
+		float total = (byMass ? mass : area);
+		if (total <= 0.0f) {
+			return new MassInfo(0.0f, 0.0f, cpvzero(), 0.0f);
+		}
+
+		float cx = 0.0f, cy = 0.0f;
+		for (Shape child : children) {
+			float w = (byMass ? child.massInfo.m : child.massInfo.area);
+			cx += child.massInfo.cog.x * w;
+			cy += child.massInfo.cog.y * w;
+		}
+		Vector2f cog = cpv(cx / total, cy / total);
+
+		// Combine the moments of the children about the common center of gravity.
+		float moment = 0.0f;
+		for (Shape child : children) {
+			float w = (byMass ? child.massInfo.m : child.massInfo.area);
+			moment += w * (child.massInfo.i + cpvdistsq(child.massInfo.cog, cog));
+		}
+		return new MassInfo(mass, moment / total, cog, area);
+	}
+
+	/** @return the child shapes in the order they were given */
+	public List<Shape> getChildren() {
+		return children;
+	}
+
+	@Override
+	public ShapeType getType() {
+		return ShapeType.COMPOUND_SHAPE;
+	}
+
+	@Override
+	protected BB cacheData(Transform transform) {
+		this.transform = transform;
+		this.inverse = Transform.inverse(transform);
+		this.version++;
+		return Transform.transformbBB(transform, tree.bounds());
+	}
+
+	/** @return the child at the given leaf with its transform updated */
+	private Shape leaf(int index) {
+		Shape child = leaves[index];
+		child.body = body;
+		if (versions[index] != version) {
+			child.update(transform);
+			versions[index] = version;
+		}
+		return child;
+	}
+
+	@Override
+	boolean hasProxies() {
+		return true;
+	}
+
+	@Override
+	int queryProxies(BB bb, Shape[] out) {
+		// Bring the box into the local space of the compound.
+		BB local = Transform.transformbBB(inverse, bb);
+
+		int count = 0;
+		int node = 1;
+		do {
+			if (tree.overlaps(node, local.l, local.b, local.r, local.t)) {
+				if (!tree.isLeaf(node)) {
+					node <<= 1;
+					continue;
+				}
+				if (count < out.length) {
+					out[count] = leaf(tree.leaf(node));
+				}
+				count++;
+			}
+			node = LocalBVH.next(node);
+		} while (node != 1);
+		return count;
+	}
+
+	@Override
+	void releaseProxies(Space space) {
+		for (Shape child : leaves) {
+			if (child.getHashId() >= 0) {
+				space.revokeShapeId(child);
+			}
+		}
+	}
+
+	@Override
+	protected void segmentQueryImpl(Vector2f a, Vector2f b, float r2, SegmentQueryInfo info) {
+		ProxyQueryWorkspace ws = ProxyQueryWorkspace.get();
+		Vector2f la = ProxyQueryWorkspace.transformPoint(inverse, a.x, a.y, ws.localA);
+		Vector2f lb = ProxyQueryWorkspace.transformPoint(inverse, b.x, b.y, ws.localB);
+		float dx = lb.x - la.x, dy = lb.y - la.y;
+
+		SegmentQueryInfo hit = ws.hit;
+		int node = 1;
+		do {
+			if (tree.enterTime(node, la.x, la.y, dx, dy, r2) <= info.alpha) {
+				if (!tree.isLeaf(node)) {
+					node <<= 1;
+					continue;
+				}
+				hit.reset();
+				leaf(tree.leaf(node)).segmentQueryImpl(a, b, r2, hit);
+				if (hit.shape != null && hit.alpha < info.alpha) {
+					info.set(hit);
+					info.shape = this;
+				}
+			}
+			node = LocalBVH.next(node);
+		} while (node != 1);
+	}
+
+	@Override
+	public PointQueryInfo pointQuery(Vector2f p, PointQueryInfo out) {
+		if (out == null) {
+			out = new PointQueryInfo();
+		}
+		ProxyQueryWorkspace ws = ProxyQueryWorkspace.get();
+		Vector2f lp = ProxyQueryWorkspace.transformPoint(inverse, p.x, p.y, ws.localA);
+		PointQueryInfo candidate = ws.candidate;
+		float best = Float.POSITIVE_INFINITY;
+
+		// Branch and bound, skipping every node that is further away than the closest child found so far. Nodes
+		// containing the point are always visited as the point may lie inside of a child.
+		int node = 1;
+		do {
+			float bound = tree.distance(node, lp.x, lp.y);
+			if (bound < best || bound == 0.0f) {
+				if (!tree.isLeaf(node)) {
+					node <<= 1;
+					continue;
+				}
+				leaf(tree.leaf(node)).pointQuery(p, candidate);
+				if (candidate.distance < best) {
+					best = candidate.distance;
+					out.set(this, candidate.point, candidate.distance, candidate.gradient);
+				}
+			}
+			node = LocalBVH.next(node);
+		} while (node != 1);
+		return out;
+	}
+}
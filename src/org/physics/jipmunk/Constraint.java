@@ -22,11 +22,15 @@
 
 package org.physics.jipmunk;
 
+import java.nio.ByteBuffer;
+
 import static org.physics.jipmunk.SpaceComponent.cpBodyActivate;
 
 /** @author jobernolte */
 public abstract class Constraint {
 	Space space;
+	/** Position in {@link Space#constraints}. */
+	int spaceIndex = -1;
 	/** The first body connected to this constraint. */
 	protected final Body a;
 	/** The second body connected to this constraint. */
@@ -39,10 +43,19 @@ public abstract class Constraint {
 	 * The rate at which joint error is corrected. Defaults to pow(1.0 - 0.1, 60.0) meaning that it will correct 10% of
 	 * the error every 1/60th of a second.
 	 */
-	protected float errorBias = Util.cpfpow(1.0f - 0.1f, 60.0f);
+	protected float errorBias = Util.cpfpowStrict(1.0f - 0.1f, 60.0f);
 	/** The maximum rate at which joint error is corrected. Defaults to infinity. */
 	protected float maxBias = Float.POSITIVE_INFINITY;
 	boolean collideBodies;
+	/** The force above which this constraint breaks. Defaults to infinity. */
+	float breakForce = Float.POSITIVE_INFINITY;
+	/** The number of consecutive steps {@link #breakForce} has to be exceeded to break this constraint. */
+	int breakSteps = 1;
+	/** The number of consecutive steps {@link #breakForce} has been exceeded so far. */
+	int overloadedSteps;
+	/** The batch solving this constraint, valid while {@link #batchEpoch} matches {@link Space#constraintBatchEpoch}. */
+	ConstraintBatch batch;
+	int batchEpoch;
 	/** Function called before the solver runs. Animate your joint anchors, update your motor torque, etc. */
 	ConstraintPreSolveFunc preSolveFunc;
 	/** Function called after the solver runs. Use the applied impulse to perform effects like breakable joints. */
@@ -90,6 +103,43 @@ public abstract class Constraint {
 		activateBodies();
 	}
 
+	public float getBreakForce() {
+		return breakForce;
+	}
+
+	/**
+	 * Sets the force above which this constraint breaks. The force applied by the constraint, its impulse divided by
+	 * the timestep, is compared after the solver has finished, see {@link #setBreakSteps(int)}. A broken constraint is
+	 * removed from its space at the end of the step and reported by {@link Space#getBrokenConstraints()}.
+	 *
+	 * @param breakForce the break force, {@link Float#POSITIVE_INFINITY} for an unbreakable constraint (default)
+	 */
+	public void setBreakForce(float breakForce) {
+		if (!(breakForce >= 0.0f)) {
+			throw new IllegalArgumentException("break force must not be negative.");
+		}
+		this.breakForce = breakForce;
+		this.overloadedSteps = 0;
+	}
+
+	public int getBreakSteps() {
+		return breakSteps;
+	}
+
+	/**
+	 * Sets the number of consecutive steps the break force has to be exceeded before this constraint breaks, so short
+	 * peaks from impacts can be tolerated.
+	 *
+	 * @param breakSteps the number of steps, defaults to 1
+	 */
+	public void setBreakSteps(int breakSteps) {
+		if (breakSteps < 1) {
+			throw new IllegalArgumentException("break steps must be at least 1.");
+		}
+		this.breakSteps = breakSteps;
+		this.overloadedSteps = 0;
+	}
+
 	public float getMaxBias() {
 		return maxBias;
 	}
@@ -107,10 +157,36 @@ public abstract class Constraint {
 	}
 
 	public void setCollideBodies(boolean collideBodies) {
+		if (space != null && this.collideBodies != collideBodies) {
+			if (collideBodies) {
+				space.noCollidePairs.remove(a, b);
+			} else {
+				space.noCollidePairs.add(a, b);
+			}
+		}
 		this.collideBodies = collideBodies;
 		activateBodies();
 	}
 
+	/**
+	 * @return <code>true</code> if this constraint belongs to a space running in deterministic mode.
+	 * @see Space#setDeterministic(boolean)
+	 */
+	protected boolean isDeterministic() {
+		return space != null && space.deterministic;
+	}
+
+	/**
+	 * Calculates the fraction of the joint error to correct during a step of the given length, using {@link
+	 * StrictMath} in deterministic mode.
+	 *
+	 * @param dt the timestep
+	 * @return the bias coefficient
+	 */
+	protected float biasCoef(float dt) {
+		return isDeterministic() ? 1.0f - Util.cpfpowStrict(errorBias, dt) : Util.bias_coef(errorBias, dt);
+	}
+
 	protected abstract void preStep(float dt);
 
 	protected abstract void applyCachedImpulse(float dt_coef);
@@ -119,6 +195,45 @@ public abstract class Constraint {
 
 	protected abstract float getImpulse();
 
+	/**
+	 * Hashes the class, the ids of the bodies and the bits of the impulse of this constraint, see {@link
+	 * Space#getStateChecksum()}.
+	 */
+	final long stateHash() {
+		long h = ((long) a.hashId << 32 | (b.hashId & 0xffffffffL)) ^ getClass().getName().hashCode();
+		return Body.mixHash(h * 0x9e3779b97f4a7c15L, getImpulse());
+	}
+
+	/**
+	 * Creates an empty batch that solves the constraints of this class together, see {@link
+	 * Space#setUseConstraintBatches(boolean)}. Called once per space and class. Subclasses that override the solver
+	 * methods of a class with a batch must return <code>null</code>.
+	 *
+	 * @return a new batch or <code>null</code> if the constraints of this class are solved one by one
+	 */
+	protected ConstraintBatch createBatch() {
+		return null;
+	}
+
+	/**
+	 * Writes the parameters and accumulated impulses of this constraint for a {@link SpaceCheckpoint}. Values that are
+	 * recalculated by {@link #preStep(float)} don't need to be written.
+	 *
+	 * @param buffer the buffer to write to
+	 */
+	protected void writeState(ByteBuffer buffer) {
+		throw new UnsupportedOperationException(getClass().getName() + " does not support checkpoints.");
+	}
+
+	/**
+	 * Reads the state written by {@link #writeState(ByteBuffer)}.
+	 *
+	 * @param buffer the buffer to read from
+	 */
+	protected void readState(ByteBuffer buffer) {
+		throw new UnsupportedOperationException(getClass().getName() + " does not support checkpoints.");
+	}
+
 	protected void activateBodies() {
 		if (a != null) {
 			a.activate();
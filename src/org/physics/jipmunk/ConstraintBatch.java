@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import java.util.Arrays;
+
+/**
+ * Solves all awake constraints of one class in tight loops over primitive arrays instead of calling the solver methods
+ * of every constraint. A constraint class takes part by returning a batch from {@link Constraint#createBatch()}, the
+ * batches are used when {@link Space#setUseConstraintBatches(boolean)} is enabled.
+ * <p/>
+ * The constraints are added in the order of the solver before every step. A batch gathers their parameters in {@link
+ * #preStep(float)}, keeps the accumulated impulses in its own arrays while the solver iterates and writes them back to
+ * the constraints in {@link #finish()}. The static helpers apply impulses to the bodies in place without allocating.
+ *
+ * @author jobernolte
+ */
+public abstract class ConstraintBatch {
+	/** The constraints of the current step. */
+	protected Constraint[] constraints = new Constraint[16];
+	/** The first bodies of the constraints. */
+	protected Body[] bodyA = new Body[16];
+	/** The second bodies of the constraints. */
+	protected Body[] bodyB = new Body[16];
+	/** The number of constraints of the current step. */
+	protected int count;
+
+	final void add(Constraint constraint) {
+		if (count == constraints.length) {
+			int capacity = count * 2;
+			constraints = Arrays.copyOf(constraints, capacity);
+			bodyA = Arrays.copyOf(bodyA, capacity);
+			bodyB = Arrays.copyOf(bodyB, capacity);
+		}
+		constraints[count] = constraint;
+		bodyA[count] = constraint.a;
+		bodyB[count] = constraint.b;
+		count++;
+	}
+
+	final void clear() {
+		Arrays.fill(constraints, 0, count, null);
+		Arrays.fill(bodyA, 0, count, null);
+		Arrays.fill(bodyB, 0, count, null);
+		count = 0;
+	}
+
+	/** @see Constraint#preStep(float) */
+	protected abstract void preStep(float dt);
+
+	/** @see Constraint#applyCachedImpulse(float) */
+	protected abstract void applyCachedImpulse(float dt_coef);
+
+	/** @see Constraint#applyImpulse(float) */
+	protected abstract void applyImpulse(float dt);
+
+	/** Writes the accumulated impulses back to the constraints after the solver has finished. */
+	protected abstract void finish();
+
+	/**
+	 * @param array    an array or <code>null</code>
+	 * @param capacity the required capacity
+	 * @return the given array if it is large enough, otherwise a new array
+	 */
+	protected static float[] ensure(float[] array, int capacity) {
+		return (array != null && array.length >= capacity) ? array :
+				new float[Math.max(capacity, (array != null) ? array.length * 2 : 16)];
+	}
+
+	/** @return the x component of the vector <code>(x, y)</code> rotated into world space by the body */
+	protected static float rotateX(Body body, float x, float y) {
+		Transform t = body.transform;
+		return t.a * x + t.c * y;
+	}
+
+	/** @return the y component of the vector <code>(x, y)</code> rotated into world space by the body */
+	protected static float rotateY(Body body, float x, float y) {
+		Transform t = body.transform;
+		return t.b * x + t.d * y;
+	}
+
+	/** @return the x component of the local point <code>(x, y)</code> in world space */
+	protected static float transformX(Body body, float x, float y) {
+		Transform t = body.transform;
+		return t.a * x + t.c * y + t.tx;
+	}
+
+	/** @return the y component of the local point <code>(x, y)</code> in world space */
+	protected static float transformY(Body body, float x, float y) {
+		Transform t = body.transform;
+		return t.b * x + t.d * y + t.ty;
+	}
+
+	/** @return the x component of the velocity of the second body relative to the first one at the anchors */
+	protected static float relativeVelocityX(Body a, Body b, float r1y, float r2y) {
+		BodyStore sa = a.store, sb = b.store;
+		int ia = a.slot, ib = b.slot;
+		return (sb.vx[ib] + -r2y * sb.w[ib]) - (sa.vx[ia] + -r1y * sa.w[ia]);
+	}
+
+	/** @return the y component of the velocity of the second body relative to the first one at the anchors */
+	protected static float relativeVelocityY(Body a, Body b, float r1x, float r2x) {
+		BodyStore sa = a.store, sb = b.store;
+		int ia = a.slot, ib = b.slot;
+		return (sb.vy[ib] + r2x * sb.w[ib]) - (sa.vy[ia] + r1x * sa.w[ia]);
+	}
+
+	/** @return the effective mass of the bodies along the normal <code>(nx, ny)</code>, see Util#k_scalar */
+	protected static float kScalar(Body a, Body b, float r1x, float r1y, float r2x, float r2y, float nx, float ny) {
+		float rcn1 = r1x * ny - r1y * nx;
+		float rcn2 = r2x * ny - r2y * nx;
+		BodyStore sa = a.store, sb = b.store;
+		int ia = a.slot, ib = b.slot;
+		return (sa.mInv[ia] + sa.iInv[ia] * rcn1 * rcn1) + (sb.mInv[ib] + sb.iInv[ib] * rcn2 * rcn2);
+	}
+
+	/**
+	 * Stores the inverted mass tensor of the bodies at <code>k[offset]</code> to <code>k[offset + 3]</code>, see {@link
+	 * Mat2x2#k_tensor(Body, Body, Vector2f, Vector2f)}.
+	 */
+	protected static void kTensor(Body a, Body b, float r1x, float r1y, float r2x, float r2y, float[] k, int offset) {
+		BodyStore sa = a.store, sb = b.store;
+		int ia = a.slot, ib = b.slot;
+		float m_sum = sa.mInv[ia] + sb.mInv[ib];
+		float k11 = m_sum, k12 = 0.0f;
+		float k21 = 0.0f, k22 = m_sum;
+
+		float a_i_inv = sa.iInv[ia];
+		float r1xsq = r1x * r1x * a_i_inv;
+		float r1ysq = r1y * r1y * a_i_inv;
+		float r1nxy = -r1x * r1y * a_i_inv;
+		k11 += r1ysq;
+		k12 += r1nxy;
+		k21 += r1nxy;
+		k22 += r1xsq;
+
+		float b_i_inv = sb.iInv[ib];
+		float r2xsq = r2x * r2x * b_i_inv;
+		float r2ysq = r2y * r2y * b_i_inv;
+		float r2nxy = -r2x * r2y * b_i_inv;
+		k11 += r2ysq;
+		k12 += r2nxy;
+		k21 += r2nxy;
+		k22 += r2xsq;
+
+		float det = k11 * k22 - k12 * k21;
+		if (det == 0.0f) {
+			throw new IllegalArgumentException("Unsolvable constraint.");
+		}
+
+		float det_inv = 1.0f / det;
+		k[offset] = k22 * det_inv;
+		k[offset + 1] = -k12 * det_inv;
+		k[offset + 2] = -k21 * det_inv;
+		k[offset + 3] = k11 * det_inv;
+	}
+
+	/** Applies the impulse <code>(jx, jy)</code> to the second body and its opposite to the first one. */
+	protected static void applyImpulses(Body a, Body b, float r1x, float r1y, float r2x, float r2y, float jx,
+										float jy) {
+		float njx = -jx;
+		float njy = -jy;
+		BodyStore sa = a.store;
+		int ia = a.slot;
+		sa.vx[ia] += njx * sa.mInv[ia];
+		sa.vy[ia] += njy * sa.mInv[ia];
+		sa.w[ia] += sa.iInv[ia] * (r1x * njy - r1y * njx);
+		BodyStore sb = b.store;
+		int ib = b.slot;
+		sb.vx[ib] += jx * sb.mInv[ib];
+		sb.vy[ib] += jy * sb.mInv[ib];
+		sb.w[ib] += sb.iInv[ib] * (r2x * jy - r2y * jx);
+	}
+}
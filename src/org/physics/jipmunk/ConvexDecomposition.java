@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.physics.jipmunk.Util.*;
+
+/**
+ * Approximate convex decomposition of concave outlines into convex parts for {@link PolyShape}s.
+ * <p/>
+ * The part deviating most from its convex hull is split at its deepest notch, the reflex vertex furthest inside of
+ * the hull, until every part is within <code>tolerance</code> of its own convex hull or the maximum number of parts is
+ * reached. Every split connects
+ * the notch with a visible vertex, preferring diagonals that leave no reflex angle at the notch, then diagonals ending
+ * in another reflex vertex, then short ones. The convex hulls of the parts are returned, so a part may cover up to
+ * <code>tolerance</code> more than the outline (or more once the part limit has been hit).
+ * <p/>
+ * Decompositions are not cheap, a {@link Cache} keeps them for outlines that are spawned over and over again.
+ *
+ * @author jobernolte
+ */
+public final class ConvexDecomposition {
+
+	private ConvexDecomposition() {
+	}
+
+	/**
+	 * Decomposes a simple polygon into convex parts.
+	 *
+	 * @param outline   the vertices of the outline in either winding, the outline must not intersect itself
+	 * @param tolerance the distance by which a part may deviate from the outline
+	 * @param maxParts  the maximum number of parts
+	 * @return the vertices of the convex parts in counter clockwise winding
+	 */
+	public static List<Vector2f[]> decompose(Vector2f[] outline, float tolerance, int maxParts) {
+		if (maxParts < 1) {
+			throw new IllegalArgumentException("At least one part must be allowed.");
+		}
+		if (tolerance < 0.0f) {
+			throw new IllegalArgumentException("The tolerance must not be negative.");
+		}
+		Vector2f[] verts = clean(outline);
+		if (verts.length < 3) {
+			throw new IllegalArgumentException("The outline needs at least three distinct vertices.");
+		}
+
+		// Split the part deviating most from its hull as long as parts are left.
+		List<Part> parts = new ArrayList<>();
+		parts.add(new Part(verts));
+		while (parts.size() < maxParts) {
+			Part deepest = null;
+			for (Part part : parts) {
+				if (part.depth > tolerance && (deepest == null || part.depth > deepest.depth)) {
+					deepest = part;
+				}
+			}
+			if (deepest == null) {
+				break;
+			}
+			int split = findSplit(deepest.verts, deepest.notch);
+			if (split < 0) {
+				// No usable diagonal, leave the part as it is.
+				deepest.depth = 0.0f;
+				continue;
+			}
+			parts.remove(deepest);
+			parts.add(new Part(chain(deepest.verts, deepest.notch, split)));
+			parts.add(new Part(chain(deepest.verts, split, deepest.notch)));
+		}
+
+		List<Vector2f[]> result = new ArrayList<>(parts.size());
+		for (Part part : parts) {
+			if (part.hull.length >= 3) {
+				result.add(part.hull);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Decomposes a simple polygon and creates a {@link PolyShape} for every convex part. The shapes are not added to
+	 * any space.
+	 *
+	 * @param body      the body to attach the shapes to
+	 * @param outline   the vertices of the outline in body local coordinates
+	 * @param tolerance the distance by which a part may deviate from the outline
+	 * @param maxParts  the maximum number of parts
+	 * @param radius    the radius of the shapes
+	 * @return the shapes
+	 * @see #decompose(Vector2f[], float, int)
+	 */
+	public static List<PolyShape> createShapes(Body body, Vector2f[] outline, float tolerance, int maxParts,
+			float radius) {
+		List<Vector2f[]> parts = decompose(outline, tolerance, maxParts);
+		List<PolyShape> shapes = new ArrayList<>(parts.size());
+		for (Vector2f[] part : parts) {
+			shapes.add(new PolyShape(body, radius, part));
+		}
+		return shapes;
+	}
+
+	/** A polygon together with its deepest notch. */
+	private static final class Part {
+		final Vector2f[] verts;
+		final Vector2f[] hull;
+		int notch = -1;
+		float depth;
+
+		Part(Vector2f[] verts) {
+			this.verts = verts;
+			Vector2f[] hull = new Vector2f[verts.length];
+			for (int i = 0; i < verts.length; i++) {
+				hull[i] = cpv(verts[i]);
+			}
+			int count = ConvexHullUtil.convexHull(hull, hull, hull.length, 0.0f).count;
+			this.hull = Arrays.copyOf(hull, count);
+
+			// The depth of a vertex is its distance to the boundary of the hull. Convex vertices can lie inside of the
+			// hull as well, but only reflex vertices are split at.
+			float notchDepth = -1.0f;
+			for (int i = 0; i < verts.length && count >= 3; i++) {
+				float d = Float.POSITIVE_INFINITY;
+				for (int j = 0; j < count; j++) {
+					Vector2f a = this.hull[j], b = this.hull[(j + 1) % count];
+					float length = cpvdist(a, b);
+					if (length > 0.0f) {
+						d = Math.min(d, cpvcross(cpvsub(b, a), cpvsub(verts[i], a)) / length);
+					}
+				}
+				depth = Math.max(depth, d);
+				if (d > notchDepth && isReflex(verts, i)) {
+					notchDepth = d;
+					notch = i;
+				}
+			}
+			if (notch < 0) {
+				depth = 0.0f;
+			}
+		}
+	}
+
+	/** Removes repeated vertices and brings the outline into counter clockwise winding. */
+	private static Vector2f[] clean(Vector2f[] outline) {
+		List<Vector2f> list = new ArrayList<>(outline.length);
+		for (Vector2f v : outline) {
+			if (list.isEmpty() || !cpveql(list.get(list.size() - 1), v)) {
+				list.add(cpv(v));
+			}
+		}
+		while (list.size() > 1 && cpveql(list.get(0), list.get(list.size() - 1))) {
+			list.remove(list.size() - 1);
+		}
+		if (signedArea(list) < 0.0f) {
+			Collections.reverse(list);
+		}
+		return list.toArray(new Vector2f[list.size()]);
+	}
+
+	private static float signedArea(List<Vector2f> verts) {
+		float area = 0.0f;
+		for (int i = 0, n = verts.size(); i < n; i++) {
+			area += cpvcross(verts.get(i), verts.get((i + 1) % n));
+		}
+		return area * 0.5f;
+	}
+
+	/** @return the vertices from <code>from</code> to <code>to</code> following the outline */
+	private static Vector2f[] chain(Vector2f[] verts, int from, int to) {
+		int n = verts.length;
+		int count = ((to - from + n) % n) + 1;
+		Vector2f[] out = new Vector2f[count];
+		for (int i = 0; i < count; i++) {
+			out[i] = verts[(from + i) % n];
+		}
+		return out;
+	}
+
+	private static float turn(Vector2f a, Vector2f b, Vector2f c) {
+		return cpvcross(cpvsub(b, a), cpvsub(c, b));
+	}
+
+	private static boolean isReflex(Vector2f[] verts, int i) {
+		int n = verts.length;
+		return turn(verts[(i - 1 + n) % n], verts[i], verts[(i + 1) % n]) < 0.0f;
+	}
+
+	/** @return <code>true</code> if the diagonal from vertex <code>i</code> to <code>p</code> starts inside */
+	private static boolean inCone(Vector2f[] verts, int i, Vector2f p) {
+		int n = verts.length;
+		Vector2f prev = verts[(i - 1 + n) % n], v = verts[i], next = verts[(i + 1) % n];
+		if (turn(prev, v, next) >= 0.0f) {
+			return cpvcross(cpvsub(v, prev), cpvsub(p, v)) > 0.0f && cpvcross(cpvsub(next, v), cpvsub(p, v)) > 0.0f;
+		}
+		return !(cpvcross(cpvsub(v, prev), cpvsub(p, v)) <= 0.0f && cpvcross(cpvsub(next, v), cpvsub(p, v)) <= 0.0f);
+	}
+
+	/** @return <code>true</code> if the segments a-b and c-d cross in a point other than their end points */
+	private static boolean crosses(Vector2f a, Vector2f b, Vector2f c, Vector2f d) {
+		float d1 = turn(a, b, c), d2 = turn(a, b, d), d3 = turn(c, d, a), d4 = turn(c, d, b);
+		if (((d1 > 0.0f && d2 < 0.0f) || (d1 < 0.0f && d2 > 0.0f)) && ((d3 > 0.0f && d4 < 0.0f) || (d3 < 0.0f
+				&& d4 > 0.0f))) {
+			return true;
+		}
+		// Collinear overlaps and vertices lying on the other segment.
+		return (d1 == 0.0f && onSegment(a, b, c)) || (d2 == 0.0f && onSegment(a, b, d)) || (d3 == 0.0f && onSegment(c,
+				d, a)) || (d4 == 0.0f && onSegment(c, d, b));
+	}
+
+	private static boolean onSegment(Vector2f a, Vector2f b, Vector2f p) {
+		return !cpveql(p, a) && !cpveql(p, b) && Math.min(a.x, b.x) <= p.x && p.x <= Math.max(a.x, b.x)
+				&& Math.min(a.y, b.y) <= p.y && p.y <= Math.max(a.y, b.y);
+	}
+
+	private static boolean isDiagonal(Vector2f[] verts, int i, int j) {
+		int n = verts.length;
+		if (!inCone(verts, i, verts[j]) || !inCone(verts, j, verts[i])) {
+			return false;
+		}
+		Vector2f a = verts[i], b = verts[j];
+		for (int k = 0; k < n; k++) {
+			int l = (k + 1) % n;
+			if (k != i && k != j && l != i && l != j && crosses(a, b, verts[k], verts[l])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** @return the vertex to connect the notch with, -1 if there is none */
+	private static int findSplit(Vector2f[] verts, int notch) {
+		int n = verts.length;
+		Vector2f prev = verts[(notch - 1 + n) % n], v = verts[notch], next = verts[(notch + 1) % n];
+		int best = -1;
+		int bestScore = -1;
+		float bestLength = Float.POSITIVE_INFINITY;
+		for (int j = 0; j < n; j++) {
+			if (j == notch || j == (notch + 1) % n || j == (notch - 1 + n) % n || !isDiagonal(verts, notch, j)) {
+				continue;
+			}
+			Vector2f p = verts[j];
+			// Count the angles at the notch that become convex, the part notch..j closes with j -> notch -> next and
+			// the part j..notch with prev -> notch -> j.
+			int score = (turn(p, v, next) >= 0.0f ? 2 : 0) + (turn(prev, v, p) >= 0.0f ? 2 : 0);
+			if (isReflex(verts, j)) {
+				score++;
+			}
+			float length = cpvdistsq(v, p);
+			if (score > bestScore || (score == bestScore && length < bestLength)) {
+				best = j;
+				bestScore = score;
+				bestLength = length;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * A cache for decompositions keyed by the outline, the tolerance and the part limit. The least recently used
+	 * entries are dropped once the capacity is reached. The cache can be shared between threads.
+	 */
+	public static final class Cache {
+		private final Map<Key, Entry> entries;
+
+		/** @param capacity the maximum number of outlines to keep */
+		public Cache(final int capacity) {
+			if (capacity < 1) {
+				throw new IllegalArgumentException("The capacity must be positive.");
+			}
+			this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+					return size() > capacity;
+				}
+			};
+		}
+
+		private Entry entry(Vector2f[] outline, float tolerance, int maxParts) {
+			Key key = new Key(outline, tolerance, maxParts);
+			Entry entry;
+			synchronized (entries) {
+				entry = entries.get(key);
+			}
+			if (entry == null) {
+				entry = new Entry(ConvexDecomposition.decompose(outline, tolerance, maxParts));
+				synchronized (entries) {
+					entries.put(key, entry);
+				}
+			}
+			return entry;
+		}
+
+		/**
+		 * Returns the decomposition of the outline, decomposing it only if it isn't cached yet.
+		 *
+		 * @see ConvexDecomposition#decompose(Vector2f[], float, int)
+		 */
+		public List<Vector2f[]> decompose(Vector2f[] outline, float tolerance, int maxParts) {
+			List<Vector2f[]> parts = entry(outline, tolerance, maxParts).parts;
+			List<Vector2f[]> copy = new ArrayList<>(parts.size());
+			for (Vector2f[] part : parts) {
+				Vector2f[] verts = new Vector2f[part.length];
+				for (int i = 0; i < part.length; i++) {
+					verts[i] = cpv(part[i]);
+				}
+				copy.add(verts);
+			}
+			return copy;
+		}
+
+		/**
+		 * Creates the shapes for the outline, decomposing it only if it isn't cached yet. The shapes created for the
+		 * same outline and radius share one {@link PolyGeometry} per part.
+		 *
+		 * @see ConvexDecomposition#createShapes(Body, Vector2f[], float, int, float)
+		 */
+		public List<PolyShape> createShapes(Body body, Vector2f[] outline, float tolerance, int maxParts,
+				float radius) {
+			PolyGeometry[] geometries = entry(outline, tolerance, maxParts).geometries(radius);
+			List<PolyShape> shapes = new ArrayList<>(geometries.length);
+			for (PolyGeometry geometry : geometries) {
+				shapes.add(new PolyShape(body, geometry));
+			}
+			return shapes;
+		}
+
+		/** @return the number of cached outlines */
+		public int size() {
+			synchronized (entries) {
+				return entries.size();
+			}
+		}
+
+		public void clear() {
+			synchronized (entries) {
+				entries.clear();
+			}
+		}
+	}
+
+	/** The parts of a cached outline and the geometries created for them with the radius used last. */
+	private static final class Entry {
+		final List<Vector2f[]> parts;
+		private PolyGeometry[] geometries;
+		private float radius;
+
+		Entry(List<Vector2f[]> parts) {
+			this.parts = parts;
+		}
+
+		synchronized PolyGeometry[] geometries(float radius) {
+			if (geometries == null || Float.compare(radius, this.radius) != 0) {
+				PolyGeometry[] geometries = new PolyGeometry[parts.size()];
+				for (int i = 0; i < geometries.length; i++) {
+					geometries[i] = new PolyGeometry(radius, parts.get(i));
+				}
+				this.geometries = geometries;
+				this.radius = radius;
+			}
+			return geometries;
+		}
+	}
+
+	private static final class Key {
+		final float[] coords;
+		final float tolerance;
+		final int maxParts;
+		final int hash;
+
+		Key(Vector2f[] outline, float tolerance, int maxParts) {
+			this.coords = new float[outline.length * 2];
+			for (int i = 0; i < outline.length; i++) {
+				coords[i * 2] = outline[i].x;
+				coords[i * 2 + 1] = outline[i].y;
+			}
+			this.tolerance = tolerance;
+			this.maxParts = maxParts;
+			this.hash = (Arrays.hashCode(coords) * 31 + Float.floatToIntBits(tolerance)) * 31 + maxParts;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			return hash == key.hash && maxParts == key.maxParts && Float.compare(tolerance, key.tolerance) == 0
+					&& Arrays.equals(coords, key.coords);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,562 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import java.util.Arrays;
+
+import static org.physics.jipmunk.Util.*;
+
+/**
+ * A static grid of square cells, for tile maps and destructible terrain. The cells are stored in a byte array, every
+ * non zero cell is solid. Collisions only look at the cells overlapped by the other shape and run against the outline
+ * of the solid cells, where the edges of neighbouring cells are merged into a single segment so shapes sliding along
+ * a row of tiles don't catch on the internal corners.
+ * <p>
+ * Cells can be changed at any time while the space is not locked. An edit only rebuilds the merged runs next to the
+ * cell on the two row and two column lines around it, the grid stays in the spatial index of the space. Collisions are reported against
+ * {@link GridShape.Edge} segments, point and segment queries report the grid itself.
+ *
+ * @author jobernolte
+ */
+public class GridShape extends Shape {
+
+	private final int width, height;
+	private final float cellSize;
+	private final float offsetX, offsetY;
+	private final float radius;
+	private final byte[] cells;
+	/** The merged horizontal edges, row line j lies below cell row j. Built on demand. */
+	private final Line[] rows;
+	/** The merged vertical edges, column line i lies left of cell column i. Built on demand. */
+	private final Line[] columns;
+	private Transform transform;
+	private Transform inverse;
+	/** Incremented whenever the transform changes so the edges know when to update. */
+	private int version;
+
+	/** The runs of edges along one row or column line. */
+	private static final class Line {
+		static final Line EMPTY = new Line(new int[0], 0);
+
+		/** start cell, end cell (exclusive) and facing of every run, facing is 1 if the solid cells lie below or left. */
+		final int[] runs;
+		final int count;
+		final Edge[] edges;
+
+		Line(int[] runs, int count) {
+			this.runs = runs;
+			this.count = count;
+			this.edges = new Edge[count];
+		}
+
+		/** @return the index of the first run that ends after <code>cell</code> */
+		int firstEndingAfter(int cell) {
+			int lo = 0, hi = count;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (runs[mid * 3 + 1] <= cell) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	/**
+	 * A merged edge of a {@link GridShape}. Edges are created by the grid when they first take part in a collision and
+	 * take their properties from the grid. They should be treated as read only.
+	 */
+	public static class Edge extends SegmentShape {
+		private final GridShape grid;
+		private final boolean horizontal;
+		private final int line, start, end;
+		private int version = -1;
+
+		Edge(GridShape grid, boolean horizontal, int line, int start, int end, float[] local) {
+			super(grid.body, cpv(local[0], local[1]), cpv(local[2], local[3]), grid.radius);
+			this.grid = grid;
+			this.horizontal = horizontal;
+			this.line = line;
+			this.start = start;
+			this.end = end;
+			this.parent = grid;
+		}
+
+		/** @return the grid this edge belongs to */
+		public GridShape getGrid() {
+			return grid;
+		}
+
+		/** @return <code>true</code> for an edge along a row line, <code>false</code> for one along a column line */
+		public boolean isHorizontal() {
+			return horizontal;
+		}
+
+		/** @return the index of the row or column line of this edge */
+		public int getLine() {
+			return line;
+		}
+
+		/** @return the first cell covered by this edge */
+		public int getStart() {
+			return start;
+		}
+
+		/** @return the cell after the last cell covered by this edge */
+		public int getEnd() {
+			return end;
+		}
+	}
+
+	/**
+	 * Creates a new empty grid.
+	 *
+	 * @param body     the body to attach the grid to
+	 * @param width    the number of cell columns
+	 * @param height   the number of cell rows
+	 * @param cellSize the size of a cell
+	 * @param offset   the lower left corner of the grid in body local coordinates
+	 * @param radius   the radius of the edges
+	 */
+	public GridShape(Body body, int width, int height, float cellSize, Vector2f offset, float radius) {
+		super(body, null);
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("The grid must have at least one cell.");
+		}
+		if (!(cellSize > 0.0f)) {
+			throw new IllegalArgumentException("The cell size must be positive.");
+		}
+		this.width = width;
+		this.height = height;
+		this.cellSize = cellSize;
+		this.offsetX = offset.x;
+		this.offsetY = offset.y;
+		this.radius = radius;
+		this.cells = new byte[width * height];
+		this.rows = new Line[height + 1];
+		this.columns = new Line[width + 1];
+		this.massInfo = new MassInfo(0.0f, 0.0f, cpv(offsetX + width * cellSize * 0.5f,
+														 offsetY + height * cellSize * 0.5f), 0.0f);
+	}
+
+	/**
+	 * Creates a new grid with the given cells.
+	 *
+	 * @param body     the body to attach the grid to
+	 * @param width    the number of cell columns
+	 * @param height   the number of cell rows
+	 * @param cellSize the size of a cell
+	 * @param offset   the lower left corner of the grid in body local coordinates
+	 * @param radius   the radius of the edges
+	 * @param cells    the cells row by row starting with the bottom row, non zero cells are solid
+	 */
+	public GridShape(Body body, int width, int height, float cellSize, Vector2f offset, float radius, byte[] cells) {
+		this(body, width, height, cellSize, offset, radius);
+		if (cells.length != width * height) {
+			throw new IllegalArgumentException("Expected " + (width * height) + " cells but got " + cells.length + ".");
+		}
+		System.arraycopy(cells, 0, this.cells, 0, cells.length);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public float getCellSize() {
+		return cellSize;
+	}
+
+	public float getRadius() {
+		return radius;
+	}
+
+	/**
+	 * @param x the column of the cell
+	 * @param y the row of the cell
+	 * @return the value of the cell, <code>0</code> for an empty cell
+	 */
+	public int getCell(int x, int y) {
+		checkCell(x, y);
+		return cells[y * width + x] & 0xff;
+	}
+
+	/**
+	 * Changes the value of a cell. Turning a cell solid or empty wakes up the bodies touching it and only rebuilds the
+	 * merged runs that touch the cell on the lines around it, so the cost doesn't depend on the size of the grid.
+	 * Cannot be called while the space is locked.
+	 *
+	 * @param x     the column of the cell
+	 * @param y     the row of the cell
+	 * @param value the new value of the cell, <code>0</code> for an empty cell
+	 */
+	public void setCell(int x, int y, int value) {
+		checkCell(x, y);
+		boolean wasSolid = cells[y * width + x] != 0;
+		cells[y * width + x] = (byte) value;
+		boolean solid = cells[y * width + x] != 0;
+		if (solid == wasSolid) {
+			return;
+		}
+
+		if (space != null) {
+			Assert.cpAssertSpaceUnlocked(space);
+			// Wake up everything overlapping the cell, even bodies that haven't touched the grid yet.
+			BB cell = Transform.transformbBB(transform, new BB(offsetX + x * cellSize - radius,
+															   offsetY + y * cellSize - radius,
+															   offsetX + (x + 1) * cellSize + radius,
+															   offsetY + (y + 1) * cellSize + radius));
+			space.bbQuery(cell, ShapeFilter.ALL, shape -> {
+				if (shape.body.isDynamic()) {
+					shape.body.activate();
+				}
+			});
+		}
+		updateLine(true, y, x);
+		updateLine(true, y + 1, x);
+		updateLine(false, x, y);
+		updateLine(false, x + 1, y);
+	}
+
+	private void checkCell(int x, int y) {
+		if (x < 0 || x >= width || y < 0 || y >= height) {
+			throw new IllegalArgumentException("Cell (" + x + ", " + y + ") is outside of the grid.");
+		}
+	}
+
+	private boolean isSolid(int x, int y) {
+		return (x >= 0 && x < width && y >= 0 && y < height && cells[y * width + x] != 0);
+	}
+
+	private Line line(boolean horizontal, int index) {
+		Line[] lines = (horizontal ? rows : columns);
+		Line line = lines[index];
+		if (line == null) {
+			line = lines[index] = buildLine(horizontal, index);
+		}
+		return line;
+	}
+
+	/** @return the facing of a cell along a line, <code>0</code> if there is no edge at the cell */
+	private int facing(boolean horizontal, int index, int i) {
+		// The cells below and above a row line, or left and right of a column line.
+		boolean first = (horizontal ? isSolid(i, index - 1) : isSolid(index - 1, i));
+		boolean second = (horizontal ? isSolid(i, index) : isSolid(index, i));
+		return (first == second ? 0 : (first ? 1 : -1));
+	}
+
+	private Line buildLine(boolean horizontal, int index) {
+		int length = (horizontal ? width : height);
+		int[] runs = new int[12];
+		int count = 0;
+		int facing = 0, start = 0;
+		for (int i = 0; i <= length; i++) {
+			int f = (i < length ? facing(horizontal, index, i) : 0);
+			if (f != facing) {
+				if (facing != 0) {
+					if (count * 3 == runs.length) {
+						runs = Arrays.copyOf(runs, runs.length * 2);
+					}
+					runs[count * 3] = start;
+					runs[count * 3 + 1] = i;
+					runs[count * 3 + 2] = facing;
+					count++;
+				}
+				facing = f;
+				start = i;
+			}
+		}
+		return (count == 0 ? Line.EMPTY : new Line(runs, count));
+	}
+
+	/**
+	 * Updates a line after the facing of a single cell changed. Only the runs touching the cell can change, they are
+	 * scanned again, the runs before and after them are copied together with their edges. Edges of runs that changed
+	 * are released.
+	 */
+	private void updateLine(boolean horizontal, int index, int cell) {
+		Line[] lines = (horizontal ? rows : columns);
+		Line old = lines[index];
+		if (old == null) {
+			return;
+		}
+		// The runs ending at or after the cell and starting at or before the next one touch the cell.
+		int k0 = old.firstEndingAfter(cell - 1);
+		int k1 = k0;
+		while (k1 < old.count && old.runs[k1 * 3] <= cell + 1) {
+			k1++;
+		}
+		int from = (k0 < k1 ? Math.min(old.runs[k0 * 3], cell) : cell);
+		int to = (k0 < k1 ? Math.max(old.runs[(k1 - 1) * 3 + 1], cell + 1) : cell + 1);
+
+		// Changing one cell splits a run into at most three.
+		int[] runs = new int[(old.count + 2) * 3];
+		System.arraycopy(old.runs, 0, runs, 0, k0 * 3);
+		int count = k0;
+		int facing = 0, start = from;
+		for (int i = from; i <= to; i++) {
+			int f = (i < to ? facing(horizontal, index, i) : 0);
+			if (f != facing) {
+				if (facing != 0) {
+					runs[count * 3] = start;
+					runs[count * 3 + 1] = i;
+					runs[count * 3 + 2] = facing;
+					count++;
+				}
+				facing = f;
+				start = i;
+			}
+		}
+		int changed = count;
+		System.arraycopy(old.runs, k1 * 3, runs, count * 3, (old.count - k1) * 3);
+		count += old.count - k1;
+
+		Line line = lines[index] = (count == 0 ? Line.EMPTY : new Line(runs, count));
+		System.arraycopy(old.edges, 0, line.edges, 0, k0);
+		System.arraycopy(old.edges, k1, line.edges, changed, old.count - k1);
+		int j = k0;
+		for (int i = k0; i < k1; i++) {
+			Edge edge = old.edges[i];
+			int oldStart = old.runs[i * 3];
+			while (j < changed && runs[j * 3] < oldStart) {
+				j++;
+			}
+			if (j < changed && runs[j * 3] == oldStart && runs[j * 3 + 1] == old.runs[i * 3 + 1]
+					&& runs[j * 3 + 2] == old.runs[i * 3 + 2]) {
+				line.edges[j] = edge;
+			} else if (edge != null && space != null) {
+				space.releaseProxy(edge);
+			}
+		}
+	}
+
+	/** Writes the local end points and normal of a run, oriented so that the normal points away from the cells. */
+	private void localEdge(boolean horizontal, int index, int start, int end, int facing, float[] out) {
+		float p = index * cellSize;
+		float s0 = start * cellSize, s1 = end * cellSize;
+		if (horizontal) {
+			out[1] = out[3] = offsetY + p;
+			out[0] = offsetX + (facing > 0 ? s0 : s1);
+			out[2] = offsetX + (facing > 0 ? s1 : s0);
+			out[4] = 0.0f;
+			out[5] = facing;
+		} else {
+			out[0] = out[2] = offsetX + p;
+			out[1] = offsetY + (facing > 0 ? s1 : s0);
+			out[3] = offsetY + (facing > 0 ? s0 : s1);
+			out[4] = facing;
+			out[5] = 0.0f;
+		}
+	}
+
+	private Edge edge(Line line, int run, boolean horizontal, int index) {
+		Edge edge = line.edges[run];
+		if (edge == null) {
+			float[] local = new float[6];
+			int start = line.runs[run * 3], end = line.runs[run * 3 + 1];
+			localEdge(horizontal, index, start, end, line.runs[run * 3 + 2], local);
+			edge = line.edges[run] = new Edge(this, horizontal, index, start, end, local);
+		}
+		edge.copyProperties(this);
+		if (edge.version != version) {
+			edge.update(transform);
+			edge.version = version;
+		}
+		return edge;
+	}
+
+	@Override
+	public ShapeType getType() {
+		return ShapeType.GRID_SHAPE;
+	}
+
+	@Override
+	protected BB cacheData(Transform transform) {
+		this.transform = transform;
+		this.inverse = Transform.inverse(transform);
+		this.version++;
+		return Transform.transformbBB(transform, new BB(offsetX - radius, offsetY - radius,
+														offsetX + width * cellSize + radius,
+														offsetY + height * cellSize + radius));
+	}
+
+	@Override
+	boolean hasProxies() {
+		return true;
+	}
+
+	@Override
+	int queryProxies(BB bb, Shape[] out) {
+		BB local = Transform.transformbBB(inverse, bb);
+		int x0 = Math.max(0, (int) Math.floor((local.l - radius - offsetX) / cellSize));
+		int x1 = Math.min(width, (int) Math.floor((local.r + radius - offsetX) / cellSize) + 1);
+		int y0 = Math.max(0, (int) Math.floor((local.b - radius - offsetY) / cellSize));
+		int y1 = Math.min(height, (int) Math.floor((local.t + radius - offsetY) / cellSize) + 1);
+		if (x0 > x1 || y0 > y1) {
+			return 0;
+		}
+
+		int count = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			boolean horizontal = (pass == 0);
+			int from = (horizontal ? y0 : x0), to = (horizontal ? y1 : x1);
+			int first = (horizontal ? x0 : y0), last = (horizontal ? x1 : y1);
+			for (int index = from; index <= to; index++) {
+				Line line = line(horizontal, index);
+				for (int run = line.firstEndingAfter(first - 1); run < line.count && line.runs[run * 3] <= last; run++) {
+					if (count < out.length) {
+						out[count] = edge(line, run, horizontal, index);
+					}
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	@Override
+	void releaseProxies(Space space) {
+		for (Line[] lines : new Line[][]{rows, columns}) {
+			for (Line line : lines) {
+				if (line != null) {
+					for (Edge edge : line.edges) {
+						if (edge != null && edge.getHashId() >= 0) {
+							space.revokeShapeId(edge);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void segmentQueryImpl(Vector2f a, Vector2f b, float r2, SegmentQueryInfo info) {
+		ProxyQueryWorkspace ws = ProxyQueryWorkspace.get();
+		Vector2f la = ProxyQueryWorkspace.transformPoint(inverse, a.x, a.y, ws.localA);
+		Vector2f lb = ProxyQueryWorkspace.transformPoint(inverse, b.x, b.y, ws.localB);
+		float grow = radius + r2;
+		int x0 = Math.max(0, (int) Math.floor((Math.min(la.x, lb.x) - grow - offsetX) / cellSize));
+		int x1 = Math.min(width, (int) Math.floor((Math.max(la.x, lb.x) + grow - offsetX) / cellSize) + 1);
+		int y0 = Math.max(0, (int) Math.floor((Math.min(la.y, lb.y) - grow - offsetY) / cellSize));
+		int y1 = Math.min(height, (int) Math.floor((Math.max(la.y, lb.y) + grow - offsetY) / cellSize) + 1);
+
+		float[] local = ws.segment;
+		SegmentQueryInfo hit = ws.hit;
+		for (int pass = 0; pass < 2 && x0 <= x1 && y0 <= y1; pass++) {
+			boolean horizontal = (pass == 0);
+			int from = (horizontal ? y0 : x0), to = (horizontal ? y1 : x1);
+			int first = (horizontal ? x0 : y0), last = (horizontal ? x1 : y1);
+			for (int index = from; index <= to; index++) {
+				Line line = line(horizontal, index);
+				for (int run = line.firstEndingAfter(first - 1); run < line.count && line.runs[run * 3] <= last; run++) {
+					localEdge(horizontal, index, line.runs[run * 3], line.runs[run * 3 + 1], line.runs[run * 3 + 2],
+							  local);
+					ws.loadSegment(transform);
+					hit.reset();
+					SegmentShape.segmentSegmentQuery(this, ws.ta, ws.tb, ws.n, radius, a, b, r2, hit);
+					if (hit.shape != null && hit.alpha < info.alpha) {
+						info.set(hit);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the closest point on the outline of the solid cells. The distance is negative for points inside a solid
+	 * cell. If the grid has no solid cells the distance is {@link Float#POSITIVE_INFINITY}.
+	 */
+	@Override
+	public PointQueryInfo pointQuery(Vector2f p, PointQueryInfo out) {
+		if (out == null) {
+			out = new PointQueryInfo();
+		}
+		ProxyQueryWorkspace ws = ProxyQueryWorkspace.get();
+		Vector2f lp = ProxyQueryWorkspace.transformPoint(inverse, p.x, p.y, ws.localA);
+		int cx = (int) Math.floor((lp.x - offsetX) / cellSize);
+		int cy = (int) Math.floor((lp.y - offsetY) / cellSize);
+
+		float[] local = ws.segment;
+		float best = Float.POSITIVE_INFINITY;
+		boolean found = false;
+		float closestX = 0.0f, closestY = 0.0f;
+		// Search windows of growing size around the cell of the point, everything outside of a window is at least
+		// k cells away.
+		for (int k = 1; ; k *= 2) {
+			int x0 = Math.max(0, cx - k), x1 = Math.min(width, cx + k + 1);
+			int y0 = Math.max(0, cy - k), y1 = Math.min(height, cy + k + 1);
+			for (int pass = 0; pass < 2 && x0 <= x1 && y0 <= y1; pass++) {
+				boolean horizontal = (pass == 0);
+				int from = (horizontal ? y0 : x0), to = (horizontal ? y1 : x1);
+				int first = (horizontal ? x0 : y0), last = (horizontal ? x1 : y1);
+				for (int index = from; index <= to; index++) {
+					Line line = line(horizontal, index);
+					for (int run = line.firstEndingAfter(first - 1); run < line.count && line.runs[run * 3] <= last;
+						 run++) {
+						localEdge(horizontal, index, line.runs[run * 3], line.runs[run * 3 + 1],
+								  line.runs[run * 3 + 2], local);
+						// The closest point on the edge, see Util#closestPointOnSegment().
+						float dx = local[0] - local[2], dy = local[1] - local[3];
+						float t = cpfclamp01((dx * (lp.x - local[2]) + dy * (lp.y - local[3])) / (dx * dx + dy * dy));
+						float px = local[2] + dx * t, py = local[3] + dy * t;
+						float ex = lp.x - px, ey = lp.y - py;
+						float d = (float) Math.sqrt(ex * ex + ey * ey);
+						if (d < best) {
+							best = d;
+							found = true;
+							closestX = px;
+							closestY = py;
+						}
+					}
+				}
+			}
+			if (best <= k * cellSize || (cx - k <= 0 && cx + k >= width && cy - k <= 0 && cy + k >= height)) {
+				break;
+			}
+		}
+
+		if (!found) {
+			ws.n.set(0.0f, 0.0f);
+			out.set(this, p, Float.POSITIVE_INFINITY, ws.n);
+			return out;
+		}
+		// The gradient points away from the solid cells.
+		boolean inside = isSolid(cx, cy);
+		float gx = 0.0f, gy = 0.0f;
+		if (best > Constants.MAGIC_EPSILON) {
+			float scale = (inside ? -1.0f : 1.0f) / best;
+			gx = (lp.x - closestX) * scale;
+			gy = (lp.y - closestY) * scale;
+		}
+		Vector2f point = ProxyQueryWorkspace.transformPoint(transform, closestX + gx * radius, closestY + gy * radius,
+															 ws.ta);
+		Vector2f gradient = ProxyQueryWorkspace.transformVect(transform, gx, gy, ws.n);
+		out.set(this, point, (inside ? -best : best) - radius, gradient);
+		return out;
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * A dense array of objects that know their own position in it. Every element stores its index through an {@link
+ * Index}, so {@link #contains(Object)} and {@link #remove(Object)} are O(1). Removal moves the last element into the
+ * freed slot, so the order of the elements is not stable.
+ * <p/>
+ * An element can be a member of any number of arrays as long as each of them uses a different index field, arrays
+ * sharing an index field must be mutually exclusive.
+ * <p/>
+ * Iterators are not fail-fast, elements appended while iterating are visited as well.
+ *
+ * @author jobernolte
+ */
+class IndexedArray<T> extends AbstractList<T> implements RandomAccess {
+
+	/** Accessor of the index field an element stores its position in. */
+	interface Index<T> {
+		int get(T obj);
+
+		void set(T obj, int index);
+	}
+
+	private final Index<T> index;
+	private Object[] elements;
+	private int size;
+
+	IndexedArray(Index<T> index) {
+		this(index, 16);
+	}
+
+	IndexedArray(Index<T> index, int capacity) {
+		this.index = index;
+		this.elements = new Object[Math.max(capacity, 1)];
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T get(int i) {
+		if (i >= size) {
+			throw new IndexOutOfBoundsException("index " + i + " out of bounds for size " + size);
+		}
+		return (T) elements[i];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean contains(Object o) {
+		if (o == null) {
+			return false;
+		}
+		int i = index.get((T) o);
+		return i >= 0 && i < size && elements[i] == o;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public int indexOf(Object o) {
+		return contains(o) ? index.get((T) o) : -1;
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		return indexOf(o);
+	}
+
+	/**
+	 * Appends <code>obj</code> unless it is already contained.
+	 *
+	 * @return <code>true</code> if the element has been added.
+	 */
+	@Override
+	public boolean add(T obj) {
+		if (contains(obj)) {
+			return false;
+		}
+		if (size == elements.length) {
+			elements = Arrays.copyOf(elements, size * 2);
+		}
+		index.set(obj, size);
+		elements[size++] = obj;
+		return true;
+	}
+
+	/** Removes <code>o</code> by moving the last element into its slot. */
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean remove(Object o) {
+		if (!contains(o)) {
+			return false;
+		}
+		T obj = (T) o;
+		int i = index.get(obj);
+		int last = --size;
+		// clear the index of the removed element first, the moved element may reuse resources tied to its slot
+		index.set(obj, -1);
+		if (i != last) {
+			T moved = (T) elements[last];
+			elements[i] = moved;
+			index.set(moved, i);
+		}
+		elements[last] = null;
+		return true;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T remove(int i) {
+		T obj = get(i);
+		remove(obj);
+		return obj;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			index.set((T) elements[i], -1);
+			elements[i] = null;
+		}
+		size = 0;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+			int next = 0;
+			int current = -1;
+
+			@Override
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			@Override
+			public T next() {
+				if (next >= size) {
+					throw new NoSuchElementException();
+				}
+				current = next++;
+				return get(current);
+			}
+
+			@Override
+			public void remove() {
+				if (current < 0) {
+					throw new IllegalStateException();
+				}
+				IndexedArray.this.remove(current);
+				// the last element has been moved into the current slot, visit it next
+				next = current;
+				current = -1;
+			}
+		};
+	}
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Persistent islands of the awake dynamic bodies of a space used to detect components that may fall asleep. Every
+ * awake dynamic body belongs to exactly one island. Islands are merged as soon as an arbiter or a constraint connects
+ * two of them, the smaller island being relabeled, and are never split eagerly: removing a body or an edge only
+ * counts the island as dirty. A dirty island is split into its connected parts once it contains a sleep candidate, a
+ * body that has been idle for longer than the sleep time threshold. A clean island is exactly one component of the
+ * contact graph, so it may fall asleep as soon as all of its bodies are candidates.
+ * <p/>
+ * Apart from the per step bookkeeping of the current edges the work done is proportional to the changes of the
+ * contact graph.
+ *
+ * @author jobernolte
+ */
+final class Islands {
+
+	/** A set of awake dynamic bodies connected by arbiters and constraints. */
+	static final class Island {
+		/** First body of the list threaded through {@link Body#islandNext}. */
+		Body head;
+		int size;
+		/** Number of bodies and edges removed since the island has been built, non-zero if it may be disconnected. */
+		int removed;
+		/** The pass the island has last been marked in. */
+		int stamp;
+		/** Contains a body that is not a sleep candidate. */
+		boolean awake;
+		/** The first sleep candidate marked in the current pass. */
+		Body candidate;
+	}
+
+	/** Orders the roots of the sleeping components like the bodies of the space. */
+	private static final Comparator<Body> ROOT_ORDER = (a, b) -> Integer.compare(a.bodyIndex, b.bodyIndex);
+
+	private int stamp;
+	/** The edges between dynamic bodies linked in the last pass, an arbiter and both of its bodies each. */
+	private Arbiter[] edges = new Arbiter[16];
+	private Body[] edgeBodies = new Body[32];
+	private int edgeCount;
+	/** The edges linked in the current pass. */
+	private Arbiter[] nextEdges = new Arbiter[16];
+	private Body[] nextEdgeBodies = new Body[32];
+	private int nextEdgeCount;
+	private Island[] marked = new Island[16];
+	private int markedCount;
+	private Body[] roots = new Body[16];
+	private int rootCount;
+	private Body[] stack = new Body[16];
+
+	/**
+	 * Adds a body that has become an awake dynamic body of the space as an island of its own.
+	 *
+	 * @param body the body.
+	 */
+	void add(Body body) {
+		Island island = new Island();
+		island.head = body;
+		island.size = 1;
+		body.island = island;
+		body.islandPrev = body.islandNext = null;
+	}
+
+	/**
+	 * Removes a body that is no longer an awake dynamic body of the space from its island.
+	 *
+	 * @param body the body.
+	 */
+	void remove(Body body) {
+		Island island = body.island;
+		if (island == null) {
+			return;
+		}
+		Body prev = body.islandPrev, next = body.islandNext;
+		if (prev == null) {
+			island.head = next;
+		} else {
+			prev.islandNext = next;
+		}
+		if (next != null) {
+			next.islandPrev = prev;
+		}
+		island.size--;
+		island.removed++;
+		body.island = null;
+		body.islandPrev = body.islandNext = null;
+	}
+
+	/**
+	 * Merges the islands of two bodies joined by a constraint. Bodies that are not awake and dynamic are ignored, as
+	 * they don't join components.
+	 *
+	 * @param a the first body.
+	 * @param b the second body.
+	 */
+	void link(Body a, Body b) {
+		Island ia = a.island, ib = b.island;
+		if (ia == null || ib == null || ia == ib) {
+			return;
+		}
+		if (ia.size < ib.size) {
+			Island tmp = ia;
+			ia = ib;
+			ib = tmp;
+		}
+		// Relabel the smaller island and splice its bodies in after the head of the larger one.
+		Body tail = null;
+		for (Body body = ib.head; body != null; body = body.islandNext) {
+			body.island = ia;
+			tail = body;
+		}
+		Body head = ia.head;
+		tail.islandNext = head.islandNext;
+		if (head.islandNext != null) {
+			head.islandNext.islandPrev = tail;
+		}
+		head.islandNext = ib.head;
+		ib.head.islandPrev = head;
+		ia.size += ib.size;
+		ia.removed += ib.removed;
+		ib.head = null;
+		ib.size = 0;
+	}
+
+	/**
+	 * Counts the island of two bodies that have been disconnected as dirty.
+	 *
+	 * @param a the first body.
+	 * @param b the second body.
+	 */
+	void unlink(Body a, Body b) {
+		if (a.island != null) {
+			a.island.removed++;
+		}
+		if (b.island != null && b.island != a.island) {
+			b.island.removed++;
+		}
+	}
+
+	/** Starts a new pass. */
+	void begin() {
+		stamp++;
+		nextEdgeCount = 0;
+		markedCount = 0;
+		rootCount = 0;
+	}
+
+	/**
+	 * Merges the islands of the bodies touching through an arbiter and remembers the arbiter as an edge of the
+	 * current pass.
+	 *
+	 * @param arb the arbiter.
+	 */
+	void link(Arbiter arb) {
+		Body a = arb.body_a, b = arb.body_b;
+		if (a.island == null || b.island == null) {
+			return;
+		}
+		link(a, b);
+		if (nextEdgeCount == nextEdges.length) {
+			nextEdges = Arrays.copyOf(nextEdges, nextEdgeCount * 2);
+			nextEdgeBodies = Arrays.copyOf(nextEdgeBodies, nextEdgeCount * 4);
+		}
+		arb.islandStamp = stamp;
+		nextEdges[nextEdgeCount] = arb;
+		nextEdgeBodies[2 * nextEdgeCount] = a;
+		nextEdgeBodies[2 * nextEdgeCount + 1] = b;
+		nextEdgeCount++;
+	}
+
+	/**
+	 * Counts the islands of the edges of the last pass that have not been linked again in the current one as dirty.
+	 * Arbiters are reused for other pairs of shapes, so the bodies have to match as well.
+	 */
+	void unlinkSeparated() {
+		for (int i = 0; i < edgeCount; i++) {
+			Arbiter arb = edges[i];
+			Body a = edgeBodies[2 * i], b = edgeBodies[2 * i + 1];
+			if (arb.islandStamp != stamp || arb.body_a != a || arb.body_b != b) {
+				unlink(a, b);
+			}
+		}
+		Arbiter[] tmpEdges = edges;
+		Body[] tmpBodies = edgeBodies;
+		Arrays.fill(tmpEdges, 0, edgeCount, null);
+		Arrays.fill(tmpBodies, 0, 2 * edgeCount, null);
+		edges = nextEdges;
+		edgeBodies = nextEdgeBodies;
+		edgeCount = nextEdgeCount;
+		nextEdges = tmpEdges;
+		nextEdgeBodies = tmpBodies;
+		nextEdgeCount = 0;
+	}
+
+	/**
+	 * Marks the island of an awake dynamic body. Bodies have to be marked in body order.
+	 *
+	 * @param body      the body.
+	 * @param candidate <code>true</code> if the body is a sleep candidate.
+	 */
+	void mark(Body body, boolean candidate) {
+		Island island = body.island;
+		if (island.stamp != stamp) {
+			island.stamp = stamp;
+			island.awake = false;
+			island.candidate = null;
+			if (markedCount == marked.length) {
+				marked = Arrays.copyOf(marked, markedCount * 2);
+			}
+			marked[markedCount++] = island;
+		}
+		if (!candidate) {
+			island.awake = true;
+		} else if (island.candidate == null) {
+			island.candidate = body;
+		}
+	}
+
+	/**
+	 * Finds the components that may fall asleep. Dirty islands containing a sleep candidate are split first.
+	 *
+	 * @param threshold the sleep time threshold.
+	 */
+	void resolve(float threshold) {
+		for (int i = 0, n = markedCount; i < n; i++) {
+			Island island = marked[i];
+			if (island.candidate == null) {
+				continue;
+			}
+			if (island.removed > 0) {
+				split(island, threshold);
+			} else if (!island.awake) {
+				addRoot(island.candidate);
+			}
+		}
+		// Put the components to sleep in the order of their first bodies.
+		Arrays.sort(roots, 0, rootCount, ROOT_ORDER);
+	}
+
+	private void addRoot(Body body) {
+		if (rootCount == roots.length) {
+			roots = Arrays.copyOf(roots, rootCount * 2);
+		}
+		roots[rootCount++] = body;
+	}
+
+	/** Splits a dirty island into its connected parts and adds the roots of the parts that may fall asleep. */
+	private void split(Island island, float threshold) {
+		// The bodies of the island followed by the flood fill stack, every body is pushed at most once.
+		Body[] stack = this.stack;
+		if (stack.length < 2 * island.size) {
+			stack = this.stack = new Body[Math.max(2 * island.size, stack.length * 2)];
+		}
+		// Unthread the bodies first, they are relabeled by the flood fill below.
+		int count = 0;
+		for (Body body = island.head; body != null; ) {
+			Body next = body.islandNext;
+			body.islandPrev = body.islandNext = null;
+			stack[count++] = body;
+			body = next;
+		}
+		for (int i = 0; i < count; i++) {
+			Body start = stack[i];
+			if (start.island != island) {
+				continue;
+			}
+			Island part = new Island();
+			part.stamp = stamp;
+			int top = count;
+			start.island = part;
+			stack[top++] = start;
+			while (top > count) {
+				Body body = stack[--top];
+				stack[top] = null;
+				body.islandNext = part.head;
+				if (part.head != null) {
+					part.head.islandPrev = body;
+				}
+				part.head = body;
+				part.size++;
+				if (body.sleeping.idleTime < threshold) {
+					part.awake = true;
+				} else if (part.candidate == null || body.bodyIndex < part.candidate.bodyIndex) {
+					part.candidate = body;
+				}
+
+				for (Arbiter arb = body.arbiterList; arb != null; arb = Arbiter.arbiterNext(arb, body)) {
+					Body other = (body == arb.body_a ? arb.body_b : arb.body_a);
+					if (other.island == island) {
+						other.island = part;
+						stack[top++] = other;
+					}
+				}
+				for (Constraint constraint = body.constraintList; constraint != null;
+					 constraint = Body.cpConstraintNext(constraint, body)) {
+					Body other = (body == constraint.a ? constraint.b : constraint.a);
+					if (other.island == island) {
+						other.island = part;
+						stack[top++] = other;
+					}
+				}
+			}
+			if (!part.awake && part.candidate != null) {
+				addRoot(part.candidate);
+			}
+		}
+		Arrays.fill(stack, 0, count, null);
+		island.head = null;
+		island.size = 0;
+	}
+
+	int getRootCount() {
+		return rootCount;
+	}
+
+	/**
+	 * @param index the root index.
+	 * @return the first body of a component that may fall asleep.
+	 */
+	Body getRoot(int index) {
+		return roots[index];
+	}
+
+	/** Drops the references to the islands and roots of the current pass. */
+	void end() {
+		Arrays.fill(marked, 0, markedCount, null);
+		Arrays.fill(roots, 0, rootCount, null);
+		markedCount = 0;
+		rootCount = 0;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+/**
+ * A static bounding box tree over a fixed number of leaves in the local space of a shape, used by the shapes made of
+ * many parts. The tree is a complete binary tree stored implicitly in a flat array: the root node has index 1, the
+ * children of node i are 2i and 2i + 1 and the leaves start at {@link #leafOffset}. Leaves that are next to each other
+ * in the leaf order should be close to each other in space.
+ * <p/>
+ * A traversal visits the nodes in depth first order without a stack:
+ * <pre>
+ * int node = 1;
+ * do {
+ *     if (test(node)) {
+ *         if (!tree.isLeaf(node)) {
+ *             node <<= 1;
+ *             continue;
+ *         }
+ *         visit(tree.leaf(node));
+ *     }
+ *     node = LocalBVH.next(node);
+ * } while (node != 1);
+ * </pre>
+ *
+ * @author jobernolte
+ */
+final class LocalBVH {
+	/** Index of the first leaf node, a power of two. */
+	final int leafOffset;
+	/** Bounding boxes (l, b, r, t) of the nodes. */
+	final float[] nodeBB;
+
+	/**
+	 * @param leafBB the bounding boxes (l, b, r, t) of the leaves
+	 * @param count  the number of leaves
+	 */
+	LocalBVH(float[] leafBB, int count) {
+		int leaves = 1;
+		while (leaves < count) {
+			leaves <<= 1;
+		}
+		this.leafOffset = leaves;
+		this.nodeBB = new float[leaves * 2 * 4];
+		for (int i = 0; i < leaves; i++) {
+			int o = (leaves + i) * 4;
+			if (i < count) {
+				System.arraycopy(leafBB, i * 4, nodeBB, o, 4);
+			} else {
+				// Empty leaves never overlap anything.
+				nodeBB[o] = nodeBB[o + 1] = Float.POSITIVE_INFINITY;
+				nodeBB[o + 2] = nodeBB[o + 3] = Float.NEGATIVE_INFINITY;
+			}
+		}
+		for (int node = leaves - 1; node >= 1; node--) {
+			int o = node * 4, l = node * 8, r = l + 4;
+			nodeBB[o] = Math.min(nodeBB[l], nodeBB[r]);
+			nodeBB[o + 1] = Math.min(nodeBB[l + 1], nodeBB[r + 1]);
+			nodeBB[o + 2] = Math.max(nodeBB[l + 2], nodeBB[r + 2]);
+			nodeBB[o + 3] = Math.max(nodeBB[l + 3], nodeBB[r + 3]);
+		}
+	}
+
+	/** @return the node to visit after the subtree of <code>node</code> */
+	static int next(int node) {
+		// Climb up while we are a right child, then move on to the right sibling.
+		while ((node & 1) == 1) {
+			node >>>= 1;
+		}
+		return node + 1;
+	}
+
+	boolean isLeaf(int node) {
+		return node >= leafOffset;
+	}
+
+	int leaf(int node) {
+		return node - leafOffset;
+	}
+
+	/** @return the bounding box of all leaves */
+	BB bounds() {
+		return new BB(nodeBB[4], nodeBB[5], nodeBB[6], nodeBB[7]);
+	}
+
+	boolean overlaps(int node, float l, float b, float r, float t) {
+		int o = node * 4;
+		return nodeBB[o] <= r && l <= nodeBB[o + 2] && nodeBB[o + 1] <= t && b <= nodeBB[o + 3];
+	}
+
+	/** @return the distance from the point to the box of <code>node</code>, infinite for empty leaves */
+	float distance(int node, float x, float y) {
+		int o = node * 4;
+		float dx = Math.max(0.0f, Math.max(nodeBB[o] - x, x - nodeBB[o + 2]));
+		float dy = Math.max(0.0f, Math.max(nodeBB[o + 1] - y, y - nodeBB[o + 3]));
+		return (float) Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * @return the fraction along the segment from <code>(x, y)</code> by <code>(dx, dy)</code> at which it enters the
+	 * box of <code>node</code> grown by <code>r</code>, {@link Float#POSITIVE_INFINITY} if it misses it.
+	 */
+	float enterTime(int node, float x, float y, float dx, float dy, float r) {
+		int o = node * 4;
+		float l = nodeBB[o] - r, b = nodeBB[o + 1] - r, right = nodeBB[o + 2] + r, t = nodeBB[o + 3] + r;
+		if (l > right) {
+			// Empty leaf.
+			return Float.POSITIVE_INFINITY;
+		}
+
+		float txmin, txmax;
+		if (dx == 0.0f) {
+			if (x < l || x > right) return Float.POSITIVE_INFINITY;
+			txmin = Float.NEGATIVE_INFINITY;
+			txmax = Float.POSITIVE_INFINITY;
+		} else {
+			float tx1 = (l - x) / dx, tx2 = (right - x) / dx;
+			txmin = Math.min(tx1, tx2);
+			txmax = Math.max(tx1, tx2);
+		}
+		float tymin, tymax;
+		if (dy == 0.0f) {
+			if (y < b || y > t) return Float.POSITIVE_INFINITY;
+			tymin = Float.NEGATIVE_INFINITY;
+			tymax = Float.POSITIVE_INFINITY;
+		} else {
+			float ty1 = (b - y) / dy, ty2 = (t - y) / dy;
+			tymin = Math.min(ty1, ty2);
+			tymax = Math.max(ty1, ty2);
+		}
+
+		float min = Math.max(txmin, tymin);
+		float max = Math.min(txmax, tymax);
+		if (min <= max && 0.0f <= max && min <= 1.0f) {
+			return Math.max(min, 0.0f);
+		}
+		return Float.POSITIVE_INFINITY;
+	}
+}
@@ -16,14 +16,14 @@ public class Mat2x2 {
 	}
 
 	public static Mat2x2 k_tensor(Body a, Body b, Vector2f r1, Vector2f r2) {
-		float m_sum = a.m_inv + b.m_inv;
+		float m_sum = a.getInverseMass() + b.getInverseMass();
 
 		// start with Identity*m_sum
 		float k11 = m_sum, k12 = 0.0f;
 		float k21 = 0.0f, k22 = m_sum;
 
 		// add the influence from r1
-		float a_i_inv = a.i_inv;
+		float a_i_inv = a.getInverseMoment();
 		float r1xsq = r1.x * r1.x * a_i_inv;
 		float r1ysq = r1.y * r1.y * a_i_inv;
 		float r1nxy = -r1.x * r1.y * a_i_inv;
@@ -33,7 +33,7 @@ public class Mat2x2 {
 		k22 += r1xsq;
 
 		// add the influnce from r2
-		float b_i_inv = b.i_inv;
+		float b_i_inv = b.getInverseMoment();
 		float r2xsq = r2.x * r2.x * b_i_inv;
 		float r2ysq = r2.y * r2.y * b_i_inv;
 		float r2nxy = -r2.x * r2.y * b_i_inv;
@@ -0,0 +1,731 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.physics.jipmunk.Util.*;
+
+/**
+ * A lightweight system of equally sized, non-rotating circular particles for effects like debris, sand or water
+ * droplets. Particles are not bodies: their positions and velocities are stored in primitive arrays, they are binned
+ * into a uniform grid with a cell size of one particle diameter and are solved by a simple position based step after
+ * the bodies of the {@link Space} have been solved:
+ * <ol>
+ * <li>gravity and damping of the space are applied and the particles are moved to their predicted positions,</li>
+ * <li>overlapping particles are pushed apart, the upper one taking more of the correction so piles hold up, and
+ * particles are pushed out of the shapes of the space, for the given number of iterations,</li>
+ * <li>the velocities are derived from the distance moved.</li>
+ * </ol>
+ * Circle, segment and polygon shapes are tested directly on the primitive data, chain, grid and compound shapes are
+ * tested against their parts and any other shape through {@link Shape#pointQuery(Vector2f, PointQueryInfo)}. Particles
+ * push awake dynamic bodies back with their mass, sleeping bodies are treated as static ones and are not woken up.
+ * Sensors are ignored.
+ * <p/>
+ * Particles are identified by their index, which changes when another particle is removed. They aren't part of
+ * checkpoints, deltas, state hashes or query snapshots of the space.
+ *
+ * @author jobernolte
+ * @see Space#addParticleSystem(ParticleSystem)
+ */
+public class ParticleSystem {
+	private static final int PRIME_X = 73856093;
+	private static final int PRIME_Y = 19349663;
+	/** how much more of a correction the upper particle of a vertically stacked pair takes */
+	private static final float UPPER_SHARE = 0.4f;
+
+	final float radius;
+	private final float cellSizeInv;
+	private int count;
+	/** the interleaved positions */
+	private float[] positions;
+	/** the interleaved positions at the start of the step */
+	private float[] previous;
+	private float[] velocities;
+
+	private int[] cellOf;
+	/** the interleaved coordinates of the cells the particles have been binned into */
+	private int[] binned;
+	private int[] cellStart = new int[1];
+	/** the particle indices in the order of their cells */
+	private int[] sorted;
+	/** the positions and cells in the order of the cells, the solver works on them */
+	private float[] sortedPositions;
+	private float[] sortedPrevious;
+	private int[] sortedBinned;
+	private final int[] neighbourCells = new int[18];
+	private boolean dense;
+	/** the direction against gravity, zero without gravity */
+	private float upX, upY;
+	private int gridX, gridY, gridWidth, gridHeight;
+	private int cellCount;
+
+	private int iterations = 2;
+	private float mass = 1.0f;
+	private float friction = 0.5f;
+	private float maxSpeed = Float.POSITIVE_INFINITY;
+	private ShapeFilter filter = ShapeFilter.ALL;
+
+	Space space;
+	private final List<Shape> shapes = new ArrayList<>();
+	private final PointQueryInfo pointInfo = new PointQueryInfo();
+	private final Vector2f point = cpvzero();
+
+	/**
+	 * @param radius   the radius of all particles
+	 * @param capacity the number of particles to allocate space for, the system grows as needed
+	 */
+	public ParticleSystem(float radius, int capacity) {
+		if (radius <= 0.0f) {
+			throw new IllegalArgumentException("The radius of the particles must be positive.");
+		}
+		this.radius = radius;
+		this.cellSizeInv = 0.5f / radius;
+		capacity = Math.max(capacity, 16);
+		this.positions = new float[capacity * 2];
+		this.velocities = new float[capacity * 2];
+		allocate(capacity);
+	}
+
+	/** Allocates the arrays only used during a step. */
+	private void allocate(int capacity) {
+		previous = new float[capacity * 2];
+		cellOf = new int[capacity];
+		binned = new int[capacity * 2];
+		sorted = new int[capacity];
+		sortedPositions = new float[capacity * 2];
+		sortedPrevious = new float[capacity * 2];
+		sortedBinned = new int[capacity * 2];
+	}
+
+	/**
+	 * Adds a particle.
+	 *
+	 * @param position the position in world coordinates
+	 * @param velocity the velocity
+	 * @return the index of the particle
+	 */
+	public int addParticle(Vector2f position, Vector2f velocity) {
+		assertUnlocked();
+		if (count == cellOf.length) {
+			int capacity = count * 2;
+			positions = Arrays.copyOf(positions, capacity * 2);
+			velocities = Arrays.copyOf(velocities, capacity * 2);
+			allocate(capacity);
+		}
+		int index = count++;
+		positions[index * 2] = position.x;
+		positions[index * 2 + 1] = position.y;
+		velocities[index * 2] = velocity.x;
+		velocities[index * 2 + 1] = velocity.y;
+		return index;
+	}
+
+	/**
+	 * Removes a particle. The last particle takes over the index of the removed one.
+	 *
+	 * @param index the index of the particle to remove
+	 */
+	public void removeParticle(int index) {
+		assertUnlocked();
+		checkIndex(index);
+		int last = --count;
+		positions[index * 2] = positions[last * 2];
+		positions[index * 2 + 1] = positions[last * 2 + 1];
+		velocities[index * 2] = velocities[last * 2];
+		velocities[index * 2 + 1] = velocities[last * 2 + 1];
+	}
+
+	/** Removes all particles. */
+	public void clear() {
+		assertUnlocked();
+		count = 0;
+	}
+
+	private void assertUnlocked() {
+		if (space != null) {
+			space.assertSpaceUnlocked();
+		}
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("Particle " + index + " of " + count + ".");
+		}
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public float getRadius() {
+		return radius;
+	}
+
+	public Vector2f getPosition(int index) {
+		checkIndex(index);
+		return cpv(positions[index * 2], positions[index * 2 + 1]);
+	}
+
+	public void setPosition(int index, Vector2f position) {
+		checkIndex(index);
+		positions[index * 2] = position.x;
+		positions[index * 2 + 1] = position.y;
+	}
+
+	public Vector2f getVelocity(int index) {
+		checkIndex(index);
+		return cpv(velocities[index * 2], velocities[index * 2 + 1]);
+	}
+
+	public void setVelocity(int index, Vector2f velocity) {
+		checkIndex(index);
+		velocities[index * 2] = velocity.x;
+		velocities[index * 2 + 1] = velocity.y;
+	}
+
+	/**
+	 * Copies the positions of all particles, e.g. for rendering.
+	 *
+	 * @param out the array to take the interleaved x and y coordinates, at least twice as long as the particle count
+	 * @return the number of particles
+	 */
+	public int copyPositions(float[] out) {
+		System.arraycopy(positions, 0, out, 0, count * 2);
+		return count;
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+
+	/** @param iterations the number of times the particle and shape constraints are resolved per step */
+	public void setIterations(int iterations) {
+		if (iterations < 1) {
+			throw new IllegalArgumentException("At least one iteration is needed.");
+		}
+		this.iterations = iterations;
+	}
+
+	public float getMass() {
+		return mass;
+	}
+
+	/** @param mass the mass of a single particle, used to push dynamic bodies */
+	public void setMass(float mass) {
+		this.mass = mass;
+	}
+
+	public float getFriction() {
+		return friction;
+	}
+
+	/** @param friction the friction of the particles, multiplied with the friction of the shapes they touch */
+	public void setFriction(float friction) {
+		this.friction = friction;
+	}
+
+	public float getMaxSpeed() {
+		return maxSpeed;
+	}
+
+	/**
+	 * Limits the speed of the particles. Particles moving further than their radius in one step may tunnel through
+	 * thin shapes, a maximum speed of <code>radius / dt</code> prevents that.
+	 *
+	 * @param maxSpeed the maximum speed
+	 */
+	public void setMaxSpeed(float maxSpeed) {
+		this.maxSpeed = maxSpeed;
+	}
+
+	public ShapeFilter getFilter() {
+		return filter;
+	}
+
+	/** @param filter the filter of the particles, shapes rejected by it are passed through */
+	public void setFilter(ShapeFilter filter) {
+		this.filter = filter;
+	}
+
+	void step(float dt, Vector2f gravity, float damping) {
+		if (count == 0) {
+			return;
+		}
+		float[] p = this.positions, prev = this.previous, v = this.velocities;
+		float gx = gravity.x * dt, gy = gravity.y * dt;
+		float maxSpeedSq = maxSpeed * maxSpeed;
+		float l = Float.POSITIVE_INFINITY, b = Float.POSITIVE_INFINITY;
+		float r = Float.NEGATIVE_INFINITY, t = Float.NEGATIVE_INFINITY;
+		for (int i = 0, n = count * 2; i < n; i += 2) {
+			float vx = v[i] * damping + gx;
+			float vy = v[i + 1] * damping + gy;
+			float speedSq = vx * vx + vy * vy;
+			if (speedSq > maxSpeedSq) {
+				float scale = maxSpeed / (float) Math.sqrt(speedSq);
+				vx *= scale;
+				vy *= scale;
+			}
+			float x = p[i], y = p[i + 1];
+			prev[i] = x;
+			prev[i + 1] = y;
+			x += vx * dt;
+			y += vy * dt;
+			p[i] = x;
+			p[i + 1] = y;
+			l = Math.min(l, x);
+			r = Math.max(r, x);
+			b = Math.min(b, y);
+			t = Math.max(t, y);
+		}
+
+		float g = cpvlength(gravity);
+		upX = (g > 0.0f ? -gravity.x / g : 0.0f);
+		upY = (g > 0.0f ? -gravity.y / g : 0.0f);
+
+		buildGrid(l, b, r, t);
+		collectShapes(new BB(l - radius, b - radius, r + radius, t + radius));
+		for (int iteration = 0; iteration < iterations; iteration++) {
+			solveParticles();
+			for (int i = 0, n = shapes.size(); i < n; i++) {
+				solveShape(shapes.get(i), dt);
+			}
+		}
+		shapes.clear();
+
+		// Scatter the solved positions back and derive the velocities.
+		float[] sp = this.sortedPositions;
+		int[] sorted = this.sorted;
+		float dtInv = 1.0f / dt;
+		for (int s = 0; s < count; s++) {
+			int i = sorted[s];
+			float x = sp[s * 2], y = sp[s * 2 + 1];
+			p[i * 2] = x;
+			p[i * 2 + 1] = y;
+			v[i * 2] = (x - prev[i * 2]) * dtInv;
+			v[i * 2 + 1] = (y - prev[i * 2 + 1]) * dtInv;
+		}
+	}
+
+	private int cellX(float x) {
+		float f = x * cellSizeInv;
+		int i = (int) f;
+		return (f < i ? i - 1 : i);
+	}
+
+	/** @return the index of the cell, -1 if it is outside of a dense grid */
+	private int cellIndex(int cx, int cy) {
+		if (dense) {
+			cx -= gridX;
+			cy -= gridY;
+			return (cx >= 0 && cx < gridWidth && cy >= 0 && cy < gridHeight ? cy * gridWidth + cx : -1);
+		}
+		return (cx * PRIME_X ^ cy * PRIME_Y) & (cellCount - 1);
+	}
+
+	/**
+	 * Sorts the particles into the cells with a counting sort and gathers their positions in that order, so
+	 * neighbouring particles are close in memory as well. The grid covers the bounds of the particles densely in rows
+	 * if that doesn't take much more cells than there are particles, otherwise the cells are hashed.
+	 */
+	private void buildGrid(float l, float b, float r, float t) {
+		gridX = cellX(l);
+		gridY = cellX(b);
+		long width = (long) cellX(r) - gridX + 1, height = (long) cellX(t) - gridY + 1;
+		dense = (width * height <= 4L * count + 64);
+		if (dense) {
+			gridWidth = (int) width;
+			gridHeight = (int) height;
+			cellCount = gridWidth * gridHeight;
+		} else {
+			cellCount = Integer.highestOneBit(Math.max(count * 2, 16) - 1) << 1;
+		}
+		if (cellStart.length < cellCount + 1) {
+			cellStart = new int[Math.max(cellCount + 1, cellStart.length * 2)];
+		}
+		int[] cellStart = this.cellStart;
+		Arrays.fill(cellStart, 0, cellCount + 1, 0);
+
+		float[] p = this.positions, prev = this.previous;
+		int[] cellOf = this.cellOf, binned = this.binned;
+		for (int i = 0; i < count; i++) {
+			int cx = cellX(p[i * 2]), cy = cellX(p[i * 2 + 1]);
+			int cell = cellIndex(cx, cy);
+			binned[i * 2] = cx;
+			binned[i * 2 + 1] = cy;
+			cellOf[i] = cell;
+			cellStart[cell + 1]++;
+		}
+		for (int c = 0; c < cellCount; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		// Fill the cells back to front so the particles of a cell end up in index order.
+		int[] sorted = this.sorted;
+		for (int i = count - 1; i >= 0; i--) {
+			sorted[--cellStart[cellOf[i] + 1]] = i;
+		}
+		// Every end has been moved to the start of its cell, shift them into place.
+		System.arraycopy(cellStart, 1, cellStart, 0, cellCount);
+		cellStart[cellCount] = count;
+
+		float[] sp = this.sortedPositions, sprev = this.sortedPrevious;
+		int[] sbinned = this.sortedBinned;
+		for (int s = 0; s < count; s++) {
+			int i = sorted[s];
+			sp[s * 2] = p[i * 2];
+			sp[s * 2 + 1] = p[i * 2 + 1];
+			sprev[s * 2] = prev[i * 2];
+			sprev[s * 2 + 1] = prev[i * 2 + 1];
+			sbinned[s * 2] = binned[i * 2];
+			sbinned[s * 2 + 1] = binned[i * 2 + 1];
+		}
+	}
+
+	/** Pushes overlapping particles apart, every pair is resolved once by the particle sorted first. */
+	private void solveParticles() {
+		float[] p = this.sortedPositions;
+		int[] binned = this.sortedBinned;
+		float diameter = 2.0f * radius;
+		float diameterSq = diameter * diameter;
+		int[] cells = this.neighbourCells;
+
+		for (int s = 0; s < count; s++) {
+			float x = p[s * 2], y = p[s * 2 + 1];
+			int cx = binned[s * 2], cy = binned[s * 2 + 1];
+			int cellCount = neighbourCells(s, cx, cy, cells);
+			for (int c = 0; c < cellCount; c += 2) {
+				for (int e = Math.max(cells[c], s + 1), end = cells[c + 1]; e < end; e++) {
+					float ddx = p[e * 2] - x, ddy = p[e * 2 + 1] - y;
+					float distSq = ddx * ddx + ddy * ddy;
+					if (distSq >= diameterSq) {
+						continue;
+					}
+					float nx, ny, dist;
+					if (distSq > 0.0f) {
+						dist = (float) Math.sqrt(distSq);
+						nx = ddx / dist;
+						ny = ddy / dist;
+					} else {
+						// Separate coincident particles along a fixed axis.
+						dist = 0.0f;
+						nx = 1.0f;
+						ny = 0.0f;
+					}
+					// The particle further up takes the larger part of the correction, so that piles don't sink
+					// into themselves.
+					float share = cpfclamp(0.5f + UPPER_SHARE * (nx * upX + ny * upY), 0.0f, 1.0f);
+					float overlap = diameter - dist;
+					x -= nx * overlap * (1.0f - share);
+					y -= ny * overlap * (1.0f - share);
+					p[e * 2] += nx * overlap * share;
+					p[e * 2 + 1] += ny * overlap * share;
+				}
+			}
+			p[s * 2] = x;
+			p[s * 2 + 1] = y;
+		}
+	}
+
+	/**
+	 * Collects the sorted ranges of the cells around the cell of a particle that may hold particles sorted after it.
+	 * In a dense grid these are the rest of the particle's row and the row above, as the rows are sorted bottom up.
+	 * Hashed cells take one range per distinct bucket around the particle.
+	 *
+	 * @return the number of range bounds stored in <code>out</code>
+	 */
+	private int neighbourCells(int s, int cx, int cy, int[] out) {
+		int[] cellStart = this.cellStart;
+		int n = 0;
+		if (dense) {
+			int x0 = Math.max(cx - 1 - gridX, 0), x1 = Math.min(cx + 1 - gridX, gridWidth - 1);
+			int row = (cy - gridY) * gridWidth;
+			out[n++] = s + 1;
+			out[n++] = cellStart[row + x1 + 1];
+			if (cy - gridY + 1 < gridHeight) {
+				row += gridWidth;
+				out[n++] = cellStart[row + x0];
+				out[n++] = cellStart[row + x1 + 1];
+			}
+			return n;
+		}
+		for (int dy = -1; dy <= 1; dy++) {
+			buckets:
+			for (int dx = -1; dx <= 1; dx++) {
+				int cell = cellIndex(cx + dx, cy + dy);
+				// Different cells can share a bucket, visit every bucket only once.
+				for (int k = 0; k < n; k += 2) {
+					if (out[k] == cellStart[cell]) {
+						continue buckets;
+					}
+				}
+				if (cellStart[cell] < cellStart[cell + 1]) {
+					out[n++] = cellStart[cell];
+					out[n++] = cellStart[cell + 1];
+				}
+			}
+		}
+		return n;
+	}
+
+	private void collectShapes(BB bb) {
+		space.bbQuery(bb, filter, shape -> {
+			if (!shape.sensor) {
+				collectShape(shape, bb);
+			}
+		});
+	}
+
+	private void collectShape(Shape shape, BB bb) {
+		if (!shape.hasProxies()) {
+			shapes.add(shape);
+			return;
+		}
+		for (Shape part : shape.queryProxies(bb)) {
+			if (!part.sensor && !part.filter.reject(filter)) {
+				collectShape(part, bb);
+			}
+		}
+	}
+
+	/** Pushes the particles close to the shape out of it. */
+	private void solveShape(Shape shape, float dt) {
+		BB bb = shape.bb;
+		float r = radius;
+		// Particles may have moved up to a cell away from the cell they were binned into.
+		int l = cellX(bb.l - r) - 1, b = cellX(bb.b - r) - 1, rr = cellX(bb.r + r) + 1, t = cellX(bb.t + r) + 1;
+		int[] cellStart = this.cellStart;
+		if (dense) {
+			l = Math.max(l, gridX);
+			b = Math.max(b, gridY);
+			rr = Math.min(rr, gridX + gridWidth - 1);
+			t = Math.min(t, gridY + gridHeight - 1);
+			// The cells of a row are sorted next to each other.
+			for (int cy = b; cy <= t && l <= rr; cy++) {
+				for (int s = cellStart[cellIndex(l, cy)], end = cellStart[cellIndex(rr, cy) + 1]; s < end; s++) {
+					collideParticle(shape, s, dt);
+				}
+			}
+			return;
+		}
+		if ((long) (rr - l + 1) * (t - b + 1) > count) {
+			// The shape covers more cells than there are particles, test all of them.
+			for (int s = 0; s < count; s++) {
+				collideParticle(shape, s, dt);
+			}
+			return;
+		}
+		int[] binned = this.sortedBinned;
+		for (int cy = b; cy <= t; cy++) {
+			for (int cx = l; cx <= rr; cx++) {
+				int cell = cellIndex(cx, cy);
+				for (int s = cellStart[cell], end = cellStart[cell + 1]; s < end; s++) {
+					// Cells can share a bucket, only test the particles binned into this cell.
+					if (binned[s * 2] == cx && binned[s * 2 + 1] == cy) {
+						collideParticle(shape, s, dt);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the point a fraction <code>k</code> along the motion from <code>(px, py)</code> by
+	 * <code>(mx, my)</code> is on the segment from the origin to <code>(ex, ey)</code>, widened by the fraction
+	 * <code>width</code> of its length at both ends
+	 */
+	private static boolean crosses(float px, float py, float mx, float my, float k, float ex, float ey,
+			float width) {
+		float u = ((px + mx * k) * ex + (py + my * k) * ey) / (ex * ex + ey * ey);
+		return u >= -width && u <= 1.0f + width;
+	}
+
+	/** Collides the particle at the given sorted index with the shape. */
+	private void collideParticle(Shape shape, int i, float dt) {
+		float[] p = this.sortedPositions;
+		float x = p[i * 2], y = p[i * 2 + 1];
+		float r = radius;
+
+		// Find the normal pointing out of the shape and the depth the particle has to be moved along it.
+		float nx, ny, depth;
+		switch (shape.getType()) {
+			case CIRCLE_SHAPE: {
+				CircleShape circle = (CircleShape) shape;
+				float dx = x - circle.tc.x, dy = y - circle.tc.y;
+				float reach = circle.radius + r;
+				float distSq = dx * dx + dy * dy;
+				if (distSq >= reach * reach) {
+					return;
+				}
+				float dist = (float) Math.sqrt(distSq);
+				if (dist > 0.0f) {
+					nx = dx / dist;
+					ny = dy / dist;
+				} else {
+					nx = 0.0f;
+					ny = 1.0f;
+				}
+				depth = reach - dist;
+				break;
+			}
+			case SEGMENT_SHAPE: {
+				SegmentShape seg = (SegmentShape) shape;
+				float ax = seg.ta.x, ay = seg.ta.y;
+				float ex = seg.tb.x - ax, ey = seg.tb.y - ay;
+				float lengthSq = ex * ex + ey * ey;
+				float u = (lengthSq > 0.0f ? cpfclamp01(((x - ax) * ex + (y - ay) * ey) / lengthSq) : 0.0f);
+				float dx = x - (ax + ex * u), dy = y - (ay + ey * u);
+				float reach = seg.radius + r;
+				Vector2f tn = seg.tn;
+				// Keep the particle on the side of the segment it started the step on if its motion crossed the
+				// segment, even if it has been pushed further across it than its radius. The ends are widened by
+				// the radius so that particles can't slip through the joints of segments.
+				float px = sortedPrevious[i * 2], py = sortedPrevious[i * 2 + 1];
+				float side = (px - ax) * tn.x + (py - ay) * tn.y;
+				float sideNow = (x - ax) * tn.x + (y - ay) * tn.y;
+				if (side * sideNow < 0.0f && lengthSq > 0.0f && crosses(px - ax, py - ay, x - px, y - py,
+						side / (side - sideNow), ex, ey, r / (float) Math.sqrt(lengthSq))) {
+					float sign = (side < 0.0f ? -1.0f : 1.0f);
+					nx = tn.x * sign;
+					ny = tn.y * sign;
+					depth = reach + Math.abs(sideNow);
+					break;
+				}
+				float distSq = dx * dx + dy * dy;
+				if (distSq >= reach * reach) {
+					return;
+				}
+				float dist = (float) Math.sqrt(distSq);
+				if (dist > 0.0f) {
+					nx = dx / dist;
+					ny = dy / dist;
+				} else {
+					float sign = (side < 0.0f ? -1.0f : 1.0f);
+					nx = tn.x * sign;
+					ny = tn.y * sign;
+				}
+				depth = reach - dist;
+				break;
+			}
+			case POLY_SHAPE: {
+				PolyShape poly = (PolyShape) shape;
+				SplittingPlane[] planes = poly.planes;
+				float reach = poly.geometry.radius + r;
+				int n = planes.length;
+				float maxSeparation = Float.NEGATIVE_INFINITY;
+				int maxIndex = 0;
+				for (int k = 0; k < n; k++) {
+					Vector2f v0 = planes[k].v0, normal = planes[k].n;
+					float separation = normal.x * (x - v0.x) + normal.y * (y - v0.y);
+					if (separation > maxSeparation) {
+						maxSeparation = separation;
+						maxIndex = k;
+					}
+				}
+				if (maxSeparation >= reach) {
+					return;
+				}
+				if (maxSeparation <= 0.0f) {
+					// The center is inside, push it out through the closest edge.
+					nx = planes[maxIndex].n.x;
+					ny = planes[maxIndex].n.y;
+					depth = reach - maxSeparation;
+					break;
+				}
+				float minDistSq = Float.POSITIVE_INFINITY, cx = 0.0f, cy = 0.0f;
+				Vector2f a = planes[n - 1].v0;
+				for (int k = 0; k < n; k++) {
+					Vector2f v1 = planes[k].v0;
+					float ex = v1.x - a.x, ey = v1.y - a.y;
+					float lengthSq = ex * ex + ey * ey;
+					float u = (lengthSq > 0.0f ? cpfclamp01(((x - a.x) * ex + (y - a.y) * ey) / lengthSq) : 0.0f);
+					float qx = a.x + ex * u, qy = a.y + ey * u;
+					float distSq = (x - qx) * (x - qx) + (y - qy) * (y - qy);
+					if (distSq < minDistSq) {
+						minDistSq = distSq;
+						cx = qx;
+						cy = qy;
+					}
+					a = v1;
+				}
+				if (minDistSq >= reach * reach) {
+					return;
+				}
+				float dist = (float) Math.sqrt(minDistSq);
+				if (dist > 0.0f) {
+					nx = (x - cx) / dist;
+					ny = (y - cy) / dist;
+				} else {
+					nx = planes[maxIndex].n.x;
+					ny = planes[maxIndex].n.y;
+				}
+				depth = reach - dist;
+				break;
+			}
+			default: {
+				point.set(x, y);
+				PointQueryInfo info = shape.pointQuery(point, pointInfo);
+				if (info.distance >= r) {
+					return;
+				}
+				nx = info.gradient.x;
+				ny = info.gradient.y;
+				depth = r - info.distance;
+				break;
+			}
+		}
+
+		float newX = x + nx * depth, newY = y + ny * depth;
+
+		// Friction removes the tangential motion relative to the surface, up to the depth times the coefficient.
+		Body body = shape.body;
+		BodyStore s = body.store;
+		int slot = body.slot;
+		float rx = newX - nx * r - s.px[slot], ry = newY - ny * r - s.py[slot];
+		float dx = newX - sortedPrevious[i * 2] - (s.vx[slot] - s.w[slot] * ry) * dt;
+		float dy = newY - sortedPrevious[i * 2 + 1] - (s.vy[slot] + s.w[slot] * rx) * dt;
+		float normal = dx * nx + dy * ny;
+		float tx = dx - nx * normal, ty = dy - ny * normal;
+		float tangent = (float) Math.sqrt(tx * tx + ty * ty);
+		if (tangent > 0.0f) {
+			float maxFriction = friction * shape.u * depth;
+			float scale = (tangent <= maxFriction ? 1.0f : maxFriction / tangent);
+			newX -= tx * scale;
+			newY -= ty * scale;
+		}
+
+		p[i * 2] = newX;
+		p[i * 2 + 1] = newY;
+
+		// Push the body back with the momentum the particle has gained.
+		if (body.isDynamic() && !body.isSleeping()) {
+			// Body.applyImpulse() inlined, so the collision doesn't allocate.
+			float j = -mass / dt;
+			float jx = (newX - x) * j, jy = (newY - y) * j;
+			s.vx[slot] += jx * s.mInv[slot];
+			s.vy[slot] += jy * s.mInv[slot];
+			s.w[slot] += s.iInv[slot] * (rx * jy - ry * jx);
+		}
+	}
+}
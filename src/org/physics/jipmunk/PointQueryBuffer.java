@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import java.util.Arrays;
+
+/**
+ * A reusable, distance sorted result buffer for {@link Space#pointQueryNearest(Vector2f, float, ShapeFilter, int,
+ * PointQueryBuffer)} and {@link Space#pointQuerySorted(Vector2f, float, ShapeFilter, PointQueryBuffer)}. Results are
+ * kept in primitive arrays which are only grown, never shrunk, so querying with the same buffer over and over does not
+ * create any garbage once it has warmed up.
+ *
+ * @author jobernolte
+ */
+public class PointQueryBuffer {
+	// results, slot i is the i-th result offered, order[] lists the slots sorted by distance after a query
+	Shape[] shapes;
+	float[] distances;
+	float[] pointX, pointY;
+	float[] gradientX, gradientY;
+	int[] order;
+	int count;
+
+	// max-heap of result slots by distance while a query is running
+	private int[] heap;
+	private int limit;
+
+	// min-heap of tree nodes by the distance of their bounding box to the query point
+	@SuppressWarnings("unchecked")
+	BBTree2.Node<Shape>[] nodes = (BBTree2.Node<Shape>[]) new BBTree2.Node<?>[32];
+	float[] nodeDistances = new float[32];
+	int nodeCount;
+
+	// state of the running query
+	private Vector2f point;
+	private float maxDistance;
+	private ShapeFilter filter;
+	private boolean includeSensors;
+	private final PointQueryInfo info = new PointQueryInfo();
+	final SpatialIndexQueryFunc<Shape> queryFunc = (obj, shape, id) -> {
+		offer(shape);
+		return id;
+	};
+	final SpatialIndexIteratorFunc<Shape> iteratorFunc = this::offer;
+
+	public PointQueryBuffer() {
+		this(16);
+	}
+
+	public PointQueryBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be greater than zero");
+		}
+		shapes = new Shape[capacity];
+		distances = new float[capacity];
+		pointX = new float[capacity];
+		pointY = new float[capacity];
+		gradientX = new float[capacity];
+		gradientY = new float[capacity];
+		order = new int[capacity];
+		heap = new int[capacity];
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= shapes.length) {
+			return;
+		}
+		int newCapacity = Math.max(capacity, shapes.length * 2);
+		shapes = Arrays.copyOf(shapes, newCapacity);
+		distances = Arrays.copyOf(distances, newCapacity);
+		pointX = Arrays.copyOf(pointX, newCapacity);
+		pointY = Arrays.copyOf(pointY, newCapacity);
+		gradientX = Arrays.copyOf(gradientX, newCapacity);
+		gradientY = Arrays.copyOf(gradientY, newCapacity);
+		order = Arrays.copyOf(order, newCapacity);
+		heap = Arrays.copyOf(heap, newCapacity);
+	}
+
+	void begin(Vector2f point, float maxDistance, ShapeFilter filter, int limit, boolean includeSensors) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("limit must be greater than zero");
+		}
+		clear();
+		this.point = point;
+		this.maxDistance = maxDistance;
+		this.filter = filter;
+		this.limit = limit;
+		this.includeSensors = includeSensors;
+		if (limit != Integer.MAX_VALUE) {
+			ensureCapacity(limit);
+		}
+	}
+
+	/** Sorts the collected results by distance and releases the references of the query. */
+	int end() {
+		// pop the max-heap from the back, which leaves the slots sorted ascending by distance
+		for (int n = count; n > 0; n--) {
+			order[n - 1] = heap[0];
+			heap[0] = heap[n - 1];
+			siftDown(0, n - 1);
+		}
+		this.point = null;
+		this.filter = null;
+		this.info.shape = null;
+		Arrays.fill(nodes, 0, nodeCount, null);
+		nodeCount = 0;
+		return count;
+	}
+
+	/**
+	 * @return the distance a shape must be closer than to be collected, this is the max. distance of the query or the
+	 * distance of the farthest collected shape once the buffer is full.
+	 */
+	float bound() {
+		return (count == limit) ? distances[heap[0]] : maxDistance;
+	}
+
+	void offer(Shape shape) {
+		if (shape.filter.reject(filter) || (!includeSensors && shape.isSensor())) {
+			return;
+		}
+		PointQueryInfo info = shape.pointQuery(point, this.info);
+		float distance = info.distance;
+		if (!(distance < bound())) {
+			return;
+		}
+
+		boolean full = (count == limit);
+		int slot;
+		if (full) {
+			// replace the farthest result
+			slot = heap[0];
+		} else {
+			ensureCapacity(count + 1);
+			slot = count;
+			heap[count] = slot;
+			count++;
+		}
+		shapes[slot] = shape;
+		distances[slot] = distance;
+		pointX[slot] = info.point.x;
+		pointY[slot] = info.point.y;
+		gradientX[slot] = info.gradient.x;
+		gradientY[slot] = info.gradient.y;
+
+		if (full) {
+			siftDown(0, count);
+		} else {
+			siftUp(count - 1);
+		}
+	}
+
+	private void siftUp(int i) {
+		int slot = heap[i];
+		float d = distances[slot];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (distances[heap[parent]] >= d) {
+				break;
+			}
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = slot;
+	}
+
+	private void siftDown(int i, int n) {
+		int slot = heap[i];
+		float d = distances[slot];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n) {
+				break;
+			}
+			if (child + 1 < n && distances[heap[child + 1]] > distances[heap[child]]) {
+				child++;
+			}
+			if (distances[heap[child]] <= d) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = slot;
+	}
+
+	void pushNode(BBTree2.Node<Shape> node, float distance) {
+		if (nodeCount == nodes.length) {
+			nodes = Arrays.copyOf(nodes, nodeCount * 2);
+			nodeDistances = Arrays.copyOf(nodeDistances, nodeCount * 2);
+		}
+		int i = nodeCount++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (nodeDistances[parent] <= distance) {
+				break;
+			}
+			nodes[i] = nodes[parent];
+			nodeDistances[i] = nodeDistances[parent];
+			i = parent;
+		}
+		nodes[i] = node;
+		nodeDistances[i] = distance;
+	}
+
+	BBTree2.Node<Shape> popNode() {
+		BBTree2.Node<Shape> top = nodes[0];
+		int n = --nodeCount;
+		BBTree2.Node<Shape> node = nodes[n];
+		float distance = nodeDistances[n];
+		nodes[n] = null;
+		if (n > 0) {
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= n) {
+					break;
+				}
+				if (child + 1 < n && nodeDistances[child + 1] < nodeDistances[child]) {
+					child++;
+				}
+				if (nodeDistances[child] >= distance) {
+					break;
+				}
+				nodes[i] = nodes[child];
+				nodeDistances[i] = nodeDistances[child];
+				i = child;
+			}
+			nodes[i] = node;
+			nodeDistances[i] = distance;
+		}
+		return top;
+	}
+
+	/** Removes all results from this buffer while keeping the allocated arrays. */
+	public void clear() {
+		Arrays.fill(shapes, 0, count, null);
+		count = 0;
+	}
+
+	/** @return the number of shapes found by the last query. */
+	public int size() {
+		return count;
+	}
+
+	private int slot(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("index " + index + " out of bounds for size " + count);
+		}
+		return order[index];
+	}
+
+	/** @return the <code>index</code>-th closest shape. */
+	public Shape getShape(int index) {
+		return shapes[slot(index)];
+	}
+
+	/** @return the distance of the <code>index</code>-th closest shape, negative if the point is inside the shape. */
+	public float getDistance(int index) {
+		return distances[slot(index)];
+	}
+
+	public float getPointX(int index) {
+		return pointX[slot(index)];
+	}
+
+	public float getPointY(int index) {
+		return pointY[slot(index)];
+	}
+
+	public float getGradientX(int index) {
+		return gradientX[slot(index)];
+	}
+
+	public float getGradientY(int index) {
+		return gradientY[slot(index)];
+	}
+
+	/** Copies the <code>index</code>-th closest result into <code>out</code>. */
+	public PointQueryInfo getResult(int index, PointQueryInfo out) {
+		int slot = slot(index);
+		if (out == null) {
+			out = new PointQueryInfo();
+		}
+		out.shape = shapes[slot];
+		out.point.set(pointX[slot], pointY[slot]);
+		out.distance = distances[slot];
+		out.gradient.set(gradientX[slot], gradientY[slot]);
+		return out;
+	}
+}
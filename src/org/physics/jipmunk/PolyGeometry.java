@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import java.util.Arrays;
+
+import static org.physics.jipmunk.Util.*;
+
+/**
+ * The immutable body local geometry of a {@link PolyShape}: the convex hull of the vertices with its edge normals,
+ * the radius and the mass properties for a unit mass. A geometry can be shared by any number of shapes, each shape
+ * only keeps the world space planes it updates in {@link PolyShape#cacheData(Transform)}.
+ *
+ * @author jobernolte
+ */
+public final class PolyGeometry {
+	final float radius;
+	/** the local planes, never modified once the geometry is constructed */
+	final SplittingPlane[] planes;
+	/** the moment of inertia for a unit mass around the centroid */
+	final float moment;
+	final Vector2f centroid;
+	final float area;
+
+	public PolyGeometry(float radius, Vector2f... verts) {
+		this(radius, null, verts, 0, verts.length);
+	}
+
+	public PolyGeometry(float radius, Transform transform, Vector2f... verts) {
+		this(radius, transform, verts, 0, verts.length);
+	}
+
+	public PolyGeometry(float radius, Transform transform, Vector2f[] verts, int offset, int count) {
+		this(radius, createPlanes(transform, verts, offset, count));
+	}
+
+	PolyGeometry(float radius, SplittingPlane[] planes) {
+		int count = planes.length;
+		Vector2f[] verts = new Vector2f[count];
+		for (int i = 0; i < count; i++) {
+			verts[i] = planes[i].v0;
+		}
+		// TODO moment is approximate due to radius.
+		this.radius = radius;
+		this.planes = planes;
+		this.centroid = centroidForPoly(verts, 0, count);
+		this.moment = momentForPoly(1.0f, verts, 0, count, cpvneg(centroid), radius);
+		this.area = areaForPoly(verts, 0, count, radius);
+	}
+
+	static SplittingPlane[] createPlanes(Transform transform, Vector2f[] verts, int offset, int count) {
+		Vector2f[] hullVerts = new Vector2f[count];
+		if (transform != null) {
+			for (int i = 0; i < count; i++) {
+				hullVerts[i] = transform.transformPoint(verts[offset + i]);
+			}
+		} else {
+			System.arraycopy(verts, offset, hullVerts, 0, count);
+		}
+
+		count = ConvexHullUtil.convexHull(hullVerts, hullVerts, count, 0.0f).count;
+
+		SplittingPlane[] planes = new SplittingPlane[count];
+		for (int i = 0; i < count; i++) {
+			Vector2f a = hullVerts[(i - 1 + count) % count];
+			Vector2f b = hullVerts[i];
+			planes[i] = new SplittingPlane();
+			planes[i].v0 = new Vector2f(b);
+			planes[i].n = cpvnormalize(cpvrperp(cpvsub(b, a)));
+		}
+		return planes;
+	}
+
+	public static PolyGeometry createBox(float width, float height, float radius) {
+		float hw = width / 2.0f;
+		float hh = height / 2.0f;
+		return createBox(new BB(-hw, -hh, hw, hh), radius);
+	}
+
+	public static PolyGeometry createBox(BB box, float radius) {
+		return new PolyGeometry(radius, cpv(box.r, box.b), cpv(box.r, box.t), cpv(box.l, box.t), cpv(box.l, box.b));
+	}
+
+	/** @return the mass info of a shape with this geometry and the given mass */
+	MassInfo createMassInfo(float mass) {
+		return new MassInfo(mass, moment, centroid, area);
+	}
+
+	public float getRadius() {
+		return radius;
+	}
+
+	public int getNumVertices() {
+		return planes.length;
+	}
+
+	/** @return a copy of the local vertex at the given index */
+	public Vector2f getVertexAt(int index) {
+		return cpv(planes[index].v0);
+	}
+
+	/** @return a copy of the local normal of the edge ending in the vertex at the given index */
+	public Vector2f getNormalAt(int index) {
+		return cpv(planes[index].n);
+	}
+
+	public float getArea() {
+		return area;
+	}
+
+	public Vector2f getCentroid() {
+		return cpv(centroid);
+	}
+
+	/** @return the moment of inertia around the centroid for the given mass */
+	public float getMoment(float mass) {
+		return mass * moment;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof PolyGeometry)) {
+			return false;
+		}
+		PolyGeometry that = (PolyGeometry) o;
+		if (Float.compare(radius, that.radius) != 0 || planes.length != that.planes.length) {
+			return false;
+		}
+		for (int i = 0; i < planes.length; i++) {
+			if (!planes[i].v0.equals(that.planes[i].v0) || !planes[i].n.equals(that.planes[i].n)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		float[] coords = new float[planes.length * 4 + 1];
+		for (int i = 0; i < planes.length; i++) {
+			coords[i * 4] = planes[i].v0.x;
+			coords[i * 4 + 1] = planes[i].v0.y;
+			coords[i * 4 + 2] = planes[i].n.x;
+			coords[i * 4 + 3] = planes[i].n.y;
+		}
+		coords[coords.length - 1] = radius;
+		return Arrays.hashCode(coords);
+	}
+
+	@Override
+	public String toString() {
+		return "PolyGeometry{" +
+				"radius=" + radius +
+				", planes=" + Arrays.toString(planes) +
+				", area=" + area +
+				'}';
+	}
+}
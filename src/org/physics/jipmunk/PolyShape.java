@@ -27,21 +27,15 @@ import java.util.Iterator;
 import static org.physics.jipmunk.Util.*;
 
 /**
+ * A convex polygon with an optional radius. The body local geometry is kept in an immutable {@link PolyGeometry}
+ * which can be shared by any number of shapes, e.g. all the crates of a level, the shape itself only stores the
+ * world space planes.
+ *
  * @author jobernolte
  */
 public class PolyShape extends Shape {
-	float radius;
+	PolyGeometry geometry;
 	SplittingPlane[] planes;
-	SplittingPlane[] origPlanes;
-
-	static MassInfo createMassInfo(float mass, Vector2f[] verts, int offset, int count, float radius) {
-		// TODO moment is approximate due to radius.
-
-		Vector2f centroid = Util.centroidForPoly(verts, offset, count);
-		return new MassInfo(mass, Util.momentForPoly(1.0f, verts, offset, count, cpvneg(centroid), radius), centroid,
-				Util.areaForPoly(verts, offset, count, radius));
-
-	}
 
 	public PolyShape(Body body, float radius, Vector2f... verts) {
 		this(body, radius, null, verts, 0, verts.length);
@@ -56,9 +50,27 @@ public class PolyShape extends Shape {
 	}
 
 	public PolyShape(Body body, float radius, Transform transform, Vector2f[] verts, int offset, int count) {
-		super(body, createMassInfo(0.0f, verts, offset, count, radius));
-		setVertices(verts, offset, count, transform);
-		this.radius = radius;
+		this(body, new PolyGeometry(radius, transform, verts, offset, count));
+	}
+
+	/**
+	 * Creates a polygon sharing the given geometry.
+	 *
+	 * @param body     the body to attach the shape to
+	 * @param geometry the geometry in body local coordinates
+	 */
+	public PolyShape(Body body, PolyGeometry geometry) {
+		super(body, geometry.createMassInfo(0.0f));
+		this.geometry = geometry;
+		this.planes = createPlanes(geometry.planes.length);
+	}
+
+	private static SplittingPlane[] createPlanes(int count) {
+		SplittingPlane[] planes = new SplittingPlane[count];
+		for (int i = 0; i < count; i++) {
+			planes[i] = new SplittingPlane();
+		}
+		return planes;
 	}
 
 	public int getNumVertices() {
@@ -86,39 +98,26 @@ public class PolyShape extends Shape {
 	}
 
 	public void setVertices(Vector2f[] verts, int offset, int count, Transform transform) {
+		setGeometry(new PolyGeometry(geometry.radius, transform, verts, offset, count));
+	}
 
-		Vector2f[] hullVerts = new Vector2f[count];
-		if (transform != null) {
-			for (int i = 0; i < count; i++) {
-				hullVerts[i] = transform.transformPoint(verts[offset + i]);
-			}
-		} else {
-			System.arraycopy(verts, offset, hullVerts, 0, count);
-		}
-
-		/*
-		 * for (int i = 0; i < count; i++) { System.out.format("SetVerts1: i=%d, v=%s\n", i, hullVerts[offset + i]); }
-		 */
-
-		count = ConvexHullUtil.convexHull(hullVerts, hullVerts, count, 0.0f).count;
-
-		this.planes = new SplittingPlane[count];
-		this.origPlanes = new SplittingPlane[count];
-
-		for (int i = 0; i < count; i++) {
-			Vector2f a = hullVerts[(i - 1 + count) % count];
-			Vector2f b = hullVerts[i];
-			Vector2f n = cpvnormalize(cpvrperp(cpvsub(b, a)));
-
-			// System.out.format("SetVerts2: i=%d, b=%s, n=%s\n", i, b, n);
+	/** @return the geometry of the shape, possibly shared with other shapes */
+	public PolyGeometry getGeometry() {
+		return geometry;
+	}
 
-			this.planes[i] = new SplittingPlane();
-			this.origPlanes[i] = new SplittingPlane();
-			this.origPlanes[i].v0 = new Vector2f(b);
-			this.origPlanes[i].n = new Vector2f(n);
+	/**
+	 * Replaces the geometry of the shape. Other shapes sharing the previous geometry are not affected.
+	 *
+	 * @param geometry the new geometry in body local coordinates
+	 */
+	public void setGeometry(PolyGeometry geometry) {
+		this.geometry = geometry;
+		if (this.planes.length != geometry.planes.length) {
+			this.planes = createPlanes(geometry.planes.length);
 		}
 		float mass = this.massInfo.m;
-		this.massInfo = createMassInfo(mass, hullVerts, 0, count, this.radius);
+		this.massInfo = geometry.createMassInfo(mass);
 		if (mass > 0.0f) {
 			body.accumulateMassFromShapes();
 		}
@@ -136,6 +135,7 @@ public class PolyShape extends Shape {
 		float l = Float.POSITIVE_INFINITY, r = Float.NEGATIVE_INFINITY;
 		float b = Float.POSITIVE_INFINITY, t = Float.NEGATIVE_INFINITY;
 
+		SplittingPlane[] origPlanes = this.geometry.planes;
 		for (int i = 0; i < count; i++) {
 			Vector2f v = transform.transformPoint(origPlanes[i].v0);
 			Vector2f n = transform.transformVect(origPlanes[i].n);
@@ -149,7 +149,7 @@ public class PolyShape extends Shape {
 			t = cpfmax(t, v.y);
 		}
 
-		float radius = this.radius;
+		float radius = this.geometry.radius;
 		return (this.bb = new BB(l - radius, b - radius, r + radius, t + radius));
 	}
 
@@ -157,7 +157,7 @@ public class PolyShape extends Shape {
 	protected void segmentQueryImpl(Vector2f a, Vector2f b, float r2, SegmentQueryInfo info) {
 		SplittingPlane[] planes = this.planes;
 		int count = this.planes.length;
-		float r = this.radius;
+		float r = this.geometry.radius;
 		float rsum = r + r2;
 
 		for (int i = 0; i < count; i++) {
@@ -200,7 +200,7 @@ public class PolyShape extends Shape {
 	public PointQueryInfo pointQuery(Vector2f p, PointQueryInfo info) {
 		int count = this.planes.length;
 		SplittingPlane[] planes = this.planes;
-		float r = this.radius;
+		float r = this.geometry.radius;
 
 		Vector2f v0 = planes[count - 1].v0;
 		float minDist = Float.POSITIVE_INFINITY;
@@ -275,6 +275,6 @@ public class PolyShape extends Shape {
 	}
 
 	public float getRadius() {
-		return radius;
+		return geometry.radius;
 	}
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+/**
+ * Thread confined scratch memory for the segment and point queries of chain, grid and compound shapes, which test
+ * every part the query touches. Queries may run on several threads at once, see {@link SegmentQueryBatch}, so the
+ * workspace is kept per thread. The queries don't nest, a compound shape can't contain chains or grids.
+ *
+ * @author jobernolte
+ */
+final class ProxyQueryWorkspace {
+	private static final ThreadLocal<ProxyQueryWorkspace> WORKSPACE = ThreadLocal.withInitial(
+			ProxyQueryWorkspace::new);
+
+	/** End points and normal of the current part, laid out like {@link ChainShape#transformSegment}. */
+	final float[] segment = new float[6];
+	/** The query points in the local space of the shape. */
+	final Vector2f localA = new Vector2f(), localB = new Vector2f();
+	/** The end points and normal of the current part as vectors. */
+	final Vector2f ta = new Vector2f(), tb = new Vector2f(), n = new Vector2f();
+	/** The result of the current part. */
+	final SegmentQueryInfo hit = new SegmentQueryInfo();
+	final PointQueryInfo candidate = new PointQueryInfo();
+
+	static ProxyQueryWorkspace get() {
+		return WORKSPACE.get();
+	}
+
+	/** Loads the end points and normal of {@link #segment}, given in world space, into the vectors. */
+	void loadSegment() {
+		float[] s = segment;
+		ta.set(s[0], s[1]);
+		tb.set(s[2], s[3]);
+		n.set(s[4], s[5]);
+	}
+
+	/** Loads the end points and normal of {@link #segment}, given in the local space of a shape, into the vectors. */
+	void loadSegment(Transform t) {
+		float[] s = segment;
+		transformPoint(t, s[0], s[1], ta);
+		transformPoint(t, s[2], s[3], tb);
+		transformVect(t, s[4], s[5], n);
+	}
+
+	/** Writes the point <code>(x, y)</code> transformed by <code>t</code> to <code>out</code>. */
+	static Vector2f transformPoint(Transform t, float x, float y, Vector2f out) {
+		out.set(t.a * x + t.c * y + t.tx, t.b * x + t.d * y + t.ty);
+		return out;
+	}
+
+	/** Writes the vector <code>(x, y)</code> transformed by <code>t</code> to <code>out</code>. */
+	static Vector2f transformVect(Transform t, float x, float y, Vector2f out) {
+		out.set(t.a * x + t.c * y, t.b * x + t.d * y);
+		return out;
+	}
+}
@@ -0,0 +1,826 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.physics.jipmunk.Util.cpfclamp01;
+import static org.physics.jipmunk.Util.cpfmax;
+import static org.physics.jipmunk.Util.cpfsqrt;
+
+/**
+ * An immutable copy of the collision geometry of a {@link Space} which can be queried from any number of threads
+ * without locking, while the space itself keeps stepping. A snapshot stores the world space geometry, filter and
+ * bounding box of every shape in primitive arrays together with a flattened bounding volume hierarchy over them.
+ * <p/>
+ * Snapshots are created by {@link Space#createQuerySnapshot()}, or published automatically at the end of every step
+ * if enabled with {@link Space#setPublishQuerySnapshots(boolean)}. The queries mirror the ones of {@link Space}. The
+ * {@link Shape} instances handed to the callbacks are the live shapes of the space and must only be used to identify
+ * the hit, their state may be changed by the stepping thread at any time. Chains, grids and compound shapes are stored as
+ * one entry per part, so the queries reporting every hit may report such a shape once for each of its parts.
+ *
+ * @author jobernolte
+ */
+public final class QuerySnapshot {
+
+	private static final int LEAF_SIZE = 4;
+
+	private final int stamp;
+	private final int count;
+	private final Shape[] shapes;
+	private final ShapeType[] types;
+	private final ShapeFilter[] filters;
+	private final boolean[] sensors;
+	private final float[] radii;
+	/** World space geometry: circle {cx, cy}, segment {ax, ay, bx, by, nx, ny}, polygon {vx, vy, nx, ny} per plane. */
+	private final float[] geometry;
+	private final int[] geometryStart;
+	private final int[] geometryCount;
+	/** {l, b, r, t} of every shape. */
+	private final float[] shapeBB;
+
+	/** {l, b, r, t} of every node, nodes are stored in depth first order so the left child of node i is i + 1. */
+	private final float[] nodeBB;
+	/** The right child of every inner node or -1 for leaves. */
+	private final int[] nodeRight;
+	private final int[] nodeStart;
+	private final int[] nodeSize;
+	/** Shape indexes in leaf order, leaf i covers <code>[nodeStart[i], nodeStart[i] + nodeSize[i])</code>. */
+	private final int[] leafShapes;
+	private final int maxDepth;
+
+	QuerySnapshot(Space space, int stamp) {
+		final List<Shape> list = new ArrayList<>(space.dynamicShapes.count() + space.staticShapes.count());
+		space.dynamicShapes.each(list::add);
+		space.staticShapes.each(list::add);
+
+		// Chains, grids and compounds are expanded into one entry per part.
+		final List<Shape> sources = new ArrayList<>(list.size());
+		final List<Shape> owners = new ArrayList<>(list.size());
+		for (Shape shape : list) {
+			if (shape.hasProxies()) {
+				for (Shape part : shape.queryProxies(shape.bb)) {
+					sources.add(part);
+					owners.add(shape);
+				}
+			} else {
+				sources.add(shape);
+				owners.add(shape);
+			}
+		}
+
+		this.stamp = stamp;
+		this.count = sources.size();
+		this.shapes = owners.toArray(new Shape[count]);
+		this.types = new ShapeType[count];
+		this.filters = new ShapeFilter[count];
+		this.sensors = new boolean[count];
+		this.radii = new float[count];
+		this.geometryStart = new int[count];
+		this.geometryCount = new int[count];
+		this.shapeBB = new float[count * 4];
+
+		int size = 0;
+		for (Shape shape : sources) {
+			switch (shape.getType()) {
+				case CIRCLE_SHAPE:
+					size += 2;
+					break;
+				case SEGMENT_SHAPE:
+					size += 6;
+					break;
+				case POLY_SHAPE:
+					size += ((PolyShape) shape).planes.length * 4;
+					break;
+			}
+		}
+		this.geometry = new float[size];
+
+		final float[] cx = new float[count];
+		final float[] cy = new float[count];
+		int offset = 0;
+		for (int i = 0; i < count; i++) {
+			Shape shape = sources.get(i);
+			types[i] = shape.getType();
+			filters[i] = shape.filter;
+			sensors[i] = shape.sensor;
+			geometryStart[i] = offset;
+			switch (types[i]) {
+				case CIRCLE_SHAPE: {
+					CircleShape circle = (CircleShape) shape;
+					radii[i] = circle.radius;
+					geometry[offset++] = circle.tc.x;
+					geometry[offset++] = circle.tc.y;
+					geometryCount[i] = 1;
+					break;
+				}
+				case SEGMENT_SHAPE: {
+					SegmentShape segment = (SegmentShape) shape;
+					radii[i] = segment.radius;
+					geometry[offset++] = segment.ta.x;
+					geometry[offset++] = segment.ta.y;
+					geometry[offset++] = segment.tb.x;
+					geometry[offset++] = segment.tb.y;
+					geometry[offset++] = segment.tn.x;
+					geometry[offset++] = segment.tn.y;
+					geometryCount[i] = 1;
+					break;
+				}
+				case POLY_SHAPE: {
+					PolyShape poly = (PolyShape) shape;
+					radii[i] = poly.geometry.radius;
+					for (SplittingPlane plane : poly.planes) {
+						geometry[offset++] = plane.v0.x;
+						geometry[offset++] = plane.v0.y;
+						geometry[offset++] = plane.n.x;
+						geometry[offset++] = plane.n.y;
+					}
+					geometryCount[i] = poly.planes.length;
+					break;
+				}
+			}
+			BB bb = shape.bb;
+			shapeBB[i * 4] = bb.l;
+			shapeBB[i * 4 + 1] = bb.b;
+			shapeBB[i * 4 + 2] = bb.r;
+			shapeBB[i * 4 + 3] = bb.t;
+			cx[i] = (bb.l + bb.r) * 0.5f;
+			cy[i] = (bb.b + bb.t) * 0.5f;
+		}
+
+		BVHBuilder builder = new BVHBuilder(count, cx, cy);
+		if (count > 0) {
+			builder.build(0, count, 1);
+		}
+		this.nodeBB = builder.nodeBB;
+		this.nodeRight = builder.nodeRight;
+		this.nodeStart = builder.nodeStart;
+		this.nodeSize = builder.nodeSize;
+		this.leafShapes = builder.order;
+		this.maxDepth = builder.maxDepth;
+	}
+
+	/** Builds a median split hierarchy over the shape bounding boxes. */
+	private class BVHBuilder {
+		final float[] cx, cy;
+		final int[] order;
+		final float[] nodeBB;
+		final int[] nodeRight, nodeStart, nodeSize;
+		int nodeCount;
+		int maxDepth;
+
+		BVHBuilder(int count, float[] cx, float[] cy) {
+			int capacity = Math.max(1, 2 * count);
+			this.cx = cx;
+			this.cy = cy;
+			this.order = new int[count];
+			for (int i = 0; i < count; i++) {
+				order[i] = i;
+			}
+			this.nodeBB = new float[capacity * 4];
+			this.nodeRight = new int[capacity];
+			this.nodeStart = new int[capacity];
+			this.nodeSize = new int[capacity];
+		}
+
+		int build(int start, int end, int depth) {
+			int node = nodeCount++;
+			maxDepth = Math.max(maxDepth, depth);
+
+			float l = Float.POSITIVE_INFINITY, b = Float.POSITIVE_INFINITY;
+			float r = Float.NEGATIVE_INFINITY, t = Float.NEGATIVE_INFINITY;
+			float cl = Float.POSITIVE_INFINITY, cb = Float.POSITIVE_INFINITY;
+			float cr = Float.NEGATIVE_INFINITY, ct = Float.NEGATIVE_INFINITY;
+			for (int i = start; i < end; i++) {
+				int shape = order[i];
+				l = Math.min(l, shapeBB[shape * 4]);
+				b = Math.min(b, shapeBB[shape * 4 + 1]);
+				r = Math.max(r, shapeBB[shape * 4 + 2]);
+				t = Math.max(t, shapeBB[shape * 4 + 3]);
+				cl = Math.min(cl, cx[shape]);
+				cb = Math.min(cb, cy[shape]);
+				cr = Math.max(cr, cx[shape]);
+				ct = Math.max(ct, cy[shape]);
+			}
+			nodeBB[node * 4] = l;
+			nodeBB[node * 4 + 1] = b;
+			nodeBB[node * 4 + 2] = r;
+			nodeBB[node * 4 + 3] = t;
+			nodeStart[node] = start;
+			nodeSize[node] = end - start;
+
+			if (end - start <= LEAF_SIZE) {
+				nodeRight[node] = -1;
+			} else {
+				int mid = (start + end) >>> 1;
+				select((cr - cl) >= (ct - cb) ? cx : cy, start, end - 1, mid);
+				build(start, mid, depth + 1);
+				nodeRight[node] = build(mid, end, depth + 1);
+			}
+			return node;
+		}
+
+		/** Partially sorts <code>order[lo..hi]</code> so that the element at <code>k</code> is in its final place. */
+		void select(float[] key, int lo, int hi, int k) {
+			while (lo < hi) {
+				float pivot = key[order[(lo + hi) >>> 1]];
+				int i = lo, j = hi;
+				while (i <= j) {
+					while (key[order[i]] < pivot) i++;
+					while (key[order[j]] > pivot) j--;
+					if (i <= j) {
+						int tmp = order[i];
+						order[i] = order[j];
+						order[j] = tmp;
+						i++;
+						j--;
+					}
+				}
+				if (k <= j) {
+					hi = j;
+				} else if (k >= i) {
+					lo = i;
+				} else {
+					return;
+				}
+			}
+		}
+	}
+
+	/** @return the time stamp of the space when this snapshot was taken. */
+	public int getStamp() {
+		return stamp;
+	}
+
+	/** @return the number of shapes in this snapshot, chains count once per segment. */
+	public int getShapeCount() {
+		return count;
+	}
+
+	private int[] newStack() {
+		return new int[maxDepth + 1];
+	}
+
+	private boolean nodeIntersects(int node, float l, float b, float r, float t) {
+		int i = node * 4;
+		return nodeBB[i] <= r && l <= nodeBB[i + 2] && nodeBB[i + 1] <= t && b <= nodeBB[i + 3];
+	}
+
+	private boolean shapeIntersects(int shape, float l, float b, float r, float t) {
+		int i = shape * 4;
+		return shapeBB[i] <= r && l <= shapeBB[i + 2] && shapeBB[i + 1] <= t && b <= shapeBB[i + 3];
+	}
+
+	/**
+	 * Same as {@link BB#segmentQuery(Vector2f, Vector2f)} for node <code>node</code> expanded by the radius of the
+	 * query segment.
+	 */
+	private float nodeSegmentQuery(int node, float ax, float ay, float bx, float by, float radius) {
+		int i = node * 4;
+		float l = nodeBB[i] - radius, b = nodeBB[i + 1] - radius, r = nodeBB[i + 2] + radius, t = nodeBB[i + 3] + radius;
+
+		float idx = 1.0f / (bx - ax);
+		float tx1 = (l == ax ? Float.NEGATIVE_INFINITY : (l - ax) * idx);
+		float tx2 = (r == ax ? Float.POSITIVE_INFINITY : (r - ax) * idx);
+		float txmin = Math.min(tx1, tx2);
+		float txmax = Math.max(tx1, tx2);
+
+		float idy = 1.0f / (by - ay);
+		float ty1 = (b == ay ? Float.NEGATIVE_INFINITY : (b - ay) * idy);
+		float ty2 = (t == ay ? Float.POSITIVE_INFINITY : (t - ay) * idy);
+		float tymin = Math.min(ty1, ty2);
+		float tymax = Math.max(ty1, ty2);
+
+		if (tymin <= txmax && txmin <= tymax) {
+			float min = Math.min(txmin, tymin);
+			float max = Math.max(txmax, tymax);
+
+			if (0.0f <= max && min <= 1.0f) {
+				return Math.max(min, 0.0f);
+			}
+		}
+
+		return Float.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Query the snapshot at <code>point</code>, see {@link Space#pointQuery(Vector2f, float, ShapeFilter,
+	 * SpacePointQueryFunc)}. Sensor shapes are included.
+	 *
+	 * @param point       the query point
+	 * @param maxDistance the max. distance to query
+	 * @param filter      the filter to use
+	 * @param func        the callback function
+	 */
+	public void pointQuery(Vector2f point, float maxDistance, ShapeFilter filter, SpacePointQueryFunc func) {
+		if (count == 0) {
+			return;
+		}
+		float px = point.x, py = point.y;
+		float radius = cpfmax(maxDistance, 0.0f);
+		float l = px - radius, b = py - radius, r = px + radius, t = py + radius;
+		PointQueryInfo info = new PointQueryInfo();
+
+		int[] stack = newStack();
+		int sp = 0;
+		stack[sp++] = 0;
+		while (sp > 0) {
+			int node = stack[--sp];
+			if (!nodeIntersects(node, l, b, r, t)) {
+				continue;
+			}
+			if (nodeRight[node] != -1) {
+				stack[sp++] = nodeRight[node];
+				stack[sp++] = node + 1;
+				continue;
+			}
+			for (int i = nodeStart[node], end = i + nodeSize[node]; i < end; i++) {
+				int shape = leafShapes[i];
+				if (shapeIntersects(shape, l, b, r, t) && !filters[shape].reject(filter)) {
+					pointQuery(shape, px, py, info);
+					if (info.distance < maxDistance) {
+						func.apply(shapes[shape], info.point, info.distance, info.gradient);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Query the snapshot at <code>point</code> and return the closest shape within <code>maxDistance</code>, see
+	 * {@link Space#pointQueryNearest(Vector2f, float, ShapeFilter, PointQueryInfo)}. Sensor shapes are ignored.
+	 *
+	 * @param point       the query point.
+	 * @param maxDistance the max. distance to query.
+	 * @param filter      the filter to use for the query.
+	 * @param out         if not <code>null</code> use this object as return value, else a new instance will be
+	 *                    created.
+	 * @return a {@link PointQueryInfo} object with information about the closest shape.
+	 */
+	public PointQueryInfo pointQueryNearest(Vector2f point, float maxDistance, ShapeFilter filter, PointQueryInfo out) {
+		if (out == null) {
+			out = new PointQueryInfo();
+		}
+		out.shape = null;
+		out.point.set(0.0f, 0.0f);
+		out.distance = maxDistance;
+		out.gradient.set(0.0f, 0.0f);
+		if (count == 0) {
+			return out;
+		}
+
+		float px = point.x, py = point.y;
+		float radius = cpfmax(maxDistance, 0.0f);
+		float l = px - radius, b = py - radius, r = px + radius, t = py + radius;
+		PointQueryInfo info = new PointQueryInfo();
+
+		int[] stack = newStack();
+		int sp = 0;
+		stack[sp++] = 0;
+		while (sp > 0) {
+			int node = stack[--sp];
+			if (!nodeIntersects(node, l, b, r, t)) {
+				continue;
+			}
+			if (nodeRight[node] != -1) {
+				stack[sp++] = nodeRight[node];
+				stack[sp++] = node + 1;
+				continue;
+			}
+			for (int i = nodeStart[node], end = i + nodeSize[node]; i < end; i++) {
+				int shape = leafShapes[i];
+				if (shapeIntersects(shape, l, b, r, t) && !filters[shape].reject(filter) && !sensors[shape]) {
+					pointQuery(shape, px, py, info);
+					if (info.distance < out.distance) {
+						out.set(info);
+					}
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Query the snapshot along the line segment from <code>start</code> to <code>end</code>, see {@link
+	 * Space#segmentQuery(Vector2f, Vector2f, float, ShapeFilter, SpaceSegmentQueryFunc)}. Sensor shapes are included.
+	 *
+	 * @param start  the start point of the segment.
+	 * @param end    the end point of the segment.
+	 * @param radius the radius of the segment.
+	 * @param filter the filter to use for the query.
+	 * @param func   a {@link SpaceSegmentQueryFunc} callback for each found shape.
+	 */
+	public void segmentQuery(Vector2f start, Vector2f end, float radius, ShapeFilter filter,
+			SpaceSegmentQueryFunc func) {
+		if (count == 0) {
+			return;
+		}
+		float ax = start.x, ay = start.y, bx = end.x, by = end.y;
+		SegmentQueryInfo info = new SegmentQueryInfo();
+		SegmentQueryInfo scratch = new SegmentQueryInfo();
+		PointQueryInfo nearest = new PointQueryInfo();
+
+		int[] stack = newStack();
+		int sp = 0;
+		stack[sp++] = 0;
+		while (sp > 0) {
+			int node = stack[--sp];
+			if (nodeRight[node] != -1) {
+				int left = node + 1, right = nodeRight[node];
+				if (nodeSegmentQuery(right, ax, ay, bx, by, radius) < 1.0f) stack[sp++] = right;
+				if (nodeSegmentQuery(left, ax, ay, bx, by, radius) < 1.0f) stack[sp++] = left;
+				continue;
+			}
+			for (int i = nodeStart[node], e = i + nodeSize[node]; i < e; i++) {
+				int shape = leafShapes[i];
+				if (!filters[shape].reject(filter) &&
+						segmentQuery(shape, ax, ay, bx, by, radius, info, scratch, nearest)) {
+					func.apply(shapes[shape], info.point, info.normal, info.alpha);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Perform a directed line segment query against the snapshot and return the first shape hit, see {@link
+	 * Space#segmentQueryFirst(Vector2f, Vector2f, float, ShapeFilter, SegmentQueryInfo)}. Sensor shapes are ignored.
+	 *
+	 * @param start  the start point of the segment.
+	 * @param end    the end point of the segment.
+	 * @param radius the radius of the segment.
+	 * @param filter the filter to use for the query.
+	 * @param out    a {@link SegmentQueryInfo} taking the result, a new one is created if <code>null</code>.
+	 * @return the query info, {@link SegmentQueryInfo#shape} is <code>null</code> if no shape was hit.
+	 */
+	public SegmentQueryInfo segmentQueryFirst(Vector2f start, Vector2f end, float radius, ShapeFilter filter,
+			SegmentQueryInfo out) {
+		if (out == null) {
+			out = new SegmentQueryInfo();
+		}
+		out.shape = null;
+		out.point.set(end);
+		out.normal.set(0.0f, 0.0f);
+		out.alpha = 1.0f;
+		if (count == 0) {
+			return out;
+		}
+
+		float ax = start.x, ay = start.y, bx = end.x, by = end.y;
+		SegmentQueryInfo info = new SegmentQueryInfo();
+		SegmentQueryInfo scratch = new SegmentQueryInfo();
+		PointQueryInfo nearest = new PointQueryInfo();
+
+		// nodes are visited near to far and skipped once the best hit so far lies in front of them
+		int[] stack = newStack();
+		float[] stackT = new float[stack.length];
+		int sp = 0;
+		stack[sp] = 0;
+		stackT[sp++] = Float.NEGATIVE_INFINITY;
+		while (sp > 0) {
+			int node = stack[--sp];
+			if (stackT[sp] >= out.alpha) {
+				continue;
+			}
+			if (nodeRight[node] != -1) {
+				int left = node + 1, right = nodeRight[node];
+				float t_left = nodeSegmentQuery(left, ax, ay, bx, by, radius);
+				float t_right = nodeSegmentQuery(right, ax, ay, bx, by, radius);
+				if (t_left < t_right) {
+					if (t_right < out.alpha) {
+						stack[sp] = right;
+						stackT[sp++] = t_right;
+					}
+					if (t_left < out.alpha) {
+						stack[sp] = left;
+						stackT[sp++] = t_left;
+					}
+				} else {
+					if (t_left < out.alpha) {
+						stack[sp] = left;
+						stackT[sp++] = t_left;
+					}
+					if (t_right < out.alpha) {
+						stack[sp] = right;
+						stackT[sp++] = t_right;
+					}
+				}
+				continue;
+			}
+			for (int i = nodeStart[node], e = i + nodeSize[node]; i < e; i++) {
+				int shape = leafShapes[i];
+				if (!filters[shape].reject(filter) && !sensors[shape] &&
+						segmentQuery(shape, ax, ay, bx, by, radius, info, scratch, nearest) &&
+						info.alpha < out.alpha) {
+					out.set(info);
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Query the snapshot for all shapes whose bounding box intersects <code>bb</code>, see {@link Space#bbQuery(BB,
+	 * ShapeFilter, SpaceBBQueryFunc)}. Sensor shapes are included.
+	 *
+	 * @param bb     the bounding box to query.
+	 * @param filter the filter to use for the query.
+	 * @param func   a {@link SpaceBBQueryFunc} callback for each found shape.
+	 */
+	public void bbQuery(BB bb, ShapeFilter filter, SpaceBBQueryFunc func) {
+		if (count == 0) {
+			return;
+		}
+		float l = bb.l, b = bb.b, r = bb.r, t = bb.t;
+
+		int[] stack = newStack();
+		int sp = 0;
+		stack[sp++] = 0;
+		while (sp > 0) {
+			int node = stack[--sp];
+			if (!nodeIntersects(node, l, b, r, t)) {
+				continue;
+			}
+			if (nodeRight[node] != -1) {
+				stack[sp++] = nodeRight[node];
+				stack[sp++] = node + 1;
+				continue;
+			}
+			for (int i = nodeStart[node], end = i + nodeSize[node]; i < end; i++) {
+				int shape = leafShapes[i];
+				if (shapeIntersects(shape, l, b, r, t) && !filters[shape].reject(filter)) {
+					func.apply(shapes[shape]);
+				}
+			}
+		}
+	}
+
+	private void pointQuery(int shape, float px, float py, PointQueryInfo info) {
+		float[] g = geometry;
+		int o = geometryStart[shape];
+		float r = radii[shape];
+		info.shape = shapes[shape];
+
+		switch (types[shape]) {
+			case CIRCLE_SHAPE: {
+				float dx = px - g[o], dy = py - g[o + 1];
+				float d = cpfsqrt(dx * dx + dy * dy);
+				float s = r / d;
+				info.point.set(g[o] + dx * s, g[o + 1] + dy * s);
+				info.distance = d - r;
+				if (d > Constants.MAGIC_EPSILON) {
+					info.gradient.set(dx * (1.0f / d), dy * (1.0f / d));
+				} else {
+					info.gradient.set(0.0f, 1.0f);
+				}
+				break;
+			}
+			case SEGMENT_SHAPE: {
+				float ct = closestT(px, py, g[o], g[o + 1], g[o + 2], g[o + 3]);
+				float closestX = g[o + 2] + (g[o] - g[o + 2]) * ct;
+				float closestY = g[o + 3] + (g[o + 1] - g[o + 3]) * ct;
+				float dx = px - closestX, dy = py - closestY;
+				float d = cpfsqrt(dx * dx + dy * dy);
+				if (d != 0) {
+					info.point.set(closestX + dx * (r / d), closestY + dy * (r / d));
+				} else {
+					info.point.set(closestX, closestY);
+				}
+				info.distance = d - r;
+				if (d > Constants.MAGIC_EPSILON) {
+					info.gradient.set(dx * (1.0f / d), dy * (1.0f / d));
+				} else {
+					info.gradient.set(g[o + 4], g[o + 5]);
+				}
+				break;
+			}
+			case POLY_SHAPE: {
+				int count = geometryCount[shape];
+				int last = o + (count - 1) * 4;
+				float v0x = g[last], v0y = g[last + 1];
+				float minDist = Float.POSITIVE_INFINITY;
+				float closestPointX = 0.0f, closestPointY = 0.0f;
+				float closestNormalX = 0.0f, closestNormalY = 0.0f;
+				boolean outside = false;
+
+				for (int i = 0; i < count; i++) {
+					int p = o + i * 4;
+					float v1x = g[p], v1y = g[p + 1];
+					if (g[p + 2] * (px - v1x) + g[p + 3] * (py - v1y) > 0.0f) outside = true;
+
+					float ct = closestT(px, py, v0x, v0y, v1x, v1y);
+					float closestX = v1x + (v0x - v1x) * ct;
+					float closestY = v1y + (v0y - v1y) * ct;
+					float dx = px - closestX, dy = py - closestY;
+					float dist = cpfsqrt(dx * dx + dy * dy);
+					if (dist < minDist) {
+						minDist = dist;
+						closestPointX = closestX;
+						closestPointY = closestY;
+						closestNormalX = g[p + 2];
+						closestNormalY = g[p + 3];
+					}
+
+					v0x = v1x;
+					v0y = v1y;
+				}
+
+				float dist = (outside ? minDist : -minDist);
+				float gx = (px - closestPointX) * (1.0f / dist), gy = (py - closestPointY) * (1.0f / dist);
+				info.point.set(closestPointX + gx * r, closestPointY + gy * r);
+				info.distance = dist - r;
+				if (minDist > Constants.MAGIC_EPSILON) {
+					info.gradient.set(gx, gy);
+				} else {
+					info.gradient.set(closestNormalX, closestNormalY);
+				}
+				break;
+			}
+		}
+	}
+
+	/** Same as {@link Util#closestPointOnSegment(Vector2f, Vector2f, Vector2f)}, returning the factor along b to a. */
+	private static float closestT(float px, float py, float ax, float ay, float bx, float by) {
+		float dx = ax - bx, dy = ay - by;
+		return cpfclamp01((dx * (px - bx) + dy * (py - by)) / (dx * dx + dy * dy));
+	}
+
+	/** Mirrors {@link Shape#segmentQuery(Vector2f, Vector2f, float, SegmentQueryInfo)}. */
+	private boolean segmentQuery(int shape, float ax, float ay, float bx, float by, float r2, SegmentQueryInfo info,
+			SegmentQueryInfo scratch, PointQueryInfo nearest) {
+		info.shape = null;
+		info.point.set(bx, by);
+		info.normal.set(0.0f, 0.0f);
+		info.alpha = 1.0f;
+
+		pointQuery(shape, ax, ay, nearest);
+		if (nearest.distance <= r2) {
+			float nx = ax - nearest.point.x, ny = ay - nearest.point.y;
+			float s = 1.0f / cpfsqrt(nx * nx + ny * ny);
+			info.shape = shapes[shape];
+			info.alpha = 0.0f;
+			info.normal.set(nx * s, ny * s);
+			return true;
+		}
+
+		float[] g = geometry;
+		int o = geometryStart[shape];
+		float r1 = radii[shape];
+		switch (types[shape]) {
+			case CIRCLE_SHAPE:
+				circleSegmentQuery(shape, g[o], g[o + 1], r1, ax, ay, bx, by, r2, info);
+				break;
+			case SEGMENT_SHAPE: {
+				float nx = g[o + 4], ny = g[o + 5];
+				float d = (g[o] - ax) * nx + (g[o + 1] - ay) * ny;
+				float r = r1 + r2;
+
+				float fnx = (d > 0.0f ? -nx : nx), fny = (d > 0.0f ? -ny : ny);
+				float offsetX = fnx * r - ax, offsetY = fny * r - ay;
+
+				// Make the endpoints relative to 'a' and move them by the thickness of the segment.
+				float segAx = g[o] + offsetX, segAy = g[o + 1] + offsetY;
+				float segBx = g[o + 2] + offsetX, segBy = g[o + 3] + offsetY;
+				float deltaX = bx - ax, deltaY = by - ay;
+
+				if ((deltaX * segAy - deltaY * segAx) * (deltaX * segBy - deltaY * segBx) <= 0.0f) {
+					float d_offset = d + (d > 0.0f ? -r : r);
+					float ad = -d_offset;
+					float bd = (deltaX * nx + deltaY * ny) - d_offset;
+
+					if (ad * bd < 0.0f) {
+						float t = ad / (ad - bd);
+						info.shape = shapes[shape];
+						info.point.set(lerp(ax, bx, t) - fnx * r2, lerp(ay, by, t) - fny * r2);
+						info.normal.set(fnx, fny);
+						info.alpha = t;
+					}
+				} else if (r != 0.0f) {
+					scratch.shape = null;
+					scratch.point.set(bx, by);
+					scratch.normal.set(0.0f, 0.0f);
+					scratch.alpha = 1.0f;
+					circleSegmentQuery(shape, g[o], g[o + 1], r1, ax, ay, bx, by, r2, scratch);
+					float alpha1 = scratch.alpha;
+					float px = scratch.point.x, py = scratch.point.y;
+					float qx = scratch.normal.x, qy = scratch.normal.y;
+					Shape hit = scratch.shape;
+
+					scratch.shape = null;
+					scratch.point.set(bx, by);
+					scratch.normal.set(0.0f, 0.0f);
+					scratch.alpha = 1.0f;
+					circleSegmentQuery(shape, g[o + 2], g[o + 3], r1, ax, ay, bx, by, r2, scratch);
+					if (alpha1 < scratch.alpha) {
+						info.shape = hit;
+						info.point.set(px, py);
+						info.normal.set(qx, qy);
+						info.alpha = alpha1;
+					} else {
+						info.set(scratch);
+					}
+				}
+				break;
+			}
+			case POLY_SHAPE: {
+				int count = geometryCount[shape];
+				float rsum = r1 + r2;
+
+				for (int i = 0; i < count; i++) {
+					int p = o + i * 4;
+					float nx = g[p + 2], ny = g[p + 3];
+					float an = ax * nx + ay * ny;
+					float d = an - (g[p] * nx + g[p + 1] * ny) - rsum;
+					if (d < 0.0f) continue;
+
+					float bn = bx * nx + by * ny;
+					float t = d / (an - bn);
+					if (t < 0.0f || 1.0f < t) continue;
+
+					float pointX = lerp(ax, bx, t), pointY = lerp(ay, by, t);
+					float dt = nx * pointY - ny * pointX;
+					int prev = o + ((i - 1 + count) % count) * 4;
+					float dtMin = nx * g[prev + 1] - ny * g[prev];
+					float dtMax = nx * g[p + 1] - ny * g[p];
+
+					if (dtMin <= dt && dt <= dtMax) {
+						info.shape = shapes[shape];
+						info.point.set(pointX - nx * r2, pointY - ny * r2);
+						info.normal.set(nx, ny);
+						info.alpha = t;
+					}
+				}
+
+				// Also check against the beveled vertexes.
+				if (rsum > 0.0f) {
+					scratch.shape = null;
+					scratch.point.set(bx, by);
+					scratch.normal.set(0.0f, 0.0f);
+					for (int i = 0; i < count; i++) {
+						int p = o + i * 4;
+						scratch.alpha = 1.0f;
+						circleSegmentQuery(shape, g[p], g[p + 1], r1, ax, ay, bx, by, r2, scratch);
+						if (scratch.alpha < info.alpha) {
+							info.set(scratch);
+						}
+					}
+				}
+				break;
+			}
+		}
+		return info.shape != null;
+	}
+
+	private static float lerp(float a, float b, float t) {
+		return a * (1.0f - t) + b * t;
+	}
+
+	/** Mirrors {@link CircleShape#circleSegmentQuery}. */
+	private void circleSegmentQuery(int shape, float cx, float cy, float r1, float ax, float ay, float bx, float by,
+			float r2, SegmentQueryInfo info) {
+		float dax = ax - cx, day = ay - cy;
+		float dbx = bx - cx, dby = by - cy;
+		float rsum = r1 + r2;
+
+		float dada = dax * dax + day * day;
+		float dadb = dax * dbx + day * dby;
+		float qa = dada - 2.0f * dadb + (dbx * dbx + dby * dby);
+		float qb = dadb - dada;
+		float det = qb * qb - qa * (dada - rsum * rsum);
+
+		if (det >= 0.0f) {
+			float t = (-qb - cpfsqrt(det)) / (qa);
+			if (0.0f <= t && t <= 1.0f) {
+				float nx = lerp(dax, dbx, t), ny = lerp(day, dby, t);
+				float s = 1.0f / cpfsqrt(nx * nx + ny * ny);
+				nx *= s;
+				ny *= s;
+
+				info.shape = shapes[shape];
+				info.point.set(lerp(ax, bx, t) - nx * r2, lerp(ay, by, t) - ny * r2);
+				info.normal.set(nx, ny);
+				info.alpha = t;
+			}
+		}
+	}
+}
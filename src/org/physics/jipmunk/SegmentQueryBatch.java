@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import java.util.Arrays;
+
+/**
+ * A reusable buffer of line segment queries that are performed in one go by
+ * {@link Space#segmentQueryFirst(SegmentQueryBatch, float)}. The query segments are stored in primitive arrays and
+ * the first hit of every segment is written back into primitive result arrays, so a batch can be filled, queried and
+ * read out every step without creating any garbage.
+ * <p/>
+ * A segment that did not hit anything has a shape id of <code>-1</code>, an alpha of <code>1</code> and its end point
+ * as hit point, matching {@link Space#segmentQueryFirst(Vector2f, Vector2f, float, ShapeFilter, SegmentQueryInfo)}.
+ *
+ * @author jobernolte
+ */
+public class SegmentQueryBatch {
+	float[] startX, startY, endX, endY;
+	ShapeFilter[] filters;
+	int[] shapeIds;
+	float[] alpha;
+	float[] normalX, normalY;
+	float[] pointX, pointY;
+	int count;
+
+	public SegmentQueryBatch() {
+		this(16);
+	}
+
+	public SegmentQueryBatch(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be greater than zero");
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		startX = new float[capacity];
+		startY = new float[capacity];
+		endX = new float[capacity];
+		endY = new float[capacity];
+		filters = new ShapeFilter[capacity];
+		shapeIds = new int[capacity];
+		alpha = new float[capacity];
+		normalX = new float[capacity];
+		normalY = new float[capacity];
+		pointX = new float[capacity];
+		pointY = new float[capacity];
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= startX.length) {
+			return;
+		}
+		int newCapacity = Math.max(capacity, startX.length * 2);
+		startX = Arrays.copyOf(startX, newCapacity);
+		startY = Arrays.copyOf(startY, newCapacity);
+		endX = Arrays.copyOf(endX, newCapacity);
+		endY = Arrays.copyOf(endY, newCapacity);
+		filters = Arrays.copyOf(filters, newCapacity);
+		shapeIds = Arrays.copyOf(shapeIds, newCapacity);
+		alpha = Arrays.copyOf(alpha, newCapacity);
+		normalX = Arrays.copyOf(normalX, newCapacity);
+		normalY = Arrays.copyOf(normalY, newCapacity);
+		pointX = Arrays.copyOf(pointX, newCapacity);
+		pointY = Arrays.copyOf(pointY, newCapacity);
+	}
+
+	/**
+	 * Adds a query segment to this batch.
+	 *
+	 * @param ax     x coordinate of the start point.
+	 * @param ay     y coordinate of the start point.
+	 * @param bx     x coordinate of the end point.
+	 * @param by     y coordinate of the end point.
+	 * @param filter the filter to use for this segment.
+	 * @return the index of the segment within this batch.
+	 */
+	public int add(float ax, float ay, float bx, float by, ShapeFilter filter) {
+		ensureCapacity(count + 1);
+		int index = count++;
+		set(index, ax, ay, bx, by, filter);
+		return index;
+	}
+
+	/**
+	 * Adds a query segment to this batch.
+	 *
+	 * @param start  the start point of the segment.
+	 * @param end    the end point of the segment.
+	 * @param filter the filter to use for this segment.
+	 * @return the index of the segment within this batch.
+	 */
+	public int add(Vector2f start, Vector2f end, ShapeFilter filter) {
+		return add(start.x, start.y, end.x, end.y, filter);
+	}
+
+	/**
+	 * Replaces the query segment at <code>index</code>.
+	 */
+	public void set(int index, float ax, float ay, float bx, float by, ShapeFilter filter) {
+		checkIndex(index);
+		startX[index] = ax;
+		startY[index] = ay;
+		endX[index] = bx;
+		endY[index] = by;
+		filters[index] = filter;
+		shapeIds[index] = -1;
+		alpha[index] = 1.0f;
+		normalX[index] = 0.0f;
+		normalY[index] = 0.0f;
+		pointX[index] = bx;
+		pointY[index] = by;
+	}
+
+	/** Removes all segments from this batch while keeping the allocated buffers. */
+	public void clear() {
+		Arrays.fill(filters, 0, count, null);
+		count = 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("index " + index + " out of bounds for size " + count);
+		}
+	}
+
+	/** @return <code>true</code> if the segment at <code>index</code> hit a shape. */
+	public boolean isHit(int index) {
+		checkIndex(index);
+		return shapeIds[index] != -1;
+	}
+
+	/**
+	 * @return the hash id of the first shape hit by the segment at <code>index</code> or <code>-1</code>.
+	 * @see Space#getShapeForId(int)
+	 */
+	public int getShapeId(int index) {
+		checkIndex(index);
+		return shapeIds[index];
+	}
+
+	/** @return the normalized distance along the segment at <code>index</code> in the range [0, 1]. */
+	public float getAlpha(int index) {
+		checkIndex(index);
+		return alpha[index];
+	}
+
+	public float getNormalX(int index) {
+		checkIndex(index);
+		return normalX[index];
+	}
+
+	public float getNormalY(int index) {
+		checkIndex(index);
+		return normalY[index];
+	}
+
+	public float getPointX(int index) {
+		checkIndex(index);
+		return pointX[index];
+	}
+
+	public float getPointY(int index) {
+		checkIndex(index);
+		return pointY[index];
+	}
+
+	/** Copies the result of the segment at <code>index</code> into <code>out</code>. */
+	public SegmentQueryInfo getResult(int index, Space space, SegmentQueryInfo out) {
+		checkIndex(index);
+		if (out == null) {
+			out = new SegmentQueryInfo();
+		}
+		out.shape = shapeIds[index] == -1 ? null : space.getShapeForId(shapeIds[index]);
+		out.point.set(pointX[index], pointY[index]);
+		out.normal.set(normalX[index], normalY[index]);
+		out.alpha = alpha[index];
+		return out;
+	}
+}
@@ -27,7 +27,7 @@ import static org.physics.jipmunk.Util.*;
 /** @author jobernolte */
 public class SegmentShape extends Shape {
 
-	private Vector2f a, b, n;
+	Vector2f a, b, n;
 	Vector2f ta;
 	Vector2f tb;
 	Vector2f tn;
@@ -132,18 +132,17 @@ public class SegmentShape extends Shape {
 		return (0.0f < t && t < 1.0f);
 	}
 
-	@Override
-	protected void segmentQueryImpl(Vector2f a, Vector2f b, float r2, SegmentQueryInfo info) {
-		Vector2f n = this.tn;
-		float d = cpvdot(cpvsub(this.ta, a), n);
-		float r = this.radius + r2;
+	protected static void segmentSegmentQuery(Shape shape, Vector2f ta, Vector2f tb, Vector2f n, float r1, Vector2f a,
+			Vector2f b, float r2, SegmentQueryInfo info) {
+		float d = cpvdot(cpvsub(ta, a), n);
+		float r = r1 + r2;
 
 		Vector2f flipped_n = (d > 0.0f ? cpvneg(n) : n);
 		Vector2f seg_offset = cpvsub(cpvmult(flipped_n, r), a);
 
 		// Make the endpoints relative to 'a' and move them by the thickness of the segment.
-		Vector2f seg_a = cpvadd(this.ta, seg_offset);
-		Vector2f seg_b = cpvadd(this.tb, seg_offset);
+		Vector2f seg_a = cpvadd(ta, seg_offset);
+		Vector2f seg_b = cpvadd(tb, seg_offset);
 		Vector2f delta = cpvsub(b, a);
 
 		if (cpvcross(delta, seg_a) * cpvcross(delta, seg_b) <= 0.0f) {
@@ -154,7 +153,7 @@ public class SegmentShape extends Shape {
 			if (ad * bd < 0.0f) {
 				float t = ad / (ad - bd);
 
-				info.shape = this;
+				info.shape = shape;
 				info.point.set(cpvsub(cpvlerp(a, b, t), cpvmult(flipped_n, r2)));
 				info.normal.set(flipped_n);
 				info.alpha = t;
@@ -162,8 +161,8 @@ public class SegmentShape extends Shape {
 		} else if (r != 0.0f) {
 			SegmentQueryInfo info1 = new SegmentQueryInfo(null, b, cpvzero(), 1.0f);
 			SegmentQueryInfo info2 = new SegmentQueryInfo(null, b, cpvzero(), 1.0f);
-			CircleShape.circleSegmentQuery(this, this.ta, this.radius, a, b, r2, info1);
-			CircleShape.circleSegmentQuery(this, this.tb, this.radius, a, b, r2, info2);
+			CircleShape.circleSegmentQuery(shape, ta, r1, a, b, r2, info1);
+			CircleShape.circleSegmentQuery(shape, tb, r1, a, b, r2, info2);
 
 			if (info1.alpha < info2.alpha) {
 				info.set(info1);
@@ -174,22 +173,31 @@ public class SegmentShape extends Shape {
 	}
 
 	@Override
-	public PointQueryInfo pointQuery(Vector2f p, PointQueryInfo out) {
-		Vector2f closest = Util.closestPointOnSegment(p, this.ta, this.tb);
+	protected void segmentQueryImpl(Vector2f a, Vector2f b, float r2, SegmentQueryInfo info) {
+		segmentSegmentQuery(this, this.ta, this.tb, this.tn, this.radius, a, b, r2, info);
+	}
+
+	protected static PointQueryInfo segmentPointQuery(Shape shape, Vector2f ta, Vector2f tb, Vector2f n, float r,
+			Vector2f p, PointQueryInfo out) {
+		Vector2f closest = Util.closestPointOnSegment(p, ta, tb);
 
 		Vector2f delta = cpvsub(p, closest);
 		float d = Util.cpvlength(delta);
-		float r = this.radius;
 		Vector2f g = cpvmult(delta, 1.0f / d);
 
 		if (out == null) {
 			out = new PointQueryInfo();
 		}
-		out.set(this, (d != 0 ? cpvadd(closest, cpvmult(delta, r / d)) : closest), d - r,
-				(d > Constants.MAGIC_EPSILON ? g : this.n));
+		out.set(shape, (d != 0 ? cpvadd(closest, cpvmult(delta, r / d)) : closest), d - r,
+				(d > Constants.MAGIC_EPSILON ? g : n));
 		return out;
 	}
 
+	@Override
+	public PointQueryInfo pointQuery(Vector2f p, PointQueryInfo out) {
+		return segmentPointQuery(this, this.ta, this.tb, this.n, this.radius, p, out);
+	}
+
 	public void setEndpoints(final Vector2f a, final Vector2f b) {
 		this.a = Util.cpv(a);
 		this.b = Util.cpv(b);
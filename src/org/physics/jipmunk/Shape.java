@@ -63,6 +63,8 @@ public abstract class Shape {
 	Shape prev;
 	Shape next;
 	Space space;
+	/** The chain, grid or compound shape this shape is a part of. */
+	Shape parent;
 	/**
 	 * User definable data. Generally this points to your the game object class so you can access it when given a Body
 	 * reference in a callback.
@@ -305,6 +307,53 @@ public abstract class Shape {
 
 	protected abstract BB cacheData(Transform transform);
 
+	/** @return the chain, grid or compound shape this shape is a part of, or the shape itself */
+	Shape owner() {
+		return (parent != null ? parent : this);
+	}
+
+	/**
+	 * @return <code>true</code> if collisions with this shape are resolved against the parts returned by
+	 * {@link #queryProxies(BB, Shape[])}
+	 */
+	boolean hasProxies() {
+		return false;
+	}
+
+	/**
+	 * Collects the parts of this shape that overlap <code>bb</code>, updated with the transform of this shape.
+	 *
+	 * @param bb  the bounding box in world coordinates
+	 * @param out the array to take the parts
+	 * @return the number of overlapping parts, if it is larger than the length of <code>out</code> only the first
+	 * parts have been stored
+	 */
+	int queryProxies(BB bb, Shape[] out) {
+		return 0;
+	}
+
+	/** @return the parts of this shape that overlap <code>bb</code> */
+	final Shape[] queryProxies(BB bb) {
+		Shape[] out = new Shape[queryProxies(bb, new Shape[0])];
+		queryProxies(bb, out);
+		return out;
+	}
+
+	/** Takes over the body and the collision properties of the chain or grid <code>owner</code>. */
+	void copyProperties(Shape owner) {
+		body = owner.body;
+		sensor = owner.sensor;
+		e = owner.e;
+		u = owner.u;
+		surfaceV = owner.surfaceV;
+		collisionType = owner.collisionType;
+		filter = owner.filter;
+	}
+
+	/** Revokes the hash ids of the parts of this shape when it is removed from <code>space</code>. */
+	void releaseProxies(Space space) {
+	}
+
 	public BB cacheBB() {
 		return update(body.transform);
 	}
@@ -26,5 +26,8 @@ package org.physics.jipmunk;
 public enum ShapeType {
 	CIRCLE_SHAPE,
 	SEGMENT_SHAPE,
-	POLY_SHAPE
+	POLY_SHAPE,
+	CHAIN_SHAPE,
+	GRID_SHAPE,
+	COMPOUND_SHAPE
 }
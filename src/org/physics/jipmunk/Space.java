@@ -25,6 +25,7 @@ package org.physics.jipmunk;
 import org.physics.jipmunk.impl.Collision;
 
 import java.util.*;
+import java.util.concurrent.Executor;
 
 import static org.physics.jipmunk.Array.cpArrayDeleteObj;
 import static org.physics.jipmunk.Array.cpArrayPush;
@@ -35,6 +36,7 @@ import static org.physics.jipmunk.SpaceComponent.*;
 import static org.physics.jipmunk.SpaceQuery.*;
 import static org.physics.jipmunk.SpatialIndex.*;
 import static org.physics.jipmunk.Util.cpfpow;
+import static org.physics.jipmunk.Util.cpfpowStrict;
 import static org.physics.jipmunk.Util.cpvzero;
 
 /**
@@ -61,6 +63,8 @@ public class Space {
 	private static final CollisionHandler DEFAULT_COLLISION_HANDLER = CollisionHandler.createDefaultHandler();
 	// / Number of iterations to use in the impulse solver to solve contacts.
 	int iterations = 10;
+	/** Solve the normal impulses of two-contact manifolds as a block, see {@link #setBlockSolver(boolean)}. */
+	boolean blockSolver = false;
 	/** Gravity to pass to rigid dynamicBodies when integrating velocity. */
 	Vector2f gravity = Util.cpvzero();
 	// / Damping rate expressed as the fraction of velocity dynamicBodies retain each second.
@@ -88,34 +92,139 @@ public class Space {
 	 * Determines how fast overlapping shapes are pushed apart. Expressed as a fraction of the error remaining after
 	 * each second. Defaults to pow(1.0 - 0.1, 60.0) meaning that Chipmunk fixes 10% of overlap each frame at 60Hz.
 	 */
-	private float collisionBias = (float) Math.pow(1.0 - 0.1, 60);
+	private float collisionBias = (float) StrictMath.pow(1.0 - 0.1, 60);
 	/**
 	 * Number of frames that contact information should persist. Defaults to 3. There is probably never a reason to
 	 * change this value.
 	 */
 	private int collisionPersistence = 3;
-	private int stamp;
-	private float curr_dt;
-	List<Body> dynamicBodies = new LinkedList<>();
-	List<Body> otherBodies = new LinkedList<>();
-	private List<Body> rousedBodies = new LinkedList<>();
-	List<Body> sleepingComponents = new LinkedList<>();
+	private static final IndexedArray.Index<Body> BODY_INDEX = new IndexedArray.Index<Body>() {
+		@Override
+		public int get(Body body) {
+			return body.bodyIndex;
+		}
+
+		@Override
+		public void set(Body body, int index) {
+			body.bodyIndex = index;
+		}
+	};
+	private static final IndexedArray.Index<Body> ROUSED_INDEX = new IndexedArray.Index<Body>() {
+		@Override
+		public int get(Body body) {
+			return body.rousedIndex;
+		}
+
+		@Override
+		public void set(Body body, int index) {
+			body.rousedIndex = index;
+		}
+	};
+	private static final IndexedArray.Index<Body> SLEEPING_INDEX = new IndexedArray.Index<Body>() {
+		@Override
+		public int get(Body body) {
+			return body.sleepingIndex;
+		}
+
+		@Override
+		public void set(Body body, int index) {
+			body.sleepingIndex = index;
+		}
+	};
+	private static final IndexedArray.Index<Constraint> CONSTRAINT_INDEX = new IndexedArray.Index<Constraint>() {
+		@Override
+		public int get(Constraint constraint) {
+			return constraint.spaceIndex;
+		}
+
+		@Override
+		public void set(Constraint constraint, int index) {
+			constraint.spaceIndex = index;
+		}
+	};
+	/**
+	 * Like {@link #BODY_INDEX}, also keeps the {@link #islands} of the bodies and moves the bodies to their slots in
+	 * the {@link #bodyStore} if it is enabled.
+	 */
+	private final IndexedArray.Index<Body> dynamicBodyIndex = new IndexedArray.Index<Body>() {
+		@Override
+		public int get(Body body) {
+			return body.bodyIndex;
+		}
+
+		@Override
+		public void set(Body body, int index) {
+			if (body.bodyIndex < 0 && index >= 0) {
+				islands.add(body);
+			} else if (index < 0) {
+				islands.remove(body);
+			}
+			body.bodyIndex = index;
+			BodyStore store = bodyStore;
+			if (store != null) {
+				if (index >= 0) {
+					store.attach(body, index);
+				} else {
+					BodyStore.detach(body);
+				}
+			}
+		}
+	};
+	int stamp;
+	float curr_dt;
+	IndexedArray<Body> dynamicBodies = new IndexedArray<>(dynamicBodyIndex);
+	IndexedArray<Body> otherBodies = new IndexedArray<>(BODY_INDEX);
+	private IndexedArray<Body> rousedBodies = new IndexedArray<>(ROUSED_INDEX);
+	IndexedArray<Body> sleepingComponents = new IndexedArray<>(SLEEPING_INDEX);
 	SpatialIndex<Shape> staticShapes = new BBTree2<>(Shape::getBB, null);
 	SpatialIndex<Shape> dynamicShapes = new BBTree2<>(Shape::getBB, staticShapes);
-	List<Constraint> constraints = new ArrayList<>();
+	IndexedArray<Constraint> constraints = new IndexedArray<>(CONSTRAINT_INDEX);
 	List<Arbiter> arbiters = new ArrayList<>();
 	// private Map<IdentityMapKey<Shape>, Arbiter> cachedArbiters = new HashMap<>();
-	private LongHashMap<Arbiter> cachedArbiters = new LongHashMap<>();
-	private Pool<Arbiter> pooledArbiters = new Pool<Arbiter>() {
+	LongHashMap<Arbiter> cachedArbiters = new LongHashMap<>();
+	Pool<Arbiter> pooledArbiters = new Pool<Arbiter>() {
 		@Override
 		protected Arbiter create() {
 			return new Arbiter();
 		}
 	};
+	/** Reused for every narrow-phase collision, the arbiters copy the contacts into their own arrays. */
+	private final CollisionInfo collisionInfo = new CollisionInfo();
 	int locked = 0;
 	private boolean useWildcards;
-	private IntHashMap<Shape> shapeIds = new IntHashMap<>();
-	private int lastShapeId = 0;
+	IntHashMap<Shape> shapeIds = new IntHashMap<>();
+	int lastShapeId = 0;
+	int lastBodyId = 0;
+	/** Checksum of the state at the end of the latest step, see {@link #getStateChecksum()}. */
+	private long stateChecksum;
+	/** Sum of the cached hashes of the sleeping components. */
+	private long sleepingChecksum;
+	/** Roots of the components that fell asleep since the latest step, their hashes are cached at its end. */
+	private final List<Body> unhashedComponents = new ArrayList<>();
+	private boolean publishQuerySnapshots;
+	private volatile QuerySnapshot querySnapshot;
+	/** Store holding the state of the awake dynamic bodies, <code>null</code> unless enabled. */
+	private BodyStore bodyStore;
+	/** The constraint batches by constraint class, <code>null</code> unless batches are enabled. */
+	private Map<Class<?>, ConstraintBatch> constraintBatchesByClass;
+	private final List<ConstraintBatch> constraintBatches = new ArrayList<>();
+	private final List<Constraint> unbatchedConstraints = new ArrayList<>();
+	private final List<Constraint> brokenConstraints = new ArrayList<>();
+	private final List<ParticleSystem> particleSystems = new ArrayList<>();
+	private final List<Constraint> brokenConstraintsView = Collections.unmodifiableList(brokenConstraints);
+	/** Scratch buffers for the parts of a chain, grid or compound shape that overlap another shape, one per level. */
+	private final Shape[][] proxies = {new Shape[16], new Shape[16]};
+	/** Collision id of a pair of a part and another shape without an arbiter yet. */
+	private final CollisionID proxyCollisionId = new CollisionID(0);
+	/** Incremented whenever batches are enabled, invalidates the batches cached by the constraints. */
+	int constraintBatchEpoch;
+	boolean deterministic;
+	/** Incremented whenever bodies, shapes or constraints are added or removed. */
+	int structureVersion;
+	final Islands islands = new Islands();
+	final FloodFillStack floodFillStack = new FloodFillStack();
+	/** Pairs of bodies jointed by a constraint that doesn't allow them to collide. */
+	final BodyPairSet noCollidePairs = new BodyPairSet();
 
 	private static class CollisionHandlerMapKey {
 		CollisionType typeA;
@@ -157,7 +266,7 @@ public class Space {
 	private Body staticBody;
 
 	public Space() {
-		BBTree2.cpBBTreeSetVelocityFunc(dynamicShapes, obj -> obj.body.v);
+		BBTree2.cpBBTreeSetVelocityFunc(dynamicShapes, obj -> obj.body.getVelocity());
 		this.staticBody = Body.createStatic();
 	}
 
@@ -179,6 +288,23 @@ public class Space {
 		this.iterations = iterations;
 	}
 
+	/** @return <code>true</code> if the normal impulses of two-contact manifolds are solved as a block */
+	public boolean isBlockSolver() {
+		return blockSolver;
+	}
+
+	/**
+	 * Solve the normal impulses of collisions with two contact points, e.g. a box resting on the ground, together
+	 * instead of one after the other. Each iteration then yields the exact normal impulses of the pair, which lets
+	 * stacks come to rest with noticeably fewer {@link #setIterations(int) iterations}. Manifolds with nearly redundant
+	 * contacts fall back to the sequential solver. Disabled by default.
+	 *
+	 * @param blockSolver <code>true</code> to enable the block solver
+	 */
+	public void setBlockSolver(boolean blockSolver) {
+		this.blockSolver = blockSolver;
+	}
+
 	/** @return the idle speed threshold being used */
 	public float getIdleSpeedThreshold() {
 		return idleSpeedThreshold;
@@ -400,7 +526,7 @@ public class Space {
 		collisionHandlers.remove(key);
 	}
 
-	private void assertSpaceUnlocked() {
+	void assertSpaceUnlocked() {
 		assert locked == 0;
 	}
 
@@ -414,7 +540,7 @@ public class Space {
 
 	}
 
-	private void revokeShapeId(Shape shape) {
+	void revokeShapeId(Shape shape) {
 		shapeIds.remove(shape.getHashId());
 		shape.setHashId(-1);
 	}
@@ -438,6 +564,9 @@ public class Space {
 			throw new IllegalArgumentException(
 					"You have already added this shape to another space. You cannot add it to a second.");
 		}
+		if (shape.parent != null) {
+			throw new IllegalArgumentException("This shape is a part of " + shape.parent + ", add that one instead.");
+		}
 		cpAssertSpaceUnlocked(this);
 
 		boolean isStatic = body.isStatic();
@@ -450,6 +579,7 @@ public class Space {
 		shape.update(body.transform);
 		cpSpatialIndexInsert(isStatic ? this.staticShapes : this.dynamicShapes, shape, shape.getHashId());
 		shape.space = this;
+		structureVersion++;
 
 		return shape;
 	}
@@ -479,6 +609,8 @@ public class Space {
 			otherBodies.add(body);
 		}
 		body.space = this;
+		body.hashId = lastBodyId++;
+		structureVersion++;
 
 		return body;
 	}
@@ -513,6 +645,10 @@ public class Space {
 		constraint.next_b = b.constraintList;
 		b.constraintList = constraint;
 		constraint.space = this;
+		if (!constraint.collideBodies) {
+			noCollidePairs.add(a, b);
+		}
+		structureVersion++;
 
 		return constraint;
 	}
@@ -545,6 +681,8 @@ public class Space {
 		cpSpatialIndexRemove(isStatic ? staticShapes : dynamicShapes, shape, shape.getHashId());
 		shape.space = null;
 		revokeShapeId(shape);
+		shape.releaseProxies(this);
+		structureVersion++;
 	}
 
 	/**
@@ -567,6 +705,7 @@ public class Space {
 		// filterArbiters(body, null);
 		cpArrayDeleteObj(body.isDynamic() ? this.dynamicBodies : this.otherBodies, body);
 		body.space = null;
+		structureVersion++;
 	}
 
 	/**
@@ -585,10 +724,58 @@ public class Space {
 		cpBodyActivate(constraint.a);
 		cpBodyActivate(constraint.b);
 		cpArrayDeleteObj(this.constraints, constraint);
+		islands.unlink(constraint.a, constraint.b);
 
 		cpBodyRemoveConstraint(constraint.a, constraint);
 		cpBodyRemoveConstraint(constraint.b, constraint);
+		if (!constraint.collideBodies) {
+			noCollidePairs.remove(constraint.a, constraint.b);
+		}
 		constraint.space = null;
+		constraint.batch = null;
+		constraint.batchEpoch = 0;
+		constraint.overloadedSteps = 0;
+		structureVersion++;
+	}
+
+	/**
+	 * Adds a particle system to this space. Its particles are stepped after the bodies of the space and collide with
+	 * the shapes of the space.
+	 *
+	 * @param particleSystem the particle system to add
+	 * @return the added particle system
+	 */
+	public ParticleSystem addParticleSystem(ParticleSystem particleSystem) {
+		if (particleSystem.space != null) {
+			throw new IllegalArgumentException("The particle system is already added to a space.");
+		}
+		assertSpaceUnlocked();
+		particleSystems.add(particleSystem);
+		particleSystem.space = this;
+		return particleSystem;
+	}
+
+	public void removeParticleSystem(ParticleSystem particleSystem) {
+		if (particleSystem.space != this) {
+			throw new IllegalArgumentException("The particle system is not part of this space.");
+		}
+		assertSpaceUnlocked();
+		particleSystems.remove(particleSystem);
+		particleSystem.space = null;
+	}
+
+	public List<ParticleSystem> getParticleSystems() {
+		return Collections.unmodifiableList(particleSystems);
+	}
+
+	/**
+	 * Returns the constraints that broke during the last step, see {@link Constraint#setBreakForce(float)}. They have
+	 * already been removed from this space. The list is reused and only valid until the next step.
+	 *
+	 * @return an unmodifiable list of the broken constraints
+	 */
+	public List<Constraint> getBrokenConstraints() {
+		return brokenConstraintsView;
 	}
 
 	/**
@@ -664,7 +851,7 @@ public class Space {
 				func.visit(body);
 			}
 			for (Body root : sleepingComponents) {
-				for (Body body : root.components()) {
+				for (Body body = root; body != null; body = body.sleeping.next) {
 					func.visit(body);
 				}
 			}
@@ -727,9 +914,9 @@ public class Space {
 		Shape shape = context.shape;
 		Body body = context.body;
 
-		// Match on the filter shape, or if it's NULL the filter body
-		if ((body == arb.body_a && (shape == arb.a || shape == null)) || (body == arb.body_b && (shape == arb.b
-				|| shape == null))) {
+		// Match on the filter shape (or the owner of a segment proxy), or if it's NULL the filter body
+		if ((body == arb.body_a && (shape == arb.a || shape == arb.a.owner() || shape == null)) || (body == arb.body_b
+				&& (shape == arb.b || shape == arb.b.owner() || shape == null))) {
 			// Call separate when removing shapes.
 			if (shape != null && arb.state != ArbiterState.CACHED) {
 				arb.state = ArbiterState.INVALIDATED;
@@ -747,7 +934,13 @@ public class Space {
 		return true;
 	}
 
-	private static long cachedArbitersHashKey(Shape a, Shape b) {
+	/** Orders the arbiters by the hash ids of their shapes in deterministic mode. */
+	private static final Comparator<Arbiter> ARBITER_ORDER = (x, y) -> {
+		int cmp = Integer.compare(x.a.getHashId(), y.a.getHashId());
+		return (cmp != 0) ? cmp : Integer.compare(x.b.getHashId(), y.b.getHashId());
+	};
+
+	static long cachedArbitersHashKey(Shape a, Shape b) {
 		return (((long) a.getHashId()) << 32L) | ((long) b.getHashId());
 	}
 
@@ -757,6 +950,21 @@ public class Space {
 		arbiters.remove(arb);
 	}
 
+	/** Drops the arbiters and the hash id of a segment proxy that is no longer part of its chain or grid. */
+	void releaseProxy(Shape proxy) {
+		cpAssertSpaceUnlocked(this);
+		Body body = proxy.body;
+		if (cpBodyIsStatic(body)) {
+			cpBodyActivateStatic(body, proxy);
+		} else {
+			cpBodyActivate(body);
+		}
+		filterArbiters(body, proxy);
+		if (proxy.getHashId() >= 0) {
+			revokeShapeId(proxy);
+		}
+	}
+
 	void filterArbiters(Body body, Shape filter) {
 		final ArbiterFilterContext context = new ArbiterFilterContext(this, body, filter);
 		cpHashSetFilter(cachedArbiters, value -> cachedArbitersFilter(value, context));
@@ -769,38 +977,26 @@ public class Space {
 
 		if (this.locked != 0) {
 			// cpSpaceActivateBody() is called again once the space is unlocked
-			if (!this.rousedBodies.contains(body)) {
-				cpArrayPush(this.rousedBodies, body);
-			}
+			cpArrayPush(this.rousedBodies, body);
 		} else {
 			if (body.sleeping.root != null || body.sleeping.next != null) {
 				throw new IllegalStateException("Internal error: Activating body non-NULL node pointers.");
 			}
 			cpArrayPush(this.dynamicBodies, body);
 
-			for (Shape shape : body.shapes()) {
+			for (Shape shape = body.shapeList; shape != null; shape = shape.next) {
 				cpSpatialIndexRemove(this.staticShapes, shape, shape.getHashId());
 				cpSpatialIndexInsert(this.dynamicShapes, shape, shape.getHashId());
 			}
 
-			for (Arbiter arb : body.arbiters()) {
-				Body bodyA = arb.getBodyA();
+			for (Arbiter arb = body.arbiterList; arb != null; arb = Arbiter.arbiterNext(arb, body)) {
+				Body bodyA = arb.body_a;
 
 				// Arbiters are shared between two bodies that are always woken up together.
 				// You only want to restore the arbiter once, so bodyA is arbitrarily chosen to own the arbiter.
 				// The edge case is when static bodies are involved as the static bodies never actually sleep.
 				// If the static body is bodyB then all is good. If the static body is bodyA, that can easily be checked.
 				if (body == bodyA || cpBodyIsStatic(bodyA)) {
-					/*
-					int numContacts = arb.getCount();
-					List<Contact> contacts = arb.getContacts();
-
-					// Restore contact values back to the space's contact buffer memory
-					arb -> contacts = cpContactBufferGetArray(space);
-					memcpy(arb -> contacts, contacts, numContacts * sizeof(struct cpContact));
-					cpSpacePushContacts(space, numContacts);
-					*/
-
 					// Reinsert the arbiter into the arbiter cache
 					Shape a = arb.getShapeA(), b = arb.getShapeB();
 					this.cachedArbiters.put(cachedArbitersHashKey(a, b), arb);
@@ -808,13 +1004,12 @@ public class Space {
 					// Update the arbiter's state
 					arb.stamp = this.stamp;
 					cpArrayPush(this.arbiters, arb);
-
-					// cpfree(contacts);
 				}
 			}
 
-			for (Constraint constraint : body.constraints()) {
-				Body bodyA = constraint.getBodyA();
+			for (Constraint constraint = body.constraintList; constraint != null;
+				 constraint = cpConstraintNext(constraint, body)) {
+				Body bodyA = constraint.a;
 				if (body == bodyA || cpBodyIsStatic(bodyA)) {
 					cpArrayPush(this.constraints, constraint);
 				}
@@ -830,42 +1025,28 @@ public class Space {
 		cpArrayDeleteObj(this.dynamicBodies, body);
 
 		//CP_BODY_FOREACH_SHAPE(body, shape){
-		for (Shape shape : body.shapes()) {
+		for (Shape shape = body.shapeList; shape != null; shape = shape.next) {
 			cpSpatialIndexRemove(this.dynamicShapes, shape, shape.getHashId());
 			cpSpatialIndexInsert(this.staticShapes, shape, shape.getHashId());
 		}
 
 		//CP_BODY_FOREACH_ARBITER(body, arb){
-		for (Arbiter arb : body.arbiters()) {
+		for (Arbiter arb = body.arbiterList; arb != null; arb = Arbiter.arbiterNext(arb, body)) {
 			Body bodyA = arb.body_a;
 			if (body == bodyA || cpBodyIsStatic(bodyA)) {
+				// The arbiter owns its contacts, so they stay valid while the body sleeps.
 				uncacheArbiter(arb);
-
-				// Save contact data to a new block of memory so they won'alpha time out
-				/*TODO size_t bytes = arb.numContacts*sizeof(cpContact);
-								cpContact *contacts = (cpContact *)cpcalloc(1, bytes);
-								memcpy(contacts, arb.contacts, bytes);
-								arb.contacts = contacts;*/
 			}
 		}
 
-		for (Constraint constraint : body.constraints()) {
+		for (Constraint constraint = body.constraintList; constraint != null;
+			 constraint = cpConstraintNext(constraint, body)) {
 			Body bodyA = constraint.a;
 			if (body == bodyA || cpBodyIsStatic(bodyA))
 				cpArrayDeleteObj(this.constraints, constraint);
 		}
 	}
 
-	static boolean queryRejectConstraint(Body a, Body b) {
-		for (Constraint constraint : a.constraints()) {
-			if (!constraint.collideBodies && ((constraint.a == a && constraint.b == b) || (constraint.a == b
-					&& constraint.b == a)))
-				return true;
-		}
-
-		return false;
-	}
-
 	private boolean queryReject(Shape a, Shape b) {
 		return (
 				// BBoxes must overlap
@@ -875,7 +1056,7 @@ public class Space {
 						// Don't collide shapes that are filtered.
 						|| a.filter.reject(b.filter)
 						// Don't collide bodies if they have a constraint with collideBodies == cpFalse.
-						|| queryRejectConstraint(a.body, b.body));
+						|| noCollidePairs.contains(a.body, b.body));
 	}
 
 	// Callback from the spatial hash.
@@ -885,13 +1066,75 @@ public class Space {
 			return id;
 		}
 
+		if (a.hasProxies() || b.hasProxies()) {
+			collideProxies(a, b, 0);
+			return id;
+		}
+		return collidePair(a, b, id);
+	}
+
+	/** Collides the parts of chain, grid or compound shapes that overlap the other shape. */
+	private void collideProxies(Shape a, Shape b, int level) {
+		Shape container = (a.hasProxies() ? a : b);
+		Shape other = (container == a ? b : a);
+
+		Shape[] buffer = proxies[level];
+		int count = container.queryProxies(other.bb, buffer);
+		if (count > buffer.length) {
+			buffer = proxies[level] = new Shape[Math.max(count, buffer.length * 2)];
+			count = container.queryProxies(other.bb, buffer);
+		}
+		for (int i = 0; i < count; i++) {
+			Shape proxy = buffer[i];
+			buffer[i] = null;
+			if (!proxy.bb.intersects(other.bb) || proxy.filter.reject(other.filter)) {
+				continue;
+			}
+			if (proxy.getHashId() < 0) {
+				assignShapeId(proxy);
+			}
+			if (other.hasProxies()) {
+				// Both shapes are made of parts.
+				collideProxies(proxy, other, level + 1);
+			} else if (container == a) {
+				collidePair(proxy, other, proxyCollisionId(proxy, other));
+			} else {
+				collidePair(other, proxy, proxyCollisionId(other, proxy));
+			}
+		}
+	}
+
+	/** Returns the collision id kept by the arbiter of a part and another shape, see {@link Arbiter#proxyId}. */
+	private CollisionID proxyCollisionId(Shape a, Shape b) {
+		// Order the shapes like collidePair() and the narrow-phase do to find the arbiter.
+		int order = a.getType().compareTo(b.getType());
+		if (order > 0 || (order == 0 && deterministic && a.getHashId() > b.getHashId())) {
+			Shape tmp = a;
+			a = b;
+			b = tmp;
+		}
+		Arbiter arb = cachedArbiters.get(cachedArbitersHashKey(a, b));
+		if (arb != null) {
+			return arb.proxyId;
+		}
+		proxyCollisionId.setValue(0);
+		return proxyCollisionId;
+	}
+
+	private CollisionID collidePair(Shape a, Shape b, CollisionID id) {
+		// The broadphase reports pairs in either order, order them by their hash ids in deterministic mode.
+		if (deterministic && a.getHashId() > b.getHashId()) {
+			Shape tmp = a;
+			a = b;
+			b = tmp;
+		}
+
 		// Narrow-phase collision detection.
-		CollisionInfo info = Collision.collide(a, b, id);
+		CollisionInfo info = Collision.collide(a, b, id, this.collisionInfo);
 
 		if (info.isEmpty()) {
 			return info.getId(); // Shapes are not colliding.
 		}
-		//cpSpacePushContacts(space, info.count);
 
 		// Get an arbiter from this.arbiterSet for the two shapes.
 		// This is where the persistant contact magic comes from.
@@ -900,6 +1143,7 @@ public class Space {
 		if (arb == null) {
 			arb = pooledArbiters.alloc();
 			arb.init(a, b);
+			arb.proxyId.setValue(info.getId().getValue());
 			cachedArbiters.put(arbHashID, arb);
 		}
 
@@ -926,9 +1170,7 @@ public class Space {
 						!(a.body.m == Float.POSITIVE_INFINITY && b.body.m == Float.POSITIVE_INFINITY)) {
 			cpArrayPush(this.arbiters, arb);
 		} else {
-			// cpSpacePopContacts(space, info.count);
-
-			arb.contacts = null;
+			arb.count = 0;
 
 			// Normally arbiters are set as used after calling the post-solve callback.
 			// However, post-solve() callbacks are not called for sensors or arbiters rejected from pre-solve.
@@ -964,7 +1206,7 @@ public class Space {
 		}
 
 		if (ticks >= this.collisionPersistence) {
-			arb.contacts = null;
+			arb.count = 0;
 
 			// cpArrayPush(pooledArbiters, arb);
 			pooledArbiters.free(arb);
@@ -997,6 +1239,7 @@ public class Space {
 
 		float prev_dt = this.curr_dt;
 		this.curr_dt = dt;
+		boolean strict = this.deterministic;
 
 		List<Body> bodies = this.dynamicBodies;
 		List<Constraint> constraints = this.constraints;
@@ -1016,17 +1259,25 @@ public class Space {
 		cpSpaceLock(this);
 		{
 			// Integrate positions
-			for (Body body : bodies) {
-				body.positionFunc.apply(body, dt);
+			if (bodyStore != null) {
+				bodyStore.updatePosition(bodies.size(), dt, strict);
+			} else {
+				for (Body body : bodies) {
+					body.positionFunc.apply(body, dt);
+				}
 			}
 
 			// Find colliding pairs.
-			// TODO cpSpacePushFreshContactBuffer(space);
 			this.dynamicShapes.each(Space::shapeUpdateFunc);
 			this.dynamicShapes.reindexQuery(this::collideShapes);
 		}
 		cpSpaceUnlock(this, false);
 
+		// Thread the arbiters into the contact graph in a canonical order.
+		if (strict) {
+			arbiters.sort(ARBITER_ORDER);
+		}
+
 		// Rebuild the contact graph (and detect sleeping components if sleeping is enabled)
 		cpSpaceProcessComponents(this, dt);
 
@@ -1035,13 +1286,26 @@ public class Space {
 			// Clear out old cached arbiters and call separate callbacks
 			cpHashSetFilter(this.cachedArbiters, this::arbiterSetFilter);
 
+			// Waking components may have appended arbiters, restore the canonical order for the solver.
+			if (strict) {
+				arbiters.sort(ARBITER_ORDER);
+			}
+
 			// Prestep the arbiters and constraints.
 			float slop = this.collisionSlop;
-			float biasCoef = 1.0f - cpfpow(this.collisionBias, dt);
+			float biasCoef = 1.0f - (strict ? cpfpowStrict(this.collisionBias, dt) : cpfpow(this.collisionBias, dt));
 			for (Arbiter arb : arbiters) {
-				arb.preStep(dt, slop, biasCoef);
+				arb.preStep(dt, slop, biasCoef, blockSolver);
 			}
 
+			List<Constraint> unbatched = constraints;
+			if (constraintBatchesByClass != null) {
+				unbatched = unbatchedConstraints;
+				unbatched.clear();
+				for (ConstraintBatch batch : constraintBatches) {
+					batch.clear();
+				}
+			}
 			for (Constraint constraint : constraints) {
 
 				ConstraintPreSolveFunc preSolve = constraint.preSolveFunc;
@@ -1049,14 +1313,31 @@ public class Space {
 					preSolve.apply(constraint, this);
 				}
 
+				if (unbatched != constraints) {
+					ConstraintBatch batch = constraintBatch(constraint);
+					if (batch != null) {
+						batch.add(constraint);
+						continue;
+					}
+					unbatched.add(constraint);
+				}
 				constraint.preStep(dt);
 			}
+			for (ConstraintBatch batch : constraintBatches) {
+				if (batch.count > 0) {
+					batch.preStep(dt);
+				}
+			}
 
 			// Integrate velocities.
-			float damping = cpfpow(this.damping, dt);
+			float damping = strict ? cpfpowStrict(this.damping, dt) : cpfpow(this.damping, dt);
 			Vector2f gravity = this.gravity;
-			for (Body body : bodies) {
-				body.velocityFunc.apply(body, gravity, damping, dt);
+			if (bodyStore != null) {
+				bodyStore.updateVelocity(bodies.size(), gravity, damping, dt);
+			} else {
+				for (Body body : bodies) {
+					body.velocityFunc.apply(body, gravity, damping, dt);
+				}
 			}
 
 			// Apply cached impulses
@@ -1065,9 +1346,14 @@ public class Space {
 				arb.applyCachedImpulse(dt_coef);
 			}
 
-			for (Constraint constraint : constraints) {
+			for (Constraint constraint : unbatched) {
 				constraint.applyCachedImpulse(dt_coef);
 			}
+			for (ConstraintBatch batch : constraintBatches) {
+				if (batch.count > 0) {
+					batch.applyCachedImpulse(dt_coef);
+				}
+			}
 
 			// Run the impulse solver.
 			for (int i = 0; i < this.iterations; i++) {
@@ -1075,17 +1361,40 @@ public class Space {
 					arb.applyImpulse();
 				}
 
-				for (Constraint constraint : constraints) {
+				for (Constraint constraint : unbatched) {
 					constraint.applyImpulse(dt);
 				}
+				for (ConstraintBatch batch : constraintBatches) {
+					if (batch.count > 0) {
+						batch.applyImpulse(dt);
+					}
+				}
+			}
+			for (ConstraintBatch batch : constraintBatches) {
+				if (batch.count > 0) {
+					batch.finish();
+					batch.clear();
+				}
 			}
 
-			// Run the constraint post-solve callbacks
+			// Run the constraint post-solve callbacks and find the broken constraints
+			brokenConstraints.clear();
 			for (Constraint constraint : constraints) {
 				ConstraintPostSolveFunc postSolve = constraint.postSolveFunc;
 				if (postSolve != null) {
 					postSolve.apply(constraint, this);
 				}
+
+				float breakForce = constraint.breakForce;
+				if (breakForce != Float.POSITIVE_INFINITY) {
+					if (constraint.getImpulse() > breakForce * dt) {
+						if (++constraint.overloadedSteps >= constraint.breakSteps) {
+							brokenConstraints.add(constraint);
+						}
+					} else {
+						constraint.overloadedSteps = 0;
+					}
+				}
 			}
 
 			// run the post-solve callbacks
@@ -1093,8 +1402,27 @@ public class Space {
 				CollisionHandler handler = arb.handler;
 				handler.postSolveFunc.apply(arb, this);
 			}
+
+			// Step the particles against the solved bodies.
+			for (int i = 0, n = particleSystems.size(); i < n; i++) {
+				particleSystems.get(i).step(dt, gravity, damping);
+			}
 		}
 		cpSpaceUnlock(this, true);
+
+		// Remove the broken constraints unless a post-step callback has already done so.
+		for (int i = 0, n = brokenConstraints.size(); i < n; i++) {
+			Constraint constraint = brokenConstraints.get(i);
+			if (constraint.space == this) {
+				removeConstraint(constraint);
+			}
+		}
+
+		updateStateChecksum();
+
+		if (publishQuerySnapshots) {
+			this.querySnapshot = new QuerySnapshot(this, this.stamp);
+		}
 	}
 
 	static void cpSpaceLock(Space space) {
@@ -1188,6 +1516,36 @@ public class Space {
 		return cpSpaceSegmentQueryFirst(this, start, end, radius, filter, out);
 	}
 
+	/**
+	 * Perform all directed line segment queries of <code>batch</code> against the space and store the first shape hit
+	 * by each of them in the result arrays of the batch. Behaves like calling
+	 * {@link #segmentQueryFirst(Vector2f, Vector2f, float, ShapeFilter, SegmentQueryInfo)} for every segment, but walks
+	 * the spatial indexes without allocating per segment.
+	 *
+	 * @param batch  the segments to query, also taking the results.
+	 * @param radius the radius of the query segments.
+	 */
+	public void segmentQueryFirst(SegmentQueryBatch batch, float radius) {
+		cpSpaceSegmentQueryFirstBatch(this, batch, radius, null, 1);
+	}
+
+	/**
+	 * Like {@link #segmentQueryFirst(SegmentQueryBatch, float)}, but splits the batch into up to
+	 * <code>parallelism</code> chunks which are processed concurrently on <code>executor</code> and the calling thread.
+	 * The call returns once all chunks are done, also if a chunk fails or the calling thread is interrupted, in which
+	 * case the interrupt flag is set again. Chunks rejected by the executor run on the calling thread. The space must
+	 * not be modified from another thread meanwhile.
+	 *
+	 * @param batch       the segments to query, also taking the results.
+	 * @param radius      the radius of the query segments.
+	 * @param executor    the executor running all but the first chunk.
+	 * @param parallelism the maximum number of chunks.
+	 */
+	public void segmentQueryFirst(SegmentQueryBatch batch, float radius, Executor executor,
+			int parallelism) {
+		cpSpaceSegmentQueryFirstBatch(this, batch, radius, executor, parallelism);
+	}
+
 	/**
 	 * Query this space along the line segment from <code>start</code> to <code>end</code> filtering out matches with
 	 * the given <code>layers</code> and <code>group</code>. <code>func</code> is called with the normalized distance
@@ -1218,6 +1576,37 @@ public class Space {
 		return cpSpacePointQueryNearest(this, point, maxDistance, filter, out);
 	}
 
+	/**
+	 * Query this space at <code>point</code> for the <code>k</code> closest shapes within <code>maxDistance</code>
+	 * units of distance. The results are stored in <code>out</code> sorted by ascending distance. Sensor shapes are
+	 * ignored.
+	 *
+	 * @param point       the query point.
+	 * @param maxDistance the max. distance to query, may be {@link Float#POSITIVE_INFINITY}.
+	 * @param filter      the filter to use for the query.
+	 * @param k           the max. number of shapes to return.
+	 * @param out         the buffer taking the results.
+	 * @return the number of shapes found.
+	 */
+	public int pointQueryNearest(Vector2f point, float maxDistance, ShapeFilter filter, int k, PointQueryBuffer out) {
+		return cpSpacePointQueryNearest(this, point, maxDistance, filter, k, false, out);
+	}
+
+	/**
+	 * Query this space at <code>point</code> for all shapes within <code>maxDistance</code> units of distance, like
+	 * {@link #pointQuery(Vector2f, float, ShapeFilter, SpacePointQueryFunc)}, but store them in <code>out</code>
+	 * sorted by ascending distance. Sensor shapes are included.
+	 *
+	 * @param point       the query point.
+	 * @param maxDistance the max. distance to query.
+	 * @param filter      the filter to use for the query.
+	 * @param out         the buffer taking the results.
+	 * @return the number of shapes found.
+	 */
+	public int pointQuerySorted(Vector2f point, float maxDistance, ShapeFilter filter, PointQueryBuffer out) {
+		return cpSpacePointQueryNearest(this, point, maxDistance, filter, Integer.MAX_VALUE, true, out);
+	}
+
 	public void bbQuery(BB bb, ShapeFilter filter, SpaceBBQueryFunc func) {
 		cpSpaceBBQuery(this, bb, filter, func);
 	}
@@ -1226,6 +1615,256 @@ public class Space {
 		return cpSpaceShapeQuery(this, shape, func);
 	}
 
+	/**
+	 * Sweep <code>shape</code> from its current position along <code>translation</code> and return the first shape of
+	 * this space it hits. Like {@link #shapeQuery(Shape, SpaceShapeQueryFunc)}, the shape does not need to be added to
+	 * the space and is filtered against the other shapes by its own {@link ShapeFilter}. Sensor shapes are ignored.
+	 * The shape is only translated, a rotation of its body along the way is not taken into account. Chain, grid and
+	 * compound shapes are swept part by part.
+	 * <p/>
+	 * On a hit <code>out</code> takes the shape hit, the fraction of <code>translation</code> at the time of impact,
+	 * the surface normal of the shape hit and the contact point on its surface. Shapes overlapping at the start are hit
+	 * at fraction <code>0</code>. If nothing is hit, {@link SegmentQueryInfo#shape} is <code>null</code> and the
+	 * fraction is <code>1</code>.
+	 *
+	 * @param shape       the shape to sweep.
+	 * @param translation the translation of the sweep.
+	 * @param out         a {@link SegmentQueryInfo} taking the result, a new one is created if <code>null</code>.
+	 * @return the query info.
+	 */
+	public SegmentQueryInfo shapeCastFirst(Shape shape, Vector2f translation, SegmentQueryInfo out) {
+		if (out == null) {
+			out = new SegmentQueryInfo();
+		}
+		return cpSpaceShapeCast(this, shape, translation, out);
+	}
+
+	/**
+	 * Creates an immutable {@link QuerySnapshot} of the current collision geometry of this space. The snapshot can be
+	 * queried from any thread while this space keeps being stepped.
+	 *
+	 * @return a new snapshot of this space.
+	 */
+	public QuerySnapshot createQuerySnapshot() {
+		return new QuerySnapshot(this, this.stamp);
+	}
+
+	public boolean isPublishQuerySnapshots() {
+		return publishQuerySnapshots;
+	}
+
+	/**
+	 * If enabled, a new {@link QuerySnapshot} is created at the end of every call to {@link #step(float)} and published
+	 * through {@link #getQuerySnapshot()}. Disabling it drops the last published snapshot.
+	 *
+	 * @param publishQuerySnapshots <code>true</code> to publish a snapshot after every step.
+	 */
+	public void setPublishQuerySnapshots(boolean publishQuerySnapshots) {
+		this.publishQuerySnapshots = publishQuerySnapshots;
+		if (!publishQuerySnapshots) {
+			this.querySnapshot = null;
+		}
+	}
+
+	/**
+	 * Returns the snapshot published at the end of the latest step. May be called from any thread.
+	 *
+	 * @return the latest published snapshot or <code>null</code> if none has been published yet.
+	 * @see #setPublishQuerySnapshots(boolean)
+	 */
+	public QuerySnapshot getQuerySnapshot() {
+		return querySnapshot;
+	}
+
+	public boolean isUseBodyStore() {
+		return bodyStore != null;
+	}
+
+	/**
+	 * If enabled, the state of the awake dynamic bodies is kept in primitive arrays shared by the space instead of
+	 * per body. The bodies using the default velocity and position functions are integrated in tight loops over these
+	 * arrays, bodies with custom integration functions still have them called. The results are identical.
+	 *
+	 * @param useBodyStore <code>true</code> to keep the body state in an array based store.
+	 */
+	public void setUseBodyStore(boolean useBodyStore) {
+		cpAssertSpaceUnlocked(this);
+		if (useBodyStore == (bodyStore != null)) {
+			return;
+		}
+		if (useBodyStore) {
+			BodyStore store = new BodyStore(Math.max(dynamicBodies.size(), 16));
+			for (int i = 0, n = dynamicBodies.size(); i < n; i++) {
+				store.attach(dynamicBodies.get(i), i);
+			}
+			this.bodyStore = store;
+		} else {
+			for (Body body : dynamicBodies) {
+				BodyStore.detach(body);
+			}
+			this.bodyStore = null;
+		}
+	}
+
+	public boolean isUseConstraintBatches() {
+		return constraintBatchesByClass != null;
+	}
+
+	/**
+	 * If enabled, the awake constraints are grouped by their class and every group is solved by a {@link
+	 * ConstraintBatch} in loops over primitive arrays, which avoids the virtual solver calls and the temporary vectors
+	 * of the individual constraints. All built-in constraints have batches, other constraints are still solved one by
+	 * one. Each batch computes the same impulses as its constraints, but the constraints are solved grouped by class,
+	 * so the results differ slightly from solving them in the order they were added.
+	 *
+	 * @param useConstraintBatches <code>true</code> to solve the constraints in batches
+	 */
+	public void setUseConstraintBatches(boolean useConstraintBatches) {
+		assertSpaceUnlocked();
+		if (useConstraintBatches == (constraintBatchesByClass != null)) {
+			return;
+		}
+		constraintBatches.clear();
+		unbatchedConstraints.clear();
+		if (useConstraintBatches) {
+			constraintBatchesByClass = new HashMap<>();
+			constraintBatchEpoch++;
+		} else {
+			constraintBatchesByClass = null;
+		}
+	}
+
+	private ConstraintBatch constraintBatch(Constraint constraint) {
+		if (constraint.batchEpoch != constraintBatchEpoch) {
+			Class<?> type = constraint.getClass();
+			ConstraintBatch batch = constraintBatchesByClass.get(type);
+			if (batch == null && !constraintBatchesByClass.containsKey(type)) {
+				batch = constraint.createBatch();
+				constraintBatchesByClass.put(type, batch);
+				if (batch != null) {
+					constraintBatches.add(batch);
+				}
+			}
+			constraint.batch = batch;
+			constraint.batchEpoch = constraintBatchEpoch;
+		}
+		return constraint.batch;
+	}
+
+	public boolean isDeterministic() {
+		return deterministic;
+	}
+
+	/**
+	 * Enables the deterministic mode. Spaces built and stepped with the same calls produce bit-identical results on
+	 * every platform, which is required for lockstep simulations: the transcendental functions used during a step are
+	 * calculated with {@link StrictMath} instead of {@link Math}, and the arbiters are solved ordered by the hash ids of
+	 * their shapes rather than in the order the broadphase found them. Stepping is always single threaded, the
+	 * parallel query batches don't change the state of the space. Enable the mode before adding bodies, so the
+	 * transforms of static and kinematic bodies are calculated the same way.
+	 *
+	 * @param deterministic <code>true</code> to enable the deterministic mode.
+	 * @see #getStateChecksum()
+	 */
+	public void setDeterministic(boolean deterministic) {
+		this.deterministic = deterministic;
+	}
+
+	/**
+	 * Returns the checksum over the positions, angles and velocities of all bodies of this space, including the
+	 * sleeping ones, the contact impulses of the arbiters and the impulses of the constraints at the end of the latest
+	 * step. Peers stepping the same simulation in deterministic mode can compare the checksums after every step to
+	 * detect a desync. The checksum doesn't depend on the order in which the objects are stored.
+	 * <p/>
+	 * The checksum is updated at the end of every step without allocating. The hashes of the sleeping components are
+	 * cached when they fall asleep, so the cost of a step only grows with the number of awake bodies, arbiters and
+	 * constraints. Changes made between two steps are included at the end of the next one.
+	 *
+	 * @return the checksum of the state at the end of the latest step.
+	 */
+	public long getStateChecksum() {
+		return stateChecksum;
+	}
+
+	/** Adds the given body as the root of a sleeping component, its hash is cached at the end of the step. */
+	void addSleepingComponent(Body root) {
+		cpArrayPush(sleepingComponents, root);
+		// The flag may be left over from a component the body was the root of before a rewind.
+		root.sleeping.hashed = false;
+		unhashedComponents.add(root);
+	}
+
+	/** Removes the sleeping component of the given root and its cached hash. */
+	void removeSleepingComponent(Body root) {
+		cpArrayDeleteObj(sleepingComponents, root);
+		uncacheComponentHash(root);
+	}
+
+	/** Drops the cached hash of the sleeping component of the given root after a body has been added to it. */
+	void invalidateComponentHash(Body root) {
+		if (root.sleeping.hashed) {
+			uncacheComponentHash(root);
+			unhashedComponents.add(root);
+		}
+	}
+
+	private void uncacheComponentHash(Body root) {
+		Body.ComponentNode node = root.sleeping;
+		if (node.hashed) {
+			sleepingChecksum -= node.hash;
+			node.hashed = false;
+		}
+	}
+
+	/** Caches the hashes of the components that fell asleep and sums the checksum of the current state. */
+	private void updateStateChecksum() {
+		for (int i = 0, n = unhashedComponents.size(); i < n; i++) {
+			Body root = unhashedComponents.get(i);
+			Body.ComponentNode node = root.sleeping;
+			// Components woken in the meantime or added twice are skipped.
+			if (root.space == this && root.sleepingIndex >= 0 && !node.hashed) {
+				long hash = 0;
+				for (Body body = root; body != null; body = body.sleeping.next) {
+					hash += body.stateHash();
+				}
+				node.hash = hash;
+				node.hashed = true;
+				sleepingChecksum += hash;
+			}
+		}
+		unhashedComponents.clear();
+
+		long checksum = sleepingChecksum;
+		for (int i = 0, n = dynamicBodies.size(); i < n; i++) {
+			checksum += dynamicBodies.get(i).stateHash();
+		}
+		for (int i = 0, n = otherBodies.size(); i < n; i++) {
+			checksum += otherBodies.get(i).stateHash();
+		}
+		for (int i = 0, n = arbiters.size(); i < n; i++) {
+			checksum += arbiters.get(i).stateHash();
+		}
+		for (int i = 0, n = constraints.size(); i < n; i++) {
+			checksum += constraints.get(i).stateHash();
+		}
+		this.stateChecksum = checksum;
+	}
+
+	/**
+	 * Drops the cached hashes of all sleeping components and calculates the checksum again, used after the state has
+	 * been restored from a {@link SpaceHistory} or a {@link SpaceCheckpoint}.
+	 */
+	void rehashState() {
+		sleepingChecksum = 0;
+		unhashedComponents.clear();
+		for (int i = 0, n = sleepingComponents.size(); i < n; i++) {
+			Body root = sleepingComponents.get(i);
+			root.sleeping.hashed = false;
+			unhashedComponents.add(root);
+		}
+		updateStateChecksum();
+	}
+
 	public List<Shape> getShapes() {
 		final List<Shape> shapes = new ArrayList<>();
 		dynamicShapes.each(shapes::add);
@@ -1238,6 +1877,16 @@ public class Space {
 		return shapes;
 	}
 
+	/**
+	 * Returns the shape of this space with the given hash id.
+	 *
+	 * @param hashId the hash id as returned by {@link Shape#getHashId()}.
+	 * @return the shape or <code>null</code> if no shape with this id has been added to the space.
+	 */
+	public Shape getShapeForId(int hashId) {
+		return shapeIds.get(hashId);
+	}
+
 	public List<Constraint> getConstraints() {
 		return constraints;
 	}
@@ -0,0 +1,991 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import org.physics.jipmunk.constraints.DampedRotarySpring;
+import org.physics.jipmunk.constraints.DampedSpring;
+import org.physics.jipmunk.constraints.GearJoint;
+import org.physics.jipmunk.constraints.GrooveJoint;
+import org.physics.jipmunk.constraints.PinJoint;
+import org.physics.jipmunk.constraints.PivotJoint;
+import org.physics.jipmunk.constraints.RatchetJoint;
+import org.physics.jipmunk.constraints.RotaryLimitJoint;
+import org.physics.jipmunk.constraints.SimpleMotor;
+import org.physics.jipmunk.constraints.SlideJoint;
+import org.physics.jipmunk.impl.Contact;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.physics.jipmunk.Assert.cpAssertSpaceUnlocked;
+import static org.physics.jipmunk.Util.cpv;
+import static org.physics.jipmunk.Util.cpvzero;
+
+/**
+ * Binary checkpoint of a complete {@link Space}. A checkpoint contains the bodies, shapes, constraints, the cached
+ * arbiters with their accumulated contact impulses and the structure of both spatial indexes, so a restored space
+ * continues bit-identically to the original one.
+ * <p/>
+ * Code and user data can't be written: collision handlers, integration functions, pre- and post-solve functions,
+ * custom spring functions and the user data of all objects are not part of a checkpoint. Register the collision
+ * handlers on the target space before calling {@link #read(ByteBuffer, Space)}, then set the remaining callbacks on the
+ * restored objects. The collision types and groups used by the shapes are written as indexes into the arrays passed
+ * to the constructor, so the same arrays have to be used for writing and reading.
+ * <p/>
+ * Only the built-in constraint classes are supported, the state of a constraint is written by {@link
+ * Constraint#writeState(ByteBuffer)}. Only circle, segment and poly shapes can be written, a space containing chain,
+ * grid or compound shapes can't be checkpointed. Both spatial indexes of the space have to be {@link BBTree2} trees,
+ * the default of {@link Space}, because the tree structure is written node by node.
+ *
+ * @author jobernolte
+ */
+public class SpaceCheckpoint {
+	private static final int MAGIC = 0x4a50434b;
+	private static final int VERSION = 1;
+	private static final byte CIRCLE_SHAPE = 0;
+	private static final byte SEGMENT_SHAPE = 1;
+	private static final byte POLY_SHAPE = 2;
+	private static final byte NO_NODE = 0;
+	private static final byte SUBTREE_NODE = 1;
+	private static final byte LEAF_NODE = 2;
+	private static final Class<?>[] CONSTRAINT_CLASSES =
+			{PinJoint.class, SlideJoint.class, PivotJoint.class, GrooveJoint.class, DampedSpring.class,
+					DampedRotarySpring.class, RotaryLimitJoint.class, RatchetJoint.class, GearJoint.class,
+					SimpleMotor.class};
+	private static final ArbiterState[] ARBITER_STATES = ArbiterState.values();
+
+	private final CollisionType[] collisionTypes;
+	private final Group[] groups;
+	private final IdentityHashMap<Object, Integer> collisionTypeIds = new IdentityHashMap<>();
+	private final IdentityHashMap<Object, Integer> groupIds = new IdentityHashMap<>();
+
+	/** Creates a checkpoint codec for spaces whose shapes neither use collision types nor groups. */
+	public SpaceCheckpoint() {
+		this(new CollisionType[0], new Group[0]);
+	}
+
+	/**
+	 * @param collisionTypes all collision types used by the shapes of the spaces
+	 * @param groups         all groups used by the shape filters of the spaces
+	 */
+	public SpaceCheckpoint(CollisionType[] collisionTypes, Group[] groups) {
+		this.collisionTypes = collisionTypes.clone();
+		this.groups = groups.clone();
+		for (int i = 0; i < collisionTypes.length; i++) {
+			collisionTypeIds.put(collisionTypes[i], i);
+		}
+		for (int i = 0; i < groups.length; i++) {
+			groupIds.put(groups[i], i);
+		}
+	}
+
+	/**
+	 * Writes a checkpoint of the space to a newly allocated heap buffer.
+	 *
+	 * @param space the space to write
+	 * @return the flipped buffer containing the checkpoint
+	 * @throws IllegalArgumentException if the space can't be checkpointed, see {@link #write(Space, ByteBuffer)}
+	 */
+	public ByteBuffer write(Space space) {
+		int capacity = 4096;
+		while (true) {
+			ByteBuffer buffer = ByteBuffer.allocate(capacity);
+			try {
+				write(space, buffer);
+				buffer.flip();
+				return buffer;
+			} catch (BufferOverflowException e) {
+				capacity *= 2;
+			}
+		}
+	}
+
+	/**
+	 * Writes a checkpoint of the space at the current position of the buffer, which can be a heap, direct or memory
+	 * mapped buffer. Cannot be called during a step.
+	 *
+	 * @param space  the space to write
+	 * @param buffer the buffer to write to
+	 * @throws BufferOverflowException if the remaining space of the buffer is too small
+	 * @throws IllegalArgumentException if the space contains chain, grid or compound shapes or doesn't use {@link
+	 *                                  BBTree2} spatial indexes
+	 */
+	public void write(Space space, ByteBuffer buffer) {
+		cpAssertSpaceUnlocked(space);
+		new Writer(space, buffer).write();
+	}
+
+	/**
+	 * Restores a space from the checkpoint at the current position of the buffer.
+	 *
+	 * @param buffer the buffer to read from
+	 * @return the restored space
+	 */
+	public Space read(ByteBuffer buffer) {
+		Space space = new Space();
+		read(buffer, space);
+		return space;
+	}
+
+	/**
+	 * Restores a checkpoint into the given space, which must not contain any bodies, shapes or constraints yet. The
+	 * collision handlers of the space are used for the restored arbiters.
+	 *
+	 * @param buffer the buffer to read from
+	 * @param space  the empty space to restore into
+	 */
+	public void read(ByteBuffer buffer, Space space) {
+		cpAssertSpaceUnlocked(space);
+		if (!space.dynamicBodies.isEmpty() || !space.otherBodies.isEmpty() || !space.sleepingComponents.isEmpty()
+				|| !space.constraints.isEmpty() || space.shapeIds.size() != 0 || space.cachedArbiters.size() != 0) {
+			throw new IllegalArgumentException("A checkpoint can only be restored into an empty space.");
+		}
+		new Reader(space, buffer).read();
+		space.rehashState();
+	}
+
+	private static void putVect(ByteBuffer buffer, Vector2f v) {
+		buffer.putFloat(v.x).putFloat(v.y);
+	}
+
+	private static Vector2f getVect(ByteBuffer buffer) {
+		return new Vector2f(buffer.getFloat(), buffer.getFloat());
+	}
+
+	private static void putBB(ByteBuffer buffer, BB bb) {
+		buffer.putFloat(bb.l).putFloat(bb.b).putFloat(bb.r).putFloat(bb.t);
+	}
+
+	private static BB getBB(ByteBuffer buffer) {
+		return new BB(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static BBTree2<Shape> tree(SpatialIndex<Shape> index) {
+		if (!(index instanceof BBTree2)) {
+			throw new IllegalArgumentException("Checkpoints are only supported for BBTree2 spatial indexes.");
+		}
+		return (BBTree2<Shape>) index;
+	}
+
+	private static <T> int indexOf(IdentityHashMap<T, Integer> ids, T obj) {
+		if (obj == null) {
+			return -1;
+		}
+		Integer id = ids.get(obj);
+		if (id == null) {
+			throw new IllegalStateException("Internal Error: Object " + obj + " is not part of the checkpoint.");
+		}
+		return id;
+	}
+
+	private class Writer {
+		final Space space;
+		final ByteBuffer buffer;
+		final List<Body> bodies = new ArrayList<>();
+		final IdentityHashMap<Body, Integer> bodyIds = new IdentityHashMap<>();
+		final List<Shape> shapes = new ArrayList<>();
+		final IdentityHashMap<Shape, Integer> shapeIds = new IdentityHashMap<>();
+		final List<Constraint> constraints = new ArrayList<>();
+		final IdentityHashMap<Constraint, Integer> constraintIds = new IdentityHashMap<>();
+		final List<Arbiter> arbiters = new ArrayList<>();
+		final IdentityHashMap<Arbiter, Integer> arbiterIds = new IdentityHashMap<>();
+		final List<BBTree2.Pair<Shape>> pairs = new ArrayList<>();
+		final IdentityHashMap<BBTree2.Pair<Shape>, Integer> pairIds = new IdentityHashMap<>();
+		final List<BBTree2.Leaf<Shape>> leaves = new ArrayList<>();
+
+		Writer(Space space, ByteBuffer buffer) {
+			this.space = space;
+			this.buffer = buffer;
+		}
+
+		void addBody(Body body) {
+			if (body != null && !bodyIds.containsKey(body)) {
+				bodyIds.put(body, bodies.size());
+				bodies.add(body);
+			}
+		}
+
+		void addArbiter(Arbiter arb) {
+			if (!arbiterIds.containsKey(arb)) {
+				arbiterIds.put(arb, arbiters.size());
+				arbiters.add(arb);
+			}
+		}
+
+		void collectLeaves(BBTree2<Shape> tree) {
+			IntHashMap.Entry<BBTree2.Leaf<Shape>>[] table = tree.leaves.table;
+			for (int i = table.length - 1; i >= 0; i--) {
+				for (IntHashMap.Entry<BBTree2.Leaf<Shape>> e = table[i]; e != null; e = e.next) {
+					Shape shape = e.value.obj;
+					leaves.add(e.value);
+					shapeIds.put(shape, shapes.size());
+					shapes.add(shape);
+					addBody(shape.body);
+				}
+			}
+		}
+
+		void collect() {
+			addBody(space.getStaticBody());
+			for (Body body : space.dynamicBodies) {
+				addBody(body);
+			}
+			for (Body body : space.otherBodies) {
+				addBody(body);
+			}
+			for (Body root : space.sleepingComponents) {
+				for (Body body = root; body != null; body = body.sleeping.next) {
+					addBody(body);
+				}
+			}
+
+			collectLeaves(tree(space.staticShapes));
+			collectLeaves(tree(space.dynamicShapes));
+
+			for (Constraint constraint : space.constraints) {
+				constraintIds.put(constraint, constraints.size());
+				constraints.add(constraint);
+			}
+			// Constraints of sleeping bodies are only reachable through the bodies.
+			for (int i = 0; i < bodies.size(); i++) {
+				Body body = bodies.get(i);
+				for (Constraint c = body.constraintList; c != null; c = Body.cpConstraintNext(c, body)) {
+					if (!constraintIds.containsKey(c)) {
+						constraintIds.put(c, constraints.size());
+						constraints.add(c);
+					}
+					addBody(c.a);
+					addBody(c.b);
+				}
+			}
+
+			for (Arbiter arb : space.arbiters) {
+				addArbiter(arb);
+			}
+			LongHashMap.Entry<Arbiter>[] table = space.cachedArbiters.table;
+			for (int i = table.length - 1; i >= 0; i--) {
+				for (LongHashMap.Entry<Arbiter> e = table[i]; e != null; e = e.next) {
+					addArbiter(e.value);
+				}
+			}
+			for (Body body : bodies) {
+				for (Arbiter arb = body.arbiterList; arb != null; arb = Arbiter.arbiterNext(arb, body)) {
+					addArbiter(arb);
+				}
+			}
+
+			for (BBTree2.Leaf<Shape> leaf : leaves) {
+				for (BBTree2.Pair<Shape> pair = leaf.pairs; pair != null; ) {
+					if (!pairIds.containsKey(pair)) {
+						pairIds.put(pair, pairs.size());
+						pairs.add(pair);
+					}
+					pair = (pair.a.leaf == leaf ? pair.a.next : pair.b.next);
+				}
+			}
+		}
+
+		void write() {
+			collect();
+
+			buffer.putInt(MAGIC).putInt(VERSION);
+
+			buffer.putInt(space.iterations);
+			putVect(buffer, space.gravity);
+			buffer.putFloat(space.getDamping());
+			buffer.putFloat(space.getIdleSpeedThreshold());
+			buffer.putFloat(space.sleepTimeThreshold);
+			buffer.putFloat(space.getCollisionSlop());
+			buffer.putFloat(space.getCollisionBias());
+			buffer.putInt(space.getCollisionPersistence());
+			buffer.putInt(space.stamp);
+			buffer.putFloat(space.curr_dt);
+			buffer.putInt(space.lastShapeId);
+			buffer.putInt(space.lastBodyId);
+			buffer.put((byte) (space.deterministic ? 1 : 0));
+			buffer.put((byte) (space.blockSolver ? 1 : 0));
+
+			buffer.putInt(bodies.size());
+			for (Body body : bodies) {
+				writeBody(body);
+			}
+			buffer.putInt(shapes.size());
+			for (Shape shape : shapes) {
+				writeShape(shape);
+			}
+			buffer.putInt(constraints.size());
+			for (Constraint constraint : constraints) {
+				writeConstraint(constraint);
+			}
+			buffer.putInt(arbiters.size());
+			for (Arbiter arb : arbiters) {
+				writeArbiter(arb);
+			}
+
+			writeTree(tree(space.staticShapes));
+			writeTree(tree(space.dynamicShapes));
+			buffer.putInt(pairs.size());
+			for (BBTree2.Pair<Shape> pair : pairs) {
+				buffer.putInt(shapeIds.get(pair.a.leaf.obj));
+				buffer.putInt(shapeIds.get(pair.b.leaf.obj));
+				buffer.putInt(pair.id.getValue());
+			}
+			for (BBTree2.Leaf<Shape> leaf : leaves) {
+				int count = 0;
+				for (BBTree2.Pair<Shape> pair = leaf.pairs; pair != null; ) {
+					count++;
+					pair = (pair.a.leaf == leaf ? pair.a.next : pair.b.next);
+				}
+				buffer.putInt(count);
+				for (BBTree2.Pair<Shape> pair = leaf.pairs; pair != null; ) {
+					buffer.putInt(pairIds.get(pair));
+					pair = (pair.a.leaf == leaf ? pair.a.next : pair.b.next);
+				}
+			}
+
+			writeBodyList(space.dynamicBodies);
+			writeBodyList(space.otherBodies);
+			writeBodyList(space.sleepingComponents);
+			buffer.putInt(space.constraints.size());
+			for (Constraint constraint : space.constraints) {
+				buffer.putInt(constraintIds.get(constraint));
+			}
+			buffer.putInt(space.arbiters.size());
+			for (Arbiter arb : space.arbiters) {
+				buffer.putInt(arbiterIds.get(arb));
+			}
+			LongHashMap.Entry<Arbiter>[] table = space.cachedArbiters.table;
+			buffer.putInt(table.length);
+			buffer.putInt(space.cachedArbiters.size());
+			for (int i = table.length - 1; i >= 0; i--) {
+				for (LongHashMap.Entry<Arbiter> e = table[i]; e != null; e = e.next) {
+					buffer.putLong(e.key);
+					buffer.putInt(arbiterIds.get(e.value));
+				}
+			}
+
+			for (Body body : bodies) {
+				writeLinks(body);
+			}
+		}
+
+		void writeBody(Body body) {
+			buffer.put((byte) (body.space == space ? 1 : 0));
+			buffer.putInt(body.hashId);
+			BodyStore s = body.store;
+			int slot = body.slot;
+			buffer.putFloat(body.m).putFloat(s.mInv[slot]).putFloat(body.i).putFloat(s.iInv[slot]);
+			putVect(buffer, body.cog);
+			buffer.putFloat(s.px[slot]).putFloat(s.py[slot]);
+			buffer.putFloat(s.vx[slot]).putFloat(s.vy[slot]);
+			buffer.putFloat(s.fx[slot]).putFloat(s.fy[slot]);
+			buffer.putFloat(s.a[slot]).putFloat(s.w[slot]).putFloat(s.t[slot]);
+			Transform t = body.transform;
+			buffer.putFloat(t.a).putFloat(t.b).putFloat(t.c).putFloat(t.d).putFloat(t.tx).putFloat(t.ty);
+			buffer.putFloat(s.vbx[slot]).putFloat(s.vby[slot]);
+			buffer.putFloat(s.wb[slot]);
+			buffer.putFloat(body.sleeping.idleTime);
+		}
+
+		void writeShape(Shape shape) {
+			ShapeType type = shape.getType();
+			if (type == ShapeType.CHAIN_SHAPE || type == ShapeType.GRID_SHAPE || type == ShapeType.COMPOUND_SHAPE) {
+				throw new IllegalArgumentException("Shapes of type " + type + " can't be written to a checkpoint.");
+			}
+			buffer.put(type == ShapeType.CIRCLE_SHAPE ? CIRCLE_SHAPE :
+							   (type == ShapeType.SEGMENT_SHAPE ? SEGMENT_SHAPE : POLY_SHAPE));
+			buffer.putInt(bodyIds.get(shape.body));
+			buffer.putInt(shape.getHashId());
+			MassInfo massInfo = shape.massInfo;
+			buffer.putFloat(massInfo.m).putFloat(massInfo.i);
+			putVect(buffer, massInfo.cog);
+			buffer.putFloat(massInfo.area);
+			putBB(buffer, shape.bb);
+			buffer.put((byte) (shape.sensor ? 1 : 0));
+			buffer.putFloat(shape.e).putFloat(shape.u);
+			putVect(buffer, shape.surfaceV);
+			buffer.putInt(paletteIndex(collisionTypeIds, shape.collisionType, "collision type"));
+			ShapeFilter filter = shape.filter;
+			buffer.putInt(paletteIndex(groupIds, filter.getGroup(), "group"));
+			buffer.putLong(filter.getCategories().getValue());
+			buffer.putLong(filter.getMask().getValue());
+
+			if (shape instanceof CircleShape) {
+				CircleShape circle = (CircleShape) shape;
+				putVect(buffer, circle.c);
+				putVect(buffer, circle.tc);
+				buffer.putFloat(circle.radius);
+			} else if (shape instanceof SegmentShape) {
+				SegmentShape seg = (SegmentShape) shape;
+				putVect(buffer, seg.a);
+				putVect(buffer, seg.b);
+				putVect(buffer, seg.n);
+				putVect(buffer, seg.ta);
+				putVect(buffer, seg.tb);
+				putVect(buffer, seg.tn);
+				putVect(buffer, seg.a_tangent);
+				putVect(buffer, seg.b_tangent);
+				buffer.putFloat(seg.radius);
+			} else {
+				PolyShape poly = (PolyShape) shape;
+				SplittingPlane[] origPlanes = poly.geometry.planes;
+				buffer.putFloat(poly.geometry.radius);
+				buffer.putInt(origPlanes.length);
+				for (int i = 0; i < origPlanes.length; i++) {
+					putVect(buffer, origPlanes[i].v0);
+					putVect(buffer, origPlanes[i].n);
+					putVect(buffer, poly.planes[i].v0);
+					putVect(buffer, poly.planes[i].n);
+				}
+			}
+		}
+
+		int paletteIndex(IdentityHashMap<Object, Integer> ids, Object obj, String kind) {
+			if (obj == null) {
+				return -1;
+			}
+			Integer id = ids.get(obj);
+			if (id == null) {
+				throw new IllegalArgumentException(
+						"The " + kind + " " + obj + " is not part of the checkpoint's " + kind + "s.");
+			}
+			return id;
+		}
+
+		void writeConstraint(Constraint constraint) {
+			int tag = -1;
+			for (int i = 0; i < CONSTRAINT_CLASSES.length; i++) {
+				if (constraint.getClass() == CONSTRAINT_CLASSES[i]) {
+					tag = i;
+				}
+			}
+			if (tag < 0) {
+				throw new IllegalArgumentException(
+						"Constraints of type " + constraint.getClass().getName() + " can't be written to a checkpoint.");
+			}
+			buffer.put((byte) tag);
+			buffer.putInt(bodyIds.get(constraint.a));
+			buffer.putInt(bodyIds.get(constraint.b));
+			buffer.putFloat(constraint.maxForce).putFloat(constraint.errorBias).putFloat(constraint.maxBias);
+			buffer.put((byte) (constraint.collideBodies ? 1 : 0));
+			buffer.putFloat(constraint.breakForce).putInt(constraint.breakSteps).putInt(constraint.overloadedSteps);
+			constraint.writeState(buffer);
+		}
+
+		void writeArbiter(Arbiter arb) {
+			buffer.putInt(indexOf(shapeIds, arb.a));
+			buffer.putInt(indexOf(shapeIds, arb.b));
+			buffer.putFloat(arb.e).putFloat(arb.u);
+			putVect(buffer, arb.surface_vr);
+			putVect(buffer, arb.normal);
+			buffer.put((byte) (arb.swapped ? 1 : 0));
+			buffer.putInt(arb.stamp);
+			buffer.put((byte) arb.state.ordinal());
+			buffer.putInt(arb.count);
+			for (int i = 0; i < arb.count; i++) {
+				Contact con = arb.contacts[i];
+				putVect(buffer, con.getR1());
+				putVect(buffer, con.getR2());
+				buffer.putFloat(con.getnMass()).putFloat(con.gettMass()).putFloat(con.getBounce());
+				buffer.putFloat(con.getJnAcc()).putFloat(con.getJtAcc()).putFloat(con.getjBias());
+				buffer.putFloat(con.getBias());
+				buffer.putInt(con.getHash());
+			}
+		}
+
+		void writeTree(BBTree2<Shape> tree) {
+			buffer.putInt(tree.stamp);
+			buffer.putInt(tree.leaves.table.length);
+			buffer.putInt(tree.leaves.size());
+			IntHashMap.Entry<BBTree2.Leaf<Shape>>[] table = tree.leaves.table;
+			for (int i = table.length - 1; i >= 0; i--) {
+				for (IntHashMap.Entry<BBTree2.Leaf<Shape>> e = table[i]; e != null; e = e.next) {
+					BBTree2.Leaf<Shape> leaf = e.value;
+					buffer.putInt(shapeIds.get(leaf.obj));
+					buffer.putInt(leaf.stamp);
+					putBB(buffer, leaf.bb);
+				}
+			}
+			writeNode(tree.root);
+		}
+
+		void writeNode(BBTree2.Node<Shape> node) {
+			if (node == null) {
+				buffer.put(NO_NODE);
+			} else if (node.isLeaf()) {
+				buffer.put(LEAF_NODE);
+				buffer.putInt(shapeIds.get(((BBTree2.Leaf<Shape>) node).obj));
+			} else {
+				BBTree2.SubTree<Shape> subtree = (BBTree2.SubTree<Shape>) node;
+				buffer.put(SUBTREE_NODE);
+				putBB(buffer, subtree.bb);
+				writeNode(subtree.a);
+				writeNode(subtree.b);
+			}
+		}
+
+		void writeBodyList(List<Body> list) {
+			buffer.putInt(list.size());
+			for (Body body : list) {
+				buffer.putInt(bodyIds.get(body));
+			}
+		}
+
+		void writeLinks(Body body) {
+			buffer.putInt(indexOf(bodyIds, body.sleeping.root));
+			buffer.putInt(indexOf(bodyIds, body.sleeping.next));
+
+			int count = 0;
+			for (Shape shape = body.shapeList; shape != null; shape = shape.next) {
+				count++;
+			}
+			buffer.putInt(count);
+			for (Shape shape = body.shapeList; shape != null; shape = shape.next) {
+				buffer.putInt(shapeIds.get(shape));
+			}
+
+			count = 0;
+			for (Constraint c = body.constraintList; c != null; c = Body.cpConstraintNext(c, body)) {
+				count++;
+			}
+			buffer.putInt(count);
+			for (Constraint c = body.constraintList; c != null; c = Body.cpConstraintNext(c, body)) {
+				buffer.putInt(constraintIds.get(c));
+			}
+
+			count = 0;
+			for (Arbiter arb = body.arbiterList; arb != null; arb = Arbiter.arbiterNext(arb, body)) {
+				count++;
+			}
+			buffer.putInt(count);
+			for (Arbiter arb = body.arbiterList; arb != null; arb = Arbiter.arbiterNext(arb, body)) {
+				buffer.putInt(arbiterIds.get(arb));
+			}
+		}
+	}
+
+	private class Reader {
+		final Space space;
+		final ByteBuffer buffer;
+		Body[] bodies;
+		Shape[] shapes;
+		Constraint[] constraints;
+		Arbiter[] arbiters;
+		BBTree2.Leaf<Shape>[] leaves;
+		int leafCount;
+		final Map<PolyGeometry, PolyGeometry> geometries = new HashMap<>();
+
+		Reader(Space space, ByteBuffer buffer) {
+			this.space = space;
+			this.buffer = buffer;
+		}
+
+		@SuppressWarnings("unchecked")
+		void read() {
+			if (buffer.getInt() != MAGIC) {
+				throw new IllegalArgumentException("The buffer does not contain a space checkpoint.");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IllegalArgumentException("Unsupported checkpoint version " + version + ".");
+			}
+
+			space.iterations = buffer.getInt();
+			space.gravity.set(getVect(buffer));
+			space.setDamping(buffer.getFloat());
+			space.setIdleSpeedThreshold(buffer.getFloat());
+			space.sleepTimeThreshold = buffer.getFloat();
+			space.setCollisionSlop(buffer.getFloat());
+			space.setCollisionBias(buffer.getFloat());
+			space.setCollisionPersistence(buffer.getInt());
+			space.stamp = buffer.getInt();
+			space.curr_dt = buffer.getFloat();
+			space.lastShapeId = buffer.getInt();
+			space.lastBodyId = buffer.getInt();
+			space.deterministic = buffer.get() != 0;
+			space.blockSolver = buffer.get() != 0;
+
+			bodies = new Body[buffer.getInt()];
+			for (int i = 0; i < bodies.length; i++) {
+				// The first body is always the static body of the space.
+				bodies[i] = readBody(i == 0 ? space.getStaticBody() : new Body(1.0f, 1.0f));
+			}
+			shapes = new Shape[buffer.getInt()];
+			for (int i = 0; i < shapes.length; i++) {
+				shapes[i] = readShape();
+			}
+			constraints = new Constraint[buffer.getInt()];
+			for (int i = 0; i < constraints.length; i++) {
+				constraints[i] = readConstraint();
+			}
+			arbiters = new Arbiter[buffer.getInt()];
+			for (int i = 0; i < arbiters.length; i++) {
+				arbiters[i] = readArbiter();
+			}
+
+			leaves = (BBTree2.Leaf<Shape>[]) new BBTree2.Leaf<?>[shapes.length];
+			readTree(tree(space.staticShapes));
+			readTree(tree(space.dynamicShapes));
+			BBTree2.Pair<Shape>[] pairs = (BBTree2.Pair<Shape>[]) new BBTree2.Pair<?>[buffer.getInt()];
+			for (int i = 0; i < pairs.length; i++) {
+				BBTree2.Leaf<Shape> a = leaves[buffer.getInt()];
+				BBTree2.Leaf<Shape> b = leaves[buffer.getInt()];
+				pairs[i] = new BBTree2.Pair<>(new BBTree2.Thread<>(null, a, null), new BBTree2.Thread<>(null, b, null),
+											  new CollisionID(buffer.getInt()));
+			}
+			for (int i = 0; i < leafCount; i++) {
+				BBTree2.Leaf<Shape> leaf = leaves[i];
+				BBTree2.Pair<Shape> prev = null;
+				for (int n = buffer.getInt(); n > 0; n--) {
+					BBTree2.Pair<Shape> pair = pairs[buffer.getInt()];
+					if (prev == null) {
+						leaf.pairs = pair;
+					} else {
+						(prev.a.leaf == leaf ? prev.a : prev.b).next = pair;
+					}
+					(pair.a.leaf == leaf ? pair.a : pair.b).prev = prev;
+					prev = pair;
+				}
+			}
+
+			for (int n = buffer.getInt(); n > 0; n--) {
+				space.dynamicBodies.add(bodies[buffer.getInt()]);
+			}
+			for (int n = buffer.getInt(); n > 0; n--) {
+				space.otherBodies.add(bodies[buffer.getInt()]);
+			}
+			for (int n = buffer.getInt(); n > 0; n--) {
+				space.sleepingComponents.add(bodies[buffer.getInt()]);
+			}
+			for (int n = buffer.getInt(); n > 0; n--) {
+				space.constraints.add(constraints[buffer.getInt()]);
+			}
+			for (int n = buffer.getInt(); n > 0; n--) {
+				space.arbiters.add(arbiters[buffer.getInt()]);
+			}
+			int capacity = buffer.getInt();
+			int count = buffer.getInt();
+			long[] keys = new long[count];
+			int[] values = new int[count];
+			for (int i = 0; i < count; i++) {
+				keys[i] = buffer.getLong();
+				values[i] = buffer.getInt();
+			}
+			// Inserting in reverse order restores the order of the hash chains.
+			space.cachedArbiters = new LongHashMap<>(capacity, LongHashMap.DEFAULT_LOAD_FACTOR);
+			for (int i = count - 1; i >= 0; i--) {
+				space.cachedArbiters.put(keys[i], arbiters[values[i]]);
+			}
+
+			for (Body body : bodies) {
+				readLinks(body);
+			}
+
+			for (Shape shape : shapes) {
+				space.shapeIds.put(shape.getHashId(), shape);
+			}
+			for (Constraint constraint : constraints) {
+				if (!constraint.collideBodies) {
+					space.noCollidePairs.add(constraint.a, constraint.b);
+				}
+			}
+		}
+
+		Body readBody(Body body) {
+			boolean inSpace = buffer.get() != 0;
+			body.hashId = buffer.getInt();
+			BodyStore s = body.store;
+			int slot = body.slot;
+			body.m = buffer.getFloat();
+			s.mInv[slot] = buffer.getFloat();
+			body.i = buffer.getFloat();
+			s.iInv[slot] = buffer.getFloat();
+			body.cog = getVect(buffer);
+			s.px[slot] = buffer.getFloat();
+			s.py[slot] = buffer.getFloat();
+			s.vx[slot] = buffer.getFloat();
+			s.vy[slot] = buffer.getFloat();
+			s.fx[slot] = buffer.getFloat();
+			s.fy[slot] = buffer.getFloat();
+			s.a[slot] = buffer.getFloat();
+			s.w[slot] = buffer.getFloat();
+			s.t[slot] = buffer.getFloat();
+			body.transform = new Transform(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(),
+										   buffer.getFloat(), buffer.getFloat());
+			s.vbx[slot] = buffer.getFloat();
+			s.vby[slot] = buffer.getFloat();
+			s.wb[slot] = buffer.getFloat();
+			body.sleeping.idleTime = buffer.getFloat();
+			body.space = (inSpace ? space : null);
+			return body;
+		}
+
+		Shape readShape() {
+			byte type = buffer.get();
+			Body body = bodies[buffer.getInt()];
+			int hashId = buffer.getInt();
+			MassInfo massInfo = new MassInfo(buffer.getFloat(), buffer.getFloat(), getVect(buffer), buffer.getFloat());
+			BB bb = getBB(buffer);
+			boolean sensor = buffer.get() != 0;
+			float e = buffer.getFloat();
+			float u = buffer.getFloat();
+			Vector2f surfaceV = getVect(buffer);
+			int collisionType = buffer.getInt();
+			int group = buffer.getInt();
+			ShapeFilter filter = new ShapeFilter(group < 0 ? Group.NO_GROUP : groups[group],
+												 new Bitmask(buffer.getLong()), new Bitmask(buffer.getLong()));
+
+			Shape shape;
+			if (type == CIRCLE_SHAPE) {
+				Vector2f c = getVect(buffer);
+				Vector2f tc = getVect(buffer);
+				CircleShape circle = new CircleShape(body, buffer.getFloat(), c);
+				circle.tc = tc;
+				shape = circle;
+			} else if (type == SEGMENT_SHAPE) {
+				Vector2f a = getVect(buffer);
+				Vector2f b = getVect(buffer);
+				Vector2f n = getVect(buffer);
+				Vector2f ta = getVect(buffer);
+				Vector2f tb = getVect(buffer);
+				Vector2f tn = getVect(buffer);
+				Vector2f aTangent = getVect(buffer);
+				Vector2f bTangent = getVect(buffer);
+				SegmentShape seg = new SegmentShape(body, a, b, buffer.getFloat());
+				seg.n = n;
+				seg.ta = ta;
+				seg.tb = tb;
+				seg.tn = tn;
+				seg.a_tangent = aTangent;
+				seg.b_tangent = bTangent;
+				shape = seg;
+			} else {
+				float radius = buffer.getFloat();
+				int count = buffer.getInt();
+				SplittingPlane[] origPlanes = new SplittingPlane[count];
+				SplittingPlane[] planes = new SplittingPlane[count];
+				for (int i = 0; i < count; i++) {
+					origPlanes[i] = new SplittingPlane();
+					origPlanes[i].v0 = getVect(buffer);
+					origPlanes[i].n = getVect(buffer);
+					planes[i] = new SplittingPlane();
+					planes[i].v0 = getVect(buffer);
+					planes[i].n = getVect(buffer);
+				}
+				// Polygons with the same geometry share it again after restoring.
+				PolyGeometry geometry = new PolyGeometry(radius, origPlanes);
+				PolyGeometry shared = geometries.putIfAbsent(geometry, geometry);
+				PolyShape poly = new PolyShape(body, shared != null ? shared : geometry);
+				poly.planes = planes;
+				shape = poly;
+			}
+
+			shape.massInfo = massInfo;
+			shape.bb = bb;
+			shape.sensor = sensor;
+			shape.e = e;
+			shape.u = u;
+			shape.surfaceV = surfaceV;
+			shape.collisionType = (collisionType < 0 ? null : collisionTypes[collisionType]);
+			shape.filter = filter;
+			shape.setHashId(hashId);
+			shape.space = space;
+			return shape;
+		}
+
+		Constraint readConstraint() {
+			int tag = buffer.get();
+			Body a = bodies[buffer.getInt()];
+			Body b = bodies[buffer.getInt()];
+			Vector2f zero = cpvzero();
+			Constraint constraint;
+			switch (tag) {
+				case 0:
+					constraint = new PinJoint(a, b, zero, zero);
+					break;
+				case 1:
+					constraint = new SlideJoint(a, b, zero, zero, 0.0f, 0.0f);
+					break;
+				case 2:
+					constraint = new PivotJoint(a, b, zero, zero);
+					break;
+				case 3:
+					constraint = new GrooveJoint(a, b, zero, cpv(1.0f, 0.0f), zero);
+					break;
+				case 4:
+					constraint = new DampedSpring(a, b, zero, zero, 0.0f, 0.0f, 0.0f);
+					break;
+				case 5:
+					constraint = new DampedRotarySpring(a, b, 0.0f, 0.0f, 0.0f);
+					break;
+				case 6:
+					constraint = new RotaryLimitJoint(a, b, 0.0f, 0.0f);
+					break;
+				case 7:
+					constraint = new RatchetJoint(a, b, 0.0f, 1.0f);
+					break;
+				case 8:
+					constraint = new GearJoint(a, b, 0.0f, 1.0f);
+					break;
+				case 9:
+					constraint = new SimpleMotor(a, b, 0.0f);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown constraint type " + tag + " in checkpoint.");
+			}
+			constraint.maxForce = buffer.getFloat();
+			constraint.errorBias = buffer.getFloat();
+			constraint.maxBias = buffer.getFloat();
+			constraint.collideBodies = buffer.get() != 0;
+			constraint.breakForce = buffer.getFloat();
+			constraint.breakSteps = buffer.getInt();
+			constraint.overloadedSteps = buffer.getInt();
+			constraint.readState(buffer);
+			constraint.space = space;
+			return constraint;
+		}
+
+		Arbiter readArbiter() {
+			Arbiter arb = new Arbiter();
+			arb.init(shapes[buffer.getInt()], shapes[buffer.getInt()]);
+			arb.e = buffer.getFloat();
+			arb.u = buffer.getFloat();
+			arb.surface_vr = getVect(buffer);
+			arb.normal = getVect(buffer);
+			arb.updateHandlers(space);
+			arb.swapped = buffer.get() != 0;
+			arb.stamp = buffer.getInt();
+			arb.state = ARBITER_STATES[buffer.get()];
+			int count = buffer.getInt();
+			if (count < 0 || count > arb.contacts.length) {
+				throw new IllegalArgumentException("Invalid contact count " + count + ".");
+			}
+			for (int i = 0; i < count; i++) {
+				Contact con = arb.contacts[i];
+				con.setR1(getVect(buffer));
+				con.setR2(getVect(buffer));
+				con.setnMass(buffer.getFloat());
+				con.settMass(buffer.getFloat());
+				con.setBounce(buffer.getFloat());
+				con.setJnAcc(buffer.getFloat());
+				con.setJtAcc(buffer.getFloat());
+				con.setjBias(buffer.getFloat());
+				con.setBias(buffer.getFloat());
+				con.setHash(buffer.getInt());
+			}
+			arb.count = count;
+			return arb;
+		}
+
+		void readTree(BBTree2<Shape> tree) {
+			tree.stamp = buffer.getInt();
+			int capacity = buffer.getInt();
+			int count = buffer.getInt();
+			int first = leafCount;
+			for (int i = 0; i < count; i++) {
+				BBTree2.Leaf<Shape> leaf = new BBTree2.Leaf<>();
+				int shape = buffer.getInt();
+				leaf.obj = shapes[shape];
+				leaf.stamp = buffer.getInt();
+				leaf.bb = getBB(buffer);
+				leaves[shape] = leaf;
+				leafCount++;
+			}
+			// Inserting in reverse order restores the order of the hash chains.
+			tree.leaves = new IntHashMap<>(capacity, IntHashMap.DEFAULT_LOAD_FACTOR);
+			for (int i = leafCount - 1; i >= first; i--) {
+				tree.leaves.put(leaves[i].obj.getHashId(), leaves[i]);
+			}
+			tree.root = readNode(null);
+		}
+
+		BBTree2.Node<Shape> readNode(BBTree2.SubTree<Shape> parent) {
+			byte tag = buffer.get();
+			BBTree2.Node<Shape> node;
+			if (tag == NO_NODE) {
+				return null;
+			} else if (tag == LEAF_NODE) {
+				node = leaves[buffer.getInt()];
+			} else {
+				BBTree2.SubTree<Shape> subtree = new BBTree2.SubTree<>();
+				subtree.bb = getBB(buffer);
+				subtree.a = readNode(subtree);
+				subtree.b = readNode(subtree);
+				node = subtree;
+			}
+			node.parent = parent;
+			return node;
+		}
+
+		void readLinks(Body body) {
+			int root = buffer.getInt();
+			int next = buffer.getInt();
+			body.sleeping.root = (root < 0 ? null : bodies[root]);
+			body.sleeping.next = (next < 0 ? null : bodies[next]);
+
+			Shape prevShape = null;
+			for (int n = buffer.getInt(); n > 0; n--) {
+				Shape shape = shapes[buffer.getInt()];
+				if (prevShape == null) {
+					body.shapeList = shape;
+				} else {
+					prevShape.next = shape;
+				}
+				shape.prev = prevShape;
+				shape.next = null;
+				prevShape = shape;
+			}
+
+			Constraint prevConstraint = null;
+			for (int n = buffer.getInt(); n > 0; n--) {
+				Constraint constraint = constraints[buffer.getInt()];
+				if (prevConstraint == null) {
+					body.constraintList = constraint;
+				} else if (prevConstraint.a == body) {
+					prevConstraint.next_a = constraint;
+				} else {
+					prevConstraint.next_b = constraint;
+				}
+				prevConstraint = constraint;
+			}
+
+			Arbiter prevArbiter = null;
+			for (int n = buffer.getInt(); n > 0; n--) {
+				Arbiter arb = arbiters[buffer.getInt()];
+				if (prevArbiter == null) {
+					body.arbiterList = arb;
+				} else {
+					prevArbiter.threadForBody(body).next = arb;
+				}
+				arb.threadForBody(body).prev = prevArbiter;
+				prevArbiter = arb;
+			}
+		}
+	}
+}
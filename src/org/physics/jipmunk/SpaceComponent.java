@@ -22,10 +22,10 @@
 
 package org.physics.jipmunk;
 
+import java.util.Arrays;
 import java.util.List;
 
 import static org.physics.jipmunk.Array.cpArrayDeleteObj;
-import static org.physics.jipmunk.Array.cpArrayPush;
 import static org.physics.jipmunk.Assert.cpAssertHard;
 import static org.physics.jipmunk.Assert.cpAssertSoft;
 import static org.physics.jipmunk.Body.*;
@@ -56,7 +56,7 @@ class SpaceComponent {
 			body = next;
 		}
 
-		cpArrayDeleteObj(space.sleepingComponents, root);
+		space.removeSleepingComponent(root);
 	}
 
 	static void ComponentAdd(Body root, Body body) {
@@ -75,8 +75,10 @@ class SpaceComponent {
 	static void cpBodyActivateStatic(Body body, Shape filter) {
 		cpAssertHard(cpBodyIsStatic(body), "cpBodyActivateStatic() called on a non-static body.");
 
-		for (Arbiter arb : body.arbiters()) {
-			if (filter == null || filter == arb.a || filter == arb.b) {
+		for (Arbiter arb = body.arbiterList; arb != null; arb = Arbiter.arbiterNext(arb, body)) {
+			// Arbiters of chain, grid and compound shapes reference their parts.
+			if (filter == null || filter == arb.a || filter == arb.b || filter == arb.a.owner()
+					|| filter == arb.b.owner()) {
 				cpBodyActivate(arb.body_a == body ? arb.body_b : arb.body_a);
 			}
 		}
@@ -84,29 +86,46 @@ class SpaceComponent {
 		// TODO should also activate joints?
 	}
 
-	static boolean ComponentActive(Body root, float threshold) {
-		//CP_BODY_FOREACH_COMPONENT(root, body){
-		for (Body body : root.components()) {
-			if (body.sleeping.idleTime < threshold)
-				return true;
+	/**
+	 * Explicit stack used by {@link #FloodFillComponent(FloodFillStack, Body)} in place of recursion. Every frame keeps
+	 * the body and the next arbiter and constraint of it to visit, so bodies are added to the component in the same
+	 * order as a recursive depth first search would. The stack is kept by the space and reused.
+	 */
+	static final class FloodFillStack {
+		private Body[] bodies = new Body[16];
+		private Arbiter[] arbiters = new Arbiter[16];
+		private Constraint[] constraints = new Constraint[16];
+		private int size;
+
+		private void push(Body body) {
+			if (size == bodies.length) {
+				int capacity = size * 2;
+				bodies = Arrays.copyOf(bodies, capacity);
+				arbiters = Arrays.copyOf(arbiters, capacity);
+				constraints = Arrays.copyOf(constraints, capacity);
+			}
+			bodies[size] = body;
+			arbiters[size] = body.arbiterList;
+			constraints[size] = body.constraintList;
+			size++;
 		}
 
-		return false;
+		private void pop() {
+			size--;
+			bodies[size] = null;
+			arbiters[size] = null;
+			constraints[size] = null;
+		}
 	}
 
-	static void FloodFillComponent(Body root, Body body) {
+	private static void FloodFillVisit(FloodFillStack stack, Body root, Body body) {
 		// Kinematic bodies cannot be put to sleep and prevent bodies they are touching from sleeping.
 		// Static bodies are effectively sleeping all the time.
 		if (body.isDynamic()) {
 			Body other_root = ComponentRoot(body);
 			if (other_root == null) {
 				ComponentAdd(root, body);
-				for (Arbiter arb : body.arbiters()) {
-					FloodFillComponent(root, (body == arb.body_a ? arb.body_b : arb.body_a));
-				}
-				for (Constraint constraint : body.constraints()) {
-					FloodFillComponent(root, (body == constraint.a ? constraint.b : constraint.a));
-				}
+				stack.push(body);
 			} else {
 				if (other_root != root) {
 					throw new IllegalStateException("Internal Error: Inconsistency dectected in the contact graph.");
@@ -115,6 +134,30 @@ class SpaceComponent {
 		}
 	}
 
+	static void FloodFillComponent(FloodFillStack stack, Body root) {
+		FloodFillVisit(stack, root, root);
+		while (stack.size > 0) {
+			int top = stack.size - 1;
+			Body body = stack.bodies[top];
+
+			Arbiter arb = stack.arbiters[top];
+			if (arb != null) {
+				stack.arbiters[top] = Arbiter.arbiterNext(arb, body);
+				FloodFillVisit(stack, root, (body == arb.body_a ? arb.body_b : arb.body_a));
+				continue;
+			}
+
+			Constraint constraint = stack.constraints[top];
+			if (constraint != null) {
+				stack.constraints[top] = cpConstraintNext(constraint, body);
+				FloodFillVisit(stack, root, (body == constraint.a ? constraint.b : constraint.a));
+				continue;
+			}
+
+			stack.pop();
+		}
+	}
+
 	static void cpBodyPushArbiter(Body body, Arbiter arb) {
 		cpAssertSoft(arb.threadForBody(body).next == null,
 					 "Internal Error: Dangling contact graph " + "pointers detected. (A)");
@@ -189,35 +232,39 @@ class SpaceComponent {
 				}
 			}
 
-			// Generate components and deactivate sleeping ones
-			for (int i = 0; i < bodies.size(); ) {
-				Body body = bodies.get(i);
-
-				if (ComponentRoot(body) == null) {
-					// Body not in a component yet. Perform a DFS to flood fill mark
-					// the component in the contact graph using this body as the root.
-					FloodFillComponent(body, body);
-
-					// Check if the component should be putSingle to sleep.
-					if (!ComponentActive(body, space.sleepTimeThreshold)) {
-						cpArrayPush(space.sleepingComponents, body);
-						//CP_BODY_FOREACH_COMPONENT(body, other)
-						for (Body other : body.components()) {
-							space.deactivateBody(other);
-						}
-
-						// cpSpaceDeactivateBody() removed the current body from the list.
-						// Skip incrementing the index counter.
-						continue;
-					}
-				}
+			// Merge the islands of the bodies touching or joined, waking components may have appended arbiters.
+			Islands islands = space.islands;
+			islands.begin();
+			for (int i = 0, count = arbiters.size(); i < count; i++) {
+				islands.link(arbiters.get(i));
+			}
+			for (Constraint constraint : constraints) {
+				islands.link(constraint.a, constraint.b);
+			}
+			islands.unlinkSeparated();
 
-				i++;
+			// Only bodies idle for longer than the threshold can fall asleep. An island consisting of such sleep
+			// candidates only is a component that can fall asleep, dirty islands are split as needed.
+			float threshold = space.sleepTimeThreshold;
+			for (Body body : bodies) {
+				islands.mark(body, !(body.sleeping.idleTime < threshold));
+			}
+			islands.resolve(threshold);
+
+			// Generate the sleeping components and deactivate them.
+			for (int i = 0, count = islands.getRootCount(); i < count; i++) {
+				Body body = islands.getRoot(i);
 
-				// Only sleeping dynamicBodies retain their component sleeping pointers.
-				body.sleeping.root = null;
-				body.sleeping.next = null;
+				// Perform a DFS to flood fill mark the component in the contact graph using this body as the root.
+				FloodFillComponent(space.floodFillStack, body);
+
+				space.addSleepingComponent(body);
+				//CP_BODY_FOREACH_COMPONENT(body, other)
+				for (Body other = body; other != null; other = other.sleeping.next) {
+					space.deactivateBody(other);
+				}
 			}
+			islands.end();
 		}
 	}
 
@@ -256,12 +303,13 @@ class SpaceComponent {
 			body.sleeping.idleTime = 0.0f;
 
 			root.sleeping.next = body;
+			space.invalidateComponentHash(root);
 		} else {
 			body.sleeping.root = body;
 			body.sleeping.next = null;
 			body.sleeping.idleTime = 0.0f;
 
-			cpArrayPush(space.sleepingComponents, body);
+			space.addSleepingComponent(body);
 		}
 
 		cpArrayDeleteObj(space.dynamicBodies, body);
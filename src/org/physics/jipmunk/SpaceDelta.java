@@ -0,0 +1,556 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+import static org.physics.jipmunk.Assert.cpAssertSpaceUnlocked;
+
+/**
+ * Delta compressed stream of the body states of a {@link Space} for network replication. After each step an {@link
+ * Encoder} writes the bodies whose quantized position, angle or velocity changed, that woke up, fell asleep or were
+ * added to or removed from the space. Only the awake bodies are compared, sleeping bodies are skipped until they wake
+ * up again, so the cost of a step's delta is proportional to the number of awake bodies.
+ * <p/>
+ * Every body is identified by a small integer id that is reused after the body has been removed. A position, angle or
+ * velocity is quantized to a multiple of its precision and written as a variable length difference to the value sent
+ * last, so the deltas have to be decoded in order by a single {@link Decoder} created with the same precisions.
+ *
+ * @author jobernolte
+ */
+public final class SpaceDelta {
+	/** The kind of a change record. */
+	public enum Change {
+		/** A body has been added, its full state follows. */
+		ADDED,
+		/** The state of an awake body has changed. */
+		CHANGED,
+		/** A body has woken up. */
+		WOKE,
+		/** A body has fallen asleep, the state it sleeps in follows. */
+		SLEPT,
+		/** A body has been removed. */
+		REMOVED
+	}
+
+	private static final int STATE_SIZE = 6;
+	private static final int FULL_MASK = (1 << STATE_SIZE) - 1;
+	// The header byte of a record holds the mask of the written state values in the lower six bits and the kind in the
+	// upper two bits. Additions and removals share a kind and are told apart by their mask.
+	private static final int KIND_CHANGED = 0;
+	private static final int KIND_WOKE = 1;
+	private static final int KIND_SLEPT = 2;
+	private static final int KIND_OTHER = 3;
+
+	private SpaceDelta() {
+	}
+
+	private static float checkPrecision(float precision) {
+		if (!(precision > 0.0f)) {
+			throw new IllegalArgumentException("precision must be positive.");
+		}
+		return precision;
+	}
+
+	/** Writes the changes of a space. Keeps the state sent last for every body of the space. */
+	public static class Encoder {
+		private final Space space;
+		private final float positionScale;
+		private final float angleScale;
+		private final float velocityScale;
+		private final IdentityHashMap<Body, Record> records = new IdentityHashMap<>();
+		private Record[] awake = new Record[16];
+		private int awakeCount;
+		private Record[] nextAwake = new Record[16];
+		private int nextAwakeCount;
+		private Record[] changes = new Record[16];
+		private int changeCount;
+		private int[] freeIds = new int[16];
+		private int freeIdCount;
+		private int nextId;
+		private int tick;
+		private int version = -1;
+
+		/**
+		 * @param space             the space to encode
+		 * @param positionPrecision the quantization step of the positions
+		 * @param anglePrecision    the quantization step of the angles in radians
+		 * @param velocityPrecision the quantization step of the linear and angular velocities
+		 */
+		public Encoder(Space space, float positionPrecision, float anglePrecision, float velocityPrecision) {
+			this.space = space;
+			this.positionScale = 1.0f / checkPrecision(positionPrecision);
+			this.angleScale = 1.0f / checkPrecision(anglePrecision);
+			this.velocityScale = 1.0f / checkPrecision(velocityPrecision);
+		}
+
+		/**
+		 * @param body a body of the space
+		 * @return the id of the body in the stream or <code>-1</code> if the body hasn't been written yet
+		 */
+		public int getId(Body body) {
+			Record record = records.get(body);
+			return (record == null || !record.sent) ? -1 : record.id;
+		}
+
+		/**
+		 * Writes the changes since the last call to a newly allocated heap buffer.
+		 *
+		 * @return the flipped buffer containing the changes
+		 */
+		public ByteBuffer encode() {
+			int capacity = 256;
+			while (true) {
+				ByteBuffer buffer = ByteBuffer.allocate(capacity);
+				try {
+					encode(buffer);
+					buffer.flip();
+					return buffer;
+				} catch (BufferOverflowException e) {
+					capacity *= 2;
+				}
+			}
+		}
+
+		/**
+		 * Writes the changes since the last call at the current position of the buffer. The first call writes all
+		 * bodies of the space. If the buffer overflows its position is reset and the state of the encoder is left
+		 * unchanged, so the call can be repeated with a larger buffer. Cannot be called during a step.
+		 *
+		 * @param buffer the buffer to write to
+		 * @return the number of change records written
+		 * @throws BufferOverflowException if the remaining space of the buffer is too small
+		 */
+		public int encode(ByteBuffer buffer) {
+			cpAssertSpaceUnlocked(space);
+			tick++;
+			changeCount = 0;
+			nextAwakeCount = 0;
+			collectAwake(space.dynamicBodies);
+			collectAwake(space.otherBodies);
+			for (int i = 0; i < awakeCount; i++) {
+				Record record = awake[i];
+				if (record.seen != tick) {
+					Body body = record.body;
+					if (body.space == space && body.isSleeping()) {
+						quantize(record);
+						addChange(record, Change.SLEPT);
+					} else {
+						addChange(record, Change.REMOVED);
+					}
+				}
+			}
+			if (version != space.structureVersion) {
+				// Sleeping bodies are only added or removed when the structure of the space changes.
+				for (Body root : space.sleepingComponents) {
+					for (Body body = root; body != null; body = body.sleeping.next) {
+						Record record = record(body);
+						if (!record.sent) {
+							quantize(record);
+							addChange(record, Change.ADDED);
+						}
+					}
+				}
+				for (Record record : records.values()) {
+					if (record.sent && record.asleep && record.body.space != space) {
+						addChange(record, Change.REMOVED);
+					}
+				}
+			}
+
+			int recordCount = changeCount;
+			for (int i = 0; i < changeCount; i++) {
+				if (changes[i].change == Change.ADDED && changes[i].body.isSleeping()) {
+					recordCount++;
+				}
+			}
+			int start = buffer.position();
+			try {
+				putVarInt(buffer, recordCount);
+				for (int i = 0; i < changeCount; i++) {
+					write(buffer, changes[i]);
+				}
+			} catch (BufferOverflowException e) {
+				buffer.position(start);
+				for (int i = 0; i < changeCount; i++) {
+					changes[i].change = null;
+				}
+				throw e;
+			}
+
+			for (int i = 0; i < changeCount; i++) {
+				commit(changes[i]);
+			}
+			if (version != space.structureVersion) {
+				for (Iterator<Record> it = records.values().iterator(); it.hasNext(); ) {
+					Record record = it.next();
+					if (!record.sent && record.body.space != space) {
+						// Added and removed again before it has been written.
+						releaseId(record.id);
+						it.remove();
+					}
+				}
+			}
+			Record[] tmp = awake;
+			Arrays.fill(tmp, 0, awakeCount, null);
+			awake = nextAwake;
+			awakeCount = nextAwakeCount;
+			nextAwake = tmp;
+			version = space.structureVersion;
+			return recordCount;
+		}
+
+		private void collectAwake(IndexedArray<Body> bodies) {
+			for (int i = 0, n = bodies.size(); i < n; i++) {
+				Record record = record(bodies.get(i));
+				record.seen = tick;
+				if (nextAwakeCount == nextAwake.length) {
+					nextAwake = Arrays.copyOf(nextAwake, nextAwakeCount * 2);
+				}
+				nextAwake[nextAwakeCount++] = record;
+
+				int mask = quantize(record);
+				if (!record.sent) {
+					addChange(record, Change.ADDED);
+				} else if (record.asleep) {
+					addChange(record, Change.WOKE);
+				} else if (mask != 0) {
+					addChange(record, Change.CHANGED);
+				}
+			}
+		}
+
+		private Record record(Body body) {
+			Record record = records.get(body);
+			if (record == null) {
+				record = new Record(body, (freeIdCount > 0) ? freeIds[--freeIdCount] : nextId++);
+				records.put(body, record);
+			}
+			return record;
+		}
+
+		private void releaseId(int id) {
+			if (freeIdCount == freeIds.length) {
+				freeIds = Arrays.copyOf(freeIds, freeIdCount * 2);
+			}
+			freeIds[freeIdCount++] = id;
+		}
+
+		/**
+		 * Quantizes the current state of the body of the record.
+		 *
+		 * @return the mask of the state values that differ from the values sent last
+		 */
+		private int quantize(Record record) {
+			Body body = record.body;
+			int[] next = record.next;
+			BodyStore s = body.store;
+			int slot = body.slot;
+			next[0] = Math.round(s.px[slot] * positionScale);
+			next[1] = Math.round(s.py[slot] * positionScale);
+			next[2] = Math.round(s.a[slot] * angleScale);
+			next[3] = Math.round(s.vx[slot] * velocityScale);
+			next[4] = Math.round(s.vy[slot] * velocityScale);
+			next[5] = Math.round(s.w[slot] * velocityScale);
+			int mask = 0;
+			for (int i = 0; i < STATE_SIZE; i++) {
+				if (next[i] != record.sentState[i]) {
+					mask |= 1 << i;
+				}
+			}
+			return mask;
+		}
+
+		private void addChange(Record record, Change change) {
+			if (record.change != null) {
+				return;
+			}
+			if (changeCount == changes.length) {
+				changes = Arrays.copyOf(changes, changeCount * 2);
+			}
+			record.change = change;
+			changes[changeCount++] = record;
+		}
+
+		private void write(ByteBuffer buffer, Record record) {
+			int[] sent = record.sentState;
+			int[] next = record.next;
+			int mask = 0;
+			int kind;
+			switch (record.change) {
+				case ADDED:
+					mask = FULL_MASK;
+					kind = KIND_OTHER;
+					break;
+				case REMOVED:
+					kind = KIND_OTHER;
+					break;
+				default:
+					for (int i = 0; i < STATE_SIZE; i++) {
+						if (next[i] != sent[i]) {
+							mask |= 1 << i;
+						}
+					}
+					kind = (record.change == Change.CHANGED) ? KIND_CHANGED :
+							(record.change == Change.WOKE) ? KIND_WOKE : KIND_SLEPT;
+					break;
+			}
+			buffer.put((byte) ((kind << STATE_SIZE) | mask));
+			putVarInt(buffer, record.id);
+			for (int i = 0; i < STATE_SIZE; i++) {
+				if ((mask & (1 << i)) != 0) {
+					int base = (record.change == Change.ADDED) ? 0 : sent[i];
+					putVarInt(buffer, zigZag(next[i] - base));
+				}
+			}
+			if (record.change == Change.ADDED && record.body.isSleeping()) {
+				// A body added to a sleeping group is announced as added and asleep in two records.
+				buffer.put((byte) (KIND_SLEPT << STATE_SIZE));
+				putVarInt(buffer, record.id);
+			}
+		}
+
+		private void commit(Record record) {
+			Change change = record.change;
+			record.change = null;
+			if (change == Change.REMOVED) {
+				records.remove(record.body);
+				releaseId(record.id);
+				return;
+			}
+			System.arraycopy(record.next, 0, record.sentState, 0, STATE_SIZE);
+			record.sent = true;
+			record.asleep = record.body.isSleeping();
+		}
+	}
+
+	/** Reads the changes written by an {@link Encoder} one record at a time and keeps the state of every body. */
+	public static class Decoder {
+		private static final Change[] KINDS = {Change.CHANGED, Change.WOKE, Change.SLEPT};
+
+		private final float positionPrecision;
+		private final float anglePrecision;
+		private final float velocityPrecision;
+		private int[] states = new int[16 * STATE_SIZE];
+		private boolean[] sleeping = new boolean[16];
+		private ByteBuffer buffer;
+		private int remaining;
+		private Change change;
+		private int id;
+		private int mask;
+
+		/**
+		 * @param positionPrecision the quantization step of the positions used by the encoder
+		 * @param anglePrecision    the quantization step of the angles used by the encoder
+		 * @param velocityPrecision the quantization step of the velocities used by the encoder
+		 */
+		public Decoder(float positionPrecision, float anglePrecision, float velocityPrecision) {
+			this.positionPrecision = checkPrecision(positionPrecision);
+			this.anglePrecision = checkPrecision(anglePrecision);
+			this.velocityPrecision = checkPrecision(velocityPrecision);
+		}
+
+		/**
+		 * Starts reading the changes written by one call to {@link Encoder#encode(ByteBuffer)} at the current
+		 * position of the buffer.
+		 *
+		 * @param buffer the buffer to read from
+		 * @return the number of change records
+		 * @throws IllegalStateException if the records of the previous changes haven't been read completely
+		 */
+		public int begin(ByteBuffer buffer) {
+			if (remaining > 0) {
+				throw new IllegalStateException("The previous changes haven't been read completely.");
+			}
+			this.buffer = buffer;
+			this.remaining = getVarInt(buffer);
+			this.change = null;
+			return remaining;
+		}
+
+		/**
+		 * Reads the next change record and applies it to the state kept for its body. Note that a body added asleep
+		 * results in an {@link Change#ADDED} record that is followed by a {@link Change#SLEPT} record.
+		 *
+		 * @return <code>false</code> if all records have been read
+		 * @throws IllegalArgumentException if the buffer doesn't contain a valid record
+		 */
+		public boolean next() {
+			if (remaining == 0) {
+				change = null;
+				return false;
+			}
+			remaining--;
+			try {
+				int header = buffer.get() & 0xff;
+				int kind = header >>> STATE_SIZE;
+				mask = header & FULL_MASK;
+				id = getVarInt(buffer);
+				if (id < 0) {
+					throw new IllegalArgumentException("Invalid body id " + id + ".");
+				}
+				ensure(id);
+				int offset = id * STATE_SIZE;
+				if (kind == KIND_OTHER) {
+					if (mask == FULL_MASK) {
+						change = Change.ADDED;
+						for (int i = 0; i < STATE_SIZE; i++) {
+							states[offset + i] = unZigZag(getVarInt(buffer));
+						}
+						sleeping[id] = false;
+					} else if (mask == 0) {
+						change = Change.REMOVED;
+						Arrays.fill(states, offset, offset + STATE_SIZE, 0);
+						sleeping[id] = false;
+					} else {
+						throw new IllegalArgumentException("Invalid record header " + header + ".");
+					}
+				} else {
+					change = KINDS[kind];
+					for (int i = 0; i < STATE_SIZE; i++) {
+						if ((mask & (1 << i)) != 0) {
+							states[offset + i] += unZigZag(getVarInt(buffer));
+						}
+					}
+					sleeping[id] = (change == Change.SLEPT);
+				}
+			} catch (BufferUnderflowException e) {
+				throw new IllegalArgumentException("Truncated change record.", e);
+			}
+			return true;
+		}
+
+		private void ensure(int id) {
+			if (id >= sleeping.length) {
+				int capacity = Math.max(id + 1, sleeping.length * 2);
+				sleeping = Arrays.copyOf(sleeping, capacity);
+				states = Arrays.copyOf(states, capacity * STATE_SIZE);
+			}
+		}
+
+		/** @return the kind of the current record */
+		public Change getChange() {
+			return change;
+		}
+
+		/** @return the id of the body of the current record */
+		public int getId() {
+			return id;
+		}
+
+		/** @return <code>true</code> if the position or angle of the body has changed with the current record */
+		public boolean isTransformChanged() {
+			return (mask & 0x07) != 0;
+		}
+
+		/** @return <code>true</code> if the velocity of the body has changed with the current record */
+		public boolean isVelocityChanged() {
+			return (mask & 0x38) != 0;
+		}
+
+		/**
+		 * @param id the id of a body
+		 * @return <code>true</code> if the body is known to be asleep
+		 */
+		public boolean isSleeping(int id) {
+			return id < sleeping.length && sleeping[id];
+		}
+
+		public float getPositionX(int id) {
+			return state(id, 0) * positionPrecision;
+		}
+
+		public float getPositionY(int id) {
+			return state(id, 1) * positionPrecision;
+		}
+
+		public float getAngle(int id) {
+			return state(id, 2) * anglePrecision;
+		}
+
+		public float getVelocityX(int id) {
+			return state(id, 3) * velocityPrecision;
+		}
+
+		public float getVelocityY(int id) {
+			return state(id, 4) * velocityPrecision;
+		}
+
+		public float getAngularVelocity(int id) {
+			return state(id, 5) * velocityPrecision;
+		}
+
+		private int state(int id, int index) {
+			return (id < sleeping.length) ? states[id * STATE_SIZE + index] : 0;
+		}
+	}
+
+	private static class Record {
+		final Body body;
+		final int id;
+		final int[] sentState = new int[STATE_SIZE];
+		final int[] next = new int[STATE_SIZE];
+		boolean sent;
+		boolean asleep;
+		int seen;
+		Change change;
+
+		Record(Body body, int id) {
+			this.body = body;
+			this.id = id;
+		}
+	}
+
+	private static int zigZag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unZigZag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void putVarInt(ByteBuffer buffer, int value) {
+		while ((value & ~0x7f) != 0) {
+			buffer.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private static int getVarInt(ByteBuffer buffer) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = buffer.get();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed variable length integer.");
+	}
+}
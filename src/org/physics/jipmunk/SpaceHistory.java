@@ -0,0 +1,560 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk;
+
+import org.physics.jipmunk.impl.Contact;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import static org.physics.jipmunk.Assert.cpAssertSpaceUnlocked;
+
+/**
+ * Ring buffer of the recent states of a {@link Space} for rollback networking. {@link #save(int)} copies the dynamic
+ * state of the bodies, the accumulated impulses of the constraints and the cached arbiters with their contacts into
+ * primitive arrays that are reused from frame to frame, so saving doesn't allocate once the buffer is warmed up.
+ * {@link #rewind(int)} restores a saved frame in place: the shapes are reindexed incrementally and only the shapes of
+ * bodies whose sleeping state differs are moved between the spatial indexes.
+ * <p/>
+ * Only the state changed by stepping is saved. Adding or removing bodies, shapes or constraints or changing the type
+ * of a body invalidates all saved frames, and the parameters of bodies and shapes (mass, friction, ...) as well as the
+ * user data of the arbiters are not rolled back. Constraints are saved through {@link
+ * Constraint#writeState(ByteBuffer)}, which the built-in constraints implement. A rewound space continues
+ * bit-identically in deterministic mode, see {@link Space#setDeterministic(boolean)}; otherwise the broadphase may report the colliding pairs in a different
+ * order or orientation than before the rewind.
+ *
+ * @author jobernolte
+ */
+public class SpaceHistory {
+	private static final int BODY_FLOATS = 19;
+	private static final int ARBITER_INTS = 7;
+	private static final int ARBITER_FLOATS = 6;
+	private static final int CONTACT_FLOATS = 11;
+	private static final ArbiterState[] ARBITER_STATES = ArbiterState.values();
+
+	private final Space space;
+	private final Frame[] frames;
+	private int version = -1;
+	private Body[] bodies = new Body[0];
+	private Constraint[] constraints = new Constraint[0];
+	private final IdentityHashMap<Body, Integer> bodyIds = new IdentityHashMap<>();
+	private final IdentityHashMap<Constraint, Integer> constraintIds = new IdentityHashMap<>();
+	private long saveCount;
+	private final ArrayList<Arbiter> restored = new ArrayList<>();
+
+	/**
+	 * @param space    the space to save the state of
+	 * @param capacity the number of frames to keep
+	 */
+	public SpaceHistory(Space space, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive.");
+		}
+		this.space = space;
+		this.frames = new Frame[capacity];
+	}
+
+	public int getCapacity() {
+		return frames.length;
+	}
+
+	/**
+	 * @param frame the frame number
+	 * @return <code>true</code> if the given frame can be restored.
+	 */
+	public boolean contains(int frame) {
+		Frame f = frames[Math.floorMod(frame, frames.length)];
+		return f != null && f.valid && f.frame == frame && f.version == space.structureVersion;
+	}
+
+	/**
+	 * Saves the current state of the space as the given frame, replacing the frame saved <code>capacity</code> frames
+	 * earlier. Cannot be called during a step.
+	 *
+	 * @param frame the frame number, usually the number of the step that has just been completed
+	 */
+	public void save(int frame) {
+		cpAssertSpaceUnlocked(space);
+		if (version != space.structureVersion) {
+			collect();
+		}
+		int slot = Math.floorMod(frame, frames.length);
+		Frame f = frames[slot];
+		if (f == null) {
+			f = frames[slot] = new Frame();
+		}
+		f.frame = frame;
+		f.version = version;
+		f.valid = true;
+		f.stamp = space.stamp;
+		f.dt = space.curr_dt;
+		saveBodies(f);
+		saveConstraints(f);
+		saveArbiters(f);
+	}
+
+	/**
+	 * Restores the state saved for the given frame. Frames saved after it are dropped, they are saved again while the
+	 * space is simulated forward. Cannot be called during a step.
+	 *
+	 * @param frame the frame number passed to {@link #save(int)}
+	 * @throws IllegalArgumentException if the frame is not contained in the history
+	 * @throws IllegalStateException    if bodies, shapes or constraints have been added or removed since the frame was
+	 *                                  saved
+	 */
+	public void rewind(int frame) {
+		cpAssertSpaceUnlocked(space);
+		Frame f = frames[Math.floorMod(frame, frames.length)];
+		if (f == null || !f.valid || f.frame != frame) {
+			throw new IllegalArgumentException("Frame " + frame + " is not contained in the history.");
+		}
+		if (f.version != space.structureVersion) {
+			throw new IllegalStateException("The space has been modified since frame " + frame + " was saved.");
+		}
+
+		releaseArbiters();
+		restoreBodies(f);
+		restoreConstraints(f);
+		restoreArbiters(f);
+		space.stamp = f.stamp;
+		space.curr_dt = f.dt;
+		space.rehashState();
+
+		for (Frame other : frames) {
+			if (other != null && other.frame > frame) {
+				other.valid = false;
+			}
+		}
+	}
+
+	private void addBody(List<Body> list, Body body) {
+		if (!bodyIds.containsKey(body)) {
+			bodyIds.put(body, list.size());
+			list.add(body);
+		}
+	}
+
+	/** Collects the bodies and constraints of the space after its structure has changed. */
+	private void collect() {
+		List<Body> list = new ArrayList<>();
+		bodyIds.clear();
+		addBody(list, space.getStaticBody());
+		for (Body body : space.dynamicBodies) {
+			addBody(list, body);
+		}
+		for (Body body : space.otherBodies) {
+			addBody(list, body);
+		}
+		for (Body root : space.sleepingComponents) {
+			for (Body body = root; body != null; body = body.sleeping.next) {
+				addBody(list, body);
+			}
+		}
+		bodies = list.toArray(new Body[0]);
+
+		List<Constraint> constraintList = new ArrayList<>();
+		constraintIds.clear();
+		for (Body body : bodies) {
+			for (Constraint c = body.constraintList; c != null; c = Body.cpConstraintNext(c, body)) {
+				if (!constraintIds.containsKey(c)) {
+					constraintIds.put(c, constraintList.size());
+					constraintList.add(c);
+				}
+			}
+		}
+		constraints = constraintList.toArray(new Constraint[0]);
+
+		version = space.structureVersion;
+		for (Frame f : frames) {
+			if (f != null) {
+				f.valid = false;
+			}
+		}
+	}
+
+	private int bodyId(Body body) {
+		return (body == null) ? -1 : bodyIds.get(body);
+	}
+
+	private void saveBodies(Frame f) {
+		int n = bodies.length;
+		float[] state = f.bodies = ensure(f.bodies, n * BODY_FLOATS);
+		int[] links = f.links = ensure(f.links, n * 2);
+		for (int k = 0, i = 0; k < n; k++) {
+			Body body = bodies[k];
+			Transform t = body.transform;
+			BodyStore s = body.store;
+			int slot = body.slot;
+			state[i++] = s.px[slot];
+			state[i++] = s.py[slot];
+			state[i++] = s.vx[slot];
+			state[i++] = s.vy[slot];
+			state[i++] = s.fx[slot];
+			state[i++] = s.fy[slot];
+			state[i++] = s.a[slot];
+			state[i++] = s.w[slot];
+			state[i++] = s.t[slot];
+			state[i++] = s.vbx[slot];
+			state[i++] = s.vby[slot];
+			state[i++] = s.wb[slot];
+			state[i++] = body.sleeping.idleTime;
+			state[i++] = t.a;
+			state[i++] = t.b;
+			state[i++] = t.c;
+			state[i++] = t.d;
+			state[i++] = t.tx;
+			state[i++] = t.ty;
+			links[2 * k] = bodyId(body.sleeping.root);
+			links[2 * k + 1] = bodyId(body.sleeping.next);
+		}
+
+		int count = 2 + space.dynamicBodies.size() + space.sleepingComponents.size();
+		int[] order = f.bodyOrder = ensure(f.bodyOrder, count);
+		int i = 0;
+		order[i++] = space.dynamicBodies.size();
+		for (int k = 0, size = space.dynamicBodies.size(); k < size; k++) {
+			order[i++] = bodyIds.get(space.dynamicBodies.get(k));
+		}
+		order[i++] = space.sleepingComponents.size();
+		for (int k = 0, size = space.sleepingComponents.size(); k < size; k++) {
+			order[i++] = bodyIds.get(space.sleepingComponents.get(k));
+		}
+	}
+
+	private void saveConstraints(Frame f) {
+		int[] order = f.constraintOrder = ensure(f.constraintOrder, 1 + space.constraints.size());
+		order[0] = space.constraints.size();
+		for (int k = 0, size = space.constraints.size(); k < size; k++) {
+			order[k + 1] = constraintIds.get(space.constraints.get(k));
+		}
+
+		while (true) {
+			ByteBuffer buffer = f.constraintState;
+			buffer.clear();
+			try {
+				for (Constraint constraint : constraints) {
+					buffer.putInt(constraint.overloadedSteps);
+					constraint.writeState(buffer);
+				}
+				buffer.flip();
+				return;
+			} catch (BufferOverflowException e) {
+				f.constraintState = ByteBuffer.allocate(buffer.capacity() * 2);
+			}
+		}
+	}
+
+	private void saveArbiters(Frame f) {
+		long save = ++saveCount << 32;
+		f.arbiterCount = 0;
+		f.contactCount = 0;
+
+		LongHashMap.Entry<Arbiter>[] table = space.cachedArbiters.table;
+		for (int i = table.length - 1; i >= 0; i--) {
+			for (LongHashMap.Entry<Arbiter> e = table[i]; e != null; e = e.next) {
+				saveArbiter(f, e.value, save);
+			}
+		}
+		f.cachedCount = f.arbiterCount;
+		// Arbiters of sleeping components are only reachable through their bodies.
+		for (Body body : bodies) {
+			for (Arbiter arb = body.arbiterList; arb != null; arb = Arbiter.arbiterNext(arb, body)) {
+				if (arb.historyId < save) {
+					saveArbiter(f, arb, save);
+				}
+			}
+		}
+
+		int count = 1 + space.arbiters.size() + bodies.length;
+		for (Body body : bodies) {
+			for (Arbiter arb = body.arbiterList; arb != null; arb = Arbiter.arbiterNext(arb, body)) {
+				count++;
+			}
+		}
+		int[] links = f.arbiterLinks = ensure(f.arbiterLinks, count);
+		int i = 0;
+		links[i++] = space.arbiters.size();
+		for (int k = 0, size = space.arbiters.size(); k < size; k++) {
+			links[i++] = (int) space.arbiters.get(k).historyId;
+		}
+		for (Body body : bodies) {
+			int start = i++;
+			for (Arbiter arb = body.arbiterList; arb != null; arb = Arbiter.arbiterNext(arb, body)) {
+				links[i++] = (int) arb.historyId;
+			}
+			links[start] = i - start - 1;
+		}
+	}
+
+	private void saveArbiter(Frame f, Arbiter arb, long save) {
+		int index = f.arbiterCount++;
+		arb.historyId = save | index;
+
+		int count = arb.count;
+		int[] ints = f.arbiterInts = ensure(f.arbiterInts, f.arbiterCount * ARBITER_INTS);
+		int i = index * ARBITER_INTS;
+		ints[i++] = arb.a.getHashId();
+		ints[i++] = arb.b.getHashId();
+		ints[i++] = arb.stamp;
+		ints[i++] = arb.state.ordinal();
+		ints[i++] = arb.swapped ? 1 : 0;
+		ints[i++] = arb.proxyId.getValue();
+		ints[i] = count;
+
+		float[] floats = f.arbiterFloats = ensure(f.arbiterFloats, f.arbiterCount * ARBITER_FLOATS);
+		i = index * ARBITER_FLOATS;
+		floats[i++] = arb.e;
+		floats[i++] = arb.u;
+		floats[i++] = arb.surface_vr.x;
+		floats[i++] = arb.surface_vr.y;
+		floats[i++] = arb.normal.x;
+		floats[i] = arb.normal.y;
+
+		if (count > 0) {
+			int first = f.contactCount;
+			f.contactCount += count;
+			float[] contacts = f.contactFloats = ensure(f.contactFloats, f.contactCount * CONTACT_FLOATS);
+			int[] hashes = f.contactHashes = ensure(f.contactHashes, f.contactCount);
+			i = first * CONTACT_FLOATS;
+			for (int k = 0; k < count; k++) {
+				Contact con = arb.contacts[k];
+				contacts[i++] = con.getR1().x;
+				contacts[i++] = con.getR1().y;
+				contacts[i++] = con.getR2().x;
+				contacts[i++] = con.getR2().y;
+				contacts[i++] = con.getnMass();
+				contacts[i++] = con.gettMass();
+				contacts[i++] = con.getBounce();
+				contacts[i++] = con.getJnAcc();
+				contacts[i++] = con.getJtAcc();
+				contacts[i++] = con.getjBias();
+				contacts[i++] = con.getBias();
+				hashes[first + k] = con.getHash();
+			}
+		}
+	}
+
+	/** Returns the current arbiters to the pool and unlinks them from the bodies. */
+	private void releaseArbiters() {
+		LongHashMap.Entry<Arbiter>[] table = space.cachedArbiters.table;
+		for (int i = table.length - 1; i >= 0; i--) {
+			for (LongHashMap.Entry<Arbiter> e = table[i]; e != null; e = e.next) {
+				space.pooledArbiters.free(e.value);
+			}
+		}
+		for (Body root : space.sleepingComponents) {
+			for (Body body = root; body != null; body = body.sleeping.next) {
+				for (Arbiter arb = body.arbiterList; arb != null; arb = Arbiter.arbiterNext(arb, body)) {
+					Body bodyA = arb.body_a;
+					// Sleeping arbiters are owned by their first body unless it is static, see Space#activateBody().
+					if ((body == bodyA || bodyA.isStatic())
+							&& space.cachedArbiters.get(Space.cachedArbitersHashKey(arb.a, arb.b)) != arb) {
+						space.pooledArbiters.free(arb);
+					}
+				}
+			}
+		}
+		for (Body body : bodies) {
+			body.arbiterList = null;
+		}
+		space.cachedArbiters.clear();
+		space.arbiters.clear();
+	}
+
+	private void restoreBodies(Frame f) {
+		float[] state = f.bodies;
+		int[] links = f.links;
+		for (int k = 0, i = 0; k < bodies.length; k++) {
+			Body body = bodies[k];
+			BodyStore s = body.store;
+			int slot = body.slot;
+			s.px[slot] = state[i];
+			s.py[slot] = state[i + 1];
+			s.vx[slot] = state[i + 2];
+			s.vy[slot] = state[i + 3];
+			s.fx[slot] = state[i + 4];
+			s.fy[slot] = state[i + 5];
+			s.a[slot] = state[i + 6];
+			s.w[slot] = state[i + 7];
+			s.t[slot] = state[i + 8];
+			s.vbx[slot] = state[i + 9];
+			s.vby[slot] = state[i + 10];
+			s.wb[slot] = state[i + 11];
+			body.sleeping.idleTime = state[i + 12];
+			body.transform.set(state[i + 13], state[i + 14], state[i + 15], state[i + 16], state[i + 17], state[i + 18]);
+			i += BODY_FLOATS;
+
+			if (body.isStatic()) {
+				continue;
+			}
+			boolean wasSleeping = body.sleeping.root != null;
+			boolean sleeping = links[2 * k] >= 0;
+			for (Shape shape = body.shapeList; shape != null; shape = shape.next) {
+				shape.cacheBB();
+				if (wasSleeping != sleeping) {
+					SpatialIndex<Shape> from = wasSleeping ? space.staticShapes : space.dynamicShapes;
+					SpatialIndex<Shape> to = sleeping ? space.staticShapes : space.dynamicShapes;
+					from.remove(shape, shape.getHashId());
+					to.insert(shape, shape.getHashId());
+				} else if (sleeping) {
+					space.staticShapes.reindexObject(shape, shape.getHashId());
+				}
+			}
+		}
+		space.dynamicShapes.reindex();
+
+		for (int k = 0; k < bodies.length; k++) {
+			Body.ComponentNode node = bodies[k].sleeping;
+			int root = links[2 * k];
+			int next = links[2 * k + 1];
+			node.root = (root < 0) ? null : bodies[root];
+			node.next = (next < 0) ? null : bodies[next];
+		}
+
+		int[] order = f.bodyOrder;
+		int i = 0;
+		space.dynamicBodies.clear();
+		for (int n = order[i++]; n > 0; n--) {
+			space.dynamicBodies.add(bodies[order[i++]]);
+		}
+		space.sleepingComponents.clear();
+		for (int n = order[i++]; n > 0; n--) {
+			space.sleepingComponents.add(bodies[order[i++]]);
+		}
+	}
+
+	private void restoreConstraints(Frame f) {
+		int[] order = f.constraintOrder;
+		space.constraints.clear();
+		for (int k = 1; k <= order[0]; k++) {
+			space.constraints.add(constraints[order[k]]);
+		}
+
+		ByteBuffer buffer = f.constraintState;
+		buffer.rewind();
+		for (Constraint constraint : constraints) {
+			constraint.overloadedSteps = buffer.getInt();
+			constraint.readState(buffer);
+		}
+	}
+
+	private void restoreArbiters(Frame f) {
+		restored.clear();
+		int[] ints = f.arbiterInts;
+		float[] floats = f.arbiterFloats;
+		int contact = 0;
+		for (int index = 0; index < f.arbiterCount; index++) {
+			int i = index * ARBITER_INTS;
+			Arbiter arb = space.pooledArbiters.alloc();
+			arb.init(space.shapeIds.get(ints[i]), space.shapeIds.get(ints[i + 1]));
+			int j = index * ARBITER_FLOATS;
+			arb.e = floats[j];
+			arb.u = floats[j + 1];
+			arb.surface_vr.set(floats[j + 2], floats[j + 3]);
+			arb.normal.set(floats[j + 4], floats[j + 5]);
+			arb.updateHandlers(space);
+			arb.stamp = ints[i + 2];
+			arb.state = ARBITER_STATES[ints[i + 3]];
+			arb.swapped = ints[i + 4] != 0;
+			arb.proxyId.setValue(ints[i + 5]);
+			arb.setData(null);
+
+			int count = arb.count = ints[i + 6];
+			for (int k = 0; k < count; k++, contact++) {
+				int c = contact * CONTACT_FLOATS;
+				float[] data = f.contactFloats;
+				Contact con = arb.contacts[k];
+				con.getR1().set(data[c], data[c + 1]);
+				con.getR2().set(data[c + 2], data[c + 3]);
+				con.setHash(f.contactHashes[contact]);
+				con.setnMass(data[c + 4]);
+				con.settMass(data[c + 5]);
+				con.setBounce(data[c + 6]);
+				con.setJnAcc(data[c + 7]);
+				con.setJtAcc(data[c + 8]);
+				con.setjBias(data[c + 9]);
+				con.setBias(data[c + 10]);
+			}
+			restored.add(arb);
+		}
+
+		// Inserting in reverse order restores the order of the hash chains.
+		for (int index = f.cachedCount - 1; index >= 0; index--) {
+			Arbiter arb = restored.get(index);
+			space.cachedArbiters.put(Space.cachedArbitersHashKey(arb.a, arb.b), arb);
+		}
+
+		int[] links = f.arbiterLinks;
+		int i = 0;
+		for (int n = links[i++]; n > 0; n--) {
+			space.arbiters.add(restored.get(links[i++]));
+		}
+		for (Body body : bodies) {
+			Arbiter prev = null;
+			for (int n = links[i++]; n > 0; n--) {
+				Arbiter arb = restored.get(links[i++]);
+				if (prev == null) {
+					body.arbiterList = arb;
+				} else {
+					prev.threadForBody(body).next = arb;
+				}
+				arb.threadForBody(body).prev = prev;
+				prev = arb;
+			}
+		}
+		restored.clear();
+	}
+
+	private static float[] ensure(float[] array, int capacity) {
+		return (array.length >= capacity) ? array : Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+	}
+
+	private static int[] ensure(int[] array, int capacity) {
+		return (array.length >= capacity) ? array : Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+	}
+
+	private static class Frame {
+		int frame;
+		int version;
+		boolean valid;
+		int stamp;
+		float dt;
+		float[] bodies = new float[0];
+		int[] links = new int[0];
+		int[] bodyOrder = new int[0];
+		int[] constraintOrder = new int[0];
+		ByteBuffer constraintState = ByteBuffer.allocate(256);
+		int arbiterCount;
+		int cachedCount;
+		int[] arbiterInts = new int[0];
+		float[] arbiterFloats = new float[0];
+		int contactCount;
+		float[] contactFloats = new float[0];
+		int[] contactHashes = new int[0];
+		int[] arbiterLinks = new int[0];
+	}
+}
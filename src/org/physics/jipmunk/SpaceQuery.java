@@ -22,6 +22,14 @@
 
 package org.physics.jipmunk;
 
+import org.physics.jipmunk.impl.ShapeCast;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.physics.jipmunk.Space.cpSpaceLock;
 import static org.physics.jipmunk.Space.cpSpaceUnlock;
 import static org.physics.jipmunk.SpatialIndex.cpSpatialIndexQuery;
@@ -98,6 +106,192 @@ class SpaceQuery {
 		return out;
 	}
 
+	/**
+	 * Per thread scratch space of a batched segment query. The traversal stack, the query segment and the query
+	 * results are reused for every segment of every batch run on the owning thread.
+	 */
+	static class SegmentQueryBatchContext {
+		private static final ThreadLocal<SegmentQueryBatchContext> CONTEXT =
+				ThreadLocal.withInitial(SegmentQueryBatchContext::new);
+
+		final Vector2f start = cpvzero();
+		final Vector2f end = cpvzero();
+		float radius;
+		ShapeFilter filter;
+		final SegmentQueryInfo info = new SegmentQueryInfo();
+		final SegmentQueryInfo out = new SegmentQueryInfo();
+		final SpatialIndexSegmentQueryFunc<Shape> func = (obj, shape) -> query(shape);
+		@SuppressWarnings("unchecked")
+		BBTree2.Node<Shape>[] stack = (BBTree2.Node<Shape>[]) new BBTree2.Node<?>[64];
+		float[] stackT = new float[64];
+
+		static SegmentQueryBatchContext get() {
+			return CONTEXT.get();
+		}
+
+		void init(SegmentQueryBatch batch, int index, float radius) {
+			this.start.set(batch.startX[index], batch.startY[index]);
+			this.end.set(batch.endX[index], batch.endY[index]);
+			this.radius = radius;
+			this.filter = batch.filters[index];
+			this.out.shape = null;
+			this.out.point.set(this.end);
+			this.out.normal.set(0.0f, 0.0f);
+			this.out.alpha = 1.0f;
+		}
+
+		float query(Shape shape) {
+			if (!shape.filter.reject(filter) && !shape.isSensor() && shape.segmentQuery(start, end, radius, info) &&
+					info.alpha < out.alpha) {
+				out.set(info);
+			}
+			return out.alpha;
+		}
+
+		void push(BBTree2.Node<Shape> node, float t, int sp) {
+			if (sp == stack.length) {
+				stack = Arrays.copyOf(stack, sp * 2);
+				stackT = Arrays.copyOf(stackT, sp * 2);
+			}
+			stack[sp] = node;
+			stackT[sp] = t;
+		}
+
+		/**
+		 * Iterative version of {@link BBTree2#SubtreeSegmentQuery}. Children are pushed far to near so the nearer
+		 * one is visited first, and nodes are discarded once the best hit found so far lies in front of them.
+		 */
+		float segmentQuery(BBTree2.Node<Shape> root, float t_exit) {
+			if (root == null) {
+				return t_exit;
+			}
+			int sp = 0;
+			push(root, Float.NEGATIVE_INFINITY, sp++);
+			while (sp > 0) {
+				BBTree2.Node<Shape> node = stack[--sp];
+				float t = stackT[sp];
+				stack[sp] = null;
+				if (t >= t_exit) {
+					continue;
+				}
+				if (node.isLeaf()) {
+					t_exit = Util.cpfmin(t_exit, query(((BBTree2.Leaf<Shape>) node).obj));
+				} else {
+					BBTree2.SubTree<Shape> subtree = (BBTree2.SubTree<Shape>) node;
+					float t_a = BB.segmentQuery(subtree.a.bb, start, end);
+					float t_b = BB.segmentQuery(subtree.b.bb, start, end);
+					if (t_a < t_b) {
+						if (t_b < t_exit) push(subtree.b, t_b, sp++);
+						if (t_a < t_exit) push(subtree.a, t_a, sp++);
+					} else {
+						if (t_a < t_exit) push(subtree.a, t_a, sp++);
+						if (t_b < t_exit) push(subtree.b, t_b, sp++);
+					}
+				}
+			}
+			return t_exit;
+		}
+
+		void segmentQuery(SpatialIndex<Shape> index, float t_exit) {
+			if (index instanceof BBTree2) {
+				segmentQuery(((BBTree2<Shape>) index).root, t_exit);
+			} else {
+				index.segmentQuery(null, start, end, t_exit, func);
+			}
+		}
+	}
+
+	static void cpSpaceSegmentQueryFirstBatch(Space space, SegmentQueryBatch batch, float radius, int from, int to) {
+		SegmentQueryBatchContext context = SegmentQueryBatchContext.get();
+		for (int i = from; i < to; i++) {
+			context.init(batch, i, radius);
+			context.segmentQuery(space.staticShapes, 1.0f);
+			context.segmentQuery(space.dynamicShapes, context.out.alpha);
+
+			SegmentQueryInfo out = context.out;
+			batch.shapeIds[i] = out.shape != null ? out.shape.getHashId() : -1;
+			batch.alpha[i] = out.alpha;
+			batch.normalX[i] = out.normal.x;
+			batch.normalY[i] = out.normal.y;
+			batch.pointX[i] = out.point.x;
+			batch.pointY[i] = out.point.y;
+		}
+		context.filter = null;
+		context.out.shape = null;
+		context.info.shape = null;
+	}
+
+	static void cpSpaceSegmentQueryFirstBatch(Space space, SegmentQueryBatch batch, float radius, Executor executor,
+			int parallelism) {
+		final int count = batch.count;
+		// Only the bounding box trees are traversed read-only, the other indexes stamp their cells while querying.
+		boolean readOnly = (space.staticShapes instanceof BBTree2) && (space.dynamicShapes instanceof BBTree2);
+		final int chunks = (executor == null || !readOnly) ? 1 : Math.max(1, Math.min(parallelism, count));
+
+		cpSpaceLock(space);
+		try {
+			if (chunks == 1) {
+				cpSpaceSegmentQueryFirstBatch(space, batch, radius, 0, count);
+				return;
+			}
+
+			// the space is locked and the trees are only read from here on, so the chunks can be processed concurrently
+			final CountDownLatch latch = new CountDownLatch(chunks - 1);
+			final AtomicReference<Throwable> error = new AtomicReference<>();
+			for (int chunk = 1; chunk < chunks; chunk++) {
+				final int from = (int) ((long) count * chunk / chunks);
+				final int to = (int) ((long) count * (chunk + 1) / chunks);
+				Runnable task = () -> {
+					try {
+						cpSpaceSegmentQueryFirstBatch(space, batch, radius, from, to);
+					} catch (Throwable t) {
+						error.compareAndSet(null, t);
+					} finally {
+						latch.countDown();
+					}
+				};
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException e) {
+					task.run();
+				}
+			}
+			Throwable t = null;
+			try {
+				cpSpaceSegmentQueryFirstBatch(space, batch, radius, 0, count / chunks);
+			} catch (Throwable e) {
+				t = e;
+			}
+
+			// The space must stay locked until every chunk is done, even if this thread failed or is interrupted.
+			boolean interrupted = false;
+			while (true) {
+				try {
+					latch.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+
+			if (t == null) {
+				t = error.get();
+			}
+			if (t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			} else if (t instanceof Error) {
+				throw (Error) t;
+			} else if (t != null) {
+				throw new IllegalStateException(t);
+			}
+		} finally {
+			cpSpaceUnlock(space, true);
+		}
+	}
+
 	static class BBQueryContext {
 		BB bb;
 		ShapeFilter filter;
@@ -197,6 +391,68 @@ class SpaceQuery {
 		return info;
 	}
 
+	/** @return the distance of <code>point</code> to <code>bb</code>, <code>0</code> if the point lies inside. */
+	static float BBDistance(BB bb, Vector2f point) {
+		float dx = Util.cpfmax(Util.cpfmax(bb.l - point.x, point.x - bb.r), 0.0f);
+		float dy = Util.cpfmax(Util.cpfmax(bb.b - point.y, point.y - bb.t), 0.0f);
+		return Util.cpfsqrt(dx * dx + dy * dy);
+	}
+
+	static void PointQueryNearestIndex(SpatialIndex<Shape> index, Vector2f point, float maxDistance,
+			PointQueryBuffer out) {
+		if (index instanceof BBTree2) {
+			BBTree2.Node<Shape> root = ((BBTree2<Shape>) index).root;
+			if (root != null) {
+				out.pushNode(root, BBDistance(root.bb, point));
+			}
+		} else if (maxDistance != Float.POSITIVE_INFINITY) {
+			cpSpatialIndexQuery(index, null, BB.forCircle(point, Util.cpfmax(maxDistance, 0.0f)), out.queryFunc);
+		} else {
+			index.each(out.iteratorFunc);
+		}
+	}
+
+	/**
+	 * Best first search for the <code>limit</code> closest shapes. Tree nodes are expanded in the order of the distance
+	 * of their bounding box, which is a lower bound for the distance of all shapes below them, until it exceeds the
+	 * distance of the farthest shape collected so far.
+	 */
+	static int cpSpacePointQueryNearest(Space space, Vector2f point, float maxDistance, ShapeFilter filter, int limit,
+			boolean includeSensors, PointQueryBuffer out) {
+		out.begin(point, maxDistance, filter, limit, includeSensors);
+
+		cpSpaceLock(space);
+		try {
+			PointQueryNearestIndex(space.dynamicShapes, point, maxDistance, out);
+			PointQueryNearestIndex(space.staticShapes, point, maxDistance, out);
+
+			while (out.nodeCount > 0) {
+				if (out.nodeDistances[0] > Util.cpfmax(out.bound(), 0.0f)) {
+					break;
+				}
+				BBTree2.Node<Shape> node = out.popNode();
+				if (node.isLeaf()) {
+					out.offer(((BBTree2.Leaf<Shape>) node).obj);
+				} else {
+					BBTree2.SubTree<Shape> subtree = (BBTree2.SubTree<Shape>) node;
+					float bound = Util.cpfmax(out.bound(), 0.0f);
+					float d_a = BBDistance(subtree.a.bb, point);
+					if (d_a <= bound) {
+						out.pushNode(subtree.a, d_a);
+					}
+					float d_b = BBDistance(subtree.b.bb, point);
+					if (d_b <= bound) {
+						out.pushNode(subtree.b, d_b);
+					}
+				}
+			}
+		} finally {
+			out.end();
+			cpSpaceUnlock(space, true);
+		}
+		return out.count;
+	}
+
 	static class ShapeQueryContext {
 		SpaceShapeQueryFunc func;
 		boolean anyCollision;
@@ -207,12 +463,141 @@ class SpaceQuery {
 		}
 	}
 
+	static class ShapeCastContext {
+		final Shape shape;
+		final Vector2f translation;
+		/** center and half extents of the bounding box of the swept shape at its start position. */
+		final float cx, cy, hw, hh;
+		/** bounding box of the whole sweep. */
+		final BB swept;
+		final SegmentQueryInfo info = new SegmentQueryInfo();
+
+		ShapeCastContext(Shape shape, BB bb, Vector2f translation) {
+			this.shape = shape;
+			this.translation = translation;
+			this.cx = (bb.l + bb.r) * 0.5f;
+			this.cy = (bb.b + bb.t) * 0.5f;
+			this.hw = (bb.r - bb.l) * 0.5f;
+			this.hh = (bb.t - bb.b) * 0.5f;
+			this.swept = new BB(Math.min(bb.l, bb.l + translation.x), Math.min(bb.b, bb.b + translation.y),
+								Math.max(bb.r, bb.r + translation.x), Math.max(bb.t, bb.t + translation.y));
+		}
+
+		/**
+		 * @return the fraction of the translation at which the bounding box of the swept shape starts to overlap
+		 * <code>bb</code>, {@link Float#POSITIVE_INFINITY} if it never does.
+		 */
+		float enterTime(BB bb) {
+			float l = bb.l - hw, r = bb.r + hw, b = bb.b - hh, t = bb.t + hh;
+			float dx = translation.x, dy = translation.y;
+
+			float txmin, txmax;
+			if (dx == 0.0f) {
+				if (cx < l || cx > r) return Float.POSITIVE_INFINITY;
+				txmin = Float.NEGATIVE_INFINITY;
+				txmax = Float.POSITIVE_INFINITY;
+			} else {
+				float tx1 = (l - cx) / dx, tx2 = (r - cx) / dx;
+				txmin = Math.min(tx1, tx2);
+				txmax = Math.max(tx1, tx2);
+			}
+			float tymin, tymax;
+			if (dy == 0.0f) {
+				if (cy < b || cy > t) return Float.POSITIVE_INFINITY;
+				tymin = Float.NEGATIVE_INFINITY;
+				tymax = Float.POSITIVE_INFINITY;
+			} else {
+				float ty1 = (b - cy) / dy, ty2 = (t - cy) / dy;
+				tymin = Math.min(ty1, ty2);
+				tymax = Math.max(ty1, ty2);
+			}
+
+			float min = Math.max(txmin, tymin);
+			float max = Math.min(txmax, tymax);
+			if (min <= max && 0.0f <= max && min <= 1.0f) {
+				return Math.max(min, 0.0f);
+			}
+			return Float.POSITIVE_INFINITY;
+		}
+	}
+
+	static CollisionID ShapeCastQuery(Shape a, Shape b, CollisionID id, ShapeCastContext context, SegmentQueryInfo out) {
+		if (a == b || a.filter.reject(b.filter) || b.isSensor() || context.enterTime(b.bb) >= out.alpha) {
+			return id;
+		}
+
+		if (a.hasProxies()) {
+			// Sweep the parts of the moving shape one by one.
+			for (Shape part : a.queryProxies(a.bb)) {
+				CastShape(part, b, context, out);
+			}
+		} else {
+			CastShape(a, b, context, out);
+		}
+		return id;
+	}
+
+	static void CastShape(Shape a, Shape b, ShapeCastContext context, SegmentQueryInfo out) {
+		SegmentQueryInfo info = context.info;
+		if (b.hasProxies()) {
+			// Cast against the parts along the sweep, but report the shape they belong to.
+			for (Shape part : b.queryProxies(context.swept)) {
+				if (!part.isSensor() && !a.filter.reject(part.filter) && context.enterTime(part.bb) < out.alpha
+						&& ShapeCast.cast(a, context.translation, part, info) && info.alpha < out.alpha) {
+					out.set(info);
+					out.shape = b;
+				}
+			}
+		} else if (ShapeCast.cast(a, context.translation, b, info) && info.alpha < out.alpha) {
+			out.set(info);
+		}
+	}
+
+	static SegmentQueryInfo cpSpaceShapeCast(Space space, Shape shape, Vector2f translation, SegmentQueryInfo out) {
+		Body body = shape.body;
+		BB bb = (body != null ? shape.update(body.transform) : shape.getBB());
+		ShapeCastContext context = new ShapeCastContext(shape, bb, translation);
+		BB swept = context.swept;
+		out.shape = null;
+		out.point.set(0.0f, 0.0f);
+		out.normal.set(0.0f, 0.0f);
+		out.alpha = 1.0f;
+
+		cpSpaceLock(space);
+		{
+			cpSpatialIndexQuery(space.staticShapes, shape, swept,
+								(shape1, shape2, id) -> ShapeCastQuery(shape1, shape2, id, context, out));
+			cpSpatialIndexQuery(space.dynamicShapes, shape, swept,
+								(shape1, shape2, id) -> ShapeCastQuery(shape1, shape2, id, context, out));
+		}
+		cpSpaceUnlock(space, true);
+
+		return out;
+	}
+
 	// Callback from the spatial hash.
 	static CollisionID ShapeQuery(Shape a, Shape b, CollisionID id, ShapeQueryContext context) {
 		if (a.filter.reject(b.filter) || a == b) {
 			return id;
 		}
 
+		if (a.hasProxies() || b.hasProxies()) {
+			// Test the overlapping parts one by one, the callback receives the part that was hit.
+			for (Shape partA : (a.hasProxies() ? a.queryProxies(b.bb) : new Shape[]{a})) {
+				for (Shape partB : (b.hasProxies() ? b.queryProxies(partA.bb) : new Shape[]{b})) {
+					if (partA.bb.intersects(partB.bb) && !partA.filter.reject(partB.filter)) {
+						shapeQuery(partA, partB, context);
+					}
+				}
+			}
+		} else {
+			shapeQuery(a, b, context);
+		}
+
+		return id;
+	}
+
+	private static void shapeQuery(Shape a, Shape b, ShapeQueryContext context) {
 		ContactPointSet set = Shape.shapesCollide(a, b);
 		if (set.getCount() > 0) {
 			if (context.func != null) {
@@ -220,8 +605,6 @@ class SpaceQuery {
 			}
 			context.anyCollision = !(a.isSensor() || b.isSensor());
 		}
-
-		return id;
 	}
 
 	static boolean cpSpaceShapeQuery(Space space, Shape shape, SpaceShapeQueryFunc func) {
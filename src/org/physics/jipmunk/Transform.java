@@ -48,6 +48,15 @@ public class Transform {
 		this.ty = ty;
 	}
 
+	void set(float a, float b, float c, float d, float tx, float ty) {
+		this.a = a;
+		this.b = b;
+		this.c = c;
+		this.d = d;
+		this.tx = tx;
+		this.ty = ty;
+	}
+
 	/// Construct a new transform matrix in transposed order.
 	public static Transform transpose(float a, float c, float tx, float b, float d, float ty) {
 		return new Transform(a, b, c, d, tx, ty);
@@ -50,10 +50,20 @@ public class Util {
 		return (float) Math.exp(v);
 	}
 
+	/// {@link StrictMath} variant of cpfexp() giving the same result on every platform.
+	public static float cpfexpStrict(float v) {
+		return (float) StrictMath.exp(v);
+	}
+
 	public static Vector2f cpvforangle(float a) {
 		return new Vector2f((float) Math.cos(a), (float) Math.sin(a));
 	}
 
+	/// {@link StrictMath} variant of cpvforangle() giving the same result on every platform.
+	public static Vector2f cpvforangleStrict(float a) {
+		return new Vector2f((float) StrictMath.cos(a), (float) StrictMath.sin(a));
+	}
+
 	public static Vector2f cpv(float x, float y) {
 		return new Vector2f(x, y);
 	}
@@ -211,6 +221,11 @@ public class Util {
 		return (float) Math.pow(a, b);
 	}
 
+	/// {@link StrictMath} variant of cpfpow() giving the same result on every platform.
+	public static float cpfpowStrict(float a, float b) {
+		return (float) StrictMath.pow(a, b);
+	}
+
 	/// Returns the area of the bounding box.
 	static float cpBBArea(BB bb) {
 		return (bb.r - bb.l) * (bb.t - bb.b);
@@ -237,7 +252,7 @@ public class Util {
 
 	static float k_scalar_body(Body body, Vector2f r, Vector2f n) {
 		float rcn = cpvcross(r, n);
-		return body.m_inv + body.i_inv * rcn * rcn;
+		return body.getInverseMass() + body.getInverseMoment() * rcn * rcn;
 	}
 
 	public static float k_scalar(Body a, Body b, Vector2f r1, Vector2f r2, Vector2f n) {
@@ -248,7 +263,7 @@ public class Util {
 		// calculate mass matrix
 		// If I wasn'alpha lazy and wrote a proper matrix class, this wouldn'alpha be so gross...
 		float k11, k12, k21, k22;
-		float m_sum = a.m_inv + b.m_inv;
+		float m_sum = a.getInverseMass() + b.getInverseMass();
 
 		// start with I*m_sum
 		k11 = m_sum;
@@ -257,7 +272,7 @@ public class Util {
 		k22 = m_sum;
 
 		// add the influence from r1
-		float a_i_inv = a.i_inv;
+		float a_i_inv = a.getInverseMoment();
 		float r1xsq = r1.x * r1.x * a_i_inv;
 		float r1ysq = r1.y * r1.y * a_i_inv;
 		float r1nxy = -r1.x * r1.y * a_i_inv;
@@ -267,7 +282,7 @@ public class Util {
 		k22 += r1xsq;
 
 		// add the influnce from r2
-		float b_i_inv = b.i_inv;
+		float b_i_inv = b.getInverseMoment();
 		float r2xsq = r2.x * r2.x * b_i_inv;
 		float r2ysq = r2.y * r2.y * b_i_inv;
 		float r2nxy = -r2.x * r2.y * b_i_inv;
@@ -289,7 +304,7 @@ public class Util {
 		// calculate mass matrix
 		// If I wasn'alpha lazy and wrote a proper matrix class, this wouldn'alpha be so gross...
 		float k11, k12, k21, k22;
-		float m_sum = a.m_inv + b.m_inv;
+		float m_sum = a.getInverseMass() + b.getInverseMass();
 
 		// start with I*m_sum
 		k11 = m_sum;
@@ -298,7 +313,7 @@ public class Util {
 		k22 = m_sum;
 
 		// add the influence from r1
-		float a_i_inv = a.i_inv;
+		float a_i_inv = a.getInverseMoment();
 		float r1xsq = r1.x * r1.x * a_i_inv;
 		float r1ysq = r1.y * r1.y * a_i_inv;
 		float r1nxy = -r1.x * r1.y * a_i_inv;
@@ -308,7 +323,7 @@ public class Util {
 		k22 += r1xsq;
 
 		// add the influnce from r2
-		float b_i_inv = b.i_inv;
+		float b_i_inv = b.getInverseMoment();
 		float r2xsq = r2.x * r2.x * b_i_inv;
 		float r2ysq = r2.y * r2.y * b_i_inv;
 		float r2nxy = -r2.x * r2.y * b_i_inv;
@@ -334,8 +349,8 @@ public class Util {
 	}
 
 	public static Vector2f relative_velocity(Body a, Body b, Vector2f r1, Vector2f r2) {
-		Vector2f v1_sum = cpvadd(a.v, cpvmult(cpvperp(r1), a.w));
-		Vector2f v2_sum = cpvadd(b.v, cpvmult(cpvperp(r2), b.w));
+		Vector2f v1_sum = cpvadd(a.getVelocity(), cpvmult(cpvperp(r1), a.getAngularVelocity()));
+		Vector2f v2_sum = cpvadd(b.getVelocity(), cpvmult(cpvperp(r2), b.getAngularVelocity()));
 
 		return cpvsub(v2_sum, v1_sum);
 	}
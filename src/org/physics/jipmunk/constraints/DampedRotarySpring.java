@@ -25,8 +25,12 @@ package org.physics.jipmunk.constraints;
 import org.physics.jipmunk.Assert;
 import org.physics.jipmunk.Body;
 import org.physics.jipmunk.Constraint;
+import org.physics.jipmunk.ConstraintBatch;
+
+import java.nio.ByteBuffer;
 
 import static org.physics.jipmunk.Util.cpfexp;
+import static org.physics.jipmunk.Util.cpfexpStrict;
 
 /**
  * Like a damped spring, but works in an angular fashion. {@link org.physics.jipmunk.constraints.DampedRotarySpring#getRestAngle()}
@@ -95,21 +99,38 @@ public class DampedRotarySpring extends Constraint {
 		this.springTorqueFunc = springTorqueFunc;
 	}
 
+	@Override
+	protected void writeState(ByteBuffer buffer) {
+		buffer.putFloat(this.restAngle);
+		buffer.putFloat(this.stiffness);
+		buffer.putFloat(this.damping);
+		buffer.putFloat(this.jAcc);
+	}
+
+	@Override
+	protected void readState(ByteBuffer buffer) {
+		this.restAngle = buffer.getFloat();
+		this.stiffness = buffer.getFloat();
+		this.damping = buffer.getFloat();
+		this.jAcc = buffer.getFloat();
+	}
+
 	@Override
 	protected void preStep(float dt) {
 		float moment = a.getInverseMoment() + b.getInverseMoment();
 		Assert.cpAssertSoft(moment != 0.0, "Unsolvable spring.");
 		this.iSum = 1.0f / moment;
 
-		this.w_coef = 1.0f - cpfexp(-this.damping * dt * moment);
+		float decay = -this.damping * dt * moment;
+		this.w_coef = 1.0f - (isDeterministic() ? cpfexpStrict(decay) : cpfexp(decay));
 		this.target_wrn = 0.0f;
 
 		// apply spring torque
 		float j_spring = this.springTorqueFunc.apply(this, a.getAngle() - b.getAngle()) * dt;
 		this.jAcc = j_spring;
 
-		a.setAngularVelocity(a.getAngularVelocity() - j_spring * a.getInverseMoment());
-		b.setAngularVelocity(b.getAngularVelocity() + j_spring * b.getInverseMoment());
+		a.addAngularVelocity(-j_spring * a.getInverseMoment());
+		b.addAngularVelocity(j_spring * b.getInverseMoment());
 	}
 
 	@Override
@@ -130,12 +151,82 @@ public class DampedRotarySpring extends Constraint {
 		float j_damp = w_damp * this.iSum;
 		this.jAcc += j_damp;
 
-		a.setAngularVelocity(a.getAngularVelocity() + j_damp * a.getInverseMoment());
-		b.setAngularVelocity(b.getAngularVelocity() - j_damp * b.getInverseMoment());
+		a.addAngularVelocity(j_damp * a.getInverseMoment());
+		b.addAngularVelocity(-j_damp * b.getInverseMoment());
 	}
 
 	@Override
 	protected float getImpulse() {
 		return jAcc;
 	}
+
+	@Override
+	protected ConstraintBatch createBatch() {
+		return (getClass() == DampedRotarySpring.class) ? new Batch() : null;
+	}
+
+	/** Solves damped rotary springs in loops over primitive arrays. */
+	static final class Batch extends ConstraintBatch {
+		private float[] iSum, wCoef, targetWrn, jAcc;
+
+		@Override
+		protected void preStep(float dt) {
+			int n = count;
+			iSum = ensure(iSum, n);
+			wCoef = ensure(wCoef, n);
+			targetWrn = ensure(targetWrn, n);
+			jAcc = ensure(jAcc, n);
+			for (int i = 0; i < n; i++) {
+				DampedRotarySpring spring = (DampedRotarySpring) constraints[i];
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				float moment = a.getInverseMoment() + b.getInverseMoment();
+				Assert.cpAssertSoft(moment != 0.0, "Unsolvable spring.");
+				iSum[i] = 1.0f / moment;
+
+				float decay = -spring.damping * dt * moment;
+				wCoef[i] = 1.0f - (spring.isDeterministic() ? cpfexpStrict(decay) : cpfexp(decay));
+				targetWrn[i] = 0.0f;
+
+				// apply spring torque
+				float j_spring = spring.springTorqueFunc.apply(spring, a.getAngle() - b.getAngle()) * dt;
+				jAcc[i] = j_spring;
+
+				a.addAngularVelocity(-j_spring * a.getInverseMoment());
+				b.addAngularVelocity(j_spring * b.getInverseMoment());
+			}
+		}
+
+		@Override
+		protected void applyCachedImpulse(float dt_coef) {
+		}
+
+		@Override
+		protected void applyImpulse(float dt) {
+			for (int i = 0, n = count; i < n; i++) {
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+
+				// compute relative velocity
+				float wrn = a.getAngularVelocity() - b.getAngularVelocity();
+
+				// compute velocity loss from drag
+				float w_damp = (targetWrn[i] - wrn) * wCoef[i];
+				targetWrn[i] = wrn + w_damp;
+
+				float j_damp = w_damp * iSum[i];
+				jAcc[i] += j_damp;
+
+				a.addAngularVelocity(j_damp * a.getInverseMoment());
+				b.addAngularVelocity(-j_damp * b.getInverseMoment());
+			}
+		}
+
+		@Override
+		protected void finish() {
+			for (int i = 0, n = count; i < n; i++) {
+				((DampedRotarySpring) constraints[i]).jAcc = jAcc[i];
+			}
+		}
+	}
 }
@@ -24,11 +24,15 @@ package org.physics.jipmunk.constraints;
 
 import org.physics.jipmunk.Body;
 import org.physics.jipmunk.Constraint;
+import org.physics.jipmunk.ConstraintBatch;
 import org.physics.jipmunk.Util;
 import org.physics.jipmunk.Vector2f;
 
+import java.nio.ByteBuffer;
+
 import static org.physics.jipmunk.Util.apply_impulses;
 import static org.physics.jipmunk.Util.cpfexp;
+import static org.physics.jipmunk.Util.cpfexpStrict;
 import static org.physics.jipmunk.Util.cpvadd;
 import static org.physics.jipmunk.Util.cpvlength;
 import static org.physics.jipmunk.Util.cpvmult;
@@ -131,6 +135,26 @@ public class DampedSpring extends Constraint {
 		this.springForceFunc = springForceFunc;
 	}
 
+	@Override
+	protected void writeState(ByteBuffer buffer) {
+		buffer.putFloat(this.anchorA.x).putFloat(this.anchorA.y);
+		buffer.putFloat(this.anchorB.x).putFloat(this.anchorB.y);
+		buffer.putFloat(this.restLength);
+		buffer.putFloat(this.stiffness);
+		buffer.putFloat(this.damping);
+		buffer.putFloat(this.jAcc);
+	}
+
+	@Override
+	protected void readState(ByteBuffer buffer) {
+		this.anchorA = new Vector2f(buffer.getFloat(), buffer.getFloat());
+		this.anchorB = new Vector2f(buffer.getFloat(), buffer.getFloat());
+		this.restLength = buffer.getFloat();
+		this.stiffness = buffer.getFloat();
+		this.damping = buffer.getFloat();
+		this.jAcc = buffer.getFloat();
+	}
+
 	@Override
 	protected void preStep(float dt) {
 		this.r1 = a.getTransform().transformVect(cpvsub(this.anchorA, a.getCenterOfGravity()));
@@ -147,7 +171,8 @@ public class DampedSpring extends Constraint {
 		this.nMass = 1.0f / k;
 
 		this.target_vrn = 0.0f;
-		this.v_coef = 1.0f - cpfexp(-this.damping * dt * k);
+		float decay = -this.damping * dt * k;
+		this.v_coef = 1.0f - (isDeterministic() ? cpfexpStrict(decay) : cpfexp(decay));
 
 		// apply spring force
 		float f_spring = this.springForceFunc.apply(this, dist);
@@ -181,4 +206,99 @@ public class DampedSpring extends Constraint {
 	protected float getImpulse() {
 		return jAcc;
 	}
+
+	@Override
+	protected ConstraintBatch createBatch() {
+		return (getClass() == DampedSpring.class) ? new Batch() : null;
+	}
+
+	/** Solves damped springs in loops over primitive arrays. */
+	static final class Batch extends ConstraintBatch {
+		private float[] r1x, r1y, r2x, r2y, nx, ny, nMass, vCoef, targetVrn, jAcc;
+
+		@Override
+		protected void preStep(float dt) {
+			int n = count;
+			r1x = ensure(r1x, n);
+			r1y = ensure(r1y, n);
+			r2x = ensure(r2x, n);
+			r2y = ensure(r2y, n);
+			nx = ensure(nx, n);
+			ny = ensure(ny, n);
+			nMass = ensure(nMass, n);
+			vCoef = ensure(vCoef, n);
+			targetVrn = ensure(targetVrn, n);
+			jAcc = ensure(jAcc, n);
+			for (int i = 0; i < n; i++) {
+				DampedSpring spring = (DampedSpring) constraints[i];
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				Vector2f cogA = a.getCenterOfGravity();
+				Vector2f cogB = b.getCenterOfGravity();
+				float ax = spring.anchorA.x - cogA.x, ay = spring.anchorA.y - cogA.y;
+				float bx = spring.anchorB.x - cogB.x, by = spring.anchorB.y - cogB.y;
+				float r1x = this.r1x[i] = rotateX(a, ax, ay);
+				float r1y = this.r1y[i] = rotateY(a, ax, ay);
+				float r2x = this.r2x[i] = rotateX(b, bx, by);
+				float r2y = this.r2y[i] = rotateY(b, bx, by);
+
+				Vector2f pa = a.getPosition();
+				Vector2f pb = b.getPosition();
+				float dx = (pb.x + r2x) - (pa.x + r1x);
+				float dy = (pb.y + r2y) - (pa.y + r1y);
+				float dist = (float) Math.sqrt(dx * dx + dy * dy);
+				float inv = 1.0f / (dist != 0.0f ? dist : Float.POSITIVE_INFINITY);
+				float nx = this.nx[i] = dx * inv;
+				float ny = this.ny[i] = dy * inv;
+
+				float k = kScalar(a, b, r1x, r1y, r2x, r2y, nx, ny);
+				if (k == 0.0f) {
+					throw new IllegalStateException("Unsolvable spring.");
+				}
+				nMass[i] = 1.0f / k;
+
+				targetVrn[i] = 0.0f;
+				float decay = -spring.damping * dt * k;
+				vCoef[i] = 1.0f - (spring.isDeterministic() ? cpfexpStrict(decay) : cpfexp(decay));
+
+				// apply spring force
+				float f_spring = spring.springForceFunc.apply(spring, dist);
+				float j_spring = jAcc[i] = f_spring * dt;
+				applyImpulses(a, b, r1x, r1y, r2x, r2y, nx * j_spring, ny * j_spring);
+			}
+		}
+
+		@Override
+		protected void applyCachedImpulse(float dt_coef) {
+		}
+
+		@Override
+		protected void applyImpulse(float dt) {
+			for (int i = 0, n = count; i < n; i++) {
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				float r1x = this.r1x[i], r1y = this.r1y[i];
+				float r2x = this.r2x[i], r2y = this.r2y[i];
+				float nx = this.nx[i], ny = this.ny[i];
+
+				// compute relative velocity
+				float vrn = relativeVelocityX(a, b, r1y, r2y) * nx + relativeVelocityY(a, b, r1x, r2x) * ny;
+
+				// compute velocity loss from drag
+				float v_damp = (targetVrn[i] - vrn) * vCoef[i];
+				targetVrn[i] = vrn + v_damp;
+
+				float j_damp = v_damp * nMass[i];
+				jAcc[i] += j_damp;
+				applyImpulses(a, b, r1x, r1y, r2x, r2y, nx * j_damp, ny * j_damp);
+			}
+		}
+
+		@Override
+		protected void finish() {
+			for (int i = 0, n = count; i < n; i++) {
+				((DampedSpring) constraints[i]).jAcc = jAcc[i];
+			}
+		}
+	}
 }
@@ -24,8 +24,10 @@ package org.physics.jipmunk.constraints;
 
 import org.physics.jipmunk.Body;
 import org.physics.jipmunk.Constraint;
+import org.physics.jipmunk.ConstraintBatch;
+
+import java.nio.ByteBuffer;
 
-import static org.physics.jipmunk.Util.bias_coef;
 import static org.physics.jipmunk.Util.cpfabs;
 import static org.physics.jipmunk.Util.cpfclamp;
 
@@ -65,6 +67,22 @@ public class GearJoint extends Constraint {
 		this.ratio = ratio;
 	}
 
+	@Override
+	protected void writeState(ByteBuffer buffer) {
+		buffer.putFloat(this.phase);
+		buffer.putFloat(this.ratio);
+		buffer.putFloat(this.ratio_inv);
+		buffer.putFloat(this.jAcc);
+	}
+
+	@Override
+	protected void readState(ByteBuffer buffer) {
+		this.phase = buffer.getFloat();
+		this.ratio = buffer.getFloat();
+		this.ratio_inv = buffer.getFloat();
+		this.jAcc = buffer.getFloat();
+	}
+
 	@Override
 	protected void preStep(float dt) {
 		// calculate moment of inertia coefficient.
@@ -73,7 +91,7 @@ public class GearJoint extends Constraint {
 		// calculate bias velocity
 		float maxBias = this.maxBias;
 		this.bias =
-				cpfclamp(-bias_coef(this.errorBias, dt) * (b.getAngle() * this.ratio - a.getAngle() - this.phase) / dt,
+				cpfclamp(-biasCoef(dt) * (b.getAngle() * this.ratio - a.getAngle() - this.phase) / dt,
 						 -maxBias, maxBias);
 	}
 
@@ -106,4 +124,83 @@ public class GearJoint extends Constraint {
 	protected float getImpulse() {
 		return cpfabs(this.jAcc);
 	}
+
+	@Override
+	protected ConstraintBatch createBatch() {
+		return (getClass() == GearJoint.class) ? new Batch() : null;
+	}
+
+	/** Solves gear joints in loops over primitive arrays. */
+	static final class Batch extends ConstraintBatch {
+		private float[] ratio, ratioInv, iSum, bias, jAcc, maxForce;
+
+		@Override
+		protected void preStep(float dt) {
+			int n = count;
+			ratio = ensure(ratio, n);
+			ratioInv = ensure(ratioInv, n);
+			iSum = ensure(iSum, n);
+			bias = ensure(bias, n);
+			jAcc = ensure(jAcc, n);
+			maxForce = ensure(maxForce, n);
+			for (int i = 0; i < n; i++) {
+				GearJoint joint = (GearJoint) constraints[i];
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				float ratio = this.ratio[i] = joint.ratio;
+				float ratioInv = this.ratioInv[i] = joint.ratio_inv;
+
+				// calculate moment of inertia coefficient.
+				iSum[i] = 1.0f / (a.getInverseMoment() * ratioInv + ratio * b.getInverseMoment());
+
+				// calculate bias velocity
+				float maxBias = joint.maxBias;
+				bias[i] = cpfclamp(-joint.biasCoef(dt) * (b.getAngle() * ratio - a.getAngle() - joint.phase) / dt,
+								   -maxBias, maxBias);
+				jAcc[i] = joint.jAcc;
+				maxForce[i] = joint.maxForce;
+			}
+		}
+
+		@Override
+		protected void applyCachedImpulse(float dt_coef) {
+			for (int i = 0, n = count; i < n; i++) {
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				float j = jAcc[i] * dt_coef;
+				a.addAngularVelocity(-j * a.getInverseMoment() * ratioInv[i]);
+				b.addAngularVelocity(j * b.getInverseMoment());
+			}
+		}
+
+		@Override
+		protected void applyImpulse(float dt) {
+			for (int i = 0, n = count; i < n; i++) {
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+
+				// compute relative rotational velocity
+				float wr = b.getAngularVelocity() * ratio[i] - a.getAngularVelocity();
+
+				float jMax = maxForce[i] * dt;
+
+				// compute normal impulse
+				float j = (bias[i] - wr) * iSum[i];
+				float jOld = jAcc[i];
+				jAcc[i] = cpfclamp(jOld + j, -jMax, jMax);
+				j = jAcc[i] - jOld;
+
+				// apply impulse
+				a.addAngularVelocity(-j * a.getInverseMoment() * ratioInv[i]);
+				b.addAngularVelocity(j * b.getInverseMoment());
+			}
+		}
+
+		@Override
+		protected void finish() {
+			for (int i = 0, n = count; i < n; i++) {
+				((GearJoint) constraints[i]).jAcc = jAcc[i];
+			}
+		}
+	}
 }
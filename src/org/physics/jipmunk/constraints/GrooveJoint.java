@@ -24,7 +24,8 @@ package org.physics.jipmunk.constraints;
 
 import org.physics.jipmunk.*;
 
-import static org.physics.jipmunk.Util.bias_coef;
+import java.nio.ByteBuffer;
+
 import static org.physics.jipmunk.Util.cpvadd;
 import static org.physics.jipmunk.Util.cpvclamp;
 import static org.physics.jipmunk.Util.cpvcross;
@@ -100,6 +101,24 @@ public class GrooveJoint extends Constraint {
 		this.anchorB = anchorB;
 	}
 
+	@Override
+	protected void writeState(ByteBuffer buffer) {
+		buffer.putFloat(this.grooveA.x).putFloat(this.grooveA.y);
+		buffer.putFloat(this.grooveB.x).putFloat(this.grooveB.y);
+		buffer.putFloat(this.grv_n.x).putFloat(this.grv_n.y);
+		buffer.putFloat(this.anchorB.x).putFloat(this.anchorB.y);
+		buffer.putFloat(this.jAcc.x).putFloat(this.jAcc.y);
+	}
+
+	@Override
+	protected void readState(ByteBuffer buffer) {
+		this.grooveA = new Vector2f(buffer.getFloat(), buffer.getFloat());
+		this.grooveB = new Vector2f(buffer.getFloat(), buffer.getFloat());
+		this.grv_n = new Vector2f(buffer.getFloat(), buffer.getFloat());
+		this.anchorB = new Vector2f(buffer.getFloat(), buffer.getFloat());
+		this.jAcc = new Vector2f(buffer.getFloat(), buffer.getFloat());
+	}
+
 	@Override
 	protected void preStep(float dt) {
 		// calculate endpoints in worldspace
@@ -132,7 +151,7 @@ public class GrooveJoint extends Constraint {
 
 		// calculate bias velocity
 		Vector2f delta = cpvsub(cpvadd(b.getPosition(), this.r2), cpvadd(a.getPosition(), this.r1));
-		this.bias = cpvclamp(cpvmult(delta, -bias_coef(this.errorBias, dt) / dt), this.maxBias);
+		this.bias = cpvclamp(cpvmult(delta, -biasCoef(dt) / dt), this.maxBias);
 	}
 
 	@Override
@@ -167,4 +186,149 @@ public class GrooveJoint extends Constraint {
 	protected float getImpulse() {
 		return cpvlength(this.jAcc);
 	}
+
+	@Override
+	protected ConstraintBatch createBatch() {
+		return (getClass() == GrooveJoint.class) ? new Batch() : null;
+	}
+
+	/** Solves groove joints in loops over primitive arrays. */
+	static final class Batch extends ConstraintBatch {
+		private float[] r1x, r1y, r2x, r2y, tnX, tnY, clamp, k, biasX, biasY, jAccX, jAccY, maxForce;
+
+		@Override
+		protected void preStep(float dt) {
+			int n = count;
+			r1x = ensure(r1x, n);
+			r1y = ensure(r1y, n);
+			r2x = ensure(r2x, n);
+			r2y = ensure(r2y, n);
+			tnX = ensure(tnX, n);
+			tnY = ensure(tnY, n);
+			clamp = ensure(clamp, n);
+			k = ensure(k, n * 4);
+			biasX = ensure(biasX, n);
+			biasY = ensure(biasY, n);
+			jAccX = ensure(jAccX, n);
+			jAccY = ensure(jAccY, n);
+			maxForce = ensure(maxForce, n);
+			for (int i = 0; i < n; i++) {
+				GrooveJoint joint = (GrooveJoint) constraints[i];
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				Vector2f pa = a.getPosition();
+				Vector2f pb = b.getPosition();
+
+				// calculate endpoints in worldspace
+				Vector2f grooveA = joint.grooveA, grooveB = joint.grooveB;
+				float tax = transformX(a, grooveA.x, grooveA.y), tay = transformY(a, grooveA.x, grooveA.y);
+				float tbx = transformX(a, grooveB.x, grooveB.y), tby = transformY(a, grooveB.x, grooveB.y);
+
+				// calculate axis
+				float nx = tnX[i] = rotateX(a, joint.grv_n.x, joint.grv_n.y);
+				float ny = tnY[i] = rotateY(a, joint.grv_n.x, joint.grv_n.y);
+				float d = tax * nx + tay * ny;
+
+				Vector2f cogB = b.getCenterOfGravity();
+				float bx = joint.anchorB.x - cogB.x, by = joint.anchorB.y - cogB.y;
+				float r2x = this.r2x[i] = rotateX(b, bx, by);
+				float r2y = this.r2y[i] = rotateY(b, bx, by);
+
+				// calculate tangential distance along the axis of r2
+				float td = (pb.x + r2x) * ny - (pb.y + r2y) * nx;
+				// calculate clamping factor and r2
+				float r1x, r1y;
+				if (td <= tax * ny - tay * nx) {
+					clamp[i] = 1.0f;
+					r1x = tax - pa.x;
+					r1y = tay - pa.y;
+				} else if (td >= tbx * ny - tby * nx) {
+					clamp[i] = -1.0f;
+					r1x = tbx - pa.x;
+					r1y = tby - pa.y;
+				} else {
+					clamp[i] = 0.0f;
+					r1x = (-ny * -td + nx * d) - pa.x;
+					r1y = (nx * -td + ny * d) - pa.y;
+				}
+				this.r1x[i] = r1x;
+				this.r1y[i] = r1y;
+
+				// Calculate mass tensor
+				kTensor(a, b, r1x, r1y, r2x, r2y, k, i * 4);
+
+				// calculate bias velocity
+				float coef = -joint.biasCoef(dt) / dt;
+				float bx0 = ((pb.x + r2x) - (pa.x + r1x)) * coef;
+				float by0 = ((pb.y + r2y) - (pa.y + r1y)) * coef;
+				float maxBias = joint.maxBias;
+				if (bx0 * bx0 + by0 * by0 > maxBias * maxBias) {
+					float s = 1.0f / (float) Math.sqrt(bx0 * bx0 + by0 * by0);
+					bx0 = bx0 * s * maxBias;
+					by0 = by0 * s * maxBias;
+				}
+				biasX[i] = bx0;
+				biasY[i] = by0;
+				jAccX[i] = joint.jAcc.x;
+				jAccY[i] = joint.jAcc.y;
+				maxForce[i] = joint.maxForce;
+			}
+		}
+
+		@Override
+		protected void applyCachedImpulse(float dt_coef) {
+			for (int i = 0, n = count; i < n; i++) {
+				applyImpulses(bodyA[i], bodyB[i], r1x[i], r1y[i], r2x[i], r2y[i], jAccX[i] * dt_coef,
+							  jAccY[i] * dt_coef);
+			}
+		}
+
+		@Override
+		protected void applyImpulse(float dt) {
+			float[] k = this.k;
+			for (int i = 0, n = count; i < n; i++) {
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				float r1x = this.r1x[i], r1y = this.r1y[i];
+				float r2x = this.r2x[i], r2y = this.r2y[i];
+
+				// compute impulse
+				float vrx = relativeVelocityX(a, b, r1y, r2y);
+				float vry = relativeVelocityY(a, b, r1x, r2x);
+
+				float dx = biasX[i] - vrx, dy = biasY[i] - vry;
+				int o = i * 4;
+				float jx = dx * k[o] + dy * k[o + 1];
+				float jy = dx * k[o + 2] + dy * k[o + 3];
+				float jOldX = jAccX[i], jOldY = jAccY[i];
+
+				// constrain the impulse to the groove
+				float accX = jOldX + jx, accY = jOldY + jy;
+				float nx = tnX[i], ny = tnY[i];
+				if (!(clamp[i] * (accX * ny - accY * nx) > 0.0f)) {
+					float s = (accX * nx + accY * ny) / (nx * nx + ny * ny);
+					accX = nx * s;
+					accY = ny * s;
+				}
+				float max = maxForce[i] * dt;
+				if (accX * accX + accY * accY > max * max) {
+					float s = 1.0f / (float) Math.sqrt(accX * accX + accY * accY);
+					accX = accX * s * max;
+					accY = accY * s * max;
+				}
+				jAccX[i] = accX;
+				jAccY[i] = accY;
+
+				// apply impulse
+				applyImpulses(a, b, r1x, r1y, r2x, r2y, accX - jOldX, accY - jOldY);
+			}
+		}
+
+		@Override
+		protected void finish() {
+			for (int i = 0, n = count; i < n; i++) {
+				((GrooveJoint) constraints[i]).jAcc.set(jAccX[i], jAccY[i]);
+			}
+		}
+	}
 }
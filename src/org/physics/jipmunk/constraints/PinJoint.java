@@ -24,9 +24,12 @@ package org.physics.jipmunk.constraints;
 
 import org.physics.jipmunk.Body;
 import org.physics.jipmunk.Constraint;
+import org.physics.jipmunk.ConstraintBatch;
 import org.physics.jipmunk.Util;
 import org.physics.jipmunk.Vector2f;
 
+import java.nio.ByteBuffer;
+
 import static org.physics.jipmunk.Util.*;
 
 /** @author jobernolte */
@@ -91,6 +94,22 @@ public class PinJoint extends Constraint {
 		this.dist = dist;
 	}
 
+	@Override
+	protected void writeState(ByteBuffer buffer) {
+		buffer.putFloat(this.anchorA.x).putFloat(this.anchorA.y);
+		buffer.putFloat(this.anchorB.x).putFloat(this.anchorB.y);
+		buffer.putFloat(this.dist);
+		buffer.putFloat(this.jnAcc);
+	}
+
+	@Override
+	protected void readState(ByteBuffer buffer) {
+		this.anchorA = new Vector2f(buffer.getFloat(), buffer.getFloat());
+		this.anchorB = new Vector2f(buffer.getFloat(), buffer.getFloat());
+		this.dist = buffer.getFloat();
+		this.jnAcc = buffer.getFloat();
+	}
+
 	@Override
 	protected void preStep(float dt) {
 		Body a = this.a;
@@ -108,7 +127,7 @@ public class PinJoint extends Constraint {
 
 		// calculate bias velocity
 		float maxBias = this.maxBias;
-		this.bias = cpfclamp(-bias_coef(this.errorBias, dt) * (dist - this.dist) / dt, -maxBias, maxBias);
+		this.bias = cpfclamp(-biasCoef(dt) * (dist - this.dist) / dt, -maxBias, maxBias);
 	}
 
 	@Override
@@ -146,4 +165,99 @@ public class PinJoint extends Constraint {
 		return cpfabs(this.jnAcc);
 	}
 
+	@Override
+	protected ConstraintBatch createBatch() {
+		return (getClass() == PinJoint.class) ? new Batch() : null;
+	}
+
+	/** Solves pin joints in loops over primitive arrays. */
+	static final class Batch extends ConstraintBatch {
+		private float[] r1x, r1y, r2x, r2y, nx, ny, nMass, bias, jnAcc, maxForce;
+
+		@Override
+		protected void preStep(float dt) {
+			int n = count;
+			r1x = ensure(r1x, n);
+			r1y = ensure(r1y, n);
+			r2x = ensure(r2x, n);
+			r2y = ensure(r2y, n);
+			nx = ensure(nx, n);
+			ny = ensure(ny, n);
+			nMass = ensure(nMass, n);
+			bias = ensure(bias, n);
+			jnAcc = ensure(jnAcc, n);
+			maxForce = ensure(maxForce, n);
+			for (int i = 0; i < n; i++) {
+				PinJoint joint = (PinJoint) constraints[i];
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				Vector2f cogA = a.getCenterOfGravity();
+				Vector2f cogB = b.getCenterOfGravity();
+				float ax = joint.anchorA.x - cogA.x, ay = joint.anchorA.y - cogA.y;
+				float bx = joint.anchorB.x - cogB.x, by = joint.anchorB.y - cogB.y;
+				float r1x = this.r1x[i] = rotateX(a, ax, ay);
+				float r1y = this.r1y[i] = rotateY(a, ax, ay);
+				float r2x = this.r2x[i] = rotateX(b, bx, by);
+				float r2y = this.r2y[i] = rotateY(b, bx, by);
+
+				Vector2f pa = a.getPosition();
+				Vector2f pb = b.getPosition();
+				float dx = (pb.x + r2x) - (pa.x + r1x);
+				float dy = (pb.y + r2y) - (pa.y + r1y);
+				float dist = (float) Math.sqrt(dx * dx + dy * dy);
+				float inv = 1.0f / (dist != 0 ? dist : Float.POSITIVE_INFINITY);
+				float nx = this.nx[i] = dx * inv;
+				float ny = this.ny[i] = dy * inv;
+
+				// calculate mass normal
+				nMass[i] = 1.0f / kScalar(a, b, r1x, r1y, r2x, r2y, nx, ny);
+
+				// calculate bias velocity
+				float maxBias = joint.maxBias;
+				bias[i] = cpfclamp(-joint.biasCoef(dt) * (dist - joint.dist) / dt, -maxBias, maxBias);
+				jnAcc[i] = joint.jnAcc;
+				maxForce[i] = joint.maxForce;
+			}
+		}
+
+		@Override
+		protected void applyCachedImpulse(float dt_coef) {
+			for (int i = 0, n = count; i < n; i++) {
+				float j = jnAcc[i] * dt_coef;
+				applyImpulses(bodyA[i], bodyB[i], r1x[i], r1y[i], r2x[i], r2y[i], nx[i] * j, ny[i] * j);
+			}
+		}
+
+		@Override
+		protected void applyImpulse(float dt) {
+			for (int i = 0, n = count; i < n; i++) {
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				float r1x = this.r1x[i], r1y = this.r1y[i];
+				float r2x = this.r2x[i], r2y = this.r2y[i];
+				float nx = this.nx[i], ny = this.ny[i];
+
+				// compute relative velocity
+				float vrn = relativeVelocityX(a, b, r1y, r2y) * nx + relativeVelocityY(a, b, r1x, r2x) * ny;
+
+				float jnMax = maxForce[i] * dt;
+
+				// compute normal impulse
+				float jn = (bias[i] - vrn) * nMass[i];
+				float jnOld = jnAcc[i];
+				float acc = jnAcc[i] = cpfclamp(jnOld + jn, -jnMax, jnMax);
+				jn = acc - jnOld;
+
+				// apply impulse
+				applyImpulses(a, b, r1x, r1y, r2x, r2y, nx * jn, ny * jn);
+			}
+		}
+
+		@Override
+		protected void finish() {
+			for (int i = 0, n = count; i < n; i++) {
+				((PinJoint) constraints[i]).jnAcc = jnAcc[i];
+			}
+		}
+	}
 }
@@ -24,6 +24,8 @@ package org.physics.jipmunk.constraints;
 
 import org.physics.jipmunk.*;
 
+import java.nio.ByteBuffer;
+
 import static org.physics.jipmunk.Util.*;
 
 /** @author jobernolte */
@@ -80,6 +82,20 @@ public class PivotJoint extends Constraint {
 		this.anchorB.set(anchorB);
 	}
 
+	@Override
+	protected void writeState(ByteBuffer buffer) {
+		buffer.putFloat(this.anchorA.x).putFloat(this.anchorA.y);
+		buffer.putFloat(this.anchorB.x).putFloat(this.anchorB.y);
+		buffer.putFloat(this.jAcc.x).putFloat(this.jAcc.y);
+	}
+
+	@Override
+	protected void readState(ByteBuffer buffer) {
+		this.anchorA = new Vector2f(buffer.getFloat(), buffer.getFloat());
+		this.anchorB = new Vector2f(buffer.getFloat(), buffer.getFloat());
+		this.jAcc = new Vector2f(buffer.getFloat(), buffer.getFloat());
+	}
+
 	@Override
 	protected void preStep(float dt) {
 
@@ -91,7 +107,7 @@ public class PivotJoint extends Constraint {
 
 		// calculate bias velocity
 		Vector2f delta = cpvsub(cpvadd(b.getPosition(), this.r2), cpvadd(a.getPosition(), this.r1));
-		this.bias = cpvclamp(cpvmult(delta, -bias_coef(this.errorBias, dt) / dt), this.maxBias);
+		this.bias = cpvclamp(cpvmult(delta, -biasCoef(dt) / dt), this.maxBias);
 	}
 
 	@Override
@@ -121,4 +137,112 @@ public class PivotJoint extends Constraint {
 	protected float getImpulse() {
 		return cpvlength(this.jAcc);
 	}
+
+	@Override
+	protected ConstraintBatch createBatch() {
+		return (getClass() == PivotJoint.class) ? new Batch() : null;
+	}
+
+	/** Solves pivot joints in loops over primitive arrays. */
+	static final class Batch extends ConstraintBatch {
+		private float[] r1x, r1y, r2x, r2y, k, biasX, biasY, jAccX, jAccY, maxForce;
+
+		@Override
+		protected void preStep(float dt) {
+			int n = count;
+			r1x = ensure(r1x, n);
+			r1y = ensure(r1y, n);
+			r2x = ensure(r2x, n);
+			r2y = ensure(r2y, n);
+			k = ensure(k, n * 4);
+			biasX = ensure(biasX, n);
+			biasY = ensure(biasY, n);
+			jAccX = ensure(jAccX, n);
+			jAccY = ensure(jAccY, n);
+			maxForce = ensure(maxForce, n);
+			for (int i = 0; i < n; i++) {
+				PivotJoint joint = (PivotJoint) constraints[i];
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				Vector2f cogA = a.getCenterOfGravity();
+				Vector2f cogB = b.getCenterOfGravity();
+				float ax = joint.anchorA.x - cogA.x, ay = joint.anchorA.y - cogA.y;
+				float bx = joint.anchorB.x - cogB.x, by = joint.anchorB.y - cogB.y;
+				float r1x = this.r1x[i] = rotateX(a, ax, ay);
+				float r1y = this.r1y[i] = rotateY(a, ax, ay);
+				float r2x = this.r2x[i] = rotateX(b, bx, by);
+				float r2y = this.r2y[i] = rotateY(b, bx, by);
+
+				// Calculate mass tensor
+				kTensor(a, b, r1x, r1y, r2x, r2y, k, i * 4);
+
+				// calculate bias velocity
+				Vector2f pa = a.getPosition();
+				Vector2f pb = b.getPosition();
+				float coef = -joint.biasCoef(dt) / dt;
+				float bx0 = ((pb.x + r2x) - (pa.x + r1x)) * coef;
+				float by0 = ((pb.y + r2y) - (pa.y + r1y)) * coef;
+				float maxBias = joint.maxBias;
+				if (bx0 * bx0 + by0 * by0 > maxBias * maxBias) {
+					float s = 1.0f / (float) Math.sqrt(bx0 * bx0 + by0 * by0);
+					bx0 = bx0 * s * maxBias;
+					by0 = by0 * s * maxBias;
+				}
+				biasX[i] = bx0;
+				biasY[i] = by0;
+				jAccX[i] = joint.jAcc.x;
+				jAccY[i] = joint.jAcc.y;
+				maxForce[i] = joint.maxForce;
+			}
+		}
+
+		@Override
+		protected void applyCachedImpulse(float dt_coef) {
+			for (int i = 0, n = count; i < n; i++) {
+				applyImpulses(bodyA[i], bodyB[i], r1x[i], r1y[i], r2x[i], r2y[i], jAccX[i] * dt_coef,
+							  jAccY[i] * dt_coef);
+			}
+		}
+
+		@Override
+		protected void applyImpulse(float dt) {
+			float[] k = this.k;
+			for (int i = 0, n = count; i < n; i++) {
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				float r1x = this.r1x[i], r1y = this.r1y[i];
+				float r2x = this.r2x[i], r2y = this.r2y[i];
+
+				// compute relative velocity
+				float vrx = relativeVelocityX(a, b, r1y, r2y);
+				float vry = relativeVelocityY(a, b, r1x, r2x);
+
+				// compute normal impulse
+				float dx = biasX[i] - vrx, dy = biasY[i] - vry;
+				int o = i * 4;
+				float jx = dx * k[o] + dy * k[o + 1];
+				float jy = dx * k[o + 2] + dy * k[o + 3];
+				float jOldX = jAccX[i], jOldY = jAccY[i];
+				float accX = jOldX + jx, accY = jOldY + jy;
+				float max = maxForce[i] * dt;
+				if (accX * accX + accY * accY > max * max) {
+					float s = 1.0f / (float) Math.sqrt(accX * accX + accY * accY);
+					accX = accX * s * max;
+					accY = accY * s * max;
+				}
+				jAccX[i] = accX;
+				jAccY[i] = accY;
+
+				// apply impulse
+				applyImpulses(a, b, r1x, r1y, r2x, r2y, accX - jOldX, accY - jOldY);
+			}
+		}
+
+		@Override
+		protected void finish() {
+			for (int i = 0, n = count; i < n; i++) {
+				((PivotJoint) constraints[i]).jAcc.set(jAccX[i], jAccY[i]);
+			}
+		}
+	}
 }
@@ -24,6 +24,9 @@ package org.physics.jipmunk.constraints;
 
 import org.physics.jipmunk.Body;
 import org.physics.jipmunk.Constraint;
+import org.physics.jipmunk.ConstraintBatch;
+
+import java.nio.ByteBuffer;
 
 import static org.physics.jipmunk.Util.*;
 
@@ -72,6 +75,22 @@ public class RatchetJoint extends Constraint {
 		this.ratchet = ratchet;
 	}
 
+	@Override
+	protected void writeState(ByteBuffer buffer) {
+		buffer.putFloat(this.angle);
+		buffer.putFloat(this.phase);
+		buffer.putFloat(this.ratchet);
+		buffer.putFloat(this.jAcc);
+	}
+
+	@Override
+	protected void readState(ByteBuffer buffer) {
+		this.angle = buffer.getFloat();
+		this.phase = buffer.getFloat();
+		this.ratchet = buffer.getFloat();
+		this.jAcc = buffer.getFloat();
+	}
+
 	@Override
 	protected void preStep(float dt) {
 		float angle = this.angle;
@@ -93,7 +112,7 @@ public class RatchetJoint extends Constraint {
 
 		// calculate bias velocity
 		float maxBias = this.maxBias;
-		this.bias = cpfclamp(-bias_coef(this.errorBias, dt) * pdist / dt, -maxBias, maxBias);
+		this.bias = cpfclamp(-biasCoef(dt) * pdist / dt, -maxBias, maxBias);
 
 		// If the bias is 0, the joint is not at a limit. Reset the impulse.
 		if (this.bias == 0) {
@@ -104,8 +123,8 @@ public class RatchetJoint extends Constraint {
 	@Override
 	protected void applyCachedImpulse(float dt_coef) {
 		float j = this.jAcc * dt_coef;
-		a.setAngularVelocity(a.getAngularVelocity() - j * a.getInverseMoment());
-		b.setAngularVelocity(b.getAngularVelocity() + j * b.getInverseMoment());
+		a.addAngularVelocity(-j * a.getInverseMoment());
+		b.addAngularVelocity(j * b.getInverseMoment());
 	}
 
 	@Override
@@ -127,12 +146,107 @@ public class RatchetJoint extends Constraint {
 		j = this.jAcc - jOld;
 
 		// apply impulse
-		a.setAngularVelocity(a.getAngularVelocity() - j * a.getInverseMoment());
-		b.setAngularVelocity(b.getAngularVelocity() + j * b.getInverseMoment());
+		a.addAngularVelocity(-j * a.getInverseMoment());
+		b.addAngularVelocity(j * b.getInverseMoment());
 	}
 
 	@Override
 	protected float getImpulse() {
 		return cpfabs(this.jAcc);
 	}
+
+	@Override
+	protected ConstraintBatch createBatch() {
+		return (getClass() == RatchetJoint.class) ? new Batch() : null;
+	}
+
+	/** Solves ratchet joints in loops over primitive arrays. */
+	static final class Batch extends ConstraintBatch {
+		private float[] ratchet, iSum, bias, jAcc, maxForce;
+
+		@Override
+		protected void preStep(float dt) {
+			int n = count;
+			ratchet = ensure(ratchet, n);
+			iSum = ensure(iSum, n);
+			bias = ensure(bias, n);
+			jAcc = ensure(jAcc, n);
+			maxForce = ensure(maxForce, n);
+			for (int i = 0; i < n; i++) {
+				RatchetJoint joint = (RatchetJoint) constraints[i];
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				float angle = joint.angle;
+				float phase = joint.phase;
+				float ratchet = this.ratchet[i] = joint.ratchet;
+
+				float delta = b.getAngle() - a.getAngle();
+				float diff = angle - delta;
+				float pdist = 0.0f;
+
+				if (diff * ratchet > 0.0f) {
+					pdist = diff;
+				} else {
+					joint.angle = (float) (Math.floor((delta - phase) / ratchet) * ratchet + phase);
+				}
+
+				// calculate moment of inertia coefficient.
+				iSum[i] = 1.0f / (a.getInverseMoment() + b.getInverseMoment());
+
+				// calculate bias velocity
+				float maxBias = joint.maxBias;
+				float bias = this.bias[i] = cpfclamp(-joint.biasCoef(dt) * pdist / dt, -maxBias, maxBias);
+
+				// If the bias is 0, the joint is not at a limit. Reset the impulse.
+				jAcc[i] = (bias == 0) ? 0.0f : joint.jAcc;
+				maxForce[i] = joint.maxForce;
+			}
+		}
+
+		@Override
+		protected void applyCachedImpulse(float dt_coef) {
+			for (int i = 0, n = count; i < n; i++) {
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				float j = jAcc[i] * dt_coef;
+				a.addAngularVelocity(-j * a.getInverseMoment());
+				b.addAngularVelocity(j * b.getInverseMoment());
+			}
+		}
+
+		@Override
+		protected void applyImpulse(float dt) {
+			for (int i = 0, n = count; i < n; i++) {
+				float bias = this.bias[i];
+				if (bias == 0) {
+					continue; // early exit
+				}
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+
+				// compute relative rotational velocity
+				float wr = b.getAngularVelocity() - a.getAngularVelocity();
+				float ratchet = this.ratchet[i];
+
+				float jMax = maxForce[i] * dt;
+
+				// compute normal impulse
+				float j = -(bias + wr) * iSum[i];
+				float jOld = jAcc[i];
+				jAcc[i] = cpfclamp((jOld + j) * ratchet, 0.0f, jMax * cpfabs(ratchet)) / ratchet;
+				j = jAcc[i] - jOld;
+
+				// apply impulse
+				a.addAngularVelocity(-j * a.getInverseMoment());
+				b.addAngularVelocity(j * b.getInverseMoment());
+			}
+		}
+
+		@Override
+		protected void finish() {
+			for (int i = 0, n = count; i < n; i++) {
+				((RatchetJoint) constraints[i]).jAcc = jAcc[i];
+			}
+		}
+	}
 }
@@ -24,6 +24,9 @@ package org.physics.jipmunk.constraints;
 
 import org.physics.jipmunk.Body;
 import org.physics.jipmunk.Constraint;
+import org.physics.jipmunk.ConstraintBatch;
+
+import java.nio.ByteBuffer;
 
 import static org.physics.jipmunk.Util.*;
 
@@ -61,6 +64,20 @@ public class RotaryLimitJoint extends Constraint {
 		this.max = max;
 	}
 
+	@Override
+	protected void writeState(ByteBuffer buffer) {
+		buffer.putFloat(this.min);
+		buffer.putFloat(this.max);
+		buffer.putFloat(this.jAcc);
+	}
+
+	@Override
+	protected void readState(ByteBuffer buffer) {
+		this.min = buffer.getFloat();
+		this.max = buffer.getFloat();
+		this.jAcc = buffer.getFloat();
+	}
+
 	@Override
 	protected void preStep(float dt) {
 		float dist = b.getAngle() - a.getAngle();
@@ -76,7 +93,7 @@ public class RotaryLimitJoint extends Constraint {
 
 		// calculate bias velocity
 		float maxBias = this.maxBias;
-		this.bias = cpfclamp(-bias_coef(this.errorBias, dt) * pdist / dt, -maxBias, maxBias);
+		this.bias = cpfclamp(-biasCoef(dt) * pdist / dt, -maxBias, maxBias);
 
 		// If the bias is 0, the joint is not at a limit. Reset the impulse.
 		if (this.bias == 0) {
@@ -87,8 +104,8 @@ public class RotaryLimitJoint extends Constraint {
 	@Override
 	protected void applyCachedImpulse(float dt_coef) {
 		float j = this.jAcc * dt_coef;
-		a.setAngularVelocity(a.getAngularVelocity() - j * a.getInverseMoment());
-		b.setAngularVelocity(b.getAngularVelocity() + j * b.getInverseMoment());
+		a.addAngularVelocity(-j * a.getInverseMoment());
+		b.addAngularVelocity(j * b.getInverseMoment());
 	}
 
 	@Override
@@ -113,12 +130,103 @@ public class RotaryLimitJoint extends Constraint {
 		j = this.jAcc - jOld;
 
 		// apply impulse
-		a.setAngularVelocity(a.getAngularVelocity() - j * a.getInverseMoment());
-		b.setAngularVelocity(b.getAngularVelocity() + j * b.getInverseMoment());
+		a.addAngularVelocity(-j * a.getInverseMoment());
+		b.addAngularVelocity(j * b.getInverseMoment());
 	}
 
 	@Override
 	protected float getImpulse() {
 		return cpfabs(this.jAcc);
 	}
+
+	@Override
+	protected ConstraintBatch createBatch() {
+		return (getClass() == RotaryLimitJoint.class) ? new Batch() : null;
+	}
+
+	/** Solves rotary limit joints in loops over primitive arrays. */
+	static final class Batch extends ConstraintBatch {
+		private float[] iSum, bias, jAcc, maxForce;
+
+		@Override
+		protected void preStep(float dt) {
+			int n = count;
+			iSum = ensure(iSum, n);
+			bias = ensure(bias, n);
+			jAcc = ensure(jAcc, n);
+			maxForce = ensure(maxForce, n);
+			for (int i = 0; i < n; i++) {
+				RotaryLimitJoint joint = (RotaryLimitJoint) constraints[i];
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				float dist = b.getAngle() - a.getAngle();
+				float pdist = 0.0f;
+				if (dist > joint.max) {
+					pdist = joint.max - dist;
+				} else if (dist < joint.min) {
+					pdist = joint.min - dist;
+				}
+
+				// calculate moment of inertia coefficient.
+				iSum[i] = 1.0f / (a.getInverseMoment() + b.getInverseMoment());
+
+				// calculate bias velocity
+				float maxBias = joint.maxBias;
+				float bias = this.bias[i] = cpfclamp(-joint.biasCoef(dt) * pdist / dt, -maxBias, maxBias);
+
+				// If the bias is 0, the joint is not at a limit. Reset the impulse.
+				jAcc[i] = (bias == 0) ? 0.0f : joint.jAcc;
+				maxForce[i] = joint.maxForce;
+			}
+		}
+
+		@Override
+		protected void applyCachedImpulse(float dt_coef) {
+			for (int i = 0, n = count; i < n; i++) {
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				float j = jAcc[i] * dt_coef;
+				a.addAngularVelocity(-j * a.getInverseMoment());
+				b.addAngularVelocity(j * b.getInverseMoment());
+			}
+		}
+
+		@Override
+		protected void applyImpulse(float dt) {
+			for (int i = 0, n = count; i < n; i++) {
+				float bias = this.bias[i];
+				if (bias == 0) {
+					continue; // early exit
+				}
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+
+				// compute relative rotational velocity
+				float wr = b.getAngularVelocity() - a.getAngularVelocity();
+
+				float jMax = maxForce[i] * dt;
+
+				// compute normal impulse
+				float j = -(bias + wr) * iSum[i];
+				float jOld = jAcc[i];
+				if (bias < 0.0f) {
+					jAcc[i] = cpfclamp(jOld + j, 0.0f, jMax);
+				} else {
+					jAcc[i] = cpfclamp(jOld + j, -jMax, 0.0f);
+				}
+				j = jAcc[i] - jOld;
+
+				// apply impulse
+				a.addAngularVelocity(-j * a.getInverseMoment());
+				b.addAngularVelocity(j * b.getInverseMoment());
+			}
+		}
+
+		@Override
+		protected void finish() {
+			for (int i = 0, n = count; i < n; i++) {
+				((RotaryLimitJoint) constraints[i]).jAcc = jAcc[i];
+			}
+		}
+	}
 }
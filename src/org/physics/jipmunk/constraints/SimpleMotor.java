@@ -24,6 +24,9 @@ package org.physics.jipmunk.constraints;
 
 import org.physics.jipmunk.Body;
 import org.physics.jipmunk.Constraint;
+import org.physics.jipmunk.ConstraintBatch;
+
+import java.nio.ByteBuffer;
 
 import static org.physics.jipmunk.Util.cpfabs;
 import static org.physics.jipmunk.Util.cpfclamp;
@@ -51,6 +54,18 @@ public class SimpleMotor extends Constraint {
 		this.rate = rate;
 	}
 
+	@Override
+	protected void writeState(ByteBuffer buffer) {
+		buffer.putFloat(this.rate);
+		buffer.putFloat(this.jAcc);
+	}
+
+	@Override
+	protected void readState(ByteBuffer buffer) {
+		this.rate = buffer.getFloat();
+		this.jAcc = buffer.getFloat();
+	}
+
 	@Override
 	protected void preStep(float dt) {
 		// calculate moment of inertia coefficient.
@@ -86,4 +101,75 @@ public class SimpleMotor extends Constraint {
 	protected float getImpulse() {
 		return cpfabs(this.jAcc);
 	}
+
+	@Override
+	protected ConstraintBatch createBatch() {
+		return (getClass() == SimpleMotor.class) ? new Batch() : null;
+	}
+
+	/** Solves simple motors in loops over primitive arrays. */
+	static final class Batch extends ConstraintBatch {
+		private float[] rate, iSum, jAcc, maxForce;
+
+		@Override
+		protected void preStep(float dt) {
+			int n = count;
+			rate = ensure(rate, n);
+			iSum = ensure(iSum, n);
+			jAcc = ensure(jAcc, n);
+			maxForce = ensure(maxForce, n);
+			for (int i = 0; i < n; i++) {
+				SimpleMotor motor = (SimpleMotor) constraints[i];
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+
+				// calculate moment of inertia coefficient.
+				iSum[i] = 1.0f / (a.getInverseMoment() + b.getInverseMoment());
+				rate[i] = motor.rate;
+				jAcc[i] = motor.jAcc;
+				maxForce[i] = motor.maxForce;
+			}
+		}
+
+		@Override
+		protected void applyCachedImpulse(float dt_coef) {
+			for (int i = 0, n = count; i < n; i++) {
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				float j = jAcc[i] * dt_coef;
+				a.addAngularVelocity(-j * a.getInverseMoment());
+				b.addAngularVelocity(j * b.getInverseMoment());
+			}
+		}
+
+		@Override
+		protected void applyImpulse(float dt) {
+			for (int i = 0, n = count; i < n; i++) {
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+
+				// compute relative rotational velocity
+				float wr = b.getAngularVelocity() - a.getAngularVelocity() + rate[i];
+
+				float jMax = maxForce[i] * dt;
+
+				// compute normal impulse
+				float j = -wr * iSum[i];
+				float jOld = jAcc[i];
+				jAcc[i] = cpfclamp(jOld + j, -jMax, jMax);
+				j = jAcc[i] - jOld;
+
+				// apply impulse
+				a.addAngularVelocity(-j * a.getInverseMoment());
+				b.addAngularVelocity(j * b.getInverseMoment());
+			}
+		}
+
+		@Override
+		protected void finish() {
+			for (int i = 0, n = count; i < n; i++) {
+				((SimpleMotor) constraints[i]).jAcc = jAcc[i];
+			}
+		}
+	}
 }
@@ -24,9 +24,12 @@ package org.physics.jipmunk.constraints;
 
 import org.physics.jipmunk.Body;
 import org.physics.jipmunk.Constraint;
+import org.physics.jipmunk.ConstraintBatch;
 import org.physics.jipmunk.Util;
 import org.physics.jipmunk.Vector2f;
 
+import java.nio.ByteBuffer;
+
 import static org.physics.jipmunk.Util.*;
 
 /** @author jobernolte */
@@ -99,6 +102,24 @@ public class SlideJoint extends Constraint {
 		this.max = max;
 	}
 
+	@Override
+	protected void writeState(ByteBuffer buffer) {
+		buffer.putFloat(this.anchorA.x).putFloat(this.anchorA.y);
+		buffer.putFloat(this.anchorB.x).putFloat(this.anchorB.y);
+		buffer.putFloat(this.min);
+		buffer.putFloat(this.max);
+		buffer.putFloat(this.jnAcc);
+	}
+
+	@Override
+	protected void readState(ByteBuffer buffer) {
+		this.anchorA = new Vector2f(buffer.getFloat(), buffer.getFloat());
+		this.anchorB = new Vector2f(buffer.getFloat(), buffer.getFloat());
+		this.min = buffer.getFloat();
+		this.max = buffer.getFloat();
+		this.jnAcc = buffer.getFloat();
+	}
+
 	@Override
 	protected void preStep(float dt) {
 		this.r1 = a.getTransform().transformVect(cpvsub(this.anchorA, a.getCenterOfGravity()));
@@ -120,7 +141,7 @@ public class SlideJoint extends Constraint {
 
 		// calculate bias velocity
 		//float maxBias = this.constraint.maxBias;
-		this.bias = cpfclamp(-bias_coef(this.errorBias, dt) * pdist / dt, -this.maxBias, this.maxBias);
+		this.bias = cpfclamp(-biasCoef(dt) * pdist / dt, -this.maxBias, this.maxBias);
 
 		// if bias is 0, then the joint is not at a limit. Reset cached impulse.
 		if (this.bias == 0) {
@@ -165,4 +186,110 @@ public class SlideJoint extends Constraint {
 	protected float getImpulse() {
 		return cpfabs(this.jnAcc);
 	}
+
+	@Override
+	protected ConstraintBatch createBatch() {
+		return (getClass() == SlideJoint.class) ? new Batch() : null;
+	}
+
+	/** Solves slide joints in loops over primitive arrays. */
+	static final class Batch extends ConstraintBatch {
+		private float[] r1x, r1y, r2x, r2y, nx, ny, nMass, bias, jnAcc, maxForce;
+
+		@Override
+		protected void preStep(float dt) {
+			int n = count;
+			r1x = ensure(r1x, n);
+			r1y = ensure(r1y, n);
+			r2x = ensure(r2x, n);
+			r2y = ensure(r2y, n);
+			nx = ensure(nx, n);
+			ny = ensure(ny, n);
+			nMass = ensure(nMass, n);
+			bias = ensure(bias, n);
+			jnAcc = ensure(jnAcc, n);
+			maxForce = ensure(maxForce, n);
+			for (int i = 0; i < n; i++) {
+				SlideJoint joint = (SlideJoint) constraints[i];
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				Vector2f cogA = a.getCenterOfGravity();
+				Vector2f cogB = b.getCenterOfGravity();
+				float ax = joint.anchorA.x - cogA.x, ay = joint.anchorA.y - cogA.y;
+				float bx = joint.anchorB.x - cogB.x, by = joint.anchorB.y - cogB.y;
+				float r1x = this.r1x[i] = rotateX(a, ax, ay);
+				float r1y = this.r1y[i] = rotateY(a, ax, ay);
+				float r2x = this.r2x[i] = rotateX(b, bx, by);
+				float r2y = this.r2y[i] = rotateY(b, bx, by);
+
+				Vector2f pa = a.getPosition();
+				Vector2f pb = b.getPosition();
+				float dx = (pb.x + r2x) - (pa.x + r1x);
+				float dy = (pb.y + r2y) - (pa.y + r1y);
+				float dist = (float) Math.sqrt(dx * dx + dy * dy);
+				float pdist = 0.0f;
+				if (dist > joint.max) {
+					pdist = dist - joint.max;
+				} else if (dist < joint.min) {
+					pdist = joint.min - dist;
+					dist = -dist;
+				}
+				float inv = 1.0f / (dist != 0 ? dist : Float.POSITIVE_INFINITY);
+				float nx = this.nx[i] = dx * inv;
+				float ny = this.ny[i] = dy * inv;
+
+				// calculate mass normal
+				nMass[i] = 1.0f / kScalar(a, b, r1x, r1y, r2x, r2y, nx, ny);
+
+				// calculate bias velocity
+				float bias = this.bias[i] = cpfclamp(-joint.biasCoef(dt) * pdist / dt, -joint.maxBias, joint.maxBias);
+
+				// if bias is 0, then the joint is not at a limit. Reset cached impulse.
+				jnAcc[i] = (bias == 0) ? 0.0f : joint.jnAcc;
+				maxForce[i] = joint.maxForce;
+			}
+		}
+
+		@Override
+		protected void applyCachedImpulse(float dt_coef) {
+			for (int i = 0, n = count; i < n; i++) {
+				float j = jnAcc[i] * dt_coef;
+				applyImpulses(bodyA[i], bodyB[i], r1x[i], r1y[i], r2x[i], r2y[i], nx[i] * j, ny[i] * j);
+			}
+		}
+
+		@Override
+		protected void applyImpulse(float dt) {
+			for (int i = 0, n = count; i < n; i++) {
+				float bias = this.bias[i];
+				if (bias == 0) {
+					continue;  // early exit
+				}
+				Body a = bodyA[i];
+				Body b = bodyB[i];
+				float r1x = this.r1x[i], r1y = this.r1y[i];
+				float r2x = this.r2x[i], r2y = this.r2y[i];
+				float nx = this.nx[i], ny = this.ny[i];
+
+				// compute relative velocity
+				float vrn = relativeVelocityX(a, b, r1y, r2y) * nx + relativeVelocityY(a, b, r1x, r2x) * ny;
+
+				// compute normal impulse
+				float jn = (bias - vrn) * nMass[i];
+				float jnOld = jnAcc[i];
+				float acc = jnAcc[i] = cpfclamp(jnOld + jn, -maxForce[i] * dt, 0.0f);
+				jn = acc - jnOld;
+
+				// apply impulse
+				applyImpulses(a, b, r1x, r1y, r2x, r2y, nx * jn, ny * jn);
+			}
+		}
+
+		@Override
+		protected void finish() {
+			for (int i = 0, n = count; i < n; i++) {
+				((SlideJoint) constraints[i]).jnAcc = jnAcc[i];
+			}
+		}
+	}
 }
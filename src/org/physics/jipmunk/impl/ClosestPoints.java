@@ -26,7 +26,6 @@ import org.physics.jipmunk.CollisionID;
 import org.physics.jipmunk.Vector2f;
 
 import static org.physics.jipmunk.Assert.cpAssertWarn;
-import static org.physics.jipmunk.Util.*;
 
 /**
  * Closest points on the surface of two shapes.
@@ -37,70 +36,105 @@ public class ClosestPoints {
 	private static boolean ENABLE_CACHING = true;
 	private final static int MAX_GJK_ITERATIONS = 30;
 	private final static int WARN_GJK_ITERATIONS = 20;
-	private final static int MAX_EPA_ITERATIONS = 30;
+	final static int MAX_EPA_ITERATIONS = 30;
 	private final static int WARN_EPA_ITERATIONS = 20;
 	/** Surface points in absolute coordinates. */
-	public final Vector2f a, b;
+	public final Vector2f a = new Vector2f(), b = new Vector2f();
 	/** Minimum separating axis of the two shapes. */
-	public final Vector2f n;
+	public final Vector2f n = new Vector2f();
 	/** Signed distance between the points. */
-	public final float d;
+	public float d;
 	/** Concatenation of the id's of the minkoski points. */
-	public final CollisionID id;
+	public final CollisionID id = new CollisionID(0);
+
+	public ClosestPoints() {
+	}
 
 	public ClosestPoints(Vector2f a, Vector2f b, Vector2f n, float d, CollisionID id) {
-		this.a = a;
-		this.b = b;
-		this.n = n;
+		this.a.set(a);
+		this.b.set(b);
+		this.n.set(n);
 		this.d = d;
-		this.id = id;
+		this.id.setValue(id.getValue());
 	}
 
 	/**
 	 * Find the closest p(t) to (0, 0) where p(t) = a*(1-t)/2 + b*(1+t)/2
 	 * The range for t is [-1, 1] to avoid floating point issues if the parameters are swapped.
 	 *
-	 * @param a the first point.
-	 * @param b the second point.
+	 * @param ax the x component of the first point.
+	 * @param ay the y component of the first point.
+	 * @param bx the x component of the second point.
+	 * @param by the y component of the second point.
 	 * @return the closest p(t).
 	 */
-	static float closestT(Vector2f a, Vector2f b) {
-		Vector2f delta = cpvsub(b, a);
-		return -cpfclamp(cpvdot(delta, cpvadd(a, b)) / cpvlengthsq(delta), -1.0f, 1.0f);
+	static float closestT(float ax, float ay, float bx, float by) {
+		float dx = bx - ax;
+		float dy = by - ay;
+		float q = (dx * (ax + bx) + dy * (ay + by)) / (dx * dx + dy * dy);
+		return -Math.min(Math.max(q, -1.0f), 1.0f);
 	}
 
-	static Vector2f lerpT(Vector2f a, Vector2f b, float t) {
+	static float lerpT(float a, float b, float t) {
 		float ht = 0.5f * t;
-		return cpvadd(cpvmult(a, 0.5f - ht), cpvmult(b, 0.5f + ht));
+		return a * (0.5f - ht) + b * (0.5f + ht);
+	}
+
+	static float closestDist(float ax, float ay, float bx, float by) {
+		float t = closestT(ax, ay, bx, by);
+		float x = lerpT(ax, bx, t);
+		float y = lerpT(ay, by, t);
+		return x * x + y * y;
+	}
+
+	static float closestDist(GJKWorkspace ws, int v0, int v1) {
+		return closestDist(ws.abx[v0], ws.aby[v0], ws.abx[v1], ws.aby[v1]);
+	}
+
+	static float cross(float ax, float ay, float bx, float by) {
+		return ax * by - ay * bx;
 	}
 
-	static ClosestPoints create(MinkowskiPoint v0, MinkowskiPoint v1) {
+	static ClosestPoints create(GJKWorkspace ws, int v0, int v1, ClosestPoints out) {
+		float ab0x = ws.abx[v0], ab0y = ws.aby[v0];
+		float ab1x = ws.abx[v1], ab1y = ws.aby[v1];
+
 		// Find the closest p(t) on the minkowski difference to (0, 0)
-		float t = closestT(v0.getAb(), v1.getAb());
-		Vector2f p = lerpT(v0.getAb(), v1.getAb(), t);
+		float t = closestT(ab0x, ab0y, ab1x, ab1y);
+		float px = lerpT(ab0x, ab1x, t);
+		float py = lerpT(ab0y, ab1y, t);
 
 		// Interpolate the original support points using the same 't' value as above.
 		// This gives you the closest surface points in absolute coordinates. NEAT!
-		Vector2f pa = lerpT(v0.getA(), v1.getA(), t);
-		Vector2f pb = lerpT(v0.getB(), v1.getB(), t);
-		CollisionID id = new CollisionID((v0.getId().getValue() & 0xFFFF) << 16 | (v1.getId().getValue() & 0xFFFF));
+		out.a.set(lerpT(ws.ax[v0], ws.ax[v1], t), lerpT(ws.ay[v0], ws.ay[v1], t));
+		out.b.set(lerpT(ws.bx[v0], ws.bx[v1], t), lerpT(ws.by[v0], ws.by[v1], t));
+		out.id.setValue((ws.id[v0] & 0xFFFF) << 16 | (ws.id[v1] & 0xFFFF));
 
 		// First try calculating the MSA from the minkowski difference edge.
 		// This gives us a nice, accurate MSA when the surfaces are close together.
-		Vector2f delta = cpvsub(v1.getAb(), v0.getAb());
-		Vector2f n = cpvnormalize(cpvrperp(delta));
-		float d = cpvdot(n, p);
+		float rx = ab1y - ab0y;
+		float ry = -(ab1x - ab0x);
+		float inv = 1.0f / (float) Math.sqrt(rx * rx + ry * ry);
+		float nx = rx * inv;
+		float ny = ry * inv;
+		float d = nx * px + ny * py;
 
 		if (d <= 0.0f || (-1.0f < t && t < 1.0f)) {
 			// If the shapes are overlapping, or we have a regular vertex/edge collision, we are done.
-			return new ClosestPoints(pa, pb, n, d, id);
+			out.n.set(nx, ny);
+			out.d = d;
 		} else {
 			// Vertex/vertex collisions need special treatment since the MSA won't be shared with an axis of the minkowski difference.
-			float d2 = cpvlength(p);
-			Vector2f n2 = cpvnormalize(cpvmult(p, 1.0f / (d2 + Float.MIN_VALUE)));
+			float d2 = (float) Math.sqrt(px * px + py * py);
+			float s = 1.0f / (d2 + Float.MIN_VALUE);
+			float mx = px * s;
+			float my = py * s;
+			float minv = 1.0f / (float) Math.sqrt(mx * mx + my * my);
 
-			return new ClosestPoints(pa, pb, n2, d2, id);
+			out.n.set(mx * minv, my * minv);
+			out.d = d2;
 		}
+		return out;
 	}
 
 	/**
@@ -111,136 +145,98 @@ public class ClosestPoints {
 	 * @return the closest points between the two shapes.
 	 */
 	public static ClosestPoints GJK(SupportContext ctx, CollisionID id) {
+		return GJK(ctx, id, new ClosestPoints());
+	}
+
+	/**
+	 * Find the closest points between two shapes using the GJK algorithm. Runs without allocating, all intermediate
+	 * minkowski points live in a thread confined workspace.
+	 *
+	 * @param ctx the {@link org.physics.jipmunk.impl.SupportContext} to use.
+	 * @param id  the {@link org.physics.jipmunk.CollisionID}.
+	 * @param out the {@link ClosestPoints} taking the result.
+	 * @return <code>out</code>
+	 */
+	public static ClosestPoints GJK(SupportContext ctx, CollisionID id, ClosestPoints out) {
+		GJKWorkspace ws = GJKWorkspace.get();
+		int v0 = 0, v1 = 1;
 
-		MinkowskiPoint v0, v1;
 		if (id.getValue() != 0 && ENABLE_CACHING) {
 			// Use the minkowski points from the last frame as a starting point using the cached indexes.
-			v0 = MinkowskiPoint.create(SupportPoint.shapePoint(ctx.shape1, (id.getValue() >> 24) & 0xFF),
-									   SupportPoint.shapePoint(ctx.shape2, (id.getValue() >> 16) & 0xFF));
-			v1 = MinkowskiPoint.create(SupportPoint.shapePoint(ctx.shape1, (id.getValue() >> 8) & 0xFF),
-									   SupportPoint.shapePoint(ctx.shape2, (id.getValue()) & 0xFF));
+			ws.shapePoints(ctx, v0, (id.getValue() >> 24) & 0xFF, (id.getValue() >> 16) & 0xFF);
+			ws.shapePoints(ctx, v1, (id.getValue() >> 8) & 0xFF, (id.getValue()) & 0xFF);
 		} else {
 			// No cached indexes, use the shapes' bounding box centers as a guess for a starting axis.
-			Vector2f axis = cpvperp(cpvsub(ctx.shape1.getBB().getCenter(), ctx.shape2.getBB().getCenter()));
-			v0 = MinkowskiPoint.support(ctx, axis);
-			v1 = MinkowskiPoint.support(ctx, cpvneg(axis));
+			Vector2f c1 = ctx.shape1.getBB().getCenter();
+			Vector2f c2 = ctx.shape2.getBB().getCenter();
+			float axisX = -(c1.y - c2.y);
+			float axisY = c1.x - c2.x;
+			ws.support(ctx, v0, axisX, axisY);
+			ws.support(ctx, v1, -axisX, -axisY);
 		}
 
-		ClosestPoints points = GJKRecurse(ctx, v0, v1, 1);
-		id.setValue(points.id.getValue());
-		return points;
+		GJKLoop(ws, ctx, v0, v1, out);
+		id.setValue(out.id.getValue());
+		return out;
 	}
 
-	static ClosestPoints GJKRecurse(final SupportContext ctx, final MinkowskiPoint v0, final MinkowskiPoint v1,
-			int iteration) {
-		if (iteration > MAX_GJK_ITERATIONS) {
-			cpAssertWarn(iteration < WARN_GJK_ITERATIONS, "High GJK iterations: " + iteration);
-			return create(v0, v1);
-		}
+	static ClosestPoints GJKLoop(GJKWorkspace ws, SupportContext ctx, int v0, int v1, ClosestPoints out) {
+		final float[] abx = ws.abx, aby = ws.aby;
 
-		Vector2f delta = cpvsub(v1.getAb(), v0.getAb());
-		// TODO: should this be an area2x check?
-		if (cpvcross(delta, cpvadd(v0.getAb(), v1.getAb())) > 0.0f) {
-			// Origin is behind axis. Flip and try again.
-			return GJKRecurse(ctx, v1, v0, iteration);
-		} else {
-			float t = closestT(v0.getAb(), v1.getAb());
-			Vector2f n = (-1.0f < t && t < 1.0f ? cpvperp(delta) : cpvneg(lerpT(v0.getAb(), v1.getAb(), t)));
-			MinkowskiPoint p = MinkowskiPoint.support(ctx, n);
+		for (int iteration = 1; ; ) {
+			if (iteration > MAX_GJK_ITERATIONS) {
+				cpAssertWarn(iteration < WARN_GJK_ITERATIONS, "High GJK iterations: " + iteration);
+				return create(ws, v0, v1, out);
+			}
 
-			if (cpvcross(cpvsub(v1.getAb(), p.getAb()), cpvadd(v1.getAb(), p.getAb())) > 0.0f
-					&& cpvcross(cpvsub(v0.getAb(), p.getAb()), cpvadd(v0.getAb(), p.getAb())) < 0.0f) {
-				cpAssertWarn(iteration < WARN_GJK_ITERATIONS, "High GJK->EPA iterations: " + iteration);
-				// The triangle v0, p, v1 contains the origin. Use EPA to find the MSA.
-				return EPA(ctx, v0, p, v1);
+			float dx = abx[v1] - abx[v0];
+			float dy = aby[v1] - aby[v0];
+			// TODO: should this be an area2x check?
+			if (cross(dx, dy, abx[v0] + abx[v1], aby[v0] + aby[v1]) > 0.0f) {
+				// Origin is behind axis. Flip and try again.
+				int tmp = v0;
+				v0 = v1;
+				v1 = tmp;
+				continue;
+			}
+
+			float t = closestT(abx[v0], aby[v0], abx[v1], aby[v1]);
+			float nx, ny;
+			if (-1.0f < t && t < 1.0f) {
+				nx = -dy;
+				ny = dx;
 			} else {
-				// The new point must be farther along the normal than the existing points.
-				if (cpvdot(p.getAb(), n) <= cpfmax(cpvdot(v0.getAb(), n), cpvdot(v1.getAb(), n))) {
-					// The edge v0, v1 that we already have is the closest to (0, 0) since p was not closer.
-					cpAssertWarn(iteration < WARN_GJK_ITERATIONS, "High GJK iterations: " + iteration);
-					return create(v0, v1);
-				} else {
-					// p was closer to the origin than our existing edge.
-					// Need to figure out which existing point to drop.
-					if (ClosestDist(v0.getAb(), p.getAb()) < ClosestDist(p.getAb(), v1.getAb())) {
-						return GJKRecurse(ctx, v0, p, iteration + 1);
-					} else {
-						return GJKRecurse(ctx, p, v1, iteration + 1);
-					}
-				}
+				nx = -lerpT(abx[v0], abx[v1], t);
+				ny = -lerpT(aby[v0], aby[v1], t);
 			}
-		}
-	}
 
-	static float ClosestDist(final Vector2f v0, final Vector2f v1) {
-		return cpvlengthsq(lerpT(v0, v1, closestT(v0, v1)));
-	}
+			// The candidate point goes into whichever GJK slot is not used by the current edge.
+			int p = GJKWorkspace.GJK_SLOTS - v0 - v1;
+			ws.support(ctx, p, nx, ny);
 
-	/**
-	 * Recursive implementation of the EPA loop.
-	 * Each recursion adds a point to the convex hull until it's known that we have the closest point on the surface.
-	 *
-	 * @param ctx       the {@link org.physics.jipmunk.impl.SupportContext} to use.
-	 * @param count     the number hull points.
-	 * @param hull      the hull points.
-	 * @param iteration the iteration step.
-	 * @return a new {@link org.physics.jipmunk.impl.ClosestPoints} instance.
-	 */
-	static ClosestPoints EPARecurse(final SupportContext ctx, final int count, final MinkowskiPoint[] hull,
-			final int iteration) {
-		int mini = 0;
-		float minDist = Float.POSITIVE_INFINITY;
-
-		// TODO: precalculate this when building the hull and save a step.
-		// Find the closest segment hull[i] and hull[i + 1] to (0, 0)
-		for (int j = 0, i = count - 1; j < count; i = j, j++) {
-			float d = ClosestDist(hull[i].getAb(), hull[j].getAb());
-			if (d < minDist) {
-				minDist = d;
-				mini = i;
+			if (cross(abx[v1] - abx[p], aby[v1] - aby[p], abx[v1] + abx[p], aby[v1] + aby[p]) > 0.0f
+					&& cross(abx[v0] - abx[p], aby[v0] - aby[p], abx[v0] + abx[p], aby[v0] + aby[p]) < 0.0f) {
+				cpAssertWarn(iteration < WARN_GJK_ITERATIONS, "High GJK->EPA iterations: " + iteration);
+				// The triangle v0, p, v1 contains the origin. Use EPA to find the MSA.
+				return EPA(ws, ctx, v0, p, v1, out);
 			}
-		}
-
-		MinkowskiPoint v0 = hull[mini];
-		MinkowskiPoint v1 = hull[(mini + 1) % count];
-		if (cpveql(v0.getAb(), v1.getAb())) {
-			throw new IllegalStateException(
-					String.format("Internal Error: EPA vertexes are the same (%d and %d)", mini, (mini + 1) % count));
-		}
 
-		// Check if there is a point on the minkowski difference beyond this edge.
-		MinkowskiPoint p = MinkowskiPoint.support(ctx, cpvperp(cpvsub(v1.getAb(), v0.getAb())));
-
-		// The signed area of the triangle [v0.ab, v1.ab, p] will be positive if p lies beyond v0.ab, v1.ab.
-		float area2x = cpvcross(cpvsub(v1.getAb(), v0.getAb()),
-								cpvadd(cpvsub(p.getAb(), v0.getAb()), cpvsub(p.getAb(), v1.getAb())));
-		if (area2x > 0.0f && iteration < MAX_EPA_ITERATIONS) {
-			// Rebuild the convex hull by inserting p.
-			MinkowskiPoint[] hull2 = new MinkowskiPoint[count + 1];
-			int count2 = 1;
-			hull2[0] = p;
-
-			for (int i = 0; i < count; i++) {
-				int index = (mini + 1 + i) % count;
-
-				Vector2f h0 = hull2[count2 - 1].getAb();
-				Vector2f h1 = hull[index].getAb();
-				Vector2f h2 = (i + 1 < count ? hull[(index + 1) % count] : p).getAb();
-
-				// TODO: Should this be changed to an area2x check?
-				if (cpvcross(cpvsub(h2, h0), cpvsub(h1, h0)) > 0.0f) {
-					hull2[count2] = hull[index];
-					count2++;
-				}
+			// The new point must be farther along the normal than the existing points.
+			float pn = abx[p] * nx + aby[p] * ny;
+			if (pn <= Math.max(abx[v0] * nx + aby[v0] * ny, abx[v1] * nx + aby[v1] * ny)) {
+				// The edge v0, v1 that we already have is the closest to (0, 0) since p was not closer.
+				cpAssertWarn(iteration < WARN_GJK_ITERATIONS, "High GJK iterations: " + iteration);
+				return create(ws, v0, v1, out);
 			}
 
-			return EPARecurse(ctx, count2, hull2, iteration + 1);
-		} else {
-			// Could not find a new point to insert, so we have found the closest edge of the minkowski difference.
-			if (!(iteration < WARN_EPA_ITERATIONS)) {
-				throw new IllegalStateException(String.format("High EPA iterations: %d", iteration));
+			// p was closer to the origin than our existing edge.
+			// Need to figure out which existing point to drop.
+			if (closestDist(ws, v0, p) < closestDist(ws, p, v1)) {
+				v1 = p;
+			} else {
+				v0 = p;
 			}
-			return create(v0, v1);
+			iteration++;
 		}
 	}
 
@@ -248,18 +244,88 @@ public class ClosestPoints {
 	 * Find the closest points on the surface of two overlapping shapes using the EPA algorithm.
 	 * EPA is called from GJK when two shapes overlap.
 	 * This is moderately expensive step! Avoid it by adding radii to your shapes so their inner polygons won't overlap.
+	 * <p>
+	 * Each iteration adds a point to the convex hull until it's known that we have the closest point on the surface.
+	 * The hull is rebuilt in place by swapping the two index buffers of the workspace.
 	 *
+	 * @param ws  the {@link GJKWorkspace} holding the minkowski points.
 	 * @param ctx the {@link org.physics.jipmunk.impl.SupportContext} to use.
-	 * @param v0  the first {@link org.physics.jipmunk.impl.MinkowskiPoint}.
-	 * @param v1  the second {@link org.physics.jipmunk.impl.MinkowskiPoint}.
-	 * @param v2  the third {@link org.physics.jipmunk.impl.MinkowskiPoint}.
-	 * @return the closest points on the surface.
+	 * @param v0  the slot of the first minkowski point.
+	 * @param v1  the slot of the second minkowski point.
+	 * @param v2  the slot of the third minkowski point.
+	 * @param out the {@link ClosestPoints} taking the result.
+	 * @return <code>out</code>
 	 */
-	static ClosestPoints EPA(final SupportContext ctx, final MinkowskiPoint v0, final MinkowskiPoint v1,
-			final MinkowskiPoint v2) {
-		// TODO: allocate a NxM array here and do an in place convex hull reduction in EPARecurse
-		MinkowskiPoint[] hull = { v0, v1, v2 };
-		return EPARecurse(ctx, 3, hull, 1);
+	static ClosestPoints EPA(GJKWorkspace ws, SupportContext ctx, int v0, int v1, int v2, ClosestPoints out) {
+		final float[] abx = ws.abx, aby = ws.aby;
+		int[] hull = ws.hull;
+		hull[0] = v0;
+		hull[1] = v1;
+		hull[2] = v2;
+		int count = 3;
+		int next = GJKWorkspace.GJK_SLOTS;
+
+		for (int iteration = 1; ; iteration++) {
+			int mini = 0;
+			float minDist = Float.POSITIVE_INFINITY;
+
+			// TODO: precalculate this when building the hull and save a step.
+			// Find the closest segment hull[i] and hull[i + 1] to (0, 0)
+			for (int j = 0, i = count - 1; j < count; i = j, j++) {
+				float d = closestDist(ws, hull[i], hull[j]);
+				if (d < minDist) {
+					minDist = d;
+					mini = i;
+				}
+			}
+
+			int e0 = hull[mini];
+			int e1 = hull[(mini + 1) % count];
+			if (abx[e0] == abx[e1] && aby[e0] == aby[e1]) {
+				throw new IllegalStateException(
+						String.format("Internal Error: EPA vertexes are the same (%d and %d)", mini, (mini + 1) % count));
+			}
+
+			// Check if there is a point on the minkowski difference beyond this edge.
+			float dx = abx[e1] - abx[e0];
+			float dy = aby[e1] - aby[e0];
+			int p = next;
+			ws.support(ctx, p, -dy, dx);
+
+			// The signed area of the triangle [v0.ab, v1.ab, p] will be positive if p lies beyond v0.ab, v1.ab.
+			float area2x =
+					cross(dx, dy, (abx[p] - abx[e0]) + (abx[p] - abx[e1]), (aby[p] - aby[e0]) + (aby[p] - aby[e1]));
+			if (area2x > 0.0f && iteration < MAX_EPA_ITERATIONS) {
+				// Rebuild the convex hull by inserting p.
+				int[] hull2 = ws.hull2;
+				int count2 = 1;
+				hull2[0] = p;
+
+				for (int i = 0; i < count; i++) {
+					int index = (mini + 1 + i) % count;
+
+					int h0 = hull2[count2 - 1];
+					int h1 = hull[index];
+					int h2 = (i + 1 < count ? hull[(index + 1) % count] : p);
+
+					// TODO: Should this be changed to an area2x check?
+					if (cross(abx[h2] - abx[h0], aby[h2] - aby[h0], abx[h1] - abx[h0], aby[h1] - aby[h0]) > 0.0f) {
+						hull2[count2] = h1;
+						count2++;
+					}
+				}
+
+				ws.swapHulls();
+				hull = ws.hull;
+				count = count2;
+				next++;
+			} else {
+				// Could not find a new point to insert, so we have found the closest edge of the minkowski difference.
+				if (!(iteration < WARN_EPA_ITERATIONS)) {
+					throw new IllegalStateException(String.format("High EPA iterations: %d", iteration));
+				}
+				return create(ws, e0, e1, out);
+			}
+		}
 	}
 }
-
@@ -161,9 +161,10 @@ public class Collision {
 		SegmentShape seg1 = (SegmentShape) a;
 		SegmentShape seg2 = (SegmentShape) b;
 
+		GJKWorkspace ws = GJKWorkspace.get();
 		SupportContext context =
-				new SupportContext(seg1, seg2, SupportPoint::segmentSupportPoint, SupportPoint::segmentSupportPoint);
-		ClosestPoints points = ClosestPoints.GJK(context, info.getId());
+				ws.context.init(seg1, seg2, SupportPoint::segmentSupportPoint, SupportPoint::segmentSupportPoint);
+		ClosestPoints points = ClosestPoints.GJK(context, info.getId(), ws.points);
 
 		Vector2f n = points.n;
 		Vector2f rot1 = seg1.getBody().getRotation();
@@ -183,9 +184,10 @@ public class Collision {
 	static void circleToPoly(Shape a, Shape b, CollisionInfo info) {
 		CircleShape circle = (CircleShape) a;
 		PolyShape poly = (PolyShape) b;
+		GJKWorkspace ws = GJKWorkspace.get();
 		SupportContext context =
-				new SupportContext(circle, poly, SupportPoint::circleSupportPoint, SupportPoint::polySupportPoint);
-		ClosestPoints points = ClosestPoints.GJK(context, info.getId());
+				ws.context.init(circle, poly, SupportPoint::circleSupportPoint, SupportPoint::polySupportPoint);
+		ClosestPoints points = ClosestPoints.GJK(context, info.getId(), ws.points);
 
 		// If the closest points are nearer than the sum of the radii...
 		if (points.d <= circle.getRadius() + poly.getRadius()) {
@@ -199,9 +201,10 @@ public class Collision {
 	static void segmentToPoly(Shape a, Shape b, CollisionInfo info) {
 		SegmentShape seg = (SegmentShape) a;
 		PolyShape poly = (PolyShape) b;
+		GJKWorkspace ws = GJKWorkspace.get();
 		SupportContext context =
-				new SupportContext(seg, poly, SupportPoint::segmentSupportPoint, SupportPoint::polySupportPoint);
-		ClosestPoints points = ClosestPoints.GJK(context, info.getId());
+				ws.context.init(seg, poly, SupportPoint::segmentSupportPoint, SupportPoint::polySupportPoint);
+		ClosestPoints points = ClosestPoints.GJK(context, info.getId(), ws.points);
 
 		// Reject endcap collisions if tangents are provided.
 		Vector2f n = points.n;
@@ -216,9 +219,10 @@ public class Collision {
 	static void polyToPoly(Shape a, Shape b, CollisionInfo info) {
 		PolyShape poly1 = (PolyShape) a;
 		PolyShape poly2 = (PolyShape) b;
+		GJKWorkspace ws = GJKWorkspace.get();
 		SupportContext context =
-				new SupportContext(poly1, poly2, SupportPoint::polySupportPoint, SupportPoint::polySupportPoint);
-		ClosestPoints points = ClosestPoints.GJK(context, info.getId());
+				ws.context.init(poly1, poly2, SupportPoint::polySupportPoint, SupportPoint::polySupportPoint);
+		ClosestPoints points = ClosestPoints.GJK(context, info.getId(), ws.points);
 
 		// If the closest points are nearer than the sum of the radii...
 		if (points.d - poly1.getRadius() - poly2.getRadius() <= 0.0f) {
@@ -248,7 +252,20 @@ public class Collision {
 	}
 
 	public static CollisionInfo collide(final Shape a, final Shape b, CollisionID id) {
-		CollisionInfo info = new CollisionInfo(a, b, id, cpvzero());
+		return collide(a, b, id, new CollisionInfo());
+	}
+
+	/**
+	 * Collides <code>a</code> and <code>b</code> into <code>info</code>, dropping whatever it held before.
+	 *
+	 * @param a    the first shape
+	 * @param b    the second shape
+	 * @param id   the collision id used to cache data between steps
+	 * @param info the collision info to reuse
+	 * @return <code>info</code>
+	 */
+	public static CollisionInfo collide(final Shape a, final Shape b, CollisionID id, CollisionInfo info) {
+		info.init(a, b, id);
 
 		// Make sure the shape types are in order.
 		if (a.getType().ordinal() > b.getType().ordinal()) {
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk.impl;
+
+import org.physics.jipmunk.CollisionID;
+import org.physics.jipmunk.Vector2f;
+
+/**
+ * Thread confined scratch memory for the GJK and EPA loops in {@link ClosestPoints}. Minkowski points are kept in
+ * fixed-capacity primitive arrays and addressed by slot, the EPA hulls are plain index arrays that are swapped between
+ * iterations. Nothing in here is allocated once a thread has run its first collision query.
+ *
+ * @author jobernolte
+ */
+final class GJKWorkspace {
+	/** GJK keeps its working edge and the candidate point in the first three slots. */
+	static final int GJK_SLOTS = 3;
+	/** Every EPA iteration adds at most one point to the hull. */
+	static final int CAPACITY = GJK_SLOTS + ClosestPoints.MAX_EPA_ITERATIONS + 1;
+
+	private static final ThreadLocal<GJKWorkspace> WORKSPACE = ThreadLocal.withInitial(GJKWorkspace::new);
+
+	/** Support point on the first shape. */
+	final float[] ax = new float[CAPACITY], ay = new float[CAPACITY];
+	/** Support point on the second shape. */
+	final float[] bx = new float[CAPACITY], by = new float[CAPACITY];
+	/** b - a */
+	final float[] abx = new float[CAPACITY], aby = new float[CAPACITY];
+	/** Concatenated support point indexes. */
+	final int[] id = new int[CAPACITY];
+	/** EPA hull, stored as slot indexes. */
+	int[] hull = new int[CAPACITY];
+	/** Target buffer when the EPA hull is rebuilt. */
+	int[] hull2 = new int[CAPACITY];
+
+	/** Reusable context for the collision functions. */
+	final SupportContext context = new SupportContext();
+	/** Reusable result for the collision functions. */
+	final ClosestPoints points = new ClosestPoints();
+	/** Support point index cache of {@link ShapeCast}. */
+	final CollisionID castId = new CollisionID(0);
+
+	private final SupportPoint supportA = new SupportPoint();
+	private final SupportPoint supportB = new SupportPoint();
+	private final Vector2f axis = new Vector2f();
+
+	static GJKWorkspace get() {
+		return WORKSPACE.get();
+	}
+
+	void swapHulls() {
+		int[] tmp = hull;
+		hull = hull2;
+		hull2 = tmp;
+	}
+
+	/**
+	 * Stores the minkowski point for the two given support points in <code>slot</code>.
+	 *
+	 * @param slot the slot to write to.
+	 * @param a    the support point on the first shape.
+	 * @param b    the support point on the second shape.
+	 */
+	void set(int slot, SupportPoint a, SupportPoint b) {
+		Vector2f pa = a.getP();
+		Vector2f pb = b.getP();
+		ax[slot] = pa.x;
+		ay[slot] = pa.y;
+		bx[slot] = pb.x;
+		by[slot] = pb.y;
+		abx[slot] = pb.x - pa.x;
+		aby[slot] = pb.y - pa.y;
+		id[slot] = (a.getIndex().getValue() & 0xFF) << 8 | (b.getIndex().getValue() & 0xFF);
+	}
+
+	/**
+	 * Calculate the maximal point on the minkowski difference of two shapes along a particular axis and store it in
+	 * <code>slot</code>.
+	 *
+	 * @param ctx  the {@link SupportContext} to use.
+	 * @param slot the slot to write to.
+	 * @param nx   the x component of the axis.
+	 * @param ny   the y component of the axis.
+	 */
+	void support(SupportContext ctx, int slot, float nx, float ny) {
+		axis.set(-nx, -ny);
+		ctx.func1.apply(ctx.shape1, axis, supportA);
+		axis.set(nx, ny);
+		ctx.func2.apply(ctx.shape2, axis, supportB);
+		set(slot, supportA, supportB);
+		translate(ctx, slot);
+	}
+
+	/**
+	 * Rebuild the minkowski point in <code>slot</code> from cached support point indexes of the last frame.
+	 *
+	 * @param ctx  the {@link SupportContext} to use.
+	 * @param slot the slot to write to.
+	 * @param i1   the index on the first shape.
+	 * @param i2   the index on the second shape.
+	 */
+	void shapePoints(SupportContext ctx, int slot, int i1, int i2) {
+		SupportPoint.shapePoint(ctx.shape1, i1, supportA);
+		SupportPoint.shapePoint(ctx.shape2, i2, supportB);
+		set(slot, supportA, supportB);
+		translate(ctx, slot);
+	}
+
+	private void translate(SupportContext ctx, int slot) {
+		if (ctx.offsetX != 0.0f || ctx.offsetY != 0.0f) {
+			ax[slot] += ctx.offsetX;
+			ay[slot] += ctx.offsetY;
+			abx[slot] = bx[slot] - ax[slot];
+			aby[slot] = by[slot] - ay[slot];
+		}
+	}
+}
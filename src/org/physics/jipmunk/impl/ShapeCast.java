@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2007 Scott Lembcke, (c) 2011 Jürgen Obernolte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.physics.jipmunk.impl;
+
+import org.physics.jipmunk.CircleShape;
+import org.physics.jipmunk.CollisionID;
+import org.physics.jipmunk.PolyShape;
+import org.physics.jipmunk.SegmentQueryInfo;
+import org.physics.jipmunk.SegmentShape;
+import org.physics.jipmunk.Shape;
+import org.physics.jipmunk.ShapeType;
+import org.physics.jipmunk.Vector2f;
+
+/**
+ * Time of impact of a translating shape against a resting one by conservative advancement over {@link
+ * ClosestPoints#GJK(SupportContext, CollisionID, ClosestPoints)}.
+ * <p/>
+ * The moving shape is advanced along the translation by its distance to the target divided by the closing speed along
+ * the separating axis. For convex shapes that moves up to, but never through, the first contact.
+ *
+ * @author jobernolte
+ */
+public final class ShapeCast {
+	private final static int MAX_ITERATIONS = 32;
+	/** Distance at which the shapes are considered touching. */
+	private final static float TOLERANCE = 1e-3f;
+
+	private ShapeCast() {
+	}
+
+	static SupportPointFunc supportFunc(Shape shape) {
+		switch (shape.getType()) {
+			case CIRCLE_SHAPE:
+				return SupportPoint::circleSupportPoint;
+			case SEGMENT_SHAPE:
+				return SupportPoint::segmentSupportPoint;
+			case POLY_SHAPE:
+				return SupportPoint::polySupportPoint;
+			default:
+				throw new IllegalArgumentException("Shapes of type " + shape.getType()
+						+ " can't be cast directly, cast their parts instead.");
+		}
+	}
+
+	static float radius(Shape shape) {
+		switch (shape.getType()) {
+			case CIRCLE_SHAPE:
+				return ((CircleShape) shape).getRadius();
+			case SEGMENT_SHAPE:
+				return ((SegmentShape) shape).getRadius();
+			case POLY_SHAPE:
+				return ((PolyShape) shape).getRadius();
+			default:
+				throw new IllegalArgumentException("Shapes of type " + shape.getType()
+						+ " can't be cast directly, cast their parts instead.");
+		}
+	}
+
+	/**
+	 * Sweeps <code>moving</code> from its current position along <code>translation</code> against <code>target</code>.
+	 * On a hit <code>info</code> takes the target shape, the fraction of the translation at the first contact, the
+	 * surface normal of the target and the contact point on its surface. Shapes that already overlap hit at fraction
+	 * <code>0</code>. A sweep that has not closed the gap after a fixed number of steps, e.g. one grazing the target,
+	 * is reported as a miss.
+	 * <p/>
+	 * Both shapes have to be circles, segments or polygons. {@link org.physics.jipmunk.Space#shapeCastFirst} casts
+	 * chain, grid and compound shapes through their parts.
+	 *
+	 * @param moving      the swept shape, its cached world geometry is left untouched.
+	 * @param translation the translation of the swept shape.
+	 * @param target      the resting shape.
+	 * @param info        the {@link SegmentQueryInfo} taking the result.
+	 * @return <code>true</code> if <code>target</code> is hit within the translation.
+	 */
+	public static boolean cast(Shape moving, Vector2f translation, Shape target, SegmentQueryInfo info) {
+		GJKWorkspace ws = GJKWorkspace.get();
+		SupportContext context = ws.context.init(moving, target, supportFunc(moving), supportFunc(target));
+		ClosestPoints points = ws.points;
+		CollisionID id = ws.castId;
+		id.setValue(0);
+
+		// GJK does not handle the degenerate point to point case, it is never used for two circles
+		boolean circles = moving.getType() == ShapeType.CIRCLE_SHAPE && target.getType() == ShapeType.CIRCLE_SHAPE;
+		float r2 = radius(target);
+		float rsum = radius(moving) + r2;
+		float dx = translation.x, dy = translation.y;
+		float t = 0.0f;
+		boolean touching = false;
+		for (int i = 0; i < MAX_ITERATIONS; i++) {
+			context.translate(dx * t, dy * t);
+			if (circles) {
+				circlePoints((CircleShape) moving, (CircleShape) target, dx * t, dy * t, points);
+			} else {
+				ClosestPoints.GJK(context, id, points);
+			}
+
+			float distance = points.d - rsum;
+			Vector2f n = points.n;
+			if (distance <= TOLERANCE) {
+				touching = true;
+				break;
+			}
+
+			// closing speed along the separating axis, the shapes cannot touch before it has covered the distance
+			float vn = dx * n.x + dy * n.y;
+			if (vn <= 0.0f) {
+				return false;
+			}
+			t += distance / vn;
+			if (t > 1.0f) {
+				return false;
+			}
+		}
+
+		if (!touching) {
+			// the closest points are still those of the previous step, and the gap has not been closed
+			return false;
+		}
+		Vector2f n = points.n;
+		info.shape = target;
+		info.alpha = t;
+		info.normal.set(-n.x, -n.y);
+		info.point.set(points.b.x - n.x * r2, points.b.y - n.y * r2);
+		return true;
+	}
+
+	private static void circlePoints(CircleShape moving, CircleShape target, float offsetX, float offsetY,
+			ClosestPoints out) {
+		Vector2f c1 = moving.getTransformedCenter();
+		Vector2f c2 = target.getTransformedCenter();
+		float ax = c1.x + offsetX, ay = c1.y + offsetY;
+		float nx = c2.x - ax, ny = c2.y - ay;
+		float d = (float) Math.sqrt(nx * nx + ny * ny);
+		out.a.set(ax, ay);
+		out.b.set(c2);
+		if (d > 0.0f) {
+			out.n.set(nx / d, ny / d);
+		} else {
+			out.n.set(1.0f, 0.0f);
+		}
+		out.d = d;
+	}
+}
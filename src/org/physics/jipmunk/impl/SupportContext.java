@@ -28,13 +28,38 @@ import org.physics.jipmunk.Shape;
 * @author jobernolte
 */
 public class SupportContext {
-	final Shape shape1, shape2;
-	final SupportPointFunc func1, func2;
+	Shape shape1, shape2;
+	SupportPointFunc func1, func2;
+	/** Translation applied to every support point of the first shape. */
+	float offsetX, offsetY;
+
+	public SupportContext() {
+	}
 
 	public SupportContext(Shape shape1, Shape shape2, SupportPointFunc func1, SupportPointFunc func2) {
+		init(shape1, shape2, func1, func2);
+	}
+
+	public SupportContext init(Shape shape1, Shape shape2, SupportPointFunc func1, SupportPointFunc func2) {
 		this.shape1 = shape1;
 		this.shape2 = shape2;
 		this.func1 = func1;
 		this.func2 = func2;
+		this.offsetX = 0.0f;
+		this.offsetY = 0.0f;
+		return this;
+	}
+
+	/**
+	 * Moves the first shape by the given offset without touching its cached world geometry.
+	 *
+	 * @param x the x offset.
+	 * @param y the y offset.
+	 * @return this context.
+	 */
+	public SupportContext translate(float x, float y) {
+		this.offsetX = x;
+		this.offsetY = y;
+		return this;
 	}
 }
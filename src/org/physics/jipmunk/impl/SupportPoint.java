@@ -25,7 +25,6 @@ package org.physics.jipmunk.impl;
 import org.physics.jipmunk.*;
 
 import static org.physics.jipmunk.Util.cpvdot;
-import static org.physics.jipmunk.Util.cpvzero;
 
 /**
  * Support points are the maximal points on a shape's perimeter along a certain axis.
@@ -38,11 +37,29 @@ public class SupportPoint {
 	/** Save an index of the point so it can be cheaply looked up as a starting point for the next frame. */
 	private final CollisionID index;
 
+	public SupportPoint() {
+		this.p = new Vector2f();
+		this.index = new CollisionID(0);
+	}
+
 	public SupportPoint(Vector2f p, CollisionID index) {
 		this.p = new Vector2f(p);
 		this.index = index;
 	}
 
+	/**
+	 * Overwrites this support point in place so it can be reused across GJK/EPA iterations.
+	 *
+	 * @param p     the point.
+	 * @param index the index of the point on its shape.
+	 * @return this support point.
+	 */
+	public SupportPoint set(Vector2f p, int index) {
+		this.p.set(p);
+		this.index.setValue(index);
+		return this;
+	}
+
 	public Vector2f getP() {
 		return p;
 	}
@@ -51,16 +68,16 @@ public class SupportPoint {
 		return index;
 	}
 
-	public static SupportPoint circleSupportPoint(Shape shape, Vector2f n) {
-		return new SupportPoint(((CircleShape) shape).getTransformedCenter(), new CollisionID(0));
+	public static SupportPoint circleSupportPoint(Shape shape, Vector2f n, SupportPoint out) {
+		return out.set(((CircleShape) shape).getTransformedCenter(), 0);
 	}
 
-	public static SupportPoint segmentSupportPoint(Shape shape, Vector2f n) {
+	public static SupportPoint segmentSupportPoint(Shape shape, Vector2f n, SupportPoint out) {
 		SegmentShape seg = (SegmentShape) shape;
 		if (cpvdot(seg.getTa(), n) > cpvdot(seg.getTb(), n)) {
-			return new SupportPoint(seg.getTa(), new CollisionID(0));
+			return out.set(seg.getTa(), 0);
 		} else {
-			return new SupportPoint(seg.getTb(), new CollisionID(1));
+			return out.set(seg.getTb(), 1);
 		}
 	}
 
@@ -80,11 +97,11 @@ public class SupportPoint {
 		return index;
 	}
 
-	public static SupportPoint polySupportPoint(Shape shape, Vector2f n) {
+	public static SupportPoint polySupportPoint(Shape shape, Vector2f n, SupportPoint out) {
 		PolyShape poly = (PolyShape) shape;
 		SplittingPlane[] planes = poly.getPlanes();
 		int i = polySupportPointIndex(planes.length, planes, n);
-		return new SupportPoint(planes[i].v0, new CollisionID(i));
+		return out.set(planes[i].v0, i);
 	}
 
 	/**
@@ -92,26 +109,29 @@ public class SupportPoint {
 	 *
 	 * @param shape the cached shape.
 	 * @param i     the index.
+	 * @param out   the support point to write to.
 	 * @return the support point.
 	 */
-	public static SupportPoint shapePoint(Shape shape, int i) {
+	public static SupportPoint shapePoint(Shape shape, int i, SupportPoint out) {
 		switch (shape.getType()) {
 			case CIRCLE_SHAPE: {
-				return new SupportPoint(((CircleShape) shape).getTransformedCenter(), new CollisionID(0));
+				return out.set(((CircleShape) shape).getTransformedCenter(), 0);
 			}
 			case SEGMENT_SHAPE: {
 				SegmentShape seg = (SegmentShape) shape;
-				return new SupportPoint(i == 0 ? seg.getTa() : seg.getTb(), new CollisionID(i));
+				return out.set(i == 0 ? seg.getTa() : seg.getTb(), i);
 			}
 			case POLY_SHAPE: {
 				PolyShape poly = (PolyShape) shape;
 				final SplittingPlane[] planes = poly.getPlanes();
 				// Poly shapes may change vertex count.
 				int index = (i < planes.length ? i : 0);
-				return new SupportPoint(planes[index].v0, new CollisionID(index));
+				return out.set(planes[index].v0, index);
 			}
 			default: {
-				return new SupportPoint(cpvzero(), new CollisionID(0));
+				out.p.set(0.0f, 0.0f);
+				out.index.setValue(0);
+				return out;
 			}
 		}
 	}
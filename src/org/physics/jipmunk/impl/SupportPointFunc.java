@@ -30,5 +30,5 @@ import org.physics.jipmunk.Vector2f;
 */
 @FunctionalInterface
 public interface SupportPointFunc {
-	SupportPoint apply(Shape shape, Vector2f n);
+	SupportPoint apply(Shape shape, Vector2f n, SupportPoint out);
 }